@@ -0,0 +1,81 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+//
+// the cost of creating and reading a CanMessage, i.e. what the PER_FRAME receiver and every transmit pay per frame
+//
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CanMessageBenchmark
+{
+    private byte[] payload, fdPayload;
+    private CanMessage classic, extended;
+
+    @Setup
+    public void setup()
+    {
+        payload = new byte[] {(byte)1, (byte)2, (byte)3, (byte)4, (byte)5, (byte)6, (byte)7, (byte)8};
+        fdPayload = new byte[CanMessage.CANFD_MAX_DLEN];
+        classic = new CanMessage(0x123, payload);
+        extended = new CanMessage(true, false, 0x1abcdef, payload);
+    }
+
+    @Benchmark
+    public CanMessage constructClassic()
+    {
+        return new CanMessage(0x123, payload);
+    }
+
+    // as the native receiver, i.e. including the payload array
+    //
+    @Benchmark
+    public CanMessage constructReceived()
+    {
+        return new CanMessage(0x123, payload.clone(), 0, 0, 0, 0, 0);
+    }
+
+    @Benchmark
+    public CanMessage constructFd()
+    {
+        return CanMessage.fdMessage(false, 0x123, fdPayload, true);
+    }
+
+    @Benchmark
+    public void accessors(final Blackhole blackhole)
+    {
+        blackhole.consume(extended.getId());
+        blackhole.consume(extended.getRawId());
+        blackhole.consume(extended.getPayload());
+        blackhole.consume(extended.isExtendedId());
+        blackhole.consume(extended.isDataFrame());
+        blackhole.consume(extended.isFdFrame());
+    }
+
+    @Benchmark
+    public String messageToString()
+    {
+        return classic.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//
+// the classification of a received error frame and the notification of a single (empty) CanNotificationListener
+//
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ErrorFrameBenchmark
+{
+    @Param({"BUS_OFF", "CONTROLLER", "PROTOCOL", "RESTARTED"})
+    public String errorClass;
+
+    private CanCommsHandler handler;
+    private CanFrame frame;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        handler = new CanCommsHandler("bench", new CanFilter[0], new CanCommsConfig().setTransport(new CanVirtualBus("bench")));
+        handler.addNotificationListener(new CanNotificationListener()
+        {
+            public void notifyNativeReadError(final int error)
+            {
+            }
+
+            public void notifyBusOffError()
+            {
+            }
+
+            public void notifyControllerRestarted()
+            {
+            }
+
+            public void notifyControllerError(final int error)
+            {
+            }
+
+            public void notifyProtocolError(final int error)
+            {
+            }
+        });
+
+        int id = CanMessage.CAN_ERR_RESTARTED;
+        if ("BUS_OFF".equals(errorClass)) id = CanMessage.CAN_ERR_BUSOFF;
+        if ("CONTROLLER".equals(errorClass)) id = CanMessage.CAN_ERR_CRTL;
+        if ("PROTOCOL".equals(errorClass)) id = CanMessage.CAN_ERR_PROT;
+
+        final int slotSize = CanFrameRing.CLASSIC_SLOT_SIZE;
+        frame = new CanFrame(ByteBuffer.allocateDirect(slotSize).order(ByteOrder.nativeOrder()), slotSize);
+        frame.wrap(new CanMessage(CanMessage.CAN_ERR_FLAG | id, new byte[] {0, CanMessage.CAN_ERR_CRTL_RX_WARNING, CanMessage.CAN_ERR_PROT_ACTIVE, 0, 0, 0, 0, 0}));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        handler.stop();
+    }
+
+    @Benchmark
+    public void dispatch()
+    {
+        handler.dispatch(frame);
+    }
+}
@@ -0,0 +1,98 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//
+// the cost of dispatching one received frame to 1, 10 or 100 listeners, i.e. the listener thread's work per frame
+//
+// notes 1, ALL subscribes catch-all listeners, ID subscribes each listener to the frame's ID (the indexed lookup)
+//          and RANGE subscribes each listener to a different ID range, of which only one matches
+//       2, MESSAGE listeners include the cost of materialising the shared CanMessage
+//       3, the handler isn't started, dispatch() is called directly, i.e. no transport is involved
+//
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerFanOutBenchmark
+{
+    private static final int FRAME_ID = 0x123;
+
+    @Param({"1", "10", "100"})
+    public int listeners;
+
+    @Param({"ALL", "ID", "RANGE"})
+    public String subscription;
+
+    @Param({"FRAME", "MESSAGE"})
+    public String listenerType;
+
+    private CanCommsHandler handler;
+    private CanFrame frame;
+    private long sum;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        handler = new CanCommsHandler("bench", new CanFilter[0], new CanCommsConfig().setTransport(new CanVirtualBus("bench")));
+        for (int i = 0; i < listeners; i++)
+        {
+            final int fromId = "RANGE".equals(subscription) ? FRAME_ID + (i * 0x10) : FRAME_ID;
+            final int toId = "RANGE".equals(subscription) ? fromId + 0x0f : FRAME_ID;
+            if ("FRAME".equals(listenerType))
+            {
+                final CanFrameListener listener = (received) -> sum += received.getLong();
+                if ("ALL".equals(subscription)) handler.addFrameListener(listener); else handler.addFrameListener(fromId, toId, listener);
+            }
+            else
+            {
+                final CanMessageListener listener = (received) -> sum += received.getPayload()[0];
+                if ("ALL".equals(subscription)) handler.addMessageListener(listener); else handler.addMessageListener(fromId, toId, listener);
+            }
+        }
+
+        final int slotSize = CanFrameRing.CLASSIC_SLOT_SIZE;
+        frame = new CanFrame(ByteBuffer.allocateDirect(slotSize).order(ByteOrder.nativeOrder()), slotSize);
+        frame.wrap(new CanMessage(FRAME_ID, new byte[] {(byte)1, (byte)2, (byte)3, (byte)4, (byte)5, (byte)6, (byte)7, (byte)8}));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        handler.stop();
+    }
+
+    // note, the view is re-pointed each time so that a MESSAGE listener materialises a new CanMessage, as for a received frame
+    //
+    @Benchmark
+    public long dispatch()
+    {
+        frame.moveTo(0);
+        handler.dispatch(frame);
+
+        return sum;
+    }
+}
@@ -0,0 +1,106 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+//
+// the hand-off between the receiver thread and the listener thread, one producer and one consumer thread per group
+// i.e. the PER_FRAME queue of CanMessage instances and the BATCHED ring of frame slots, using each wait strategy
+//
+// note, each side spins until its operation succeeds, so the reported rate is the sustained hand-off rate
+//
+
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueHandoffBenchmark
+{
+    @Param({"BLOCKING", "PARK", "YIELD", "BUSY_SPIN"})
+    public CanCommsConfig.WaitStrategy waitStrategy;
+
+    private SpscQueue<CanMessage> queue;
+    private CanFrameRing ring;
+    private CanMessage message;
+
+    @Setup(Level.Iteration)
+    public void setup()
+    {
+        queue = new SpscQueue<CanMessage>(CanCommsConfig.DEFAULT_RING_CAPACITY, Waiter.create(waitStrategy));
+        ring = new CanFrameRing(CanCommsConfig.DEFAULT_RING_CAPACITY, CanFrameRing.CLASSIC_SLOT_SIZE, Waiter.create(waitStrategy));
+        message = new CanMessage(0x123, new byte[8]);
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public void queueOffer(final Control control)
+    {
+        while (!queue.offer(message) && !control.stopMeasurement) Thread.onSpinWait();
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public CanMessage queuePoll(final Control control)
+    {
+        CanMessage received = null;
+        while ((received == null) && !control.stopMeasurement) received = queue.poll(CanCommsHandler.RECEIVER_QUEUE_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        return received;
+    }
+
+    // as the native receiver, writes the ID and payload straight into the free slot
+    //
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public void ringPublish(final Control control)
+    {
+        while ((ring.writableSlots(1) == 0) && !control.stopMeasurement) Thread.onSpinWait();
+        if (control.stopMeasurement) return;
+
+        final ByteBuffer slots = ring.buffer();
+        final int offset = ring.tailOffset();
+        slots.putInt(offset + CanFrameRing.ID_OFFSET, 0x123);
+        slots.put(offset + CanFrameRing.LENGTH_OFFSET, (byte)8);
+        slots.putLong(offset + CanFrameRing.DATA_OFFSET, 0x0807060504030201L);
+        ring.publish(1);
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public int ringConsume(final Control control)
+    {
+        while ((ring.readableSlots() == 0) && !control.stopMeasurement) ring.awaitReadable(CanCommsHandler.RECEIVER_QUEUE_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (control.stopMeasurement) return 0;
+
+        final int id = ring.buffer().getInt(ring.headOffset() + CanFrameRing.ID_OFFSET);
+        ring.release(1);
+
+        return id;
+    }
+}
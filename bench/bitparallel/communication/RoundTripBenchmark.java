@@ -0,0 +1,153 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//
+// transmit to listener throughput between two handlers on the same bus, i.e. the full transmit, receive and dispatch path
+//
+// notes 1, by default both handlers are nodes on a CanVirtualBus, use e.g. -p device=vcan0 to measure the JNI socketCAN
+//          transport, the two sockets then receive each other's frames using the kernel loopback
+//       2, roundTrip waits for each frame to arrive before sending the next, burst keeps up to BURST frames in flight
+//       3, a frame lost by the receiver is written off after LOSS_TIMEOUT_NANOS, see the receiver's dropped frame metrics
+//       4, with a real device, -p transport=jni,ffm compares the JNI and FFM (JDK 22 onwards) socketCAN transports, the latter is
+//          loaded by name, as it's only built using -Dffm=true on JDK 22 or later
+//
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark
+{
+    private static final int BURST = 64;
+    private static final long LOSS_TIMEOUT_NANOS = 100_000_000;
+
+    @Param({"virtual"})
+    public String device;
+
+    @Param({"PER_FRAME", "BATCHED"})
+    public CanCommsConfig.ReceiveMode receiveMode;
+
+    @Param({"jni"})
+    public String transport;
+
+    private CanCommsHandler transmitter, receiver;
+    private CanMessage message;
+    private AtomicLong received;
+    private long sent;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        final CanCommsConfig transmitConfig = new CanCommsConfig();
+        final CanCommsConfig receiveConfig = new CanCommsConfig().setReceiveMode(receiveMode);
+        if ("virtual".equals(device))
+        {
+            final CanVirtualBus bus = new CanVirtualBus("bench");
+            transmitConfig.setTransport(bus);
+            receiveConfig.setTransport(bus);
+        }
+        else if ("ffm".equals(transport))
+        {
+            final CanTransport.Factory factory = ffmTransportFactory();
+            transmitConfig.setTransport(factory);
+            receiveConfig.setTransport(factory);
+        }
+
+        received = new AtomicLong();
+        message = new CanMessage(0x123, new byte[] {(byte)1, (byte)2, (byte)3, (byte)4, (byte)5, (byte)6, (byte)7, (byte)8});
+        transmitter = new CanCommsHandler(device, new CanFilter[0], transmitConfig);
+        receiver = new CanCommsHandler(device, new CanFilter[0], receiveConfig);
+        receiver.addFrameListener(0x123, (frame) -> received.lazySet(received.get() + 1));
+        receiver.start();
+        transmitter.start();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        transmitter.stop();
+        receiver.stop();
+    }
+
+    @Benchmark
+    public void roundTrip() throws IOException
+    {
+        transmitter.transmit(message);
+        sent++;
+        awaitReceived(sent);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void burst() throws IOException
+    {
+        for (int i = 0; i < BURST; i++) transmitter.transmit(message);
+
+        sent += BURST;
+        awaitReceived(sent);
+    }
+
+    private static CanTransport.Factory ffmTransportFactory() throws IOException
+    {
+        final Constructor<? extends CanTransport> constructor;
+        try
+        {
+            constructor = Class.forName("bitparallel.communication.FfmSocketCanTransport").asSubclass(CanTransport.class).getConstructor();
+        }
+        catch (final ReflectiveOperationException ex)
+        {
+            throw new IOException("The FFM transport isn't available, it requires JDK 22 or later, reason: " + ex.getMessage(), ex);
+        }
+
+        return () ->
+        {
+            try
+            {
+                return constructor.newInstance();
+            }
+            catch (final ReflectiveOperationException ex)
+            {
+                throw new IllegalStateException("Unable to create the FFM transport, reason: " + ex.getMessage(), ex);
+            }
+        };
+    }
+
+    private void awaitReceived(final long count)
+    {
+        final long deadline = System.nanoTime() + LOSS_TIMEOUT_NANOS;
+        while (received.get() < count)
+        {
+            if ((System.nanoTime() - deadline) > 0)
+            {
+                sent = received.get();
+                return;
+            }
+
+            Thread.onSpinWait();
+        }
+    }
+}
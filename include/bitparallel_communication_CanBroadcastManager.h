@@ -0,0 +1,69 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class bitparallel_communication_CanBroadcastManager */
+
+#ifndef _Included_bitparallel_communication_CanBroadcastManager
+#define _Included_bitparallel_communication_CanBroadcastManager
+#ifdef __cplusplus
+extern "C" {
+#endif
+#undef bitparallel_communication_CanBroadcastManager_RX_TIMEOUT
+#define bitparallel_communication_CanBroadcastManager_RX_TIMEOUT 11L
+#undef bitparallel_communication_CanBroadcastManager_RX_CHANGED
+#define bitparallel_communication_CanBroadcastManager_RX_CHANGED 12L
+#undef bitparallel_communication_CanBroadcastManager_TX_DELETE
+#define bitparallel_communication_CanBroadcastManager_TX_DELETE 2L
+#undef bitparallel_communication_CanBroadcastManager_RX_DELETE
+#define bitparallel_communication_CanBroadcastManager_RX_DELETE 6L
+/*
+ * Class:     bitparallel_communication_CanBroadcastManager
+ * Method:    nativeOpen
+ * Signature: (Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_bitparallel_communication_CanBroadcastManager_nativeOpen
+  (JNIEnv *, jobject, jstring);
+
+/*
+ * Class:     bitparallel_communication_CanBroadcastManager
+ * Method:    nativeTxSetup
+ * Signature: (II[BIZJZ)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_CanBroadcastManager_nativeTxSetup
+  (JNIEnv *, jobject, jint, jint, jbyteArray, jint, jboolean, jlong, jboolean);
+
+/*
+ * Class:     bitparallel_communication_CanBroadcastManager
+ * Method:    nativeRxSetup
+ * Signature: (II[BZJ)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_CanBroadcastManager_nativeRxSetup
+  (JNIEnv *, jobject, jint, jint, jbyteArray, jboolean, jlong);
+
+/*
+ * Class:     bitparallel_communication_CanBroadcastManager
+ * Method:    nativeDelete
+ * Signature: (IIIZ)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_CanBroadcastManager_nativeDelete
+  (JNIEnv *, jobject, jint, jint, jint, jboolean);
+
+/*
+ * Class:     bitparallel_communication_CanBroadcastManager
+ * Method:    nativeReceive
+ * Signature: (ILjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_bitparallel_communication_CanBroadcastManager_nativeReceive
+  (JNIEnv *, jobject, jint, jobject, jint, jint);
+
+/*
+ * Class:     bitparallel_communication_CanBroadcastManager
+ * Method:    nativeClose
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_CanBroadcastManager_nativeClose
+  (JNIEnv *, jobject, jint);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
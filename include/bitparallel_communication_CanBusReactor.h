@@ -0,0 +1,63 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class bitparallel_communication_CanBusReactor */
+
+#ifndef _Included_bitparallel_communication_CanBusReactor
+#define _Included_bitparallel_communication_CanBusReactor
+#ifdef __cplusplus
+extern "C" {
+#endif
+#undef bitparallel_communication_CanBusReactor_MAX_BUSES
+#define bitparallel_communication_CanBusReactor_MAX_BUSES 256L
+/*
+ * Class:     bitparallel_communication_CanBusReactor
+ * Method:    nativeCreate
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_bitparallel_communication_CanBusReactor_nativeCreate
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     bitparallel_communication_CanBusReactor
+ * Method:    nativeRegister
+ * Signature: (JJI)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_CanBusReactor_nativeRegister
+  (JNIEnv *, jobject, jlong, jlong, jint);
+
+/*
+ * Class:     bitparallel_communication_CanBusReactor
+ * Method:    nativeUnregister
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_CanBusReactor_nativeUnregister
+  (JNIEnv *, jobject, jlong, jint);
+
+/*
+ * Class:     bitparallel_communication_CanBusReactor
+ * Method:    nativeWakeup
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_CanBusReactor_nativeWakeup
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     bitparallel_communication_CanBusReactor
+ * Method:    nativePoll
+ * Signature: (JLjava/nio/ByteBuffer;III[I)I
+ */
+JNIEXPORT jint JNICALL Java_bitparallel_communication_CanBusReactor_nativePoll
+  (JNIEnv *, jobject, jlong, jobject, jint, jint, jint, jintArray);
+
+/*
+ * Class:     bitparallel_communication_CanBusReactor
+ * Method:    nativeDestroy
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_CanBusReactor_nativeDestroy
+  (JNIEnv *, jobject, jlong);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
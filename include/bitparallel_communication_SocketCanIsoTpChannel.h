@@ -0,0 +1,49 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class bitparallel_communication_SocketCanIsoTpChannel */
+
+#ifndef _Included_bitparallel_communication_SocketCanIsoTpChannel
+#define _Included_bitparallel_communication_SocketCanIsoTpChannel
+#ifdef __cplusplus
+extern "C" {
+#endif
+#undef bitparallel_communication_SocketCanIsoTpChannel_EINTR
+#define bitparallel_communication_SocketCanIsoTpChannel_EINTR 4L
+#undef bitparallel_communication_SocketCanIsoTpChannel_EAGAIN
+#define bitparallel_communication_SocketCanIsoTpChannel_EAGAIN 11L
+/*
+ * Class:     bitparallel_communication_SocketCanIsoTpChannel
+ * Method:    nativeOpen
+ * Signature: (Ljava/lang/String;IIIIIZZ)I
+ */
+JNIEXPORT jint JNICALL Java_bitparallel_communication_SocketCanIsoTpChannel_nativeOpen
+  (JNIEnv *, jobject, jstring, jint, jint, jint, jint, jint, jboolean, jboolean);
+
+/*
+ * Class:     bitparallel_communication_SocketCanIsoTpChannel
+ * Method:    nativeSend
+ * Signature: (ILjava/nio/ByteBuffer;II)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_SocketCanIsoTpChannel_nativeSend
+  (JNIEnv *, jobject, jint, jobject, jint, jint);
+
+/*
+ * Class:     bitparallel_communication_SocketCanIsoTpChannel
+ * Method:    nativeReceive
+ * Signature: (ILjava/nio/ByteBuffer;III)I
+ */
+JNIEXPORT jint JNICALL Java_bitparallel_communication_SocketCanIsoTpChannel_nativeReceive
+  (JNIEnv *, jobject, jint, jobject, jint, jint, jint);
+
+/*
+ * Class:     bitparallel_communication_SocketCanIsoTpChannel
+ * Method:    nativeClose
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_SocketCanIsoTpChannel_nativeClose
+  (JNIEnv *, jobject, jint);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -0,0 +1,71 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class bitparallel_communication_SocketCanTransport */
+
+#ifndef _Included_bitparallel_communication_SocketCanTransport
+#define _Included_bitparallel_communication_SocketCanTransport
+#ifdef __cplusplus
+extern "C" {
+#endif
+#undef bitparallel_communication_SocketCanTransport_TRANSMIT_SLOT_SIZE
+#define bitparallel_communication_SocketCanTransport_TRANSMIT_SLOT_SIZE 72L
+/*
+ * Class:     bitparallel_communication_SocketCanTransport
+ * Method:    nativeOpen
+ * Signature: (Ljava/lang/String;[Lbitparallel/communication/CanFilter;ZZZ)J
+ */
+JNIEXPORT jlong JNICALL Java_bitparallel_communication_SocketCanTransport_nativeOpen
+  (JNIEnv *, jobject, jstring, jobjectArray, jboolean, jboolean, jboolean);
+
+/*
+ * Class:     bitparallel_communication_SocketCanTransport
+ * Method:    nativeSetFilters
+ * Signature: ([Lbitparallel/communication/CanFilter;J)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_SocketCanTransport_nativeSetFilters
+  (JNIEnv *, jobject, jobjectArray, jlong);
+
+/*
+ * Class:     bitparallel_communication_SocketCanTransport
+ * Method:    nativeTransmit
+ * Signature: (JI[BIZ)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_SocketCanTransport_nativeTransmit
+  (JNIEnv *, jobject, jlong, jint, jbyteArray, jint, jboolean);
+
+/*
+ * Class:     bitparallel_communication_SocketCanTransport
+ * Method:    nativeTransmitBatch
+ * Signature: (JLjava/nio/ByteBuffer;I)I
+ */
+JNIEXPORT jint JNICALL Java_bitparallel_communication_SocketCanTransport_nativeTransmitBatch
+  (JNIEnv *, jobject, jlong, jobject, jint);
+
+/*
+ * Class:     bitparallel_communication_SocketCanTransport
+ * Method:    nativeReceiveTask
+ * Signature: (Lbitparallel/communication/CanCommsHandler;Lbitparallel/communication/ReceiveQueue;Ljava/util/concurrent/atomic/AtomicBoolean;J)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_SocketCanTransport_nativeReceiveTask
+  (JNIEnv *, jobject, jobject, jobject, jobject, jlong);
+
+/*
+ * Class:     bitparallel_communication_SocketCanTransport
+ * Method:    nativeReceiveBatch
+ * Signature: (JLjava/nio/ByteBuffer;IIII)I
+ */
+JNIEXPORT jint JNICALL Java_bitparallel_communication_SocketCanTransport_nativeReceiveBatch
+  (JNIEnv *, jobject, jlong, jobject, jint, jint, jint, jint);
+
+/*
+ * Class:     bitparallel_communication_SocketCanTransport
+ * Method:    nativeClose
+ * Signature: (Ljava/lang/String;J)V
+ */
+JNIEXPORT void JNICALL Java_bitparallel_communication_SocketCanTransport_nativeClose
+  (JNIEnv *, jobject, jstring, jlong);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -2,32 +2,407 @@
 // (c) Bit Parallel Ltd, November 2021
 //
 
+// note, must precede linux/errqueue.h
+//
+#include <time.h>
+
+#include <linux/can/bcm.h>
 #include <linux/can/raw.h>
 #include <linux/can/error.h>
+#include <linux/can/isotp.h>
+#include <linux/errqueue.h>
+#include <linux/net_tstamp.h>
 #include <net/if.h>
+#include <poll.h>
 #include <stdint.h>
 #include <unistd.h>
 #include <string.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
 #include <sys/ioctl.h>
 #include <sys/socket.h>
 
+#include <algorithm>
+#include <atomic>
+#include <bitset>
 #include <iomanip>
+#include <mutex>
 #include <string>
 #include <sstream>
+#include <vector>
+
+#include "bitparallel_communication_CanBroadcastManager.h"
+#include "bitparallel_communication_CanBusReactor.h"
+#include "bitparallel_communication_SocketCanIsoTpChannel.h"
+#include "bitparallel_communication_SocketCanTransport.h"
+
+// note, only defined by the more recent kernel headers
+//
+#ifndef CANFD_FDF
+#define CANFD_FDF 0x04
+#endif
 
-#include "bitparallel_communication_CanCommsHandler.h"
+#ifndef CAN_ERR_CNT
+#define CAN_ERR_CNT 0x00000200U
+#endif
 
 extern "C"
 {
-    // used in transmit()
+    // must match CanCommsConfig.MAX_RECEIVE_BATCH_SIZE
+    //
+    constexpr int32_t MAX_RECEIVE_BATCH_SIZE = 256;
+
+    // must match CanTransmitQueue.MAX_BATCH_SIZE and SocketCanTransport.TRANSMIT_SLOT_SIZE
+    //
+    constexpr int32_t MAX_TRANSMIT_BATCH_SIZE = 64;
+    constexpr int32_t TRANSMIT_SLOT_SIZE = CANFD_MTU;
+    constexpr int32_t TRANSMIT_POLL_TIMEOUT_MS = 10;
+    constexpr int64_t TRANSMIT_TIMEOUT_NANOS = 100000000LL;
+
+    // must match CanBusReactor.MAX_BUSES and the CanFrameRing slot layout
+    //
+    constexpr int32_t MAX_REACTOR_BUSES = 256;
+    constexpr int32_t SLOT_BUS_OFFSET = 6;
+    constexpr uint32_t REACTOR_WAKEUP_EVENT = 0xffffffff;
+    constexpr int32_t SLOT_FD_FLAGS_OFFSET = 5;
+
+    // must match the CanFrameRing timestamp trailer, i.e. the last 32 bytes of every slot
+    //
+    constexpr int32_t SLOT_TRAILER_SIZE = 32;
+    constexpr int32_t TIMESTAMP_CONTROL_SIZE = CMSG_SPACE(sizeof(scm_timestamping));
+
+    // used in transmit(), a classic frame uses the first CAN_MTU bytes
     //
     union CanFrame
     {
         can_frame frame;
-        uint8_t bytes[sizeof(can_frame)];
+        canfd_frame fdFrame;
+        uint8_t bytes[sizeof(canfd_frame)];
+    };
+
+    // CAN FD only supports payloads of 0 to 8, 12, 16, 20, 24, 32, 48 and 64 bytes
+    //
+    static inline uint8_t paddedFdLength(const int32_t length)
+    {
+        if (length <= 8) return static_cast<uint8_t>(length);
+        if (length <= 24) return static_cast<uint8_t>((length + 3) & ~3);
+        if (length <= 32) return 32;
+        if (length <= 48) return 48;
+
+        return CANFD_MAX_DLEN;
+    }
+
+    //
+    // user space CAN filtering, a CanFilter[] set is compiled into,
+    // 1, a bitmap covering every standard ID, with and without the RTR flag
+    // 2, groups of extended ID filters sharing the same mask, each holding a sorted list of (id & mask) values
+    // 3, a short list of inverted extended ID filters, these are matched individually
+    //
+    // notes 1, the matching rules follow CAN_RAW_FILTER, i.e. (received_id & mask) == (filter_id & mask)
+    //       2, error frames are never filtered, they are controlled by CAN_RAW_ERR_FILTER
+    //
+
+    struct MaskGroup
+    {
+        canid_t mask;
+        std::vector<canid_t> values;
+    };
+
+    struct CompiledFilter
+    {
+        bool acceptAll;
+        std::bitset<2 * (CAN_SFF_MASK + 1)> standard;
+        std::vector<MaskGroup> extended;
+        std::vector<can_filter> inverted;
+
+        bool matches(const canid_t rawId) const
+        {
+            if (acceptAll || (rawId & CAN_ERR_FLAG)) return true;
+            if (!(rawId & CAN_EFF_FLAG)) return standard.test(((rawId & CAN_RTR_FLAG) ? (CAN_SFF_MASK + 1) : 0) | (rawId & CAN_SFF_MASK));
+
+            for (const MaskGroup& group : extended)
+            {
+                if (std::binary_search(group.values.begin(), group.values.end(), rawId & group.mask)) return true;
+            }
+
+            for (const can_filter& filter : inverted)
+            {
+                if ((rawId & filter.can_mask) != (filter.can_id & filter.can_mask)) return true;
+            }
+
+            return false;
+        }
+    };
+
+    // the native state behind the Java device handle
+    // note, the compiled filter is replaced atomically, a replaced filter is retired and only deleted by the receiver task
+    // between reads (or when the socket is closed), i.e. when it is guaranteed not to be in use
+    //
+    struct CanSocket
+    {
+        int32_t fd;
+        bool kernelFiltering;
+        bool fdFrames;
+        bool timestamping;
+        std::atomic<CompiledFilter*> filter;
+        std::atomic<bool> retiredPending;
+        std::mutex retiredLock;
+        std::vector<CompiledFilter*> retired;
+    };
+
+    static inline CanSocket* toSocket(const jlong deviceHandle)
+    {
+        return reinterpret_cast<CanSocket*>(deviceHandle);
+    }
+
+    static bool filterMatches(const can_filter& filter, const canid_t rawId)
+    {
+        const bool match = (rawId & filter.can_mask) == (filter.can_id & filter.can_mask);
+        return (filter.can_id & CAN_INV_FILTER) ? !match : match;
+    }
+
+    static CompiledFilter* compileFilters(const std::vector<can_filter>& filters)
+    {
+        CompiledFilter* const compiled = new CompiledFilter();
+        compiled->acceptAll = filters.empty();
+        if (compiled->acceptAll) return compiled;
+
+        // note, the error flag is never part of a filter match, CAN_INV_FILTER shares its bit position
+        //
+        std::vector<can_filter> cleaned;
+        for (can_filter filter : filters)
+        {
+            filter.can_mask &= ~CAN_ERR_FLAG;
+            cleaned.push_back(filter);
+        }
+
+        for (canid_t rtr = 0; rtr < 2; rtr++)
+        {
+            for (canid_t id = 0; id <= CAN_SFF_MASK; id++)
+            {
+                const canid_t rawId = id | (rtr ? CAN_RTR_FLAG : 0);
+                for (const can_filter& filter : cleaned)
+                {
+                    if (filterMatches(filter, rawId))
+                    {
+                        compiled->standard.set((rtr ? (CAN_SFF_MASK + 1) : 0) | id);
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (const can_filter& filter : cleaned)
+        {
+            if (filter.can_id & CAN_INV_FILTER)
+            {
+                can_filter inverted = filter;
+                inverted.can_id &= ~CAN_INV_FILTER;
+                compiled->inverted.push_back(inverted);
+                continue;
+            }
+
+            // filters that explicitly require a standard ID can't match an extended ID
+            //
+            if ((filter.can_mask & CAN_EFF_FLAG) && !(filter.can_id & CAN_EFF_FLAG)) continue;
+
+            auto group = std::find_if(compiled->extended.begin(), compiled->extended.end(), [&filter](const MaskGroup& g) { return g.mask == filter.can_mask; });
+            if (group == compiled->extended.end())
+            {
+                compiled->extended.push_back(MaskGroup {filter.can_mask, {}});
+                group = compiled->extended.end() - 1;
+            }
+
+            group->values.push_back(filter.can_id & filter.can_mask);
+        }
+
+        for (MaskGroup& group : compiled->extended)
+        {
+            std::sort(group.values.begin(), group.values.end());
+            group.values.erase(std::unique(group.values.begin(), group.values.end()), group.values.end());
+        }
+
+        return compiled;
+    }
+
+    // called by the receiver task between reads, i.e. when it holds no reference to a compiled filter
+    //
+    static void reclaimRetiredFilters(CanSocket* const canSocket)
+    {
+        if (!canSocket->retiredPending.load(std::memory_order_acquire)) return;
+
+        std::lock_guard<std::mutex> guard(canSocket->retiredLock);
+        for (CompiledFilter* filter : canSocket->retired) delete filter;
+        canSocket->retired.clear();
+        canSocket->retiredPending.store(false, std::memory_order_release);
+    }
+
+    //
+    // receive timestamps, see SO_TIMESTAMPING
+    // note, the software timestamp uses CLOCK_REALTIME, whereas System.nanoTime() uses CLOCK_MONOTONIC
+    //
+
+    struct ReceiveTimes
+    {
+        int64_t software;
+        int64_t hardware;
+        int64_t receivedNanos;
+        int64_t kernelLatency;
     };
 
-    JNIEXPORT jlong JNICALL Java_bitparallel_communication_CanCommsHandler_nativeOpen(JNIEnv* env, jobject self, jstring device, jobjectArray filters)
+    static inline int64_t toNanos(const timespec& time)
+    {
+        return (static_cast<int64_t>(time.tv_sec) * 1000000000LL) + time.tv_nsec;
+    }
+
+    static inline int64_t clockNanos(const clockid_t clock)
+    {
+        timespec now;
+        clock_gettime(clock, &now);
+        return toNanos(now);
+    }
+
+    // ts[0] holds the software timestamp and ts[2] the raw hardware timestamp, either may be zero
+    //
+    static ReceiveTimes readTimestamps(msghdr* const header, const int64_t receivedNanos, const int64_t receivedRealtime)
+    {
+        ReceiveTimes times = {0, 0, receivedNanos, 0};
+        for (cmsghdr* cmsg = CMSG_FIRSTHDR(header); cmsg != NULL; cmsg = CMSG_NXTHDR(header, cmsg))
+        {
+            if ((cmsg->cmsg_level != SOL_SOCKET) || (cmsg->cmsg_type != SO_TIMESTAMPING)) continue;
+
+            scm_timestamping timestamps;
+            memcpy(&timestamps, CMSG_DATA(cmsg), sizeof(timestamps));
+            times.software = toNanos(timestamps.ts[0]);
+            times.hardware = toNanos(timestamps.ts[2]);
+        }
+
+        if (times.software != 0) times.kernelLatency = receivedRealtime - times.software;
+        return times;
+    }
+
+    static inline void writeTrailer(uint8_t* const slot, const int32_t slotSize, const ReceiveTimes& times)
+    {
+        memcpy(slot + slotSize - SLOT_TRAILER_SIZE, &times, sizeof(times));
+    }
+
+    // reads up to maxFrames frames directly into consecutive slots, i.e. there is no intermediate copy
+    // returns the number of frames accepted by the compiled filter, or a negated ERRNO if the read failed
+    // note, a CAN FD socket delivers both CAN_MTU (classic) and CANFD_MTU sized frames, the latter are marked using CANFD_FDF
+    //
+    static int32_t receiveFrames(CanSocket* const canSocket, uint8_t* const slots, const int32_t slotSize, const int32_t maxFrames)
+    {
+        const int32_t frameSize = canSocket->fdFrames ? CANFD_MTU : CAN_MTU;
+        if (slotSize < (frameSize + SLOT_TRAILER_SIZE)) return -EINVAL;
+
+        mmsghdr messages[MAX_RECEIVE_BATCH_SIZE];
+        iovec vectors[MAX_RECEIVE_BATCH_SIZE];
+        uint8_t control[MAX_RECEIVE_BATCH_SIZE][TIMESTAMP_CONTROL_SIZE];
+        memset(messages, 0, sizeof(mmsghdr) * maxFrames);
+        for (int32_t i = 0; i < maxFrames; i++)
+        {
+            vectors[i].iov_base = slots + (i * slotSize);
+            vectors[i].iov_len = frameSize;
+            messages[i].msg_hdr.msg_iov = &vectors[i];
+            messages[i].msg_hdr.msg_iovlen = 1;
+            if (canSocket->timestamping)
+            {
+                messages[i].msg_hdr.msg_control = control[i];
+                messages[i].msg_hdr.msg_controllen = TIMESTAMP_CONTROL_SIZE;
+            }
+        }
+
+        const int32_t count = recvmmsg(canSocket->fd, messages, maxFrames, MSG_DONTWAIT, NULL);
+        if (count < 0)
+        {
+            // note, EAGAIN and EWOULDBLOCK often have the same value, but not guaranteed, so check both
+            //
+            if ((errno == EINTR) || (errno == EAGAIN) || (errno == EWOULDBLOCK)) return 0;
+            return -errno;
+        }
+
+        // note, the clocks are read once per batch
+        //
+        const int64_t receivedNanos = canSocket->timestamping ? clockNanos(CLOCK_MONOTONIC) : 0;
+        const int64_t receivedRealtime = canSocket->timestamping ? clockNanos(CLOCK_REALTIME) : 0;
+        for (int32_t i = 0; i < count; i++)
+        {
+            uint8_t* const slot = slots + (i * slotSize);
+            if (canSocket->fdFrames) slot[SLOT_FD_FLAGS_OFFSET] = (messages[i].msg_len == CANFD_MTU) ? (slot[SLOT_FD_FLAGS_OFFSET] | CANFD_FDF) : 0;
+
+            const ReceiveTimes noTimes = {0, 0, 0, 0};
+            writeTrailer(slot, slotSize, canSocket->timestamping ? readTimestamps(&messages[i].msg_hdr, receivedNanos, receivedRealtime) : noTimes);
+        }
+
+        // apply the compiled filter, compacting the accepted frames so that they remain contiguous
+        //
+        const CompiledFilter* const filter = canSocket->filter.load(std::memory_order_acquire);
+        if ((filter == NULL) || filter->acceptAll) return count;
+
+        int32_t accepted = 0;
+        for (int32_t i = 0; i < count; i++)
+        {
+            uint8_t* const slot = slots + (i * slotSize);
+            if (!filter->matches(reinterpret_cast<can_frame*>(slot)->can_id)) continue;
+
+            if (accepted != i) memcpy(slots + (accepted * slotSize), slot, slotSize);
+            accepted++;
+        }
+
+        return accepted;
+    }
+
+    static bool readFilters(JNIEnv* env, jobjectArray filters, std::vector<can_filter>& cppFilters)
+    {
+        const jsize length = (filters == NULL) ? 0 : env->GetArrayLength(filters);
+        if (length == 0) return true;
+
+        const jclass filterClass = env->FindClass("bitparallel/communication/CanFilter");
+        const jmethodID getMaskId = env->GetMethodID(filterClass, "getMask", "()I");
+        const jmethodID getFilterId = env->GetMethodID(filterClass, "getFilter", "()I");
+        for (jsize i = 0; i < length; i++)
+        {
+            const jobject filter = env->GetObjectArrayElement(filters, i);
+            can_filter cppFilter;
+            cppFilter.can_mask = env->CallIntMethod(filter, getMaskId);
+            cppFilter.can_id = env->CallIntMethod(filter, getFilterId);
+            cppFilters.push_back(cppFilter);
+
+            env->DeleteLocalRef(filter);
+            if (env->ExceptionCheck()) return false;
+        }
+
+        return true;
+    }
+
+    // installs the filters, either in the kernel or as a compiled user space filter, returns the native ERRNO on failure
+    //
+    static int32_t applyFilters(CanSocket* const canSocket, const std::vector<can_filter>& filters)
+    {
+        if (canSocket->kernelFiltering)
+        {
+            // note, the option size is the size of the whole filter array, an empty array removes all filtering
+            //
+            const can_filter acceptAll = {0, 0};
+            const can_filter* const kernelFilters = filters.empty() ? &acceptAll : filters.data();
+            const size_t count = filters.empty() ? 1 : filters.size();
+            if (setsockopt(canSocket->fd, SOL_CAN_RAW, CAN_RAW_FILTER, kernelFilters, count * sizeof(can_filter)) < 0) return errno;
+
+            return 0;
+        }
+
+        CompiledFilter* const previous = canSocket->filter.exchange(compileFilters(filters), std::memory_order_acq_rel);
+        if (previous != NULL)
+        {
+            std::lock_guard<std::mutex> guard(canSocket->retiredLock);
+            canSocket->retired.push_back(previous);
+            canSocket->retiredPending.store(true, std::memory_order_release);
+        }
+
+        return 0;
+    }
+
+    JNIEXPORT jlong JNICALL Java_bitparallel_communication_SocketCanTransport_nativeOpen(JNIEnv* env, jobject self, jstring device, jobjectArray filters, jboolean kernelFiltering, jboolean fdFrames, jboolean timestamping)
     {
         // convert the java strings to C++ strings
         // note, first convert jstring to char* and then to std::string
@@ -57,6 +432,7 @@ extern "C"
             std::stringstream errMsg;
             errMsg << "Unable to obtain the CAN socket details for device " << cppDevice << ", native ERRNO: " << errno;
 
+            close(static_cast<int32_t>(deviceFd));
             const jclass jEx = env->FindClass("java/io/IOException");
             env->ThrowNew(jEx, errMsg.str().c_str());
             return -1;
@@ -73,134 +449,282 @@ extern "C"
             std::stringstream errMsg;
             errMsg << "Unable to bind the CAN socket to device " << cppDevice << ", native ERRNO: " << errno;
 
+            close(static_cast<int32_t>(deviceFd));
             const jclass jEx = env->FindClass("java/io/IOException");
             env->ThrowNew(jEx, errMsg.str().c_str());
             return -1;
         }
 
         // FIXME! is this needed? i.e. is everything on by default?
-        // enable bus-off and controller errors
+        // enable bus-off and controller errors, plus the error counters for CanBusAnalytics
         //
-        can_err_mask_t errorMask = CAN_ERR_RESTARTED | CAN_ERR_CRTL | CAN_ERR_PROT | CAN_ERR_BUSOFF;
+        can_err_mask_t errorMask = CAN_ERR_RESTARTED | CAN_ERR_CRTL | CAN_ERR_PROT | CAN_ERR_BUSOFF | CAN_ERR_CNT;
         if (setsockopt(static_cast<int32_t>(deviceFd), SOL_CAN_RAW, CAN_RAW_ERR_FILTER, &errorMask, sizeof(errorMask)) < 0)
         {
             std::stringstream errMsg;
             errMsg << "Unable to apply the CAN socket error filters to device " << cppDevice << ", native ERRNO: " << errno;
 
+            close(static_cast<int32_t>(deviceFd));
             const jclass jEx = env->FindClass("java/io/IOException");
             env->ThrowNew(jEx, errMsg.str().c_str());
             return -1;
         }
 
-        // kernel based CAN filtering, don't use for high speed messages!
+        // mixed classic and CAN FD frames, fails if the kernel (or the interface MTU) doesn't support CAN FD
         //
-        const jsize length = env->GetArrayLength(filters);
-        if (length > 0)
+        const int32_t enableFdFrames = 1;
+        if (fdFrames && (setsockopt(static_cast<int32_t>(deviceFd), SOL_CAN_RAW, CAN_RAW_FD_FRAMES, &enableFdFrames, sizeof(enableFdFrames)) < 0))
         {
-            const jclass filterClass = env->FindClass("bitparallel/communication/CanFilter");
-            const jmethodID getMaskId = env->GetMethodID(filterClass, "getMask", "()I");
-            const jmethodID getFilterId = env->GetMethodID(filterClass, "getFilter", "()I");
+            std::stringstream errMsg;
+            errMsg << "Unable to enable CAN FD frames on device " << cppDevice << ", native ERRNO: " << errno;
 
-            can_filter cppFilters[length];
-            for (jsize i = 0; i < length; i++)
-            {
-                const jobject filter = env->GetObjectArrayElement(filters, i);
-                cppFilters[i].can_mask = env->CallIntMethod(filter, getMaskId);
-                cppFilters[i].can_id = env->CallIntMethod(filter, getFilterId);
-            }
+            close(static_cast<int32_t>(deviceFd));
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+            return -1;
+        }
 
-            if (setsockopt(static_cast<int32_t>(deviceFd), SOL_CAN_RAW, CAN_RAW_FILTER, cppFilters, length) < 0)
-            {
-                std::stringstream errMsg;
-                errMsg << "Unable to apply the CAN socket filters to device " << cppDevice << ", native ERRNO: " << errno;
+        // software receive timestamps, plus hardware timestamps where the driver supports them
+        //
+        const int32_t timestampFlags = SOF_TIMESTAMPING_RX_SOFTWARE | SOF_TIMESTAMPING_SOFTWARE | SOF_TIMESTAMPING_RX_HARDWARE | SOF_TIMESTAMPING_RAW_HARDWARE;
+        if (timestamping && (setsockopt(static_cast<int32_t>(deviceFd), SOL_SOCKET, SO_TIMESTAMPING, &timestampFlags, sizeof(timestampFlags)) < 0))
+        {
+            std::stringstream errMsg;
+            errMsg << "Unable to enable receive timestamps on device " << cppDevice << ", native ERRNO: " << errno;
 
-                const jclass jEx = env->FindClass("java/io/IOException");
-                env->ThrowNew(jEx, errMsg.str().c_str());
-                return -1;
-            }
+            close(static_cast<int32_t>(deviceFd));
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+            return -1;
+        }
+
+        // either kernel based CAN filtering (don't use for high speed messages!) or the compiled user space filter
+        //
+        CanSocket* const canSocket = new CanSocket();
+        canSocket->fd = static_cast<int32_t>(deviceFd);
+        canSocket->kernelFiltering = kernelFiltering;
+        canSocket->fdFrames = fdFrames;
+        canSocket->timestamping = timestamping;
+        canSocket->filter.store(NULL);
+        canSocket->retiredPending.store(false);
+
+        std::vector<can_filter> cppFilters;
+        if (!readFilters(env, filters, cppFilters))
+        {
+            close(canSocket->fd);
+            delete canSocket;
+            return -1;
         }
 
-        return deviceFd;
+        const int32_t filterError = applyFilters(canSocket, cppFilters);
+        if (filterError != 0)
+        {
+            close(canSocket->fd);
+            delete canSocket;
+
+            std::stringstream errMsg;
+            errMsg << "Unable to apply the CAN socket filters to device " << cppDevice << ", native ERRNO: " << filterError;
+
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+            return -1;
+        }
+
+        return reinterpret_cast<jlong>(canSocket);
     }
 
-    JNIEXPORT void JNICALL Java_bitparallel_communication_CanCommsHandler_nativeTransmit(JNIEnv* env, jobject self, jobject message, jlong deviceFd)
+    JNIEXPORT void JNICALL Java_bitparallel_communication_SocketCanTransport_nativeSetFilters(JNIEnv* env, jobject self, jobjectArray filters, jlong deviceHandle)
     {
-        const jclass messageClass = env->GetObjectClass(message);
-        const jmethodID getIdId = env->GetMethodID(messageClass, "getId", "()I");
-        const jmethodID getPayloadId = env->GetMethodID(messageClass, "getPayload", "()[B");
-        const jbyteArray payload = reinterpret_cast<jbyteArray>(env->CallObjectMethod(message, getPayloadId));
+        std::vector<can_filter> cppFilters;
+        if (!readFilters(env, filters, cppFilters)) return;
+
+        const int32_t filterError = applyFilters(toSocket(deviceHandle), cppFilters);
+        if (filterError != 0)
+        {
+            std::stringstream errMsg;
+            errMsg << "Unable to replace the CAN socket filters, native ERRNO: " << filterError;
 
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+        }
+    }
+
+    // waits whilst the socket can't accept a frame, rather than spinning on the write, returns false once the error should be reported
+    // note, EAGAIN means that the socket buffer is full and poll() reports when it drains, whereas ENOBUFS means that the
+    // device queue is full, which poll() doesn't report, so the writer backs off for a millisecond
+    // also, a bus-off controller never drains, so the caller gives up at its deadline (TRANSMIT_TIMEOUT_NANOS) and reports the error
+    //
+    static inline bool awaitWritable(const int32_t deviceFd, const int32_t error, const int64_t deadlineNanos)
+    {
+        if (error == EINTR) return true;
+        if ((error != ENOBUFS) && (error != EAGAIN) && (error != EWOULDBLOCK)) return false;
+
+        const int64_t remainingNanos = deadlineNanos - clockNanos(CLOCK_MONOTONIC);
+        if (remainingNanos <= 0) return false;
+
+        if (error == ENOBUFS)
+        {
+            poll(NULL, 0, 1);
+            return true;
+        }
+
+        pollfd writable = {deviceFd, POLLOUT, 0};
+        poll(&writable, 1, static_cast<int32_t>(std::min<int64_t>(TRANSMIT_POLL_TIMEOUT_MS, 1 + (remainingNanos / 1000000))));
+        return true;
+    }
+
+    JNIEXPORT void JNICALL Java_bitparallel_communication_SocketCanTransport_nativeTransmit(JNIEnv* env, jobject self, jlong deviceHandle, jint rawId, jbyteArray payload, jint fdFlags, jboolean isFdFrame)
+    {
+        const jsize length = env->GetArrayLength(payload);
+        CanSocket* const canSocket = toSocket(deviceHandle);
+        if ((isFdFrame && !canSocket->fdFrames) || (length > (isFdFrame ? CANFD_MAX_DLEN : CAN_MAX_DLEN)))
+        {
+            std::stringstream errMsg;
+            errMsg << "Unable to transmit a " << (isFdFrame ? "CAN FD" : "CAN") << " message with a " << length << " byte payload";
+            if (isFdFrame && !canSocket->fdFrames) errMsg << ", CAN FD frames are not enabled";
+
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+            return;
+        }
+
+        // note, the ID includes the EFF and RTR flags, the unused (and any padding) bytes are zero
+        //
         CanFrame msg;
-        msg.frame.can_id = env->CallIntMethod(message, getIdId);
-        msg.frame.can_dlc = env->GetArrayLength(payload);
-        env->GetByteArrayRegion(payload, 0, msg.frame.can_dlc, reinterpret_cast<jbyte*>(msg.frame.data));
+        memset(&msg, 0, sizeof(msg));
+        if (isFdFrame)
+        {
+            msg.fdFrame.can_id = rawId;
+            msg.fdFrame.len = paddedFdLength(length);
+            msg.fdFrame.flags = static_cast<uint8_t>(fdFlags & (CANFD_BRS | CANFD_ESI));
+            env->GetByteArrayRegion(payload, 0, length, reinterpret_cast<jbyte*>(msg.fdFrame.data));
+        }
+        else
+        {
+            msg.frame.can_id = rawId;
+            msg.frame.can_dlc = length;
+            env->GetByteArrayRegion(payload, 0, length, reinterpret_cast<jbyte*>(msg.frame.data));
+        }
 
-        // make sure that all of the message bytes get written
+        // a CAN frame is written whole or not at all
         //
-        int32_t txedBytes, i = 0, size = sizeof(CanFrame);
-        while ((size > 0) && (txedBytes = write(static_cast<int32_t>(deviceFd), &msg.bytes[i], size)) != size)
+        const int32_t deviceFd = canSocket->fd;
+        const ssize_t size = isFdFrame ? CANFD_MTU : CAN_MTU;
+        const int64_t deadlineNanos = clockNanos(CLOCK_MONOTONIC) + TRANSMIT_TIMEOUT_NANOS;
+        while (write(deviceFd, msg.bytes, size) != size)
         {
-            if (txedBytes < 0)
-            {
-                // note, EAGAIN and EWOULDBLOCK often have the same value, but not guaranteed, so check both
-                //
-                if ((errno == EINTR) || (errno == EAGAIN) || (errno == EWOULDBLOCK)) continue;
+            const int32_t error = errno;
+            if (awaitWritable(deviceFd, error, deadlineNanos)) continue;
+
+            std::stringstream errMsg;
+            errMsg << "Error writing CAN message bytes, native EERNO: " << error;
 
-                std::stringstream errMsg;
-                errMsg << "Error writing CAN message bytes, native EERNO: " << errno;
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+            break;
+        }
+    }
 
-                const jclass jEx = env->FindClass("java/io/IOException");
-                env->ThrowNew(jEx, errMsg.str().c_str());
-                break;
-            }
+    // writes count frames, packed into TRANSMIT_SLOT_SIZE slots, using sendmmsg(), i.e. one system call per batch
+    // returns the number of frames sent, or a negated ERRNO if the first frame couldn't be sent within TRANSMIT_TIMEOUT_NANOS
+    //
+    JNIEXPORT jint JNICALL Java_bitparallel_communication_SocketCanTransport_nativeTransmitBatch(JNIEnv* env, jobject self, jlong deviceHandle, jobject buffer, jint count)
+    {
+        uint8_t* const slots = static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+        if (count > MAX_TRANSMIT_BATCH_SIZE) count = MAX_TRANSMIT_BATCH_SIZE;
+        if ((slots == NULL) || (count <= 0)) return -EINVAL;
+
+        iovec vectors[MAX_TRANSMIT_BATCH_SIZE];
+        mmsghdr messages[MAX_TRANSMIT_BATCH_SIZE];
+        memset(messages, 0, sizeof(mmsghdr) * count);
+        for (int32_t i = 0; i < count; i++)
+        {
+            // note, CANFD_FDF only marks the slot as a CAN FD frame, just BRS and ESI are passed to the kernel
+            //
+            uint8_t* const slot = slots + (i * TRANSMIT_SLOT_SIZE);
+            const bool isFdFrame = (slot[SLOT_FD_FLAGS_OFFSET] & CANFD_FDF) != 0;
+            slot[SLOT_FD_FLAGS_OFFSET] &= (CANFD_BRS | CANFD_ESI);
+
+            vectors[i].iov_base = slot;
+            vectors[i].iov_len = isFdFrame ? CANFD_MTU : CAN_MTU;
+            messages[i].msg_hdr.msg_iov = &vectors[i];
+            messages[i].msg_hdr.msg_iovlen = 1;
+        }
+
+        const int32_t deviceFd = toSocket(deviceHandle)->fd;
+        const int64_t deadlineNanos = clockNanos(CLOCK_MONOTONIC) + TRANSMIT_TIMEOUT_NANOS;
+        while (true)
+        {
+            const int32_t sent = sendmmsg(deviceFd, messages, count, MSG_DONTWAIT);
+            if (sent > 0) return sent;
 
-            size -= txedBytes;
-            i += txedBytes;
+            const int32_t error = errno;
+            if (!awaitWritable(deviceFd, error, deadlineNanos)) return -error;
         }
     }
 
-    JNIEXPORT void JNICALL Java_bitparallel_communication_CanCommsHandler_nativeReceiveTask(JNIEnv* env, jobject self, jobject rxQueue, jobject running, jlong deviceFd)
+    JNIEXPORT void JNICALL Java_bitparallel_communication_SocketCanTransport_nativeReceiveTask(JNIEnv* env, jobject self, jobject handler, jobject rxQueue, jobject running, jlong deviceHandle)
     {
+        CanSocket* const canSocket = toSocket(deviceHandle);
+        const int32_t deviceFd = canSocket->fd;
+
         // allows an oppertunity for the thread to exit every 100ms
         //
         timeval timeout;
         timeout.tv_sec = 0;
         timeout.tv_usec = 100000;
 
-        const int32_t maxFd = 1 + static_cast<int32_t>(deviceFd);
+        const int32_t maxFd = 1 + deviceFd;
         fd_set readFdSet;
 
-        // for info(), warn() and error() log4j logger access
+        // for error() log4j logger access, note, the logger and callbacks belong to the owning CanCommsHandler
         //
-        const jclass selfClass = env->GetObjectClass(self);
-        const jobject logger = env->GetStaticObjectField(selfClass, env->GetStaticFieldID(selfClass, "logger", "Lorg/apache/logging/log4j/Logger;"));
+        const jclass handlerClass = env->GetObjectClass(handler);
+        const jobject logger = env->GetStaticObjectField(handlerClass, env->GetStaticFieldID(handlerClass, "logger", "Lorg/apache/logging/log4j/Logger;"));
         const jclass loggerClass = env->GetObjectClass(logger);
-        const jmethodID warnId = env->GetMethodID(loggerClass, "warn", "(Ljava/lang/String;)V");
         const jmethodID errorId = env->GetMethodID(loggerClass, "error", "(Ljava/lang/String;)V");
 
-        // used to report CAN read errors
+        // used to report CAN read errors and dropped frames, the latter are counted and logged as a rate limited summary
         //
-        const jmethodID errorCallbackId = env->GetMethodID(selfClass, "nativeReadErrorHandler", "(I)V");
+        const jmethodID errorCallbackId = env->GetMethodID(handlerClass, "nativeReadErrorHandler", "(I)V");
+        const jmethodID droppedCallbackId = env->GetMethodID(handlerClass, "nativeDroppedFrameHandler", "(I)V");
 
         // used when creating CanMessage instances and the adding them to the rxQueue by invoking offer()
         //
         const jmethodID offerId = env->GetMethodID(env->GetObjectClass(rxQueue), "offer", "(Ljava/lang/Object;)Z");
         const jclass canMessageClass = env->FindClass("bitparallel/communication/CanMessage");
-        const jmethodID canMessageConstructorId = env->GetMethodID(canMessageClass, "<init>", "(I[B)V");
+        const jmethodID canMessageConstructorId = env->GetMethodID(canMessageClass, "<init>", "(I[BIJJJJ)V");
+        const int32_t frameSize = canSocket->fdFrames ? CANFD_MTU : CAN_MTU;
 
         // to access running.get() from the provided AtomicBoolean instance
         //
         const jmethodID getId = env->GetMethodID(env->GetObjectClass(running), "get", "()Z");
         while (env->CallBooleanMethod(running, getId))
         {
+            reclaimRetiredFilters(canSocket);
+
             FD_ZERO(&readFdSet);
-            FD_SET(static_cast<int32_t>(deviceFd), &readFdSet);
+            FD_SET(deviceFd, &readFdSet);
 
             int32_t fdCount = select(maxFd, &readFdSet, NULL, NULL, &timeout);
-            if (fdCount > 0 && FD_ISSET(static_cast<int32_t>(deviceFd), &readFdSet))
+            if (fdCount > 0 && FD_ISSET(deviceFd, &readFdSet))
             {
-                can_frame frame;
-                int32_t bytesRead = read(static_cast<int32_t>(deviceFd), &frame, sizeof(can_frame));
+                // note, on a CAN FD socket classic frames are still received as CAN_MTU bytes
+                //
+                canfd_frame frame;
+                uint8_t control[TIMESTAMP_CONTROL_SIZE];
+                iovec vector = {&frame, static_cast<size_t>(frameSize)};
+                msghdr header;
+                memset(&header, 0, sizeof(header));
+                header.msg_iov = &vector;
+                header.msg_iovlen = 1;
+                if (canSocket->timestamping)
+                {
+                    header.msg_control = control;
+                    header.msg_controllen = sizeof(control);
+                }
+
+                int32_t bytesRead = recvmsg(deviceFd, &header, 0);
                 if (bytesRead < 0)
                 {
                     // something has gone wrong, log this and let the outside world know
@@ -211,28 +735,75 @@ extern "C"
 
                     // the Java callback will set running to false, allowing this handler to exit
                     //
-                    env->CallVoidMethod(self, errorCallbackId, errno);
+                    env->CallVoidMethod(handler, errorCallbackId, errno);
                     continue;
                 }
 
+                // filtered frames never cross into Java
+                //
+                const CompiledFilter* const filter = canSocket->filter.load(std::memory_order_acquire);
+                if ((filter != NULL) && !filter->matches(frame.can_id)) continue;
+
                 // create and queue a CanMessage instance
                 //
-                jbyteArray payload = env->NewByteArray(frame.can_dlc);
-                env->SetByteArrayRegion(payload, 0, frame.can_dlc, reinterpret_cast<jbyte*>(frame.data));
-                jobject canMessage = env->NewObject(canMessageClass, canMessageConstructorId, frame.can_id, payload);
-                if (!env->CallBooleanMethod(rxQueue, offerId, canMessage))
-                {
-                    std::stringstream warnMsg;
-                    warnMsg << "The receiver queue is full, discarding CAN message [id: 0x" << std::hex << std::setw(4) << std::setfill('0') << frame.can_id << std::dec << "]";
-                    env->CallVoidMethod(logger, warnId, env->NewStringUTF(warnMsg.str().c_str()));
-                }
+                const bool isFdFrame = (bytesRead == CANFD_MTU);
+                const jsize length = std::min<jsize>(frame.len, isFdFrame ? CANFD_MAX_DLEN : CAN_MAX_DLEN);
+                const jint fdFlags = isFdFrame ? (frame.flags | CANFD_FDF) : 0;
+
+                jbyteArray payload = env->NewByteArray(length);
+                env->SetByteArrayRegion(payload, 0, length, reinterpret_cast<jbyte*>(frame.data));
+                const ReceiveTimes noTimes = {0, 0, 0, 0};
+                const ReceiveTimes times = canSocket->timestamping ? readTimestamps(&header, clockNanos(CLOCK_MONOTONIC), clockNanos(CLOCK_REALTIME)) : noTimes;
+                jobject canMessage = env->NewObject(canMessageClass, canMessageConstructorId, frame.can_id, payload, fdFlags, times.software, times.hardware, times.receivedNanos, times.kernelLatency);
+                if (!env->CallBooleanMethod(rxQueue, offerId, canMessage)) env->CallVoidMethod(handler, droppedCallbackId, 1);
+
+                // note, this method never returns whilst running, so the local references must be released explicitly
+                //
+                env->DeleteLocalRef(canMessage);
+                env->DeleteLocalRef(payload);
             }
         }
     }
 
-    JNIEXPORT void JNICALL Java_bitparallel_communication_CanCommsHandler_nativeClose(JNIEnv* env, jobject self, jstring device, jlong deviceFd)
+    // used by the BATCHED receive mode, reads up to maxFrames frames directly into the supplied direct ByteBuffer slots
+    // returns the number of frames read, 0 on timeout or a negated ERRNO if the read failed
+    //
+    JNIEXPORT jint JNICALL Java_bitparallel_communication_SocketCanTransport_nativeReceiveBatch(JNIEnv* env, jobject self, jlong deviceHandle, jobject buffer, jint offset, jint slotSize, jint maxFrames, jint timeoutMs)
     {
-        if (close(static_cast<int32_t>(deviceFd)) < 0)
+        CanSocket* const canSocket = toSocket(deviceHandle);
+        reclaimRetiredFilters(canSocket);
+
+        uint8_t* const slots = static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+        const jlong capacity = env->GetDirectBufferCapacity(buffer);
+        if (maxFrames > MAX_RECEIVE_BATCH_SIZE) maxFrames = MAX_RECEIVE_BATCH_SIZE;
+        if ((slots == NULL) || (maxFrames <= 0) || (slotSize < static_cast<jint>(sizeof(can_frame))) || ((offset + static_cast<jlong>(maxFrames) * slotSize) > capacity)) return -EINVAL;
+
+        // allows an oppertunity for the calling thread to exit every timeoutMs
+        //
+        pollfd readFd;
+        readFd.fd = canSocket->fd;
+        readFd.events = POLLIN;
+        readFd.revents = 0;
+
+        const int32_t fdCount = poll(&readFd, 1, timeoutMs);
+        if (fdCount == 0) return 0;
+        if (fdCount < 0) return (errno == EINTR) ? 0 : -errno;
+
+        return receiveFrames(canSocket, slots + offset, slotSize, maxFrames);
+    }
+
+    JNIEXPORT void JNICALL Java_bitparallel_communication_SocketCanTransport_nativeClose(JNIEnv* env, jobject self, jstring device, jlong deviceHandle)
+    {
+        // note, the receiver task has exited, so every compiled filter can be deleted
+        //
+        CanSocket* const canSocket = toSocket(deviceHandle);
+        const int32_t deviceFd = canSocket->fd;
+        canSocket->retiredPending.store(true);
+        reclaimRetiredFilters(canSocket);
+        delete canSocket->filter.load();
+        delete canSocket;
+
+        if (close(deviceFd) < 0)
         {
             // convert the java strings to C++ strings
             // note, first convert jstring to char* and then to std::string
@@ -248,4 +819,490 @@ extern "C"
             env->ThrowNew(jEx, errMsg.str().c_str());
         }
     }
+
+    //
+    // CanBusReactor, a single epoll instance serving many CAN sockets plus an eventfd used to wake the reactor thread
+    // note, the registered sockets are only changed by the reactor thread between polls (or when it isn't running)
+    //
+
+    struct Reactor
+    {
+        int32_t epollFd;
+        int32_t eventFd;
+        CanSocket* buses[MAX_REACTOR_BUSES];
+    };
+
+    static inline Reactor* toReactor(const jlong reactorHandle)
+    {
+        return reinterpret_cast<Reactor*>(reactorHandle);
+    }
+
+    JNIEXPORT jlong JNICALL Java_bitparallel_communication_CanBusReactor_nativeCreate(JNIEnv* env, jobject self)
+    {
+        const int32_t epollFd = epoll_create1(EPOLL_CLOEXEC);
+        const int32_t eventFd = (epollFd < 0) ? -1 : eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
+
+        epoll_event event;
+        memset(&event, 0, sizeof(event));
+        event.events = EPOLLIN;
+        event.data.u32 = REACTOR_WAKEUP_EVENT;
+        if ((epollFd < 0) || (eventFd < 0) || (epoll_ctl(epollFd, EPOLL_CTL_ADD, eventFd, &event) < 0))
+        {
+            std::stringstream errMsg;
+            errMsg << "Unable to create the CAN bus reactor, native ERRNO: " << errno;
+
+            if (eventFd >= 0) close(eventFd);
+            if (epollFd >= 0) close(epollFd);
+
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+            return -1;
+        }
+
+        Reactor* const reactor = new Reactor();
+        reactor->epollFd = epollFd;
+        reactor->eventFd = eventFd;
+        for (int32_t i = 0; i < MAX_REACTOR_BUSES; i++) reactor->buses[i] = NULL;
+
+        return reinterpret_cast<jlong>(reactor);
+    }
+
+    JNIEXPORT void JNICALL Java_bitparallel_communication_CanBusReactor_nativeRegister(JNIEnv* env, jobject self, jlong reactorHandle, jlong deviceHandle, jint busIndex)
+    {
+        Reactor* const reactor = toReactor(reactorHandle);
+        CanSocket* const canSocket = toSocket(deviceHandle);
+
+        epoll_event event;
+        memset(&event, 0, sizeof(event));
+        event.events = EPOLLIN;
+        event.data.u32 = static_cast<uint32_t>(busIndex);
+        if (epoll_ctl(reactor->epollFd, EPOLL_CTL_ADD, canSocket->fd, &event) < 0)
+        {
+            std::stringstream errMsg;
+            errMsg << "Unable to register the CAN socket with the reactor, native ERRNO: " << errno;
+
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+            return;
+        }
+
+        reactor->buses[busIndex] = canSocket;
+    }
+
+    JNIEXPORT void JNICALL Java_bitparallel_communication_CanBusReactor_nativeUnregister(JNIEnv* env, jobject self, jlong reactorHandle, jint busIndex)
+    {
+        Reactor* const reactor = toReactor(reactorHandle);
+        CanSocket* const canSocket = reactor->buses[busIndex];
+        if (canSocket == NULL) return;
+
+        // note, the socket is still open, its owning handler closes it
+        //
+        epoll_ctl(reactor->epollFd, EPOLL_CTL_DEL, canSocket->fd, NULL);
+        reactor->buses[busIndex] = NULL;
+    }
+
+    JNIEXPORT void JNICALL Java_bitparallel_communication_CanBusReactor_nativeWakeup(JNIEnv* env, jobject self, jlong reactorHandle)
+    {
+        const uint64_t increment = 1;
+        const ssize_t ignored = write(toReactor(reactorHandle)->eventFd, &increment, sizeof(increment));
+        (void)ignored;
+    }
+
+    // waits (without a timeout) until a registered socket is readable or the reactor is woken up
+    // each ready socket is drained into the supplied slots, which are tagged with the bus index
+    // returns the number of frames read, a failed socket has its ERRNO written to busErrors[busIndex] and busErrors[MAX_REACTOR_BUSES] is set
+    //
+    JNIEXPORT jint JNICALL Java_bitparallel_communication_CanBusReactor_nativePoll(JNIEnv* env, jobject self, jlong reactorHandle, jobject buffer, jint offset, jint slotSize, jint maxFrames, jintArray busErrors)
+    {
+        Reactor* const reactor = toReactor(reactorHandle);
+        uint8_t* const slots = static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+        const jlong capacity = env->GetDirectBufferCapacity(buffer);
+        if (maxFrames > MAX_RECEIVE_BATCH_SIZE) maxFrames = MAX_RECEIVE_BATCH_SIZE;
+        if ((slots == NULL) || (maxFrames <= 0) || (slotSize < static_cast<jint>(sizeof(can_frame))) || ((offset + static_cast<jlong>(maxFrames) * slotSize) > capacity)) return 0;
+
+        epoll_event events[MAX_REACTOR_BUSES + 1];
+        const int32_t eventCount = epoll_wait(reactor->epollFd, events, MAX_REACTOR_BUSES + 1, -1);
+        if (eventCount <= 0) return 0;
+
+        int32_t total = 0;
+        for (int32_t i = 0; (i < eventCount) && (total < maxFrames); i++)
+        {
+            const uint32_t busIndex = events[i].data.u32;
+            if (busIndex == REACTOR_WAKEUP_EVENT)
+            {
+                uint64_t counter;
+                const ssize_t ignored = read(reactor->eventFd, &counter, sizeof(counter));
+                (void)ignored;
+                continue;
+            }
+
+            CanSocket* const canSocket = reactor->buses[busIndex];
+            if (canSocket == NULL) continue;
+
+            reclaimRetiredFilters(canSocket);
+            uint8_t* const firstSlot = slots + offset + (total * slotSize);
+            const int32_t count = receiveFrames(canSocket, firstSlot, slotSize, maxFrames - total);
+            if (count < 0)
+            {
+                // note, the reactor stops polling the failed socket, the Java side detaches its handler
+                //
+                epoll_ctl(reactor->epollFd, EPOLL_CTL_DEL, canSocket->fd, NULL);
+
+                const jint errorCode = -count;
+                const jint flagged = 1;
+                env->SetIntArrayRegion(busErrors, busIndex, 1, &errorCode);
+                env->SetIntArrayRegion(busErrors, MAX_REACTOR_BUSES, 1, &flagged);
+                continue;
+            }
+
+            for (int32_t j = 0; j < count; j++) firstSlot[(j * slotSize) + SLOT_BUS_OFFSET] = static_cast<uint8_t>(busIndex);
+            total += count;
+        }
+
+        // note, level triggered, any socket that wasn't fully drained is reported again by the next epoll_wait()
+        //
+        return total;
+    }
+
+    JNIEXPORT void JNICALL Java_bitparallel_communication_CanBusReactor_nativeDestroy(JNIEnv* env, jobject self, jlong reactorHandle)
+    {
+        Reactor* const reactor = toReactor(reactorHandle);
+        close(reactor->eventFd);
+        close(reactor->epollFd);
+        delete reactor;
+    }
+
+    //
+    // CanBroadcastManager, a CAN_BCM socket connected to a single device, the kernel owns the cyclic transmit and receive timers
+    // note, each message is a bcm_msg_head followed by a single can_frame or canfd_frame, the kernel identifies each job by its CAN ID
+    //
+
+    struct alignas(8) BcmMessage
+    {
+        uint8_t bytes[sizeof(bcm_msg_head) + sizeof(canfd_frame)];
+
+        bcm_msg_head* head() { return reinterpret_cast<bcm_msg_head*>(bytes); }
+        CanFrame* frame() { return reinterpret_cast<CanFrame*>(bytes + sizeof(bcm_msg_head)); }
+    };
+
+    static inline bcm_timeval toBcmTime(const jlong micros)
+    {
+        bcm_timeval time;
+        time.tv_sec = static_cast<long>(micros / 1000000LL);
+        time.tv_usec = static_cast<long>(micros % 1000000LL);
+
+        return time;
+    }
+
+    static bool writeBcm(JNIEnv* env, const jint socketFd, BcmMessage& message, const bool fdFrame, const char* operation)
+    {
+        const size_t length = sizeof(bcm_msg_head) + ((message.head()->nframes == 0) ? 0 : (fdFrame ? CANFD_MTU : CAN_MTU));
+        if (write(socketFd, &message, length) == static_cast<ssize_t>(length)) return true;
+
+        std::stringstream errMsg;
+        errMsg << "Unable to " << operation << " for CAN ID 0x" << std::hex << message.head()->can_id << std::dec << ", native ERRNO: " << errno;
+        const jclass jEx = env->FindClass("java/io/IOException");
+        env->ThrowNew(jEx, errMsg.str().c_str());
+        return false;
+    }
+
+    JNIEXPORT jint JNICALL Java_bitparallel_communication_CanBroadcastManager_nativeOpen(JNIEnv* env, jobject self, jstring device)
+    {
+        const char *rawDevice = env->GetStringUTFChars(device, NULL);
+        const std::string cppDevice = std::string(rawDevice);
+        env->ReleaseStringUTFChars(device, rawDevice);
+
+        const int32_t socketFd = socket(PF_CAN, SOCK_DGRAM, CAN_BCM);
+        if (socketFd < 0)
+        {
+            std::stringstream errMsg;
+            errMsg << "Unable to create the CAN broadcast manager socket, native ERRNO: " << errno;
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+            return -1;
+        }
+
+        ifreq ifRequest;
+        strcpy(ifRequest.ifr_name, cppDevice.c_str());
+        if (ioctl(socketFd, SIOCGIFINDEX, &ifRequest) < 0)
+        {
+            std::stringstream errMsg;
+            errMsg << "Unable to obtain the CAN socket details for device " << cppDevice << ", native ERRNO: " << errno;
+
+            close(socketFd);
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+            return -1;
+        }
+
+        // note, a BCM socket is connected rather than bound
+        //
+        sockaddr_can socketCan;
+        memset(&socketCan, 0, sizeof(socketCan));
+        socketCan.can_family = AF_CAN;
+        socketCan.can_ifindex = ifRequest.ifr_ifindex;
+        if (connect(socketFd, (sockaddr*)&socketCan, sizeof(socketCan)) < 0)
+        {
+            std::stringstream errMsg;
+            errMsg << "Unable to connect the CAN broadcast manager socket to device " << cppDevice << ", native ERRNO: " << errno;
+
+            close(socketFd);
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+            return -1;
+        }
+
+        return socketFd;
+    }
+
+    // starts (or restarts) a cyclic transmission when startTimer is set, otherwise only the frame content is replaced
+    //
+    JNIEXPORT void JNICALL Java_bitparallel_communication_CanBroadcastManager_nativeTxSetup(JNIEnv* env, jobject self, jint socketFd, jint rawId, jbyteArray payload, jint fdFlags, jboolean fdFrame, jlong intervalMicros, jboolean startTimer)
+    {
+        const jsize length = env->GetArrayLength(payload);
+        if (length > (fdFrame ? CANFD_MAX_DLEN : CAN_MAX_DLEN))
+        {
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, "Unable to setup a cyclic transmission, the payload is too long");
+            return;
+        }
+
+        BcmMessage message;
+        memset(&message, 0, sizeof(message));
+        message.head()->opcode = TX_SETUP;
+        message.head()->can_id = static_cast<canid_t>(rawId);
+        message.head()->nframes = 1;
+        if (fdFrame) message.head()->flags |= CAN_FD_FRAME;
+        if (startTimer)
+        {
+            message.head()->flags |= SETTIMER | STARTTIMER;
+            message.head()->ival2 = toBcmTime(intervalMicros);
+        }
+
+        message.frame()->frame.can_id = static_cast<canid_t>(rawId);
+        env->GetByteArrayRegion(payload, 0, length, reinterpret_cast<jbyte*>(message.frame()->fdFrame.data));
+        if (fdFrame)
+        {
+            message.frame()->fdFrame.len = paddedFdLength(length);
+            message.frame()->fdFrame.flags = static_cast<uint8_t>(fdFlags);
+        }
+        else
+        {
+            message.frame()->frame.can_dlc = static_cast<uint8_t>(length);
+        }
+
+        writeBcm(env, socketFd, message, fdFrame, "setup a cyclic transmission");
+    }
+
+    // the mask selects the payload bits that are compared, a change is reported with RX_CHANGED and a missing frame with RX_TIMEOUT
+    // note, STARTTIMER starts the timeout when the filter is installed, otherwise a frame that never arrives isn't reported
+    //
+    JNIEXPORT void JNICALL Java_bitparallel_communication_CanBroadcastManager_nativeRxSetup(JNIEnv* env, jobject self, jint socketFd, jint rawId, jbyteArray mask, jboolean fdFrame, jlong timeoutMicros)
+    {
+        BcmMessage message;
+        memset(&message, 0, sizeof(message));
+        message.head()->opcode = RX_SETUP;
+        message.head()->can_id = static_cast<canid_t>(rawId);
+        message.head()->nframes = 1;
+        message.head()->flags = RX_CHECK_DLC | RX_ANNOUNCE_RESUME;
+        if (fdFrame) message.head()->flags |= CAN_FD_FRAME;
+        if (timeoutMicros > 0)
+        {
+            message.head()->flags |= SETTIMER | STARTTIMER;
+            message.head()->ival1 = toBcmTime(timeoutMicros);
+        }
+
+        env->GetByteArrayRegion(mask, 0, env->GetArrayLength(mask), reinterpret_cast<jbyte*>(message.frame()->fdFrame.data));
+        writeBcm(env, socketFd, message, fdFrame, "setup a CAN broadcast manager watch");
+    }
+
+    JNIEXPORT void JNICALL Java_bitparallel_communication_CanBroadcastManager_nativeDelete(JNIEnv* env, jobject self, jint socketFd, jint opcode, jint rawId, jboolean fdFrame)
+    {
+        BcmMessage message;
+        memset(&message, 0, sizeof(message));
+        message.head()->opcode = static_cast<uint32_t>(opcode);
+        message.head()->can_id = static_cast<canid_t>(rawId);
+        if (fdFrame) message.head()->flags = CAN_FD_FRAME;
+
+        writeBcm(env, socketFd, message, fdFrame, "delete a CAN broadcast manager job");
+    }
+
+    // waits for up to timeoutMs for a notification, the frame (or just the CAN ID for RX_TIMEOUT) is written to the slot
+    // returns the bcm.h opcode, 0 on timeout or a negated ERRNO if the read failed
+    //
+    JNIEXPORT jint JNICALL Java_bitparallel_communication_CanBroadcastManager_nativeReceive(JNIEnv* env, jobject self, jint socketFd, jobject slot, jint slotSize, jint timeoutMs)
+    {
+        uint8_t* const bytes = static_cast<uint8_t*>(env->GetDirectBufferAddress(slot));
+        if ((bytes == NULL) || (slotSize < static_cast<jint>(CANFD_MTU + SLOT_TRAILER_SIZE))) return -EINVAL;
+
+        pollfd pending = {socketFd, POLLIN, 0};
+        const int32_t ready = poll(&pending, 1, timeoutMs);
+        if (ready == 0) return 0;
+        if (ready < 0) return (errno == EINTR) ? 0 : -errno;
+
+        BcmMessage message;
+        const ssize_t length = read(socketFd, &message, sizeof(message));
+        if (length < 0) return ((errno == EINTR) || (errno == EAGAIN)) ? 0 : -errno;
+        if (length < static_cast<ssize_t>(sizeof(bcm_msg_head))) return 0;
+
+        memset(bytes, 0, slotSize);
+        if (message.head()->nframes == 0)
+        {
+            memcpy(bytes, &message.head()->can_id, sizeof(canid_t));
+        }
+        else
+        {
+            const bool fdFrame = (message.head()->flags & CAN_FD_FRAME) != 0;
+            memcpy(bytes, message.frame(), fdFrame ? CANFD_MTU : CAN_MTU);
+            bytes[SLOT_FD_FLAGS_OFFSET] = fdFrame ? (bytes[SLOT_FD_FLAGS_OFFSET] | CANFD_FDF) : 0;
+            bytes[SLOT_BUS_OFFSET] = 0;
+        }
+
+        const ReceiveTimes times = {clockNanos(CLOCK_REALTIME), 0, clockNanos(CLOCK_MONOTONIC), 0};
+        writeTrailer(bytes, slotSize, times);
+
+        return static_cast<jint>(message.head()->opcode);
+    }
+
+    JNIEXPORT void JNICALL Java_bitparallel_communication_CanBroadcastManager_nativeClose(JNIEnv* env, jobject self, jint socketFd)
+    {
+        if (close(socketFd) < 0)
+        {
+            std::stringstream errMsg;
+            errMsg << "Unable to close the CAN broadcast manager socket, native ERRNO: " << errno;
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+        }
+    }
+
+    //
+    // SocketCanIsoTpChannel, a CAN_ISOTP socket bound to a transmit and receive ID pair, the kernel segments and reassembles the messages
+    //
+
+    JNIEXPORT jint JNICALL Java_bitparallel_communication_SocketCanIsoTpChannel_nativeOpen(JNIEnv* env, jobject self, jstring device, jint txId, jint rxId, jint blockSize, jint separationTimeCode, jint padding, jboolean fdFrames, jboolean bitRateSwitch)
+    {
+        const char *rawDevice = env->GetStringUTFChars(device, NULL);
+        const std::string cppDevice = std::string(rawDevice);
+        env->ReleaseStringUTFChars(device, rawDevice);
+
+        // note, fails with EPROTONOSUPPORT if the can-isotp module isn't available, the Java side then uses its own implementation
+        //
+        const int32_t socketFd = socket(PF_CAN, SOCK_DGRAM, CAN_ISOTP);
+        if (socketFd < 0)
+        {
+            std::stringstream errMsg;
+            errMsg << "Unable to create the CAN ISO-TP socket, native ERRNO: " << errno;
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+            return -1;
+        }
+
+        // the send() returns once the last frame has been sent, so any flow control errors are reported to the sender
+        // note, the frames are sent back to back, the receiver's STmin is still honoured
+        //
+        can_isotp_options options;
+        memset(&options, 0, sizeof(options));
+        options.flags = CAN_ISOTP_WAIT_TX_DONE;
+#ifdef CAN_ISOTP_FRAME_TXTIME_ZERO
+        options.frame_txtime = CAN_ISOTP_FRAME_TXTIME_ZERO;
+#endif
+        if (padding >= 0)
+        {
+            options.flags |= CAN_ISOTP_TX_PADDING;
+            options.txpad_content = static_cast<uint8_t>(padding);
+        }
+
+        can_isotp_fc_options flowControl;
+        memset(&flowControl, 0, sizeof(flowControl));
+        flowControl.bs = static_cast<uint8_t>(blockSize);
+        flowControl.stmin = static_cast<uint8_t>(separationTimeCode);
+
+        can_isotp_ll_options linkLayer;
+        memset(&linkLayer, 0, sizeof(linkLayer));
+        linkLayer.mtu = fdFrames ? CANFD_MTU : CAN_MTU;
+        linkLayer.tx_dl = fdFrames ? CANFD_MAX_DLEN : CAN_MAX_DLEN;
+        linkLayer.tx_flags = bitRateSwitch ? CANFD_BRS : 0;
+
+        ifreq ifRequest;
+        strcpy(ifRequest.ifr_name, cppDevice.c_str());
+
+        sockaddr_can socketCan;
+        memset(&socketCan, 0, sizeof(socketCan));
+        socketCan.can_family = AF_CAN;
+        socketCan.can_addr.tp.tx_id = static_cast<canid_t>(txId);
+        socketCan.can_addr.tp.rx_id = static_cast<canid_t>(rxId);
+
+        const char* failure = NULL;
+        if (setsockopt(socketFd, SOL_CAN_ISOTP, CAN_ISOTP_OPTS, &options, sizeof(options)) < 0) failure = "apply the ISO-TP options";
+        else if (setsockopt(socketFd, SOL_CAN_ISOTP, CAN_ISOTP_RECV_FC, &flowControl, sizeof(flowControl)) < 0) failure = "apply the ISO-TP flow control options";
+        else if (fdFrames && (setsockopt(socketFd, SOL_CAN_ISOTP, CAN_ISOTP_LL_OPTS, &linkLayer, sizeof(linkLayer)) < 0)) failure = "enable ISO-TP CAN FD frames";
+        else if (ioctl(socketFd, SIOCGIFINDEX, &ifRequest) < 0) failure = "obtain the CAN socket details";
+        else
+        {
+            socketCan.can_ifindex = ifRequest.ifr_ifindex;
+            if (bind(socketFd, (sockaddr*)&socketCan, sizeof(socketCan)) < 0) failure = "bind the ISO-TP socket";
+        }
+
+        if (failure != NULL)
+        {
+            std::stringstream errMsg;
+            errMsg << "Unable to " << failure << " for device " << cppDevice << ", native ERRNO: " << errno;
+
+            close(socketFd);
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+            return -1;
+        }
+
+        return socketFd;
+    }
+
+    JNIEXPORT void JNICALL Java_bitparallel_communication_SocketCanIsoTpChannel_nativeSend(JNIEnv* env, jobject self, jint socketFd, jobject buffer, jint offset, jint length)
+    {
+        const uint8_t* const bytes = static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+        ssize_t written;
+        do
+        {
+            written = write(socketFd, bytes + offset, length);
+        }
+        while ((written < 0) && (errno == EINTR));
+
+        if (written != length)
+        {
+            // note, ECOMM indicates a flow control timeout or protocol error, EMSGSIZE that the message exceeds the kernel's limit
+            //
+            std::stringstream errMsg;
+            errMsg << "Unable to send a " << length << " byte ISO-TP message, native ERRNO: " << errno;
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+        }
+    }
+
+    // waits for up to timeoutMs for a message, which is written to the buffer in place
+    // returns the message length, which exceeds the capacity if it was truncated, 0 on timeout or a negated ERRNO if the read failed
+    //
+    JNIEXPORT jint JNICALL Java_bitparallel_communication_SocketCanIsoTpChannel_nativeReceive(JNIEnv* env, jobject self, jint socketFd, jobject buffer, jint offset, jint capacity, jint timeoutMs)
+    {
+        uint8_t* const bytes = static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+        if (bytes == NULL) return -EINVAL;
+
+        pollfd pending = {socketFd, POLLIN, 0};
+        const int32_t ready = poll(&pending, 1, timeoutMs);
+        if (ready == 0) return 0;
+        if (ready < 0) return -errno;
+
+        const ssize_t length = recv(socketFd, bytes + offset, capacity, MSG_TRUNC);
+        return (length < 0) ? -errno : static_cast<jint>(length);
+    }
+
+    JNIEXPORT void JNICALL Java_bitparallel_communication_SocketCanIsoTpChannel_nativeClose(JNIEnv* env, jobject self, jint socketFd)
+    {
+        if (close(socketFd) < 0)
+        {
+            std::stringstream errMsg;
+            errMsg << "Unable to close the CAN ISO-TP socket, native ERRNO: " << errno;
+            const jclass jEx = env->FindClass("java/io/IOException");
+            env->ThrowNew(jEx, errMsg.str().c_str());
+        }
+    }
 }
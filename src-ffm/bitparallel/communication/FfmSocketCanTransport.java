@@ -0,0 +1,658 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+//
+// the Linux socketCAN transport, implemented using the foreign function and memory API (JDK 22 onwards), i.e. no JNI shared library
+//
+// notes 1, the C library is called directly (socket(), bind(), setsockopt(), poll(), recvmmsg(), sendmmsg()...), so the transport works on
+//          any Linux architecture, the struct layouts follow the generic Linux ABI (x86, arm, arm64, riscv, ppc, s390...), mips, sparc and
+//          parisc use different SOL_SOCKET / SO_TIMESTAMPING values and aren't supported
+//       2, recvmmsg() writes the frames straight into the handler's direct ring buffer, i.e. as the JNI transport there is no copy
+//       3, each native call site has its own errno capture segment and off-heap message headers, allocated once when the device is
+//          opened, receive() is only called by the receiver thread, the batch transmit() only by the writer thread and the single
+//          frame transmit() is synchronised
+//       4, without kernel filtering the filters are applied in Java, compacting the accepted slots as the native compiled filter
+//       5, only the BATCHED receive mode is supported directly, CanCommsHandler uses its Java per frame receiver for PER_FRAME
+//       6, the JVM warns about the native access unless it's started using --enable-native-access=ALL-UNNAMED (or the module name)
+//       7, use CanCommsConfig.setTransport(FfmSocketCanTransport::new)
+//       8, experimental, it's yet to be run against a socketCAN interface, so the build only includes it using ant -Dffm=true
+//
+
+public class FfmSocketCanTransport implements CanTransport
+{
+    // as the kernel, see socket.h, can.h, can/raw.h, net_tstamp.h, poll.h and errno.h
+    //
+    private static final int PF_CAN = 29;
+    private static final int SOCK_RAW = 3;
+    private static final int CAN_RAW = 1;
+    private static final int SOL_SOCKET = 1;
+    private static final int SO_TIMESTAMPING = 37;
+    private static final int SOL_CAN_RAW = 101;
+    private static final int CAN_RAW_FILTER = 1;
+    private static final int CAN_RAW_ERR_FILTER = 2;
+    private static final int CAN_RAW_FD_FRAMES = 5;
+    private static final int MSG_DONTWAIT = 0x40;
+    private static final short POLLIN = 0x01;
+    private static final short POLLOUT = 0x04;
+    private static final int EINTR = 4;
+    private static final int EBADF = 9;
+    private static final int EAGAIN = 11;
+    private static final int EINVAL = 22;
+    private static final int ENOBUFS = 105;
+
+    private static final int CAN_MTU = 16;
+    private static final int CANFD_MTU = 72;
+    private static final int CAN_ERROR_MASK = 0x0004 | 0x0008 | 0x0040 | 0x0100 | 0x0200;                             // CAN_ERR_CRTL | PROT | BUSOFF | RESTARTED | CNT
+    private static final int TIMESTAMP_FLAGS = 0x0008 | 0x0010 | 0x0004 | 0x0040;                                     // SOF_TIMESTAMPING_RX_SOFTWARE | SOFTWARE | RX_HARDWARE | RAW_HARDWARE
+    private static final int TRANSMIT_POLL_TIMEOUT_MS = 10;
+    private static final long TRANSMIT_TIMEOUT_NANOS = 100000000L;
+
+    // the struct layouts, long, size_t and pointers all have the native word size
+    //
+    private static final Linker LINKER = Linker.nativeLinker();
+    private static final int WORD_SIZE = (int)ValueLayout.ADDRESS.byteSize();
+    private static final ValueLayout C_LONG = (ValueLayout)LINKER.canonicalLayouts().get("long");
+    private static final ValueLayout C_SIZE_T = (ValueLayout)LINKER.canonicalLayouts().get("size_t");
+
+    private static final int IOVEC_SIZE = 2 * WORD_SIZE;
+    private static final int MSG_IOV_OFFSET = 2 * WORD_SIZE;
+    private static final int MSG_IOVLEN_OFFSET = 3 * WORD_SIZE;
+    private static final int MSG_CONTROL_OFFSET = 4 * WORD_SIZE;
+    private static final int MSG_CONTROLLEN_OFFSET = 5 * WORD_SIZE;
+    private static final int MSG_LEN_OFFSET = 7 * WORD_SIZE;
+    private static final int MMSGHDR_SIZE = 8 * WORD_SIZE;
+    private static final int CMSG_LEVEL_OFFSET = WORD_SIZE;
+    private static final int CMSG_TYPE_OFFSET = WORD_SIZE + 4;
+    private static final int CMSG_HEADER_SIZE = align(WORD_SIZE + 8);
+    private static final int TIMESPEC_SIZE = 2 * WORD_SIZE;
+    private static final int TIMESTAMP_CONTROL_SIZE = CMSG_HEADER_SIZE + align(3 * TIMESPEC_SIZE);
+    private static final int POLLFD_SIZE = 8;
+    private static final int SOCKADDR_CAN_SIZE = 24;
+    private static final int CAN_FILTER_SIZE = 8;
+    private static final MemorySegment EMPTY_FRAME = Arena.global().allocate(CANFD_MTU, 8);
+
+    private static final MemoryLayout ERRNO_STATE = Linker.Option.captureStateLayout();
+    private static final VarHandle ERRNO = ERRNO_STATE.varHandle(MemoryLayout.PathElement.groupElement("errno"));
+
+    private static final MethodHandle SOCKET = downcall("socket", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT), int.class, int.class, int.class, int.class);
+    private static final MethodHandle IF_NAMETOINDEX = downcall("if_nametoindex", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS), int.class, MemorySegment.class);
+    private static final MethodHandle BIND = downcall("bind", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT), int.class, int.class, MemorySegment.class, int.class);
+    private static final MethodHandle SETSOCKOPT = downcall("setsockopt", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT), int.class, int.class, int.class, int.class, MemorySegment.class, int.class);
+    private static final MethodHandle POLL = downcall("poll", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, C_LONG, ValueLayout.JAVA_INT), int.class, MemorySegment.class, long.class, int.class);
+    private static final MethodHandle RECVMMSG = downcall("recvmmsg", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS), int.class, int.class, MemorySegment.class, int.class, int.class, MemorySegment.class);
+    private static final MethodHandle SENDMMSG = downcall("sendmmsg", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT), int.class, int.class, MemorySegment.class, int.class, int.class);
+    private static final MethodHandle WRITE = downcall("write", FunctionDescriptor.of(C_LONG, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, C_SIZE_T), long.class, int.class, MemorySegment.class, long.class);
+    private static final MethodHandle CLOSE = downcall("close", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT), int.class, int.class);
+
+    // the off-heap state used by one calling thread, see note 3
+    //
+    private static final class CallState
+    {
+        private final MemorySegment errno;
+        private final MemorySegment pollFd;
+        private final MemorySegment messages;
+        private final MemorySegment vectors;
+        private final MemorySegment control;
+
+        private CallState(final Arena arena, final int frames, final int controlSize)
+        {
+            errno = arena.allocate(ERRNO_STATE);
+            pollFd = arena.allocate(POLLFD_SIZE, 8);
+            messages = arena.allocate((long)frames * MMSGHDR_SIZE, WORD_SIZE);
+            vectors = arena.allocate((long)frames * IOVEC_SIZE, WORD_SIZE);
+            control = (controlSize == 0) ? MemorySegment.NULL : arena.allocate((long)frames * controlSize, WORD_SIZE);
+
+            // note, each message header has a single I/O vector and its own control buffer, only the vector bases change per call
+            //
+            for (int i = 0; i < frames; i++)
+            {
+                final long message = (long)i * MMSGHDR_SIZE;
+                putWord(messages, message + MSG_IOV_OFFSET, vectors.address() + ((long)i * IOVEC_SIZE));
+                putWord(messages, message + MSG_IOVLEN_OFFSET, 1);
+                if (controlSize > 0) putWord(messages, message + MSG_CONTROL_OFFSET, control.address() + ((long)i * controlSize));
+            }
+        }
+
+        private int errno()
+        {
+            return (int)ERRNO.get(errno, 0L);
+        }
+    }
+
+    private String device;
+    private Arena arena;
+    private int socketFd;
+    private boolean kernelFiltering, fdFrames, timestamping;
+    private volatile CanFilter[] javaFilters;
+    private volatile boolean open;
+    private CallState receiveState, transmitState, batchState;
+    private MemorySegment transmitFrame, batchFrames, filterOption;
+    private ByteBuffer receiveBuffer;
+    private MemorySegment receiveSlots;
+
+    public FfmSocketCanTransport()
+    {
+        device = null;
+        arena = null;
+        socketFd = -1;
+        javaFilters = new CanFilter[0];
+        open = false;
+        receiveBuffer = null;
+        receiveSlots = null;
+    }
+
+    @Override
+    public void open(final String device, final CanFilter[] filters, final CanCommsConfig config) throws IOException
+    {
+        kernelFiltering = config.isKernelFiltering();
+        fdFrames = config.isFdFrames();
+        timestamping = config.isTimestamping();
+
+        arena = Arena.ofShared();
+        receiveState = new CallState(arena, CanCommsConfig.MAX_RECEIVE_BATCH_SIZE, timestamping ? TIMESTAMP_CONTROL_SIZE : 0);
+        transmitState = new CallState(arena, 0, 0);
+        batchState = new CallState(arena, CanTransmitQueue.MAX_BATCH_SIZE, 0);
+        transmitFrame = arena.allocate(CANFD_MTU, 8);
+        batchFrames = arena.allocate((long)CanTransmitQueue.MAX_BATCH_SIZE * CANFD_MTU, 8);
+
+        final CallState state = transmitState;
+        socketFd = socket(state, PF_CAN, SOCK_RAW, CAN_RAW);
+        if (socketFd < 0)
+        {
+            final int errno = state.errno();
+            arena.close();
+            arena = null;
+            throw new IOException("Unable to create the unbound CAN socket, native ERRNO: " + errno);
+        }
+
+        try
+        {
+            final int ifIndex = ifNameToIndex(state, arena.allocateFrom(device));
+            if (ifIndex == 0) throw new IOException("Unable to obtain the CAN socket details for device " + device + ", native ERRNO: " + state.errno());
+
+            final MemorySegment address = arena.allocate(SOCKADDR_CAN_SIZE, 8);
+            address.set(ValueLayout.JAVA_SHORT, 0, (short)PF_CAN);
+            address.set(ValueLayout.JAVA_INT, 4, ifIndex);
+            if (bind(state, socketFd, address, SOCKADDR_CAN_SIZE) < 0) throw new IOException("Unable to bind the CAN socket to device " + device + ", native ERRNO: " + state.errno());
+
+            final MemorySegment option = arena.allocate(ValueLayout.JAVA_INT);
+            option.set(ValueLayout.JAVA_INT, 0, CAN_ERROR_MASK);
+            if (setSocketOption(state, socketFd, SOL_CAN_RAW, CAN_RAW_ERR_FILTER, option, 4) < 0) throw new IOException("Unable to apply the CAN socket error filters to device " + device + ", native ERRNO: " + state.errno());
+
+            option.set(ValueLayout.JAVA_INT, 0, 1);
+            if (fdFrames && (setSocketOption(state, socketFd, SOL_CAN_RAW, CAN_RAW_FD_FRAMES, option, 4) < 0)) throw new IOException("Unable to enable CAN FD frames on device " + device + ", native ERRNO: " + state.errno());
+
+            option.set(ValueLayout.JAVA_INT, 0, TIMESTAMP_FLAGS);
+            if (timestamping && (setSocketOption(state, socketFd, SOL_SOCKET, SO_TIMESTAMPING, option, 4) < 0)) throw new IOException("Unable to enable receive timestamps on device " + device + ", native ERRNO: " + state.errno());
+
+            this.device = device;
+            open = true;
+            setFilters(filters);
+        }
+        catch (final IOException ex)
+        {
+            open = false;
+            close(state, socketFd);
+            arena.close();
+            arena = null;
+            throw ex;
+        }
+    }
+
+    // note, as the JNI transport, kernel filters are replaced using a single setsockopt(), an empty set accepts every frame
+    //
+    @Override
+    public synchronized void setFilters(final CanFilter[] filters) throws IOException
+    {
+        if (!kernelFiltering)
+        {
+            javaFilters = filters.clone();
+            return;
+        }
+
+        final int count = Math.max(1, filters.length);
+        if ((filterOption == null) || (filterOption.byteSize() < ((long)count * CAN_FILTER_SIZE))) filterOption = arena.allocate((long)count * CAN_FILTER_SIZE, 4);
+
+        filterOption.fill((byte)0);
+        for (int i = 0; i < filters.length; i++)
+        {
+            filterOption.set(ValueLayout.JAVA_INT, (long)i * CAN_FILTER_SIZE, filters[i].getFilter());
+            filterOption.set(ValueLayout.JAVA_INT, ((long)i * CAN_FILTER_SIZE) + 4, filters[i].getMask());
+        }
+
+        synchronized (transmitFrame)
+        {
+            if (setSocketOption(transmitState, socketFd, SOL_CAN_RAW, CAN_RAW_FILTER, filterOption, count * CAN_FILTER_SIZE) < 0) throw new IOException("Unable to apply the CAN socket filters to device " + device + ", native ERRNO: " + transmitState.errno());
+        }
+    }
+
+    // note, CAN FD messages require CanCommsConfig.setFdFrames(true)
+    //
+    @Override
+    public void transmit(final CanMessage message) throws IOException
+    {
+        final int length = message.getPayload().length;
+        final boolean fdFrame = message.isFdFrame();
+        if ((fdFrame && !fdFrames) || (length > (fdFrame ? CanMessage.CANFD_MAX_DLEN : CanMessage.CAN_MAX_DLEN)))
+        {
+            final StringBuffer sb = new StringBuffer();
+            sb.append("Unable to transmit a ");
+            sb.append(fdFrame ? "CAN FD" : "CAN");
+            sb.append(" message with a ");
+            sb.append(length);
+            sb.append(" byte payload");
+            if (fdFrame && !fdFrames) sb.append(", CAN FD frames are not enabled");
+
+            throw new IOException(sb.toString());
+        }
+
+        // a CAN frame is written whole or not at all
+        //
+        synchronized (transmitFrame)
+        {
+            if (!open) throw new IOException("Unable to transmit, the CAN socket for device " + device + " is closed");
+
+            final long size = packFrame(transmitFrame, 0, message);
+            final long deadline = System.nanoTime() + TRANSMIT_TIMEOUT_NANOS;
+            while (write(transmitState, socketFd, transmitFrame, size) != size)
+            {
+                final int errno = transmitState.errno();
+                if (!awaitWritable(transmitState, errno, deadline)) throw new IOException("Error writing CAN message bytes, native ERRNO: " + errno);
+            }
+        }
+    }
+
+    // the frames are packed into canfd_frame sized slots and written using a single sendmmsg()
+    // note, the lengths are checked by CanCommsHandler.transmitAsync()
+    //
+    @Override
+    public int transmit(final CanMessage[] messages, final int offset, final int count) throws IOException
+    {
+        final int frames = Math.min(count, CanTransmitQueue.MAX_BATCH_SIZE);
+        if (!open) throw new IOException("Unable to transmit, the CAN socket for device " + device + " is closed");
+
+        final CallState state = batchState;
+        for (int i = 0; i < frames; i++)
+        {
+            final long slot = (long)i * CANFD_MTU;
+            final long vector = (long)i * IOVEC_SIZE;
+            putWord(state.vectors, vector, batchFrames.address() + slot);
+            putWord(state.vectors, vector + WORD_SIZE, packFrame(batchFrames, slot, messages[offset + i]));
+        }
+
+        final long deadline = System.nanoTime() + TRANSMIT_TIMEOUT_NANOS;
+        while (true)
+        {
+            final int sent = sendmmsg(state, socketFd, state.messages, frames, MSG_DONTWAIT);
+            if (sent > 0) return sent;
+
+            final int errno = state.errno();
+            if (!awaitWritable(state, errno, deadline)) throw new IOException("Error writing CAN frames to " + device + ", native ERRNO: " + errno);
+        }
+    }
+
+    // reads the frames straight into the slots, see the JNI receiveFrames(), i.e. the same flags and trailer are written
+    //
+    @Override
+    public int receive(final ByteBuffer buffer, final int offset, final int slotSize, final int maxFrames, final int timeoutMs)
+    {
+        if (!open) return -EBADF;
+
+        final int frames = Math.min(maxFrames, CanCommsConfig.MAX_RECEIVE_BATCH_SIZE);
+        final int frameSize = fdFrames ? CANFD_MTU : CAN_MTU;
+        if (!buffer.isDirect() || (frames <= 0) || (slotSize < (frameSize + CanFrameRing.TRAILER_SIZE)) || ((offset + ((long)frames * slotSize)) > buffer.capacity())) return -EINVAL;
+
+        // note, the segment is cached, the handler receives into the same ring buffer every time
+        //
+        if (buffer != receiveBuffer)
+        {
+            receiveBuffer = buffer;
+            receiveSlots = MemorySegment.ofBuffer(buffer);
+        }
+
+        // allows an oppertunity for the calling thread to exit every timeoutMs
+        //
+        final CallState state = receiveState;
+        state.pollFd.set(ValueLayout.JAVA_INT, 0, socketFd);
+        state.pollFd.set(ValueLayout.JAVA_SHORT, 4, POLLIN);
+        state.pollFd.set(ValueLayout.JAVA_SHORT, 6, (short)0);
+
+        final int fdCount = poll(state, state.pollFd, 1, timeoutMs);
+        if (fdCount == 0) return 0;
+        if (fdCount < 0) return (state.errno() == EINTR) ? 0 : -state.errno();
+
+        final MemorySegment slots = receiveSlots;
+        for (int i = 0; i < frames; i++)
+        {
+            final long vector = (long)i * IOVEC_SIZE;
+            putWord(state.vectors, vector, slots.address() + offset + ((long)i * slotSize));
+            putWord(state.vectors, vector + WORD_SIZE, frameSize);
+
+            // note, the kernel overwrites the control length with the length used
+            //
+            if (timestamping) putWord(state.messages, ((long)i * MMSGHDR_SIZE) + MSG_CONTROLLEN_OFFSET, TIMESTAMP_CONTROL_SIZE);
+        }
+
+        final int count = recvmmsg(state, socketFd, state.messages, frames, MSG_DONTWAIT, MemorySegment.NULL);
+        if (count < 0)
+        {
+            final int errno = state.errno();
+            return ((errno == EINTR) || (errno == EAGAIN)) ? 0 : -errno;
+        }
+
+        // note, the clocks are read once per batch
+        //
+        final long receivedNanos = timestamping ? System.nanoTime() : 0;
+        final long receivedRealtime = timestamping ? realtimeNanos() : 0;
+        for (int i = 0; i < count; i++)
+        {
+            final long slot = offset + ((long)i * slotSize);
+            if (fdFrames)
+            {
+                final byte flags = slots.get(ValueLayout.JAVA_BYTE, slot + CanFrameRing.FD_FLAGS_OFFSET);
+                final boolean fdFrame = state.messages.get(ValueLayout.JAVA_INT, ((long)i * MMSGHDR_SIZE) + MSG_LEN_OFFSET) == CANFD_MTU;
+                slots.set(ValueLayout.JAVA_BYTE, slot + CanFrameRing.FD_FLAGS_OFFSET, fdFrame ? (byte)(flags | CanMessage.CANFD_FDF) : (byte)0);
+            }
+
+            writeTrailer(state, i, slots, slot + CanFrameRing.trailerOffset(slotSize), receivedNanos, receivedRealtime);
+        }
+
+        // apply the Java filters, compacting the accepted frames so that they remain contiguous
+        //
+        final CanFilter[] filters = javaFilters;
+        if (kernelFiltering || (filters.length == 0)) return count;
+
+        int accepted = 0;
+        for (int i = 0; i < count; i++)
+        {
+            final long slot = offset + ((long)i * slotSize);
+            if (!CanFilter.matches(filters, slots.get(ValueLayout.JAVA_INT, slot + CanFrameRing.ID_OFFSET))) continue;
+
+            if (accepted != i) MemorySegment.copy(slots, slot, slots, offset + ((long)accepted * slotSize), slotSize);
+            accepted++;
+        }
+
+        return accepted;
+    }
+
+    // note, the receiver and writer threads have exited, so the off-heap state can be released
+    //
+    @Override
+    public void close() throws IOException
+    {
+        if (arena == null) return;
+
+        synchronized (transmitFrame)
+        {
+            open = false;
+        }
+
+        final int result = close(transmitState, socketFd);
+        final int errno = transmitState.errno();
+        receiveBuffer = null;
+        receiveSlots = null;
+        arena.close();
+        arena = null;
+
+        if (result < 0) throw new IOException("Unable to close the CAN socket associated with device " + device + ", native ERRNO: " + errno);
+    }
+
+    // ts[0] holds the software timestamp and ts[2] the raw hardware timestamp, either may be zero
+    //
+    private void writeTrailer(final CallState state, final int index, final MemorySegment slots, final long trailer, final long receivedNanos, final long receivedRealtime)
+    {
+        long software = 0;
+        long hardware = 0;
+        if (timestamping)
+        {
+            final long control = (long)index * TIMESTAMP_CONTROL_SIZE;
+            final long controlLength = getWord(state.messages, ((long)index * MMSGHDR_SIZE) + MSG_CONTROLLEN_OFFSET);
+            long cmsg = 0;
+            while ((cmsg + CMSG_HEADER_SIZE) <= controlLength)
+            {
+                final long cmsgLength = getWord(state.control, control + cmsg);
+                if (cmsgLength < CMSG_HEADER_SIZE) break;
+
+                final int level = state.control.get(ValueLayout.JAVA_INT, control + cmsg + CMSG_LEVEL_OFFSET);
+                final int type = state.control.get(ValueLayout.JAVA_INT, control + cmsg + CMSG_TYPE_OFFSET);
+                if ((level == SOL_SOCKET) && (type == SO_TIMESTAMPING))
+                {
+                    final long timestamps = control + cmsg + CMSG_HEADER_SIZE;
+                    software = timespecNanos(state.control, timestamps);
+                    hardware = timespecNanos(state.control, timestamps + (2 * TIMESPEC_SIZE));
+                }
+
+                cmsg += align(cmsgLength);
+            }
+        }
+
+        slots.set(ValueLayout.JAVA_LONG_UNALIGNED, trailer + CanFrameRing.SOFTWARE_TIMESTAMP_OFFSET, software);
+        slots.set(ValueLayout.JAVA_LONG_UNALIGNED, trailer + CanFrameRing.HARDWARE_TIMESTAMP_OFFSET, hardware);
+        slots.set(ValueLayout.JAVA_LONG_UNALIGNED, trailer + CanFrameRing.RECEIVED_NANOS_OFFSET, receivedNanos);
+        slots.set(ValueLayout.JAVA_LONG_UNALIGNED, trailer + CanFrameRing.KERNEL_LATENCY_OFFSET, (software == 0) ? 0 : (receivedRealtime - software));
+    }
+
+    // packs a can_frame or canfd_frame, returns its size
+    // note, the ID includes the EFF and RTR flags, the unused (and any padding) bytes are zero, only BRS and ESI are passed to the kernel
+    //
+    private static long packFrame(final MemorySegment frames, final long slot, final CanMessage message)
+    {
+        final byte[] payload = message.getPayload();
+        final boolean fdFrame = message.isFdFrame();
+
+        MemorySegment.copy(EMPTY_FRAME, 0, frames, slot, CANFD_MTU);
+        frames.set(ValueLayout.JAVA_INT, slot + CanFrameRing.ID_OFFSET, message.getRawId());
+        frames.set(ValueLayout.JAVA_BYTE, slot + CanFrameRing.LENGTH_OFFSET, (byte)(fdFrame ? CanVirtualNode.paddedFdLength(payload.length) : payload.length));
+        frames.set(ValueLayout.JAVA_BYTE, slot + CanFrameRing.FD_FLAGS_OFFSET, (byte)(fdFrame ? (message.getFdFlags() & (CanMessage.CANFD_BRS | CanMessage.CANFD_ESI)) : 0));
+        MemorySegment.copy(payload, 0, frames, ValueLayout.JAVA_BYTE, slot + CanFrameRing.DATA_OFFSET, payload.length);
+
+        return fdFrame ? CANFD_MTU : CAN_MTU;
+    }
+
+    // waits after a failed write, returns false if the error isn't recoverable or the deadline has passed, as the JNI awaitWritable()
+    // note, ENOBUFS means the interface queue is full, which poll() doesn't report, so wait for a frame time
+    //
+    private boolean awaitWritable(final CallState state, final int errno, final long deadline)
+    {
+        if (errno == EINTR) return true;
+        if ((errno != ENOBUFS) && (errno != EAGAIN)) return false;
+
+        final long remainingNanos = deadline - System.nanoTime();
+        if (remainingNanos <= 0) return false;
+
+        if (errno == ENOBUFS)
+        {
+            poll(state, MemorySegment.NULL, 0, 1);
+            return true;
+        }
+
+        state.pollFd.set(ValueLayout.JAVA_INT, 0, socketFd);
+        state.pollFd.set(ValueLayout.JAVA_SHORT, 4, POLLOUT);
+        state.pollFd.set(ValueLayout.JAVA_SHORT, 6, (short)0);
+        poll(state, state.pollFd, 1, (int)Math.min(TRANSMIT_POLL_TIMEOUT_MS, 1 + (remainingNanos / 1000000)));
+        return true;
+    }
+
+    //
+    // the native helpers
+    //
+
+    private static MethodHandle downcall(final String name, final FunctionDescriptor descriptor, final Class<?> returnType, final Class<?>... parameterTypes)
+    {
+        final MemorySegment symbol = LINKER.defaultLookup().find(name).orElseThrow(() -> new UnsatisfiedLinkError("Unable to find the C library function " + name + "()"));
+        final MethodHandle handle = LINKER.downcallHandle(symbol, descriptor, Linker.Option.captureCallState("errno"));
+
+        // note, the first parameter is the errno capture segment, the word sized types are widened to long on 32 bit platforms
+        //
+        return MethodHandles.explicitCastArguments(handle, MethodType.methodType(returnType, parameterTypes).insertParameterTypes(0, MemorySegment.class));
+    }
+
+    private static int socket(final CallState state, final int domain, final int type, final int protocol)
+    {
+        try
+        {
+            return (int)SOCKET.invokeExact(state.errno, domain, type, protocol);
+        }
+        catch (final Throwable ex)
+        {
+            throw new IllegalStateException("Unexpected failure calling socket()", ex);
+        }
+    }
+
+    private static int ifNameToIndex(final CallState state, final MemorySegment name)
+    {
+        try
+        {
+            return (int)IF_NAMETOINDEX.invokeExact(state.errno, name);
+        }
+        catch (final Throwable ex)
+        {
+            throw new IllegalStateException("Unexpected failure calling if_nametoindex()", ex);
+        }
+    }
+
+    private static int bind(final CallState state, final int fd, final MemorySegment address, final int addressLength)
+    {
+        try
+        {
+            return (int)BIND.invokeExact(state.errno, fd, address, addressLength);
+        }
+        catch (final Throwable ex)
+        {
+            throw new IllegalStateException("Unexpected failure calling bind()", ex);
+        }
+    }
+
+    private static int setSocketOption(final CallState state, final int fd, final int level, final int name, final MemorySegment value, final int valueLength)
+    {
+        try
+        {
+            return (int)SETSOCKOPT.invokeExact(state.errno, fd, level, name, value, valueLength);
+        }
+        catch (final Throwable ex)
+        {
+            throw new IllegalStateException("Unexpected failure calling setsockopt()", ex);
+        }
+    }
+
+    private static int poll(final CallState state, final MemorySegment pollFds, final long count, final int timeoutMs)
+    {
+        try
+        {
+            return (int)POLL.invokeExact(state.errno, pollFds, count, timeoutMs);
+        }
+        catch (final Throwable ex)
+        {
+            throw new IllegalStateException("Unexpected failure calling poll()", ex);
+        }
+    }
+
+    private static int recvmmsg(final CallState state, final int fd, final MemorySegment messages, final int count, final int flags, final MemorySegment timeout)
+    {
+        try
+        {
+            return (int)RECVMMSG.invokeExact(state.errno, fd, messages, count, flags, timeout);
+        }
+        catch (final Throwable ex)
+        {
+            throw new IllegalStateException("Unexpected failure calling recvmmsg()", ex);
+        }
+    }
+
+    private static int sendmmsg(final CallState state, final int fd, final MemorySegment messages, final int count, final int flags)
+    {
+        try
+        {
+            return (int)SENDMMSG.invokeExact(state.errno, fd, messages, count, flags);
+        }
+        catch (final Throwable ex)
+        {
+            throw new IllegalStateException("Unexpected failure calling sendmmsg()", ex);
+        }
+    }
+
+    private static long write(final CallState state, final int fd, final MemorySegment bytes, final long count)
+    {
+        try
+        {
+            return (long)WRITE.invokeExact(state.errno, fd, bytes, count);
+        }
+        catch (final Throwable ex)
+        {
+            throw new IllegalStateException("Unexpected failure calling write()", ex);
+        }
+    }
+
+    private static int close(final CallState state, final int fd)
+    {
+        try
+        {
+            return (int)CLOSE.invokeExact(state.errno, fd);
+        }
+        catch (final Throwable ex)
+        {
+            throw new IllegalStateException("Unexpected failure calling close()", ex);
+        }
+    }
+
+    //
+    // the struct helpers
+    //
+
+    private static int align(final int length)
+    {
+        return (length + WORD_SIZE - 1) & -WORD_SIZE;
+    }
+
+    private static long align(final long length)
+    {
+        return (length + WORD_SIZE - 1) & -WORD_SIZE;
+    }
+
+    private static void putWord(final MemorySegment segment, final long offset, final long value)
+    {
+        if (WORD_SIZE == 8)
+        {
+            segment.set(ValueLayout.JAVA_LONG, offset, value);
+        }
+        else
+        {
+            segment.set(ValueLayout.JAVA_INT, offset, (int)value);
+        }
+    }
+
+    private static long getWord(final MemorySegment segment, final long offset)
+    {
+        return (WORD_SIZE == 8) ? segment.get(ValueLayout.JAVA_LONG, offset) : Integer.toUnsignedLong(segment.get(ValueLayout.JAVA_INT, offset));
+    }
+
+    private static long timespecNanos(final MemorySegment segment, final long offset)
+    {
+        final long seconds = (WORD_SIZE == 8) ? segment.get(ValueLayout.JAVA_LONG, offset) : segment.get(ValueLayout.JAVA_INT, offset);
+        final long nanos = (WORD_SIZE == 8) ? segment.get(ValueLayout.JAVA_LONG, offset + WORD_SIZE) : segment.get(ValueLayout.JAVA_INT, offset + WORD_SIZE);
+        return (seconds * 1000000000L) + nanos;
+    }
+
+    private static long realtimeNanos()
+    {
+        final Instant now = Instant.now();
+        return (now.getEpochSecond() * 1000000000L) + now.getNano();
+    }
+}
@@ -0,0 +1,61 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+//
+// the time a frame occupies the bus, used by the CanVirtualBus bit rate timing and the CanBusAnalytics bus load
+//
+// notes 1, a classic frame is SOF, the arbitration and control fields (34 bits standard, 54 extended, including the CRC), the data,
+//          then the CRC delimiter, ACK, EOF and the 3 bit inter-frame space (13 bits)
+//       2, a CAN FD frame has an arbitration phase (up to and including BRS) and a data phase (ESI, DLC, data, stuff count and CRC),
+//          the data phase uses the data bit rate when BRS is set
+//       3, the worst case stuff bits are one per 4 bits of the stuffed region (after the first), i.e. the classic (g + 8n - 1) / 4,
+//          CAN FD adds the fixed stuff bits of the stuff count and CRC fields
+//
+
+final class CanBitTiming
+{
+    private CanBitTiming()
+    {
+    }
+
+    // note, length is the payload length, i.e. the DLC of a classic frame, a CAN FD length is rounded up to a valid CAN FD length
+    //
+    static long frameNanos(final int rawId, final int length, final int fdFlags, final boolean fdFrame, final boolean worstCaseStuffing, final int bitRate, final int dataBitRate)
+    {
+        final boolean extended = (rawId & CanMessage.CAN_EFF_FLAG) != 0;
+        if (!fdFrame)
+        {
+            final int headerBits = extended ? 54 : 34;
+            final int dataBits = ((rawId & CanMessage.CAN_RTR_FLAG) != 0) ? 0 : Math.min(length, CanMessage.CAN_MAX_DLEN) << 3;
+            final int stuffBits = worstCaseStuffing ? ((headerBits + dataBits - 1) >> 2) : 0;
+
+            return bitsToNanos(headerBits + dataBits + 13 + stuffBits, bitRate);
+        }
+
+        // the arbitration phase, then the data phase, then ACK, EOF and IFS
+        //
+        final int paddedLength = CanVirtualNode.paddedFdLength(Math.min(length, CanMessage.CANFD_MAX_DLEN));
+        final int arbitrationBits = extended ? 36 : 17;
+        final int dataBits = 1 + 4 + (paddedLength << 3);
+        final int crcBits = 4 + ((paddedLength > 16) ? 22 : 18);
+        final int dataPhaseRate = (((fdFlags & CanMessage.CANFD_BRS) != 0) && (dataBitRate > 0)) ? dataBitRate : bitRate;
+
+        int arbitrationStuffBits = 0;
+        int dataStuffBits = 0;
+        if (worstCaseStuffing)
+        {
+            arbitrationStuffBits = (arbitrationBits - 1) >> 2;
+            dataStuffBits = ((arbitrationBits + dataBits - 1) >> 2) - arbitrationStuffBits + ((paddedLength > 16) ? 7 : 6);
+        }
+
+        return bitsToNanos(arbitrationBits + 12 + arbitrationStuffBits, bitRate) + bitsToNanos(dataBits + crcBits + dataStuffBits, dataPhaseRate);
+    }
+
+    private static long bitsToNanos(final int bits, final int rate)
+    {
+        return (bits * 1_000_000_000L) / rate;
+    }
+}
@@ -0,0 +1,272 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+//
+// periodic transmission and reception using the socketCAN broadcast manager (CAN_BCM), i.e. the kernel owns the timing
+//
+// notes 1, startCyclic() hands a frame and its interval to the kernel, which then transmits it without any further JNI calls
+//          updateCyclic() replaces the payload in place, the kernel timer isn't restarted, so the period is undisturbed
+//       2, watch() asks the kernel to filter a periodic frame by content, the listener is only called when the watched bits change
+//          and, if a timeout is supplied, when the frame stops arriving (and again once it resumes)
+//       3, the kernel identifies each cyclic job and watch by its CAN ID, so there is at most one of each per ID
+//       4, the cyclic jobs and watches are deleted by the kernel when the manager is closed
+//       5, start() runs the thread that delivers the watch notifications, it isn't needed for cyclic transmission
+//
+
+public class CanBroadcastManager
+{
+    // the bcm.h opcodes reported by nativeReceive()
+    //
+    static final int RX_TIMEOUT = 11;
+    static final int RX_CHANGED = 12;
+
+    private static final int TX_DELETE = 2;
+    private static final int RX_DELETE = 6;
+
+    private static final Logger logger = LogManager.getLogger(CanBroadcastManager.class);
+
+    static
+    {
+        // note, loads the shared native library
+        //
+        try
+        {
+            Class.forName(SocketCanTransport.class.getName());
+        }
+        catch (final ClassNotFoundException ex)
+        {
+            throw new UnsatisfiedLinkError("Unable to load the SocketCanTransport native library, reason: " + ex.getMessage());
+        }
+    }
+
+    private final String device;
+    private final int socketFd;
+    private final ByteBuffer slot;
+    private final CanFrame receivedFrame;
+    private final AtomicBoolean receiverTaskRunning;
+    private final IntObjectMap<CanMessage> cyclicJobs;
+    private final IntObjectMap<CanCyclicListener> watches;
+    private final IntObjectMap<Boolean> fdWatches;
+    private volatile IntObjectMap<CanCyclicListener> publishedWatches;
+    private Thread receiverThread;
+
+    public CanBroadcastManager(final String device) throws IOException
+    {
+        this.device = device;
+
+        socketFd = nativeOpen(device);
+        slot = ByteBuffer.allocateDirect(CanFrameRing.FD_SLOT_SIZE).order(ByteOrder.nativeOrder());
+        receivedFrame = new CanFrame(slot, CanFrameRing.FD_SLOT_SIZE);
+        receiverTaskRunning = new AtomicBoolean(false);
+        cyclicJobs = new IntObjectMap<CanMessage>();
+        watches = new IntObjectMap<CanCyclicListener>();
+        fdWatches = new IntObjectMap<Boolean>();
+        publishedWatches = new IntObjectMap<CanCyclicListener>();
+        receiverThread = new Thread();
+    }
+
+    // note, the socket is connected to the device, i.e. every operation applies to it
+    //
+    private native int nativeOpen(final String device) throws IOException;
+    private native void nativeTxSetup(final int socketFd, final int rawId, final byte[] payload, final int fdFlags, final boolean fdFrame, final long intervalMicros, final boolean startTimer) throws IOException;
+    private native void nativeRxSetup(final int socketFd, final int rawId, final byte[] mask, final boolean fdFrame, final long timeoutMicros) throws IOException;
+    private native void nativeDelete(final int socketFd, final int opcode, final int rawId, final boolean fdFrame) throws IOException;
+    private native int nativeReceive(final int socketFd, final ByteBuffer slot, final int slotSize, final int timeoutMs);
+    private native void nativeClose(final int socketFd) throws IOException;
+
+    public String getDevice()
+    {
+        return device;
+    }
+
+    //
+    // cyclic transmission
+    //
+
+    // the kernel transmits the message immediately and then every interval, replacing any existing job for the same ID
+    //
+    public synchronized void startCyclic(final CanMessage message, final long interval, final TimeUnit unit) throws IOException
+    {
+        final long intervalMicros = unit.toMicros(interval);
+        if (intervalMicros <= 0) throw new IllegalArgumentException("The cyclic interval must be at least 1 microsecond, requested: " + interval + " " + unit);
+
+        nativeTxSetup(socketFd, message.getRawId(), message.getPayload(), message.getFdFlags(), message.isFdFrame(), intervalMicros, true);
+        cyclicJobs.put(message.getRawId(), message);
+    }
+
+    // replaces the payload of a running job, the next transmission uses it and the period is unchanged
+    //
+    public synchronized void updateCyclic(final CanMessage message) throws IOException
+    {
+        final CanMessage existing = cyclicJobs.get(message.getRawId());
+        if (existing == null) throw new IllegalArgumentException("There is no cyclic transmission for ID 0x" + Integer.toHexString(message.getRawId()));
+        if (existing.isFdFrame() != message.isFdFrame()) throw new IllegalArgumentException("A cyclic transmission can't change between a classic and a CAN FD frame");
+
+        nativeTxSetup(socketFd, message.getRawId(), message.getPayload(), message.getFdFlags(), message.isFdFrame(), 0, false);
+        cyclicJobs.put(message.getRawId(), message);
+    }
+
+    // note, the raw ID includes the EFF flag for extended IDs, i.e. as CanMessage.getRawId()
+    //
+    public synchronized void stopCyclic(final int rawId) throws IOException
+    {
+        final CanMessage existing = cyclicJobs.remove(rawId);
+        if (existing != null) nativeDelete(socketFd, TX_DELETE, rawId, existing.isFdFrame());
+    }
+
+    public synchronized boolean isCyclic(final int rawId)
+    {
+        return cyclicJobs.get(rawId) != null;
+    }
+
+    //
+    // content change and timeout monitoring
+    //
+
+    // watches every payload byte (and the length) of a classic frame, use a timeout of 0 to disable timeout detection
+    // note, the timeout starts when the watch is installed, i.e. a frame that never arrives is also reported
+    //
+    public void watch(final int rawId, final long timeout, final TimeUnit unit, final CanCyclicListener listener) throws IOException
+    {
+        final byte[] mask = new byte[CanMessage.CAN_MAX_DLEN];
+        Arrays.fill(mask, (byte)0xff);
+
+        watch(rawId, mask, false, timeout, unit, listener);
+    }
+
+    // only changes to the bits set in the mask are reported, e.g. to ignore a rolling counter in byte 7
+    //
+    public synchronized void watch(final int rawId, final byte[] mask, final boolean fdFrame, final long timeout, final TimeUnit unit, final CanCyclicListener listener) throws IOException
+    {
+        if (mask.length > (fdFrame ? CanMessage.CANFD_MAX_DLEN : CanMessage.CAN_MAX_DLEN)) throw new IllegalArgumentException("The watch mask is longer than the frame's payload: " + mask.length);
+        if (timeout < 0) throw new IllegalArgumentException("The watch timeout can't be negative, requested: " + timeout);
+
+        nativeRxSetup(socketFd, rawId, mask, fdFrame, unit.toMicros(timeout));
+        watches.put(rawId, listener);
+        fdWatches.put(rawId, fdFrame);
+        publishWatches();
+    }
+
+    public synchronized void unwatch(final int rawId) throws IOException
+    {
+        if (watches.remove(rawId) == null) return;
+
+        nativeDelete(socketFd, RX_DELETE, rawId, fdWatches.remove(rawId));
+        publishWatches();
+    }
+
+    public final boolean start()
+    {
+        final boolean ready = (receiverThread.getState() == Thread.State.NEW) || (receiverThread.getState() == Thread.State.TERMINATED);
+        if (ready)
+        {
+            receiverThread = new Thread(this::receiverTask, "can-bcm-" + device);
+            receiverThread.setDaemon(true);
+            receiverTaskRunning.set(true);
+            receiverThread.start();
+        }
+
+        return ready;
+    }
+
+    public final void stop()
+    {
+        try
+        {
+            receiverTaskRunning.set(false);
+            receiverThread.join();
+        }
+        catch (final InterruptedException ignored)
+        {
+        }
+    }
+
+    // stops the receiver and closes the socket, the kernel then deletes every cyclic job and watch
+    //
+    public final boolean close()
+    {
+        stop();
+        synchronized (this)
+        {
+            cyclicJobs.clear();
+            watches.clear();
+            fdWatches.clear();
+            publishWatches();
+        }
+
+        try
+        {
+            nativeClose(socketFd);
+            return true;
+        }
+        catch (final IOException ex)
+        {
+            logger.error("Unable to close the broadcast manager socket for device " + device + ", reason: " + ex.getMessage(), ex);
+            return false;
+        }
+    }
+
+    // the receiver thread reads an immutable copy of the watches
+    //
+    private void publishWatches()
+    {
+        final IntObjectMap<CanCyclicListener> copy = new IntObjectMap<CanCyclicListener>(watches.size());
+        watches.forEach(copy::put);
+        publishedWatches = copy;
+    }
+
+    private void receiverTask()
+    {
+        logger.info("The CAN broadcast manager receiver task for " + device + " is running");
+
+        final int timeoutMs = (int)CanCommsHandler.RECEIVER_QUEUE_POLL_TIMEOUT_MS;
+        while (receiverTaskRunning.get())
+        {
+            final int opcode = nativeReceive(socketFd, slot, CanFrameRing.FD_SLOT_SIZE, timeoutMs);
+            if (opcode < 0)
+            {
+                logger.error("Error whilst reading from the " + device + " broadcast manager socket, error code: " + -opcode);
+                receiverTaskRunning.set(false);
+                break;
+            }
+
+            if ((opcode != RX_CHANGED) && (opcode != RX_TIMEOUT)) continue;
+
+            receivedFrame.moveTo(0);
+            final int rawId = receivedFrame.getRawId();
+            final CanCyclicListener listener = publishedWatches.get(rawId);
+            if (listener == null) continue;
+
+            try
+            {
+                if (opcode == RX_CHANGED)
+                {
+                    listener.cyclicFrameChanged(receivedFrame);
+                }
+                else
+                {
+                    listener.cyclicFrameTimedOut(rawId);
+                }
+            }
+            catch (final Exception ex)
+            {
+                logger.error("Unexpected exception in CAN cyclic listener, reason: " + ex.getMessage(), ex);
+            }
+        }
+
+        logger.info("The CAN broadcast manager receiver task for " + device + " has exited");
+    }
+}
@@ -0,0 +1,514 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+//
+// rolling bus statistics, i.e. the bus load, the rate and jitter of each CAN ID and the trend of the controller's error counters
+// enabled using CanCommsConfig.setBusAnalytics(), see CanCommsHandler.getBusAnalytics()
+//
+// notes 1, fed by the handler's receiving thread (as the snapshot table) and by every successful transmit, as socketCAN doesn't
+//          receive the handler's own frames, i.e. the statistics cover all of the bus traffic seen by this node
+//       2, the bus load is the time each frame occupies the bus (see CanBitTiming), summed per second, relative to the bit rate(s),
+//          the worst case includes the maximum number of stuff bits, the nominal excludes them
+//       3, per second buckets cover the configured window, the current (incomplete) second is never reported
+//       4, the inter-arrival times use the kernel receive time when timestamping is enabled, otherwise the time each batch was received,
+//          i.e. enable CanCommsConfig.setTimestamping() for a meaningful jitter in the BATCHED receive mode
+//       5, the error counters are read from error frames flagged with CAN_ERR_CNT (data[6] TX, data[7] RX), which requires a driver
+//          that reports them, the trend is a least squares fit of the samples within the window
+//       6, up to MAX_TRACKED_IDS distinct IDs are tracked, frames with further IDs only count towards the bus load
+//       7, the updates and reads are synchronised, the receiving thread takes the lock once per batch
+//
+
+public final class CanBusAnalytics
+{
+    public enum ErrorState
+    {
+        // both error counters below 96
+        //
+        ERROR_ACTIVE,
+
+        // either error counter has reached the warning level of 96
+        //
+        ERROR_WARNING,
+
+        // either error counter exceeds 127, the controller may no longer signal errors actively
+        //
+        ERROR_PASSIVE,
+
+        // the transmit error counter exceeded 255, the controller has left the bus until it is restarted
+        //
+        BUS_OFF
+    }
+
+    public static final int MAX_TRACKED_IDS = 4096;
+    public static final double INTERVAL_WEIGHT = 1.0 / 16;
+
+    static final int ERROR_SAMPLES = 64;
+
+    private static final int WARNING_LIMIT = 96;
+    private static final int PASSIVE_LIMIT = 128;
+    private static final int BUS_OFF_LIMIT = 256;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private static final class IdState
+    {
+        private long second, lastNanos, totalFrames;
+        private int count, previousCount;
+        private long minInterval, maxInterval, previousMinInterval, previousMaxInterval;
+        private double meanInterval, intervalVariance;
+
+        private IdState(final long second)
+        {
+            this.second = second;
+            minInterval = Long.MAX_VALUE;
+            maxInterval = 0;
+        }
+
+        // the interval statistics are exponentially weighted, see INTERVAL_WEIGHT
+        //
+        private void record(final long arrivalNanos, final long currentSecond)
+        {
+            roll(currentSecond);
+
+            final long interval = arrivalNanos - lastNanos;
+            if ((totalFrames > 0) && (interval >= 0))
+            {
+                minInterval = Math.min(minInterval, interval);
+                maxInterval = Math.max(maxInterval, interval);
+                if (totalFrames == 1)
+                {
+                    meanInterval = interval;
+                }
+                else
+                {
+                    final double difference = interval - meanInterval;
+                    final double increment = INTERVAL_WEIGHT * difference;
+                    meanInterval += increment;
+                    intervalVariance = (1 - INTERVAL_WEIGHT) * (intervalVariance + (difference * increment));
+                }
+            }
+
+            lastNanos = arrivalNanos;
+            totalFrames++;
+            count++;
+        }
+
+        private void roll(final long currentSecond)
+        {
+            if (currentSecond == second) return;
+
+            final boolean consecutive = currentSecond == (second + 1);
+            previousCount = consecutive ? count : 0;
+            previousMinInterval = (consecutive && (minInterval != Long.MAX_VALUE)) ? minInterval : 0;
+            previousMaxInterval = consecutive ? maxInterval : 0;
+
+            second = currentSecond;
+            count = 0;
+            minInterval = Long.MAX_VALUE;
+            maxInterval = 0;
+        }
+    }
+
+    private final int bitRate, dataBitRate, windowSeconds;
+    private final long[] busNanos, nominalBusNanos, frames, errorFrames;
+    private final IntObjectMap<IdState> ids;
+    private final long[] sampleNanos;
+    private final int[] txSamples, rxSamples;
+    private long originNanos, currentSecond, untrackedFrames;
+    private int txErrors, rxErrors, sampleCount, nextSample;
+    private ErrorState errorState;
+
+    CanBusAnalytics(final int bitRate, final int dataBitRate, final int windowSeconds)
+    {
+        this.bitRate = bitRate;
+        this.dataBitRate = dataBitRate;
+        this.windowSeconds = windowSeconds;
+
+        // note, the window's complete seconds plus the current second
+        //
+        busNanos = new long[windowSeconds + 1];
+        nominalBusNanos = new long[windowSeconds + 1];
+        frames = new long[windowSeconds + 1];
+        errorFrames = new long[windowSeconds + 1];
+        ids = new IntObjectMap<IdState>(CanListenerTable.STANDARD_ID_COUNT);
+        sampleNanos = new long[ERROR_SAMPLES];
+        txSamples = new int[ERROR_SAMPLES];
+        rxSamples = new int[ERROR_SAMPLES];
+
+        reset();
+    }
+
+    public int getBitRate()
+    {
+        return bitRate;
+    }
+
+    public int getDataBitRate()
+    {
+        return dataBitRate;
+    }
+
+    public int getWindowSeconds()
+    {
+        return windowSeconds;
+    }
+
+    public synchronized void reset()
+    {
+        originNanos = System.nanoTime();
+        currentSecond = 0;
+        untrackedFrames = 0;
+        for (int i = 0; i <= windowSeconds; i++) clearBucket(i);
+
+        ids.clear();
+        txErrors = 0;
+        rxErrors = 0;
+        sampleCount = 0;
+        nextSample = 0;
+        errorState = ErrorState.ERROR_ACTIVE;
+    }
+
+    //
+    // writer side, the handler's receiving thread and the transmitting threads
+    //
+
+    // accounts for count frames held in consecutive ring slots, nanos is when the batch was received
+    //
+    synchronized void update(final ByteBuffer slots, final int offset, final int slotSize, final int count, final long nanos)
+    {
+        advanceTo(nanos);
+
+        final int bucket = bucketOf(currentSecond);
+        final int trailerOffset = CanFrameRing.trailerOffset(slotSize);
+        for (int i = 0; i < count; i++)
+        {
+            final int frameOffset = offset + (i * slotSize);
+            final int rawId = slots.getInt(frameOffset + CanFrameRing.ID_OFFSET);
+            if ((rawId & CanMessage.CAN_ERR_FLAG) != 0)
+            {
+                errorFrames[bucket]++;
+                errorFrame(rawId, slots, frameOffset, nanos);
+                continue;
+            }
+
+            // note, the kernel receive time is converted to System.nanoTime(), i.e. the time the frame was received less the kernel latency
+            //
+            final int length = slots.get(frameOffset + CanFrameRing.LENGTH_OFFSET) & 0xff;
+            final int fdFlags = slots.get(frameOffset + CanFrameRing.FD_FLAGS_OFFSET) & 0xff;
+            final long receivedNanos = slots.getLong(frameOffset + trailerOffset + CanFrameRing.RECEIVED_NANOS_OFFSET);
+            final long arrivalNanos = (receivedNanos == 0) ? nanos : (receivedNanos - slots.getLong(frameOffset + trailerOffset + CanFrameRing.KERNEL_LATENCY_OFFSET));
+
+            account(rawId, length, fdFlags, (fdFlags & CanMessage.CANFD_FDF) != 0, arrivalNanos, bucket);
+        }
+    }
+
+    synchronized void transmitted(final CanMessage message, final long nanos)
+    {
+        advanceTo(nanos);
+        account(message.getRawId(), message.getPayload().length, message.getFdFlags(), message.isFdFrame(), nanos, bucketOf(currentSecond));
+    }
+
+    //
+    // reader side, any number of threads
+    //
+
+    // the fraction of the last complete second that the bus was busy, including the worst case stuff bits
+    //
+    public synchronized double getBusLoad()
+    {
+        advanceTo(System.nanoTime());
+        return (currentSecond == 0) ? 0 : (double)busNanos[bucketOf(currentSecond - 1)] / NANOS_PER_SECOND;
+    }
+
+    // as getBusLoad(), but excluding the stuff bits
+    //
+    public synchronized double getNominalBusLoad()
+    {
+        advanceTo(System.nanoTime());
+        return (currentSecond == 0) ? 0 : (double)nominalBusNanos[bucketOf(currentSecond - 1)] / NANOS_PER_SECOND;
+    }
+
+    // the average worst case bus load over the last (complete) seconds, up to the window size
+    //
+    public synchronized double getAverageBusLoad(final int seconds)
+    {
+        if ((seconds < 1) || (seconds > windowSeconds)) throw new IllegalArgumentException("The number of seconds must be between 1 and " + windowSeconds + ", requested: " + seconds);
+
+        advanceTo(System.nanoTime());
+        final long available = Math.min(seconds, currentSecond);
+        if (available == 0) return 0;
+
+        long total = 0;
+        for (long s = 1; s <= available; s++) total += busNanos[bucketOf(currentSecond - s)];
+
+        return (double)total / (available * NANOS_PER_SECOND);
+    }
+
+    // the busiest complete second within the window
+    //
+    public synchronized double getPeakBusLoad()
+    {
+        advanceTo(System.nanoTime());
+
+        long peak = 0;
+        final long available = Math.min(windowSeconds, currentSecond);
+        for (long s = 1; s <= available; s++) peak = Math.max(peak, busNanos[bucketOf(currentSecond - s)]);
+
+        return (double)peak / NANOS_PER_SECOND;
+    }
+
+    // the worst case bus load of each complete second within the window, oldest first
+    //
+    public synchronized double[] getBusLoadHistory()
+    {
+        advanceTo(System.nanoTime());
+
+        final int available = (int)Math.min(windowSeconds, currentSecond);
+        final double[] history = new double[available];
+        for (int i = 0; i < available; i++) history[i] = (double)busNanos[bucketOf(currentSecond - available + i)] / NANOS_PER_SECOND;
+
+        return history;
+    }
+
+    // received and transmitted data frames in the last complete second
+    //
+    public synchronized long getFrameRate()
+    {
+        advanceTo(System.nanoTime());
+        return (currentSecond == 0) ? 0 : frames[bucketOf(currentSecond - 1)];
+    }
+
+    public synchronized long getErrorFrameRate()
+    {
+        advanceTo(System.nanoTime());
+        return (currentSecond == 0) ? 0 : errorFrames[bucketOf(currentSecond - 1)];
+    }
+
+    // frames whose IDs weren't tracked, see MAX_TRACKED_IDS
+    //
+    public synchronized long getUntrackedFrames()
+    {
+        return untrackedFrames;
+    }
+
+    // the statistics of a single ID, or null if it hasn't been seen
+    // note, as CanCommsHandler.addFrameListener(), an ID with the EFF flag set (or one that doesn't fit into 11 bits) is an extended ID
+    //
+    public synchronized CanIdStatistics getIdStatistics(final int id)
+    {
+        advanceTo(System.nanoTime());
+
+        final int key = CanListenerTable.toKey(id);
+        final IdState state = ids.get(key);
+        return (state == null) ? null : statisticsOf(key, state);
+    }
+
+    // every tracked ID, standard IDs first, in ID order
+    //
+    public synchronized List<CanIdStatistics> getIdStatistics()
+    {
+        advanceTo(System.nanoTime());
+
+        final List<CanIdStatistics> statistics = new ArrayList<CanIdStatistics>(ids.size());
+        ids.forEach((key, state) -> statistics.add(statisticsOf(key, state)));
+        statistics.sort((a, b) -> Integer.compareUnsigned(a.getRawId(), b.getRawId()));
+
+        return statistics;
+    }
+
+    public synchronized ErrorState getErrorState()
+    {
+        return errorState;
+    }
+
+    // the latest reported controller error counters
+    //
+    public synchronized int getTxErrorCount()
+    {
+        return txErrors;
+    }
+
+    public synchronized int getRxErrorCount()
+    {
+        return rxErrors;
+    }
+
+    // the rate of change of the error counters, counts per second, positive whilst the errors are accumulating
+    //
+    public synchronized double getTxErrorTrend()
+    {
+        return trend(txSamples);
+    }
+
+    public synchronized double getRxErrorTrend()
+    {
+        return trend(rxSamples);
+    }
+
+    // the predicted time until either error counter exceeds 127 at the current trend, zero if already error passive (or bus-off),
+    // or null if neither counter is rising
+    //
+    public synchronized Duration predictErrorPassive()
+    {
+        if ((errorState == ErrorState.ERROR_PASSIVE) || (errorState == ErrorState.BUS_OFF)) return Duration.ZERO;
+
+        final Duration tx = timeToLimit(PASSIVE_LIMIT, txErrors, trend(txSamples));
+        final Duration rx = timeToLimit(PASSIVE_LIMIT, rxErrors, trend(rxSamples));
+        if ((tx == null) || (rx == null)) return (tx == null) ? rx : tx;
+
+        return (tx.compareTo(rx) <= 0) ? tx : rx;
+    }
+
+    // the predicted time until the transmit error counter exceeds 255 at the current trend, zero if already bus-off, or null if
+    // the counter isn't rising
+    //
+    public synchronized Duration predictBusOff()
+    {
+        if (errorState == ErrorState.BUS_OFF) return Duration.ZERO;
+        return timeToLimit(BUS_OFF_LIMIT, txErrors, trend(txSamples));
+    }
+
+    //
+    // internals, only called whilst holding the lock
+    //
+
+    private void account(final int rawId, final int length, final int fdFlags, final boolean fdFrame, final long arrivalNanos, final int bucket)
+    {
+        busNanos[bucket] += CanBitTiming.frameNanos(rawId, length, fdFlags, fdFrame, true, bitRate, dataBitRate);
+        nominalBusNanos[bucket] += CanBitTiming.frameNanos(rawId, length, fdFlags, fdFrame, false, bitRate, dataBitRate);
+        frames[bucket]++;
+
+        final int key = CanListenerTable.toKey(rawId);
+        IdState state = ids.get(key);
+        if (state == null)
+        {
+            if (ids.size() >= MAX_TRACKED_IDS)
+            {
+                untrackedFrames++;
+                return;
+            }
+
+            state = new IdState(currentSecond);
+            ids.put(key, state);
+        }
+
+        state.record(arrivalNanos, currentSecond);
+    }
+
+    // error frames report the controller state (data[1]), bus-off, restarts and, with CAN_ERR_CNT, the error counters
+    //
+    private void errorFrame(final int rawId, final ByteBuffer slots, final int frameOffset, final long nanos)
+    {
+        final int error = rawId & CanMessage.CAN_ERR_MASK;
+        if ((error & CanMessage.CAN_ERR_RESTARTED) != 0)
+        {
+            txErrors = 0;
+            rxErrors = 0;
+            sampleCount = 0;
+            errorState = ErrorState.ERROR_ACTIVE;
+        }
+
+        if ((error & CanMessage.CAN_ERR_CNT) != 0)
+        {
+            txErrors = slots.get(frameOffset + CanFrameRing.DATA_OFFSET + 6) & 0xff;
+            rxErrors = slots.get(frameOffset + CanFrameRing.DATA_OFFSET + 7) & 0xff;
+
+            sampleNanos[nextSample] = nanos;
+            txSamples[nextSample] = txErrors;
+            rxSamples[nextSample] = rxErrors;
+            nextSample = (nextSample + 1) % ERROR_SAMPLES;
+            sampleCount = Math.min(sampleCount + 1, ERROR_SAMPLES);
+        }
+
+        final int controller = ((error & CanMessage.CAN_ERR_CRTL) != 0) ? slots.get(frameOffset + CanFrameRing.DATA_OFFSET + 1) & 0xff : 0;
+        errorState = classify(error, controller);
+    }
+
+    // note, the controller state bits and the counters are both used, as drivers differ in which they report
+    //
+    private ErrorState classify(final int error, final int controller)
+    {
+        final int counter = Math.max(txErrors, rxErrors);
+        if ((error & CanMessage.CAN_ERR_BUSOFF) != 0) return ErrorState.BUS_OFF;
+        if ((errorState == ErrorState.BUS_OFF) && ((error & CanMessage.CAN_ERR_RESTARTED) == 0)) return ErrorState.BUS_OFF;
+        if (((controller & (CanMessage.CAN_ERR_CRTL_TX_PASSIVE | CanMessage.CAN_ERR_CRTL_RX_PASSIVE)) != 0) || (counter >= PASSIVE_LIMIT)) return ErrorState.ERROR_PASSIVE;
+        if (((controller & (CanMessage.CAN_ERR_CRTL_TX_WARNING | CanMessage.CAN_ERR_CRTL_RX_WARNING)) != 0) || (counter >= WARNING_LIMIT)) return ErrorState.ERROR_WARNING;
+        if (((controller & CanMessage.CAN_ERR_CRTL_ACTIVE) != 0) || ((error & (CanMessage.CAN_ERR_CNT | CanMessage.CAN_ERR_RESTARTED)) != 0)) return ErrorState.ERROR_ACTIVE;
+
+        // note, e.g. a protocol error without counters doesn't change the state
+        //
+        return errorState;
+    }
+
+    // the least squares slope of the samples within the window, in counts per second
+    //
+    private double trend(final int[] counts)
+    {
+        final long oldestNanos = System.nanoTime() - (windowSeconds * NANOS_PER_SECOND);
+        int n = 0;
+        long baseNanos = 0;
+        double sumT = 0, sumC = 0, sumTT = 0, sumTC = 0;
+        for (int i = 0; i < sampleCount; i++)
+        {
+            final int index = (nextSample - sampleCount + i + ERROR_SAMPLES) % ERROR_SAMPLES;
+            if ((sampleNanos[index] - oldestNanos) < 0) continue;
+            if (n == 0) baseNanos = sampleNanos[index];
+
+            final double t = (double)(sampleNanos[index] - baseNanos) / NANOS_PER_SECOND;
+            final double c = counts[index];
+            sumT += t;
+            sumC += c;
+            sumTT += t * t;
+            sumTC += t * c;
+            n++;
+        }
+
+        final double denominator = (n * sumTT) - (sumT * sumT);
+        return ((n < 2) || (denominator <= 0)) ? 0 : ((n * sumTC) - (sumT * sumC)) / denominator;
+    }
+
+    private static Duration timeToLimit(final int limit, final int counter, final double trend)
+    {
+        if (trend <= 0) return null;
+        return Duration.ofNanos((long)(((limit - counter) / trend) * NANOS_PER_SECOND));
+    }
+
+    private CanIdStatistics statisticsOf(final int key, final IdState state)
+    {
+        state.roll(currentSecond);
+        return new CanIdStatistics(key, state.totalFrames, state.previousCount, state.previousMinInterval, state.previousMaxInterval, state.meanInterval, Math.sqrt(state.intervalVariance));
+    }
+
+    // moves the current second on, clearing the buckets of any seconds without traffic
+    //
+    private void advanceTo(final long nanos)
+    {
+        final long second = Math.max(0, nanos - originNanos) / NANOS_PER_SECOND;
+        if (second <= currentSecond) return;
+
+        final long cleared = Math.min(second - currentSecond, windowSeconds + 1);
+        for (long s = 1; s <= cleared; s++) clearBucket(bucketOf(currentSecond + s));
+
+        currentSecond = second;
+    }
+
+    private int bucketOf(final long second)
+    {
+        return (int)(second % (windowSeconds + 1));
+    }
+
+    private void clearBucket(final int bucket)
+    {
+        busNanos[bucket] = 0;
+        nominalBusNanos[bucket] = 0;
+        frames[bucket] = 0;
+        errorFrames[bucket] = 0;
+    }
+}
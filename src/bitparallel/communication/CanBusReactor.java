@@ -0,0 +1,369 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+//
+// serves multiple CAN interfaces using a single native reactor thread and a single listener thread
+//
+// notes 1, the reactor thread waits in epoll_wait() on every attached CAN socket plus an eventfd, i.e. there is no timeout polling
+//       2, received frames are tagged with their bus index (see CanFrame.getBusIndex()) and dispatched to the owning handler's listeners
+//       3, handlers are attached by supplying the reactor using CanCommsConfig.setReactor(), then calling start() as usual
+//       4, thread count and idle CPU usage are independent of the number of attached buses
+//       5, a detached bus index isn't reused until the listener has consumed every frame read before the detach, i.e. frames can't reach the wrong handler
+//
+
+public class CanBusReactor
+{
+    public static final int MAX_BUSES = 256;
+
+    private static final Logger logger = LogManager.getLogger(CanBusReactor.class);
+
+    static
+    {
+        // note, loads the shared native library
+        //
+        try
+        {
+            Class.forName(SocketCanTransport.class.getName());
+        }
+        catch (final ClassNotFoundException ex)
+        {
+            throw new UnsatisfiedLinkError("Unable to load the SocketCanTransport native library, reason: " + ex.getMessage());
+        }
+    }
+
+    private final long reactorHandle;
+    private final CanCommsConfig config;
+    private final CanFrameRing ring;
+    private final ByteBuffer discardBuffer;
+    private final CanFrame receivedFrame;
+    private final int[] busErrors;
+    private final long[] busReleasedAt;
+    private final AtomicReferenceArray<CanCommsHandler> buses;
+    private final ConcurrentLinkedQueue<Runnable> reactorTasks;
+    private final AtomicBoolean reactorTaskRunning, listenerTaskRunning;
+    private final Object lifecycleLock;
+    private boolean reactorThreadActive;
+    private Thread reactorThread, listenerThread;
+
+    public CanBusReactor() throws IOException
+    {
+        this(new CanCommsConfig());
+    }
+
+    // note, the ring capacity, receive batch size, wait strategy and CAN FD support are taken from the supplied configuration
+    //
+    public CanBusReactor(final CanCommsConfig config) throws IOException
+    {
+        this.config = config;
+
+        reactorHandle = nativeCreate();
+        ring = new CanFrameRing(config.getRingCapacity(), CanFrameRing.slotSizeFor(config), Waiter.create(config.getWaitStrategy()));
+        discardBuffer = ByteBuffer.allocateDirect(config.getReceiveBatchSize() * ring.slotSize());
+        receivedFrame = new CanFrame(ring.buffer(), ring.slotSize());
+        busErrors = new int[MAX_BUSES + 1];
+        busReleasedAt = new long[MAX_BUSES];
+        buses = new AtomicReferenceArray<CanCommsHandler>(MAX_BUSES);
+        reactorTasks = new ConcurrentLinkedQueue<Runnable>();
+        reactorTaskRunning = new AtomicBoolean(false);
+        listenerTaskRunning = new AtomicBoolean(false);
+        lifecycleLock = new Object();
+        reactorThread = new Thread();
+        listenerThread = new Thread();
+    }
+
+    private native long nativeCreate() throws IOException;
+    private native void nativeRegister(final long reactorHandle, final long deviceHandle, final int busIndex) throws IOException;
+    private native void nativeUnregister(final long reactorHandle, final int busIndex);
+    private native void nativeWakeup(final long reactorHandle);
+    private native int nativePoll(final long reactorHandle, final ByteBuffer buffer, final int offset, final int slotSize, final int maxFrames, final int[] busErrors);
+    private native void nativeDestroy(final long reactorHandle);
+
+    public final boolean start()
+    {
+        synchronized (lifecycleLock)
+        {
+            if (reactorThreadActive || listenerThread.isAlive()) return false;
+
+            listenerThread = new Thread(this::listenerTask, "can-reactor-listener");
+            listenerThread.setDaemon(true);
+            listenerTaskRunning.set(true);
+            listenerThread.start();
+
+            reactorThread = new Thread(this::reactorTask, "can-reactor");
+            reactorThread.setDaemon(true);
+            reactorTaskRunning.set(true);
+            reactorThreadActive = true;
+            reactorThread.start();
+        }
+
+        return true;
+    }
+
+    // note, the attached handlers remain attached and will resume receiving if the reactor is restarted
+    //
+    public final void stop()
+    {
+        synchronized (lifecycleLock)
+        {
+            reactorTaskRunning.set(false);
+            nativeWakeup(reactorHandle);
+        }
+
+        try
+        {
+            reactorThread.join();
+        }
+        catch (final InterruptedException ignored)
+        {
+        }
+
+        try
+        {
+            listenerTaskRunning.set(false);
+            listenerThread.join();
+        }
+        catch (final InterruptedException ignored)
+        {
+        }
+    }
+
+    // releases the native epoll and eventfd descriptors, the reactor can't be used afterwards
+    //
+    public final void close()
+    {
+        stop();
+        nativeDestroy(reactorHandle);
+    }
+
+    public int getAttachedBusCount()
+    {
+        int count = 0;
+        for (int i = 0; i < MAX_BUSES; i++)
+        {
+            if (buses.get(i) != null) count++;
+        }
+
+        return count;
+    }
+
+    // note, a handler detached following a read error is no longer attached
+    //
+    boolean isAttached(final CanCommsHandler handler)
+    {
+        for (int i = 0; i < MAX_BUSES; i++)
+        {
+            if (buses.get(i) == handler) return true;
+        }
+
+        return false;
+    }
+
+    // called by CanCommsHandler.start(), returns the allocated bus index
+    //
+    int attach(final CanCommsHandler handler) throws IOException
+    {
+        final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+        runOnReactor(() -> {
+            try
+            {
+                int busIndex = 0;
+                while ((busIndex < MAX_BUSES) && !isFree(busIndex)) busIndex++;
+                if (busIndex == MAX_BUSES) throw new IOException("Unable to attach device " + handler.getDevice() + ", the reactor already serves " + MAX_BUSES + " buses (or is yet to deliver the frames of those recently detached)");
+                if (handler.getConfig().isFdFrames() && !config.isFdFrames()) throw new IOException("Unable to attach CAN FD device " + handler.getDevice() + ", the reactor must also be configured using setFdFrames(true)");
+                if (!(handler.getTransport() instanceof SocketCanTransport)) throw new IOException("Unable to attach device " + handler.getDevice() + ", the reactor only serves socketCAN transports");
+
+                nativeRegister(reactorHandle, ((SocketCanTransport)handler.getTransport()).getDeviceHandle(), busIndex);
+                buses.set(busIndex, handler);
+                result.complete(busIndex);
+            }
+            catch (final IOException ex)
+            {
+                result.completeExceptionally(ex);
+            }
+        });
+
+        try
+        {
+            return result.join();
+        }
+        catch (final CompletionException ex)
+        {
+            throw (IOException)ex.getCause();
+        }
+    }
+
+    // called by CanCommsHandler.stop(), once this returns the reactor thread no longer reads from the handler's socket
+    //
+    void detach(final CanCommsHandler handler)
+    {
+        final CompletableFuture<Void> result = new CompletableFuture<Void>();
+        runOnReactor(() -> {
+            for (int i = 0; i < MAX_BUSES; i++)
+            {
+                if (buses.get(i) != handler) continue;
+
+                release(i);
+            }
+
+            result.complete(null);
+        });
+
+        result.join();
+    }
+
+    // the frames already in the ring are tagged with the bus index, so it's only reused once the listener has moved past them
+    // note, called by the reactor thread (or whilst it isn't running), i.e. the ring's tail is stable
+    //
+    private void release(final int busIndex)
+    {
+        nativeUnregister(reactorHandle, busIndex);
+        busReleasedAt[busIndex] = ring.tailSequence();
+        buses.set(busIndex, null);
+    }
+
+    private boolean isFree(final int busIndex)
+    {
+        return (buses.get(busIndex) == null) && (ring.headSequence() >= busReleasedAt[busIndex]);
+    }
+
+    // registration changes are made by the reactor thread between polls, or directly if it isn't running
+    //
+    private void runOnReactor(final Runnable task)
+    {
+        synchronized (lifecycleLock)
+        {
+            if (!reactorThreadActive)
+            {
+                task.run();
+                return;
+            }
+
+            reactorTasks.add(task);
+            nativeWakeup(reactorHandle);
+        }
+    }
+
+    private void runReactorTasks()
+    {
+        Runnable task;
+        while ((task = reactorTasks.poll()) != null) task.run();
+    }
+
+    private void reactorTask()
+    {
+        logger.info("The CAN bus reactor task is running");
+
+        final int batchSize = config.getReceiveBatchSize();
+        while (reactorTaskRunning.get())
+        {
+            runReactorTasks();
+
+            // read straight into the free ring slots, if the ring is full the frames are read and discarded
+            //
+            final int writable = ring.writableSlots(batchSize);
+            final int count;
+            if (writable > 0)
+            {
+                count = nativePoll(reactorHandle, ring.buffer(), ring.tailOffset(), ring.slotSize(), writable, busErrors);
+            }
+            else
+            {
+                count = nativePoll(reactorHandle, discardBuffer, 0, ring.slotSize(), batchSize, busErrors);
+            }
+
+            if (busErrors[MAX_BUSES] != 0) handleBusErrors();
+            if (count == 0) continue;
+
+            if (writable > 0)
+            {
+                ring.publish(count);
+            }
+            else
+            {
+                discarded(count);
+            }
+        }
+
+        // note, any registration changes made whilst stopping are completed here
+        //
+        synchronized (lifecycleLock)
+        {
+            reactorThreadActive = false;
+            runReactorTasks();
+        }
+
+        logger.info("The CAN bus reactor task has exited");
+    }
+
+    // the discarded frames are counted by the handler that owns their bus, which logs a rate limited summary
+    //
+    private void discarded(final int count)
+    {
+        final int slotSize = ring.slotSize();
+        for (int i = 0; i < count; i++)
+        {
+            final CanCommsHandler handler = buses.get(discardBuffer.get((i * slotSize) + CanFrameRing.BUS_OFFSET) & 0xff);
+            if (handler != null) handler.metrics().dropped(1, "reactor ring");
+        }
+    }
+
+    // a bus that fails to read is removed from the reactor and its handler's notification listeners are informed
+    //
+    private void handleBusErrors()
+    {
+        busErrors[MAX_BUSES] = 0;
+        for (int i = 0; i < MAX_BUSES; i++)
+        {
+            final int errorCode = busErrors[i];
+            if (errorCode == 0) continue;
+
+            busErrors[i] = 0;
+            final CanCommsHandler handler = buses.get(i);
+            release(i);
+
+            if (handler != null)
+            {
+                logger.error("Error whilst reading from " + handler.getDevice() + ", error code: " + errorCode + ", it has been detached from the reactor");
+                handler.notifyReadError(errorCode);
+            }
+        }
+    }
+
+    private void listenerTask()
+    {
+        logger.info("The CAN bus reactor listener task is running");
+        while (listenerTaskRunning.get())
+        {
+            final int readable = ring.readableSlots();
+            if (readable == 0)
+            {
+                ring.awaitReadable(CanCommsHandler.RECEIVER_QUEUE_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                continue;
+            }
+
+            for (int i = 0; i < readable; i++)
+            {
+                receivedFrame.moveTo(ring.headOffset());
+                final CanCommsHandler handler = buses.get(receivedFrame.getBusIndex());
+                if (handler != null) handler.dispatch(receivedFrame);
+
+                ring.release(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+// optional CanCommsHandler settings, the defaults preserve the original handler behaviour
+// note, the setters return this instance so that they can be chained
+//
+public class CanCommsConfig
+{
+    public enum ReceiveMode
+    {
+        // the native receiver creates and queues one CanMessage per frame (the original behaviour)
+        //
+        PER_FRAME,
+
+        // the native receiver drains many frames per syscall using recvmmsg() into a direct ByteBuffer ring
+        //
+        BATCHED
+    }
+
+    public enum WaitStrategy
+    {
+        // lowest hand-off latency, the listener task spins on a whole core whilst idle
+        //
+        BUSY_SPIN,
+
+        // low latency, the listener task yields whilst idle
+        //
+        YIELD,
+
+        // the listener task parks and is unparked directly by the receiver task, no locks are taken
+        //
+        PARK,
+
+        // lock and condition based, the lowest CPU usage (the original behaviour)
+        //
+        BLOCKING
+    }
+
+    // applied by the receiver task when the receiver queue (or ring) is full
+    //
+    public enum OverflowPolicy
+    {
+        // the newly received frame is discarded (the original behaviour)
+        //
+        DROP_NEWEST,
+
+        // the oldest queued frame is discarded to make space, i.e. the listeners always see the most recent frames
+        //
+        DROP_OLDEST,
+
+        // the receiver waits for space, up to the overflow timeout, before discarding the new frame
+        // note, whilst waiting the frames back up in the kernel socket buffer, which then discards them once full
+        //
+        BLOCK,
+
+        // only the latest value of each CAN ID is queued, a newer frame replaces one not yet delivered with the same ID
+        // i.e. a burst of updates to a signal collapses into a single delivery, whilst the per-ID order is preserved
+        //
+        COALESCE_BY_ID
+    }
+
+    public static final int DEFAULT_RING_CAPACITY = 1024;
+    public static final int DEFAULT_RECEIVE_BATCH_SIZE = 64;
+    public static final int MAX_RECEIVE_BATCH_SIZE = 256;
+    public static final int DEFAULT_DISPATCH_LANE_CAPACITY = 256;
+    public static final long DEFAULT_OVERFLOW_TIMEOUT_MS = 100;
+    public static final int DEFAULT_SNAPSHOT_EXTENDED_IDS = 512;
+    public static final long DEFAULT_REQUEST_TIMER_TICK_MS = 10;
+    public static final int DEFAULT_BUS_ANALYTICS_WINDOW_S = 60;
+
+    private ReceiveMode receiveMode;
+    private WaitStrategy waitStrategy;
+    private int ringCapacity;
+    private int receiveBatchSize;
+    private OverflowPolicy overflowPolicy;
+    private long overflowTimeoutMs;
+    private boolean snapshotTable;
+    private int snapshotExtendedIds;
+    private CanRecorder recorder;
+    private CanFlightRecorder flightRecorder;
+    private CanTransport.Factory transportFactory;
+    private boolean kernelFiltering;
+    private CanBusReactor reactor;
+    private int dispatchLanes;
+    private int dispatchLaneCapacity;
+    private boolean virtualThreadLanes;
+    private boolean fdFrames;
+    private boolean timestamping;
+    private boolean listenerTiming;
+    private boolean jmxRegistration;
+    private long requestTimerTickMs;
+    private int transmitQueueCapacity;
+    private int busBitRate, busDataBitRate;
+    private int busAnalyticsWindowSeconds;
+
+    public CanCommsConfig()
+    {
+        receiveMode = ReceiveMode.PER_FRAME;
+        waitStrategy = WaitStrategy.BLOCKING;
+        ringCapacity = DEFAULT_RING_CAPACITY;
+        receiveBatchSize = DEFAULT_RECEIVE_BATCH_SIZE;
+        overflowPolicy = OverflowPolicy.DROP_NEWEST;
+        overflowTimeoutMs = DEFAULT_OVERFLOW_TIMEOUT_MS;
+        snapshotTable = false;
+        snapshotExtendedIds = DEFAULT_SNAPSHOT_EXTENDED_IDS;
+        recorder = null;
+        flightRecorder = null;
+        transportFactory = SocketCanTransport::new;
+        kernelFiltering = true;
+        reactor = null;
+        dispatchLanes = 0;
+        dispatchLaneCapacity = DEFAULT_DISPATCH_LANE_CAPACITY;
+        virtualThreadLanes = false;
+        fdFrames = false;
+        timestamping = false;
+        listenerTiming = false;
+        jmxRegistration = false;
+        requestTimerTickMs = DEFAULT_REQUEST_TIMER_TICK_MS;
+        transmitQueueCapacity = 0;
+        busBitRate = 0;
+        busDataBitRate = 0;
+        busAnalyticsWindowSeconds = DEFAULT_BUS_ANALYTICS_WINDOW_S;
+    }
+
+    public CanCommsConfig setReceiveMode(final ReceiveMode receiveMode)
+    {
+        this.receiveMode = receiveMode;
+        return this;
+    }
+
+    // used by the listener task whilst waiting for received frames
+    //
+    public CanCommsConfig setWaitStrategy(final WaitStrategy waitStrategy)
+    {
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    // the capacity of the receiver queue (PER_FRAME) or ring (BATCHED), must be a power of two
+    //
+    public CanCommsConfig setRingCapacity(final int ringCapacity)
+    {
+        if ((ringCapacity < 2) || (Integer.bitCount(ringCapacity) != 1)) throw new IllegalArgumentException("The ring capacity must be a power of two, requested: " + ringCapacity);
+
+        this.ringCapacity = ringCapacity;
+        return this;
+    }
+
+    // the maximum number of frames drained per recvmmsg() call, only used in the BATCHED receive mode
+    //
+    public CanCommsConfig setReceiveBatchSize(final int receiveBatchSize)
+    {
+        if ((receiveBatchSize < 1) || (receiveBatchSize > MAX_RECEIVE_BATCH_SIZE)) throw new IllegalArgumentException("The receive batch size must be between 1 and " + MAX_RECEIVE_BATCH_SIZE + ", requested: " + receiveBatchSize);
+
+        this.receiveBatchSize = receiveBatchSize;
+        return this;
+    }
+
+    // what happens to received frames when the listeners fall behind, see OverflowPolicy
+    // notes 1, with COALESCE_BY_ID the ring capacity limits the number of distinct IDs that can be pending at once
+    //       2, handlers served by a CanBusReactor always use DROP_NEWEST
+    //
+    public CanCommsConfig setOverflowPolicy(final OverflowPolicy overflowPolicy)
+    {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    // how long the BLOCK overflow policy waits for space before discarding a frame
+    //
+    public CanCommsConfig setOverflowTimeout(final long overflowTimeoutMs)
+    {
+        if (overflowTimeoutMs < 0) throw new IllegalArgumentException("The overflow timeout can't be negative, requested: " + overflowTimeoutMs);
+
+        this.overflowTimeoutMs = overflowTimeoutMs;
+        return this;
+    }
+
+    // maintains the latest frame of every received ID, see CanCommsHandler.getSnapshotTable()
+    // note, in BATCHED mode the table is updated by the receiver task, i.e. it's current even if the listeners fall behind
+    //
+    public CanCommsConfig setSnapshotTable(final boolean snapshotTable)
+    {
+        this.snapshotTable = snapshotTable;
+        return this;
+    }
+
+    // the number of distinct extended IDs the snapshot table can hold, frames with further extended IDs aren't recorded
+    //
+    public CanCommsConfig setSnapshotExtendedIds(final int snapshotExtendedIds)
+    {
+        if (snapshotExtendedIds < 0) throw new IllegalArgumentException("The number of snapshot extended IDs can't be negative, requested: " + snapshotExtendedIds);
+
+        this.snapshotExtendedIds = snapshotExtendedIds;
+        return this;
+    }
+
+    // every received frame (including error frames) is written to the recorder by the receiving thread, before any listener dispatch
+    // note, as the snapshot table, in BATCHED mode this includes frames that are then dropped by the overflow policy
+    //
+    public CanCommsConfig setRecorder(final CanRecorder recorder)
+    {
+        this.recorder = recorder;
+        return this;
+    }
+
+    // every received frame is also held in the flight recorder's ring, which is dumped to a file when one of its triggers fires
+    //
+    public CanCommsConfig setFlightRecorder(final CanFlightRecorder flightRecorder)
+    {
+        this.flightRecorder = flightRecorder;
+        return this;
+    }
+
+    // creates the transport used by each handler, by default the socketCAN (JNI) transport
+    // e.g. setTransport(virtualBus) attaches the handler to a CanVirtualBus, i.e. no CAN hardware or native library is needed
+    //
+    public CanCommsConfig setTransport(final CanTransport.Factory transportFactory)
+    {
+        this.transportFactory = transportFactory;
+        return this;
+    }
+
+    // by default the CanFilter set is installed in the kernel using CAN_RAW_FILTER, i.e. unwanted frames are never copied to user space
+    // setKernelFiltering(false) compiles the set into a user space matcher that runs in the native receiver before any JNI call instead,
+    // e.g. when a large or frequently replaced filter set costs more in the kernel than the frames it drops
+    //
+    public CanCommsConfig setKernelFiltering(final boolean kernelFiltering)
+    {
+        this.kernelFiltering = kernelFiltering;
+        return this;
+    }
+
+    // the handler's socket is served by the supplied (shared) reactor, i.e. the handler doesn't start any threads of its own
+    // note, the receive mode, ring capacity and wait strategy are then determined by the reactor
+    //
+    public CanCommsConfig setReactor(final CanBusReactor reactor)
+    {
+        this.reactor = reactor;
+        return this;
+    }
+
+    // when non-zero the listeners are called from this number of worker lanes, partitioned by hashing the CAN ID
+    // i.e. frames with the same ID are delivered in order, whilst different IDs are delivered in parallel
+    // note, 0 (the default) calls every listener from the single listener thread
+    //
+    public CanCommsConfig setDispatchLanes(final int dispatchLanes)
+    {
+        if (dispatchLanes < 0) throw new IllegalArgumentException("The number of dispatch lanes can't be negative, requested: " + dispatchLanes);
+
+        this.dispatchLanes = dispatchLanes;
+        return this;
+    }
+
+    // the number of frames each dispatch lane can hold, must be a power of two
+    //
+    public CanCommsConfig setDispatchLaneCapacity(final int dispatchLaneCapacity)
+    {
+        if ((dispatchLaneCapacity < 2) || (Integer.bitCount(dispatchLaneCapacity) != 1)) throw new IllegalArgumentException("The dispatch lane capacity must be a power of two, requested: " + dispatchLaneCapacity);
+
+        this.dispatchLaneCapacity = dispatchLaneCapacity;
+        return this;
+    }
+
+    // runs each dispatch lane on a virtual thread, requires JDK 21 or later, otherwise platform threads are used
+    // note, the lanes wait using the configured wait strategy, BUSY_SPIN and YIELD will occupy the carrier threads
+    //
+    public CanCommsConfig setVirtualThreadLanes(final boolean virtualThreadLanes)
+    {
+        this.virtualThreadLanes = virtualThreadLanes;
+        return this;
+    }
+
+    // enables CAN_RAW_FD_FRAMES, i.e. the socket sends and receives both classic and CAN FD frames (up to 64 bytes)
+    // note, the interface must be configured for CAN FD, e.g. ip link set can0 type can bitrate 500000 dbitrate 2000000 fd on
+    //
+    public CanCommsConfig setFdFrames(final boolean fdFrames)
+    {
+        this.fdFrames = fdFrames;
+        return this;
+    }
+
+    // enables SO_TIMESTAMPING, each frame then carries its kernel (and hardware, if supported by the driver) receive timestamp
+    // also enables the handler's receive latency histograms, see CanCommsHandler.getKernelToQueueLatency() etc.
+    //
+    public CanCommsConfig setTimestamping(final boolean timestamping)
+    {
+        this.timestamping = timestamping;
+        return this;
+    }
+
+    // records the time spent in each listener, see CanCommsHandler.getFrameListenerLatency(), also enabled by setTimestamping()
+    //
+    public CanCommsConfig setListenerTiming(final boolean listenerTiming)
+    {
+        this.listenerTiming = listenerTiming;
+        return this;
+    }
+
+    // registers the handler's metrics with the platform MBean server whilst it is running
+    // i.e. as bitparallel.communication:type=CanCommsHandler,device="can0"
+    //
+    public CanCommsConfig setJmxRegistration(final boolean jmxRegistration)
+    {
+        this.jmxRegistration = jmxRegistration;
+        return this;
+    }
+
+    // the resolution of the CanCommsHandler.request() timeouts, i.e. a request times out up to one tick after its timeout
+    //
+    public CanCommsConfig setRequestTimerTick(final long requestTimerTickMs)
+    {
+        if (requestTimerTickMs <= 0) throw new IllegalArgumentException("The request timer tick must be positive, requested: " + requestTimerTickMs);
+
+        this.requestTimerTickMs = requestTimerTickMs;
+        return this;
+    }
+
+    // enables CanCommsHandler.transmitAsync(), i.e. a priority ordered queue of up to this many frames, drained by a writer thread
+    // note, 0 (the default) disables the queue, transmit() is unaffected
+    //
+    public CanCommsConfig setTransmitQueueCapacity(final int transmitQueueCapacity)
+    {
+        if (transmitQueueCapacity < 0) throw new IllegalArgumentException("The transmit queue capacity can't be negative, requested: " + transmitQueueCapacity);
+
+        this.transmitQueueCapacity = transmitQueueCapacity;
+        return this;
+    }
+
+    // enables the bus analytics, i.e. the bus load, the rate and jitter of each ID and the error counter trends, see CanCommsHandler.getBusAnalytics()
+    // note, the bus load is relative to the interface's bit rate, the data bit rate is used for the data phase of CAN FD frames with BRS
+    //
+    public CanCommsConfig setBusAnalytics(final int bitRate, final int dataBitRate)
+    {
+        if ((bitRate <= 0) || (dataBitRate <= 0)) throw new IllegalArgumentException("The bus analytics bit rates must be positive, requested: " + bitRate + ", " + dataBitRate);
+
+        busBitRate = bitRate;
+        busDataBitRate = dataBitRate;
+        return this;
+    }
+
+    public CanCommsConfig setBusAnalytics(final int bitRate)
+    {
+        return setBusAnalytics(bitRate, bitRate);
+    }
+
+    // the number of complete seconds the bus analytics retain, e.g. for CanBusAnalytics.getPeakBusLoad()
+    //
+    public CanCommsConfig setBusAnalyticsWindow(final int busAnalyticsWindowSeconds)
+    {
+        if ((busAnalyticsWindowSeconds < 1) || (busAnalyticsWindowSeconds > 3600)) throw new IllegalArgumentException("The bus analytics window must be between 1 and 3600 seconds, requested: " + busAnalyticsWindowSeconds);
+
+        this.busAnalyticsWindowSeconds = busAnalyticsWindowSeconds;
+        return this;
+    }
+
+    public ReceiveMode getReceiveMode()
+    {
+        return receiveMode;
+    }
+
+    public WaitStrategy getWaitStrategy()
+    {
+        return waitStrategy;
+    }
+
+    public int getRingCapacity()
+    {
+        return ringCapacity;
+    }
+
+    public int getReceiveBatchSize()
+    {
+        return receiveBatchSize;
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+    public long getOverflowTimeout()
+    {
+        return overflowTimeoutMs;
+    }
+
+    public boolean isSnapshotTable()
+    {
+        return snapshotTable;
+    }
+
+    public int getSnapshotExtendedIds()
+    {
+        return snapshotExtendedIds;
+    }
+
+    public CanRecorder getRecorder()
+    {
+        return recorder;
+    }
+
+    public CanFlightRecorder getFlightRecorder()
+    {
+        return flightRecorder;
+    }
+
+    public CanTransport.Factory getTransport()
+    {
+        return transportFactory;
+    }
+
+    public boolean isKernelFiltering()
+    {
+        return kernelFiltering;
+    }
+
+    public CanBusReactor getReactor()
+    {
+        return reactor;
+    }
+
+    public int getDispatchLanes()
+    {
+        return dispatchLanes;
+    }
+
+    public int getDispatchLaneCapacity()
+    {
+        return dispatchLaneCapacity;
+    }
+
+    public boolean isVirtualThreadLanes()
+    {
+        return virtualThreadLanes;
+    }
+
+    public boolean isFdFrames()
+    {
+        return fdFrames;
+    }
+
+    public boolean isTimestamping()
+    {
+        return timestamping;
+    }
+
+    public boolean isListenerTiming()
+    {
+        return listenerTiming;
+    }
+
+    public boolean isJmxRegistration()
+    {
+        return jmxRegistration;
+    }
+
+    public long getRequestTimerTick()
+    {
+        return requestTimerTickMs;
+    }
+
+    public int getTransmitQueueCapacity()
+    {
+        return transmitQueueCapacity;
+    }
+
+    public boolean isBusAnalytics()
+    {
+        return busBitRate > 0;
+    }
+
+    public int getBusBitRate()
+    {
+        return busBitRate;
+    }
+
+    public int getBusDataBitRate()
+    {
+        return busDataBitRate;
+    }
+
+    public int getBusAnalyticsWindow()
+    {
+        return busAnalyticsWindowSeconds;
+    }
+}
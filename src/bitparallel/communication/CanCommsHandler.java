@@ -4,16 +4,20 @@ package bitparallel.communication;
 // (c) Bit Parallel Ltd, November 2021
 //
 
-import java.io.File;
-import java.io.InputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.ObjectName;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -25,33 +29,6 @@ public class CanCommsHandler
 
     private static final Logger logger = LogManager.getLogger(CanCommsHandler.class);
 
-    static
-    {
-        // FIXME! may need to include "sun.arch.data.model", not sure...
-        //
-        final String osName = System.getProperty("os.name");
-        final String osArch = System.getProperty("os.arch");
-        if ("Linux".equals(osName) && "arm".equals(osArch))
-        {
-            loadNativeLibrary("libcan_comms_handler_linux_arm32.so");
-        }
-        else if ("Linux".equals(osName) && "aarch64".equals(osArch))
-        {
-            loadNativeLibrary("libcan_comms_handler_linux_arm64.so");
-        }
-        else
-        {
-            final StringBuffer sb = new StringBuffer();
-            sb.append("The detected OS and architecture combination is not supported: ");
-            sb.append(osName);
-            sb.append(" (");
-            sb.append(osArch);
-            sb.append(")");
-
-            throw new UnsatisfiedLinkError(sb.toString());
-        }
-    }
-
     // functional interface used to help compact the error listener handling code
     //
     interface NotificationHandler
@@ -75,111 +52,343 @@ public class CanCommsHandler
     }
 
     private final String device;
-    private final long deviceFd;
+    private final CanTransport transport;
+    private final CanCommsConfig config;
+    private final CanBusReactor reactor;
     private final AtomicBoolean rxNativeTaskRunning, rxListenerTaskRunning;
     private final Runnable rxNativeTask, rxListenerTask;
-    private final LinkedBlockingQueue<CanMessage> receiverQueue;
-    private final CopyOnWriteArrayList<CanMessageListener> canMessageListeners;
+    private final ReceiveQueue<CanMessage> receiverQueue;
+    private final CanFrameRing receiverRing;
+    private final CoalescingFrameRing coalescingRing;
+    private final ByteBuffer discardBuffer;
+    private final CanFrame receivedFrame, overflowFrame;
+    private final CanDispatchLanes dispatchLanes;
+    private final CanTransmitQueue transmitQueue;
+    private final LatencyHistogram kernelToQueueLatency, queueToListenerLatency;
+    private final CanCommsMetrics metrics;
+    private final CanSnapshotTable snapshotTable;
+    private final CanRecorder recorder;
+    private final CanFlightRecorder flightRecorder;
+    private final CanBusAnalytics busAnalytics;
+    private final boolean captureOnReceive, captureOnDispatch;
+    private ObjectName metricsName;
+    private final CopyOnWriteArrayList<CanListenerTable.Subscription> subscriptions;
     private final CopyOnWriteArrayList<CanNotificationListener> canNotificationListeners;
+    private volatile CanListenerTable listenerTable;
+    private volatile CanRequestTracker requestTracker;
     private Thread rxNativeThread, rxListenerThread;
 
     public CanCommsHandler(final String device, final CanFilter[] filters) throws IOException
+    {
+        this(device, filters, new CanCommsConfig());
+    }
+
+    public CanCommsHandler(final String device, final CanFilter[] filters, final CanCommsConfig config) throws IOException
     {
         this.device = device;
+        this.config = config;
 
-        deviceFd = nativeOpen(device, filters);
+        transport = config.getTransport().create();
+        transport.open(device, filters, config);
+        reactor = config.getReactor();
 
-        canMessageListeners = new CopyOnWriteArrayList<CanMessageListener>();
+        subscriptions = new CopyOnWriteArrayList<CanListenerTable.Subscription>();
+        listenerTable = CanListenerTable.EMPTY;
         canNotificationListeners = new CopyOnWriteArrayList<CanNotificationListener>();
-        receiverQueue = new LinkedBlockingQueue<CanMessage>(RECEIVER_MESSAGE_QUEUE_SIZE);
         rxNativeTaskRunning = new AtomicBoolean(false);
         rxListenerTaskRunning = new AtomicBoolean(false);
 
+        metrics = new CanCommsMetrics(device, this::currentQueueDepth, this::listenerDispatchTimes);
+        kernelToQueueLatency = config.isTimestamping() ? new LatencyHistogram() : null;
+        queueToListenerLatency = config.isTimestamping() ? new LatencyHistogram() : null;
+        snapshotTable = config.isSnapshotTable() ? new CanSnapshotTable(config.isFdFrames(), config.getSnapshotExtendedIds()) : null;
+        recorder = config.getRecorder();
+        flightRecorder = config.getFlightRecorder();
+        busAnalytics = config.isBusAnalytics() ? new CanBusAnalytics(config.getBusBitRate(), config.getBusDataBitRate(), config.getBusAnalyticsWindow()) : null;
+        captureOnReceive = (snapshotTable != null) || (recorder != null) || (flightRecorder != null) || (busAnalytics != null);
+        captureOnDispatch = captureOnReceive && ((reactor != null) || (config.getReceiveMode() == CanCommsConfig.ReceiveMode.PER_FRAME));
+        dispatchLanes = (config.getDispatchLanes() > 0) ? new CanDispatchLanes("can-" + device, config, metrics, this::dispatchToListeners) : null;
+        transmitQueue = (config.getTransmitQueueCapacity() > 0) ? new CanTransmitQueue("can-" + device, config.getTransmitQueueCapacity(), transport, metrics, busAnalytics) : null;
+
         rxNativeThread = new Thread();
-        rxNativeTask = () -> {
-            // note, if the native task fails it will exit and will also signal the listener task to exit
+        rxListenerThread = new Thread();
+        if (reactor != null)
+        {
+            // the reactor reads the socket and calls dispatch() from its own listener thread
             //
-            logger.info("The native CAN receiver task is running");
-            nativeReceiveTask(receiverQueue, rxNativeTaskRunning, deviceFd);
-        };
+            receiverQueue = null;
+            receiverRing = null;
+            coalescingRing = null;
+            discardBuffer = null;
+            receivedFrame = null;
+            overflowFrame = null;
+            rxNativeTask = null;
+            rxListenerTask = null;
+        }
+        else if ((config.getReceiveMode() == CanCommsConfig.ReceiveMode.BATCHED) && (config.getOverflowPolicy() == CanCommsConfig.OverflowPolicy.COALESCE_BY_ID))
+        {
+            // the frames are received into the discard buffer and then copied into the slot owned by their CAN ID
+            //
+            final int slotSize = CanFrameRing.slotSizeFor(config);
+            receiverQueue = null;
+            receiverRing = null;
+            coalescingRing = new CoalescingFrameRing(config.getRingCapacity(), slotSize, Waiter.create(config.getWaitStrategy()));
+            discardBuffer = ByteBuffer.allocateDirect(config.getReceiveBatchSize() * slotSize).order(ByteOrder.nativeOrder());
+            receivedFrame = new CanFrame(ByteBuffer.allocateDirect(slotSize).order(ByteOrder.nativeOrder()), slotSize);
+            overflowFrame = new CanFrame(discardBuffer, slotSize);
 
-        rxListenerThread = new Thread();
-        rxListenerTask = () -> {
-            logger.info("The CAN receiver listener task is running");
-            while (rxListenerTaskRunning.get())
+            rxNativeTask = () -> {
+                logger.info("The coalescing native CAN receiver task is running");
+                coalescingReceiveTask();
+            };
+
+            rxListenerTask = () -> {
+                logger.info("The CAN coalescing ring listener task is running");
+                coalescingListenerTask();
+            };
+        }
+        else if (config.getReceiveMode() == CanCommsConfig.ReceiveMode.BATCHED)
+        {
+            receiverQueue = null;
+            receiverRing = new CanFrameRing(config.getRingCapacity(), CanFrameRing.slotSizeFor(config), Waiter.create(config.getWaitStrategy()));
+            coalescingRing = null;
+            discardBuffer = ByteBuffer.allocateDirect(config.getReceiveBatchSize() * receiverRing.slotSize()).order(ByteOrder.nativeOrder());
+
+            // note, with DROP_OLDEST the listeners are given a private copy of each slot, as the receiver may evict the slot whilst in use
+            //
+            final boolean dropOldest = config.getOverflowPolicy() == CanCommsConfig.OverflowPolicy.DROP_OLDEST;
+            receivedFrame = dropOldest ? new CanFrame(ByteBuffer.allocateDirect(receiverRing.slotSize()).order(ByteOrder.nativeOrder()), receiverRing.slotSize()) : new CanFrame(receiverRing.buffer(), receiverRing.slotSize());
+            overflowFrame = dropOldest ? new CanFrame(discardBuffer, receiverRing.slotSize()) : null;
+
+            rxNativeTask = () -> {
+                logger.info("The batched native CAN receiver task is running");
+                batchedReceiveTask();
+            };
+
+            rxListenerTask = () -> {
+                logger.info("The CAN receiver ring listener task is running");
+                ringListenerTask();
+            };
+        }
+        else
+        {
+            final Waiter waiter = Waiter.create(config.getWaitStrategy());
+            if (config.getOverflowPolicy() == CanCommsConfig.OverflowPolicy.COALESCE_BY_ID)
+            {
+                receiverQueue = new CoalescingQueue<CanMessage>(config.getRingCapacity(), waiter, CanMessage::getRawId, metrics::coalesced);
+            }
+            else
             {
-                // wait for a mesage and then transmit it to the subscribed listeners
+                final long blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getOverflowTimeout());
+                receiverQueue = new SpscQueue<CanMessage>(config.getRingCapacity(), waiter, config.getOverflowPolicy(), blockTimeoutNanos, (count) -> metrics.dropped(count, "receiver queue"));
+            }
+
+            receiverRing = null;
+            coalescingRing = null;
+            discardBuffer = null;
+            overflowFrame = null;
+            final int slotSize = CanFrameRing.slotSizeFor(config);
+            receivedFrame = new CanFrame(ByteBuffer.allocateDirect(slotSize).order(ByteOrder.nativeOrder()), slotSize);
+
+            rxNativeTask = () -> {
+                // note, if the native task fails it will exit and will also signal the listener task to exit
                 //
-                try
+                logger.info("The native CAN receiver task is running");
+                if (transport instanceof SocketCanTransport)
+                {
+                    ((SocketCanTransport)transport).receiveTask(this, receiverQueue, rxNativeTaskRunning);
+                }
+                else
+                {
+                    perFrameReceiveTask();
+                }
+            };
+
+            rxListenerTask = () -> {
+                logger.info("The CAN receiver listener task is running");
+                while (rxListenerTaskRunning.get())
                 {
+                    // wait for a mesage and then transmit it to the subscribed listeners
+                    //
                     final CanMessage message = receiverQueue.poll(RECEIVER_QUEUE_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
                     if (message == null) continue;
 
-                    if (message.isDataFrame())
-                    {
-                        for (CanMessageListener listener : canMessageListeners)
-                        {
-                            try
-                            {
-                                listener.rxedCanMessage(message);
-                            }
-                            catch (final Exception ex)
-                            {
-                                logger.error("Unexpected exception in CAN message listener, reason: " + ex.getMessage(), ex);
-                            }
-                        }
-
-                        continue;
-                    }
+                    metrics.queueDepth(receiverQueue.size() + 1);
+                    receivedFrame.wrap(message);
+                    dispatch(receivedFrame);
+                }
+            };
+        }
+    }
 
-                    //
-                    // must be an error frame
-                    //
+    // note, CAN FD messages require CanCommsConfig.setFdFrames(true)
+    //
+    public void transmit(final CanMessage message) throws IOException
+    {
+        try
+        {
+            transport.transmit(message);
+            metrics.transmitted(message.getPayload().length);
+            if (busAnalytics != null) busAnalytics.transmitted(message, System.nanoTime());
+        }
+        catch (final IOException ex)
+        {
+            metrics.transmitFailed();
+            throw ex;
+        }
+    }
 
-                    if (message.isBusOffError())
-                    {
-                        final NotificationHandler busError = (listener) -> listener.notifyBusOffError();
-                        busError.notify(canNotificationListeners, "bus-off");
-                    }
-                    else if (message.isControllerError())
-                    {
-                        final NotificationHandler controllerError = (listener) -> listener.notifyControllerError(message.getPayload()[1]);
-                        controllerError.notify(canNotificationListeners, "controller");
-                    }
-                    else if (message.isProtocolError())
-                    {
-                        final NotificationHandler protocolError = (listener) -> listener.notifyProtocolError(message.getPayload()[2]);
-                        protocolError.notify(canNotificationListeners, "protocol");
-                    }
-                    else if (message.isControllerRestarted())
-                    {
-                        final NotificationHandler controllerRestarted = (listener) -> listener.notifyControllerRestarted();
-                        controllerRestarted.notify(canNotificationListeners, "controller restarted");
-                    }
-                    else
-                    {
-                        logger.error("Unexpected CAN error, frame id: " + message.getRawId());
-                    }
-                }
-                catch (final InterruptedException ignoredPollTimeout)
-                {
-                }
-            }
-        };
+    // queues the frame for the transmit queue's writer thread and returns immediately, the future completes once the frame has been sent
+    // notes 1, requires CanCommsConfig.setTransmitQueueCapacity(), the queued frames are sent once the handler is started
+    //       2, the queue is ordered by CAN arbitration priority, i.e. the lowest ID is sent first, see CanTransmitQueue
+    //       3, a full queue, an invalid frame or a stopped handler fails the returned future with an IOException
+    //
+    public CompletableFuture<Void> transmitAsync(final CanMessage message)
+    {
+        return transmitAsync(message, false);
     }
 
-    private native long nativeOpen(final String device, final CanFilter[] filters) throws IOException;
-    private native void nativeTransmit(final CanMessage message, final long deviceFd) throws IOException;
-    private native void nativeReceiveTask(final LinkedBlockingQueue<CanMessage> receiveQueue, final AtomicBoolean running, final long deviceFd);
-    private native void nativeClose(final String device, final long deviceFd) throws IOException;
+    // with replacePending, a frame with the same raw ID that is still queued is replaced (and its future cancelled)
+    //
+    public CompletableFuture<Void> transmitAsync(final CanMessage message, final boolean replacePending)
+    {
+        if (transmitQueue == null) throw new IllegalStateException("The transmit queue is disabled, see CanCommsConfig.setTransmitQueueCapacity()");
+
+        final int length = message.getPayload().length;
+        if ((message.isFdFrame() && !config.isFdFrames()) || (length > (message.isFdFrame() ? CanMessage.CANFD_MAX_DLEN : CanMessage.CAN_MAX_DLEN)))
+        {
+            final CompletableFuture<Void> rejected = new CompletableFuture<Void>();
+            rejected.completeExceptionally(new IOException("Unable to transmit a " + (message.isFdFrame() ? "CAN FD" : "CAN") + " message with a " + length + " byte payload" + ((message.isFdFrame() && !config.isFdFrames()) ? ", CAN FD frames are not enabled" : "")));
+            metrics.transmitFailed();
 
-    public void transmit(final CanMessage message) throws IOException
+            return rejected;
+        }
+
+        return transmitQueue.offer(message, replacePending);
+    }
+
+    // the number of frames waiting in the transmit queue
+    //
+    public int getTransmitQueueSize()
+    {
+        return (transmitQueue == null) ? 0 : transmitQueue.size();
+    }
+
+    // atomically replaces the active filters, the socket remains open and the handler can be running
+    // note, an empty array removes all filtering
+    //
+    public void setFilters(final CanFilter[] filters) throws IOException
+    {
+        transport.setFilters(filters);
+    }
+
+    public String getDevice()
+    {
+        return device;
+    }
+
+    // the latest frame of every received ID, or null unless using CanCommsConfig.setSnapshotTable(true)
+    //
+    public CanSnapshotTable getSnapshotTable()
+    {
+        return snapshotTable;
+    }
+
+    // the bus load, per-ID rates and error counter trends, or null unless using CanCommsConfig.setBusAnalytics()
+    //
+    public CanBusAnalytics getBusAnalytics()
+    {
+        return busAnalytics;
+    }
+
+    // the state of each dispatch lane, or an empty array if the listeners are called from the single listener thread
+    //
+    public CanDispatchLaneStatus[] getDispatchLaneStatus()
+    {
+        return (dispatchLanes == null) ? new CanDispatchLaneStatus[0] : dispatchLanes.status();
+    }
+
+    // the dispatch lane that delivers frames with the supplied raw ID (including the EFF flag), or -1 if lanes aren't in use
+    //
+    public int getDispatchLane(final int rawId)
+    {
+        return (dispatchLanes == null) ? -1 : dispatchLanes.laneOf(rawId);
+    }
+
+    // a point in time copy of the handler's counters, also available using JMX, see CanCommsConfig.setJmxRegistration()
+    //
+    public CanCommsMetricsSnapshot getMetrics()
+    {
+        return metrics.snapshot();
+    }
+
+    public void resetMetrics()
+    {
+        metrics.reset();
+    }
+
+    //
+    // receive latency histograms, only available when using CanCommsConfig.setTimestamping(true), otherwise null
+    //
+
+    // from the kernel receive timestamp to the frame being read by the receiver task (or reactor)
+    //
+    public LatencyHistogram getKernelToQueueLatency()
+    {
+        return kernelToQueueLatency;
+    }
+
+    // from the frame being read by the receiver task to the listeners being called
+    //
+    public LatencyHistogram getQueueToListenerLatency()
+    {
+        return queueToListenerLatency;
+    }
+
+    // the time spent in the listener's callback, or null if it isn't subscribed
+    // note, also available when using CanCommsConfig.setListenerTiming(true)
+    //
+    public LatencyHistogram getFrameListenerLatency(final CanFrameListener canFrameListener)
+    {
+        for (CanListenerTable.Subscription subscription : subscriptions)
+        {
+            if (subscription.getListener().equals(canFrameListener)) return subscription.getLatency();
+        }
+
+        return null;
+    }
+
+    public LatencyHistogram getMessageListenerLatency(final CanMessageListener canMessageListener)
     {
-        nativeTransmit(message, deviceFd);
+        return getFrameListenerLatency(new CanMessageListenerAdapter(canMessageListener));
     }
 
     public final boolean start()
     {
+        // note, as the threaded receiver, a handler that's already running isn't restarted
+        //
+        if ((reactor != null) && reactor.isAttached(this)) return false;
+
+        if (config.isJmxRegistration()) registerMetrics();
+        if (dispatchLanes != null) dispatchLanes.start();
+        if (transmitQueue != null) transmitQueue.start();
+        if (reactor != null)
+        {
+            try
+            {
+                final int busIndex = reactor.attach(this);
+                logger.info("Device " + device + " is attached to the CAN bus reactor, bus index: " + busIndex);
+                return true;
+            }
+            catch (final IOException ex)
+            {
+                logger.error("Unable to attach device " + device + " to the CAN bus reactor, reason: " + ex.getMessage(), ex);
+                if (dispatchLanes != null) dispatchLanes.stop();
+                if (transmitQueue != null) transmitQueue.stop();
+                return false;
+            }
+        }
+
         final boolean nativeThreadReady = (rxNativeThread.getState() == Thread.State.NEW) || (rxNativeThread.getState() == Thread.State.TERMINATED);
         final boolean listenerThreadReady = (rxListenerThread.getState() == Thread.State.NEW) || (rxListenerThread.getState() == Thread.State.TERMINATED);
         boolean success = nativeThreadReady && listenerThreadReady;
@@ -187,7 +396,7 @@ public class CanCommsHandler
         {
             //
             // note, this task is started first as it's possible to the native task to stop it if it fails to read from the CAN socket
-            // start draining the receiver queue, passing the ByteBuffer messages to the subscribed listeners
+            // start draining the receiver queue (or ring), passing the messages to the subscribed listeners
             //
 
             rxListenerThread = new Thread(rxListenerTask);
@@ -196,7 +405,7 @@ public class CanCommsHandler
             rxListenerThread.start();
 
             //
-            // start populating the receiver queue with ByteBuffer messages
+            // start populating the receiver queue (or ring) with messages
             //
 
             rxNativeThread = new Thread(rxNativeTask);
@@ -212,50 +421,283 @@ public class CanCommsHandler
     public final boolean stop()
     {
         boolean success = true;
-        try
+        if (reactor != null)
         {
-            rxNativeTaskRunning.set(false);
-            rxNativeThread.join();
+            // note, once detached the reactor thread no longer reads from the socket, so it can be closed
+            //
+            reactor.detach(this);
         }
-        catch (final InterruptedException ignored)
+        else
         {
-        }
+            try
+            {
+                rxNativeTaskRunning.set(false);
+                rxNativeThread.join();
+            }
+            catch (final InterruptedException ignored)
+            {
+            }
 
-        try
-        {
-            rxListenerTaskRunning.set(false);
-            rxListenerThread.join();
-        }
-        catch (final InterruptedException ignored)
-        {
+            try
+            {
+                rxListenerTaskRunning.set(false);
+                rxListenerThread.join();
+            }
+            catch (final InterruptedException ignored)
+            {
+            }
         }
 
+        // note, any frames still held by the dispatch lanes are discarded
+        //
+        if (dispatchLanes != null) dispatchLanes.stop();
+        if (transmitQueue != null) transmitQueue.stop();
+        metrics.flushDrops("receiver queue");
+        unregisterMetrics();
+
         try
         {
-            nativeClose(device, deviceFd);
+            transport.close();
         }
         catch (final IOException ex)
         {
-            logger.error("Unable to close the native file descriptor, reason: " + ex.getMessage(), ex);
+            logger.error("Unable to close the " + device + " transport, reason: " + ex.getMessage(), ex);
             success = false;
         }
 
         return success;
     }
 
+    // note, a listener added without an ID receives every data frame
+    //
     public void addMessageListener(final CanMessageListener canMessageListener)
     {
-        canMessageListeners.add(canMessageListener);
+        subscribe(CanListenerTable.Subscription.all(new CanMessageListenerAdapter(canMessageListener)));
+    }
+
+    //
+    // ID based subscriptions, the listener is only called for matching data frames
+    // note, an ID with the EFF flag set (or one that doesn't fit into 11 bits) subscribes to an extended ID
+    //
+
+    public void addMessageListener(final int id, final CanMessageListener canMessageListener)
+    {
+        subscribe(CanListenerTable.Subscription.range(new CanMessageListenerAdapter(canMessageListener), id, id));
+    }
+
+    // inclusive range of IDs
+    //
+    public void addMessageListener(final int fromId, final int toId, final CanMessageListener canMessageListener)
+    {
+        subscribe(CanListenerTable.Subscription.range(new CanMessageListenerAdapter(canMessageListener), fromId, toId));
+    }
+
+    // matches using the same rule as the kernel filters, i.e. (id & mask) == (filter & mask)
+    //
+    public void addMessageListener(final CanFilter filter, final CanMessageListener canMessageListener)
+    {
+        subscribe(CanListenerTable.Subscription.filter(new CanMessageListenerAdapter(canMessageListener), filter));
     }
 
+    // removes every subscription made by the listener
+    //
     public void removeMessageListener(final CanMessageListener canMessageListener)
     {
-        canMessageListeners.remove(canMessageListener);
+        unsubscribe(new CanMessageListenerAdapter(canMessageListener));
     }
 
     public void clearMessageListeners()
     {
-        canMessageListeners.clear();
+        synchronized (subscriptions)
+        {
+            subscriptions.removeIf((subscription) -> subscription.getListener() instanceof CanMessageListenerAdapter);
+            listenerTable = new CanListenerTable(subscriptions);
+        }
+    }
+
+    //
+    // the allocation free alternatives to the CanMessageListener methods, see CanFrame
+    //
+
+    public void addFrameListener(final CanFrameListener canFrameListener)
+    {
+        subscribe(CanListenerTable.Subscription.all(canFrameListener));
+    }
+
+    public void addFrameListener(final int id, final CanFrameListener canFrameListener)
+    {
+        subscribe(CanListenerTable.Subscription.range(canFrameListener, id, id));
+    }
+
+    public void addFrameListener(final int fromId, final int toId, final CanFrameListener canFrameListener)
+    {
+        subscribe(CanListenerTable.Subscription.range(canFrameListener, fromId, toId));
+    }
+
+    public void addFrameListener(final CanFilter filter, final CanFrameListener canFrameListener)
+    {
+        subscribe(CanListenerTable.Subscription.filter(canFrameListener, filter));
+    }
+
+    public void removeFrameListener(final CanFrameListener canFrameListener)
+    {
+        unsubscribe(canFrameListener);
+    }
+
+    public void clearFrameListeners()
+    {
+        synchronized (subscriptions)
+        {
+            subscriptions.removeIf((subscription) -> !(subscription.getListener() instanceof CanInternalFrameListener));
+            listenerTable = new CanListenerTable(subscriptions);
+        }
+    }
+
+    //
+    // signal subscriptions, the listener is called with the decoded value whenever it changes, see CanSignalDatabase
+    //
+
+    public void addSignalListener(final CanSignalDecoder decoder, final String signalName, final CanSignalListener canSignalListener)
+    {
+        final CanSignal signal = decoder.getSignal(signalName);
+        if (signal == null) throw new IllegalArgumentException("Message " + decoder.getName() + " doesn't define signal " + signalName);
+
+        subscribe(CanListenerTable.Subscription.range(new CanSignalListenerAdapter(canSignalListener, decoder, signal), decoder.getRawId(), decoder.getRawId()));
+    }
+
+    public void addSignalListener(final CanSignalDatabase database, final String messageName, final String signalName, final CanSignalListener canSignalListener)
+    {
+        final CanSignalDecoder decoder = database.getDecoder(messageName);
+        if (decoder == null) throw new IllegalArgumentException("The signal database doesn't define message " + messageName);
+
+        addSignalListener(decoder, signalName, canSignalListener);
+    }
+
+    // removes every signal subscription made by the listener
+    //
+    public void removeSignalListener(final CanSignalListener canSignalListener)
+    {
+        unsubscribe(new CanSignalListenerAdapter(canSignalListener, null, null));
+    }
+
+    public void clearSignalListeners()
+    {
+        synchronized (subscriptions)
+        {
+            subscriptions.removeIf((subscription) -> subscription.getListener() instanceof CanSignalListenerAdapter);
+            listenerTable = new CanListenerTable(subscriptions);
+        }
+    }
+
+    //
+    // ISO-TP (ISO 15765-2) channels, i.e. messages longer than a single frame, see CanIsoTpChannel
+    //
+
+    public CanIsoTpChannel openIsoTpChannel(final int txId, final int rxId) throws IOException
+    {
+        return openIsoTpChannel(txId, rxId, new CanIsoTpConfig());
+    }
+
+    // uses the kernel CAN_ISOTP protocol when available (see CanIsoTpConfig.setKernelIsoTp()), otherwise the Java implementation
+    // note, the Java implementation receives using this handler's listeners, i.e. the handler must be started
+    //
+    public CanIsoTpChannel openIsoTpChannel(final int txId, final int rxId, final CanIsoTpConfig isoTpConfig) throws IOException
+    {
+        if (isoTpConfig.isFdFrames() && !config.isFdFrames()) throw new IllegalArgumentException("ISO-TP CAN FD frames require CanCommsConfig.setFdFrames(true)");
+
+        if (isoTpConfig.isKernelIsoTp() && (transport instanceof SocketCanTransport))
+        {
+            try
+            {
+                return new SocketCanIsoTpChannel(device, txId, rxId, isoTpConfig);
+            }
+            catch (final IOException ex)
+            {
+                logger.warn("The kernel ISO-TP protocol is unavailable on " + device + ", using the Java implementation, reason: " + ex.getMessage());
+            }
+        }
+
+        return new JavaIsoTpChannel(this, txId, rxId, isoTpConfig);
+    }
+
+    //
+    // request / response, the returned future is completed by the next frame received with the response ID, see CanRequestTracker
+    //
+
+    // transmits the request, the future completes exceptionally with a TimeoutException if no response is received within the timeout
+    // or with the IOException if the request couldn't be transmitted
+    // note, the handler must be started, the future is completed by its listener thread
+    //
+    public CompletableFuture<CanMessage> request(final CanMessage request, final int responseId, final Duration timeout)
+    {
+        final CanRequestTracker tracker = getRequestTracker();
+        final CanRequestTracker.PendingRequest pending = tracker.register(responseId, timeout.toNanos());
+        try
+        {
+            transmit(request);
+        }
+        catch (final IOException ex)
+        {
+            tracker.fail(pending, ex);
+        }
+
+        return pending.getFuture();
+    }
+
+    // the batch variant, every response is awaited before the requests are transmitted, e.g. to poll many nodes at once
+    // note, the futures are in the order of the requests, responseIds[i] is the response ID of requests.get(i)
+    //
+    public List<CompletableFuture<CanMessage>> request(final List<CanMessage> requests, final int[] responseIds, final Duration timeout)
+    {
+        if (requests.size() != responseIds.length) throw new IllegalArgumentException("Each request requires a response ID, requests: " + requests.size() + ", response IDs: " + responseIds.length);
+
+        final CanRequestTracker tracker = getRequestTracker();
+        final List<CanRequestTracker.PendingRequest> pending = new ArrayList<CanRequestTracker.PendingRequest>(requests.size());
+        for (int i = 0; i < responseIds.length; i++) pending.add(tracker.register(responseIds[i], timeout.toNanos()));
+
+        final List<CompletableFuture<CanMessage>> futures = new ArrayList<CompletableFuture<CanMessage>>(requests.size());
+        for (int i = 0; i < requests.size(); i++)
+        {
+            try
+            {
+                transmit(requests.get(i));
+            }
+            catch (final IOException ex)
+            {
+                tracker.fail(pending.get(i), ex);
+            }
+
+            futures.add(pending.get(i).getFuture());
+        }
+
+        return futures;
+    }
+
+    // the number of requests still awaiting a response
+    //
+    public int getPendingRequests()
+    {
+        final CanRequestTracker tracker = requestTracker;
+        return (tracker == null) ? 0 : tracker.getPendingCount();
+    }
+
+    // note, the tracker is only subscribed once the first request is made, until then received frames don't pay for the lookup
+    //
+    private CanRequestTracker getRequestTracker()
+    {
+        final CanRequestTracker tracker = requestTracker;
+        if (tracker != null) return tracker;
+
+        synchronized (subscriptions)
+        {
+            if (requestTracker == null)
+            {
+                requestTracker = new CanRequestTracker(device, config.getRequestTimerTick());
+                subscribe(CanListenerTable.Subscription.all(requestTracker));
+            }
+
+            return requestTracker;
+        }
     }
 
     public void addNotificationListener(final CanNotificationListener canNotificationListener)
@@ -273,11 +715,366 @@ public class CanCommsHandler
         canNotificationListeners.clear();
     }
 
+    // the listener table is rebuilt on every change, the dispatcher only ever reads the latest immutable table
+    //
+    private void subscribe(final CanListenerTable.Subscription subscription)
+    {
+        synchronized (subscriptions)
+        {
+            if (config.isTimestamping() || config.isListenerTiming())
+            {
+                final LatencyHistogram existing = getFrameListenerLatency(subscription.getListener());
+                subscription.setLatency((existing == null) ? new LatencyHistogram() : existing);
+            }
+
+            subscriptions.add(subscription);
+            listenerTable = new CanListenerTable(subscriptions);
+        }
+    }
+
+    private void unsubscribe(final CanFrameListener listener)
+    {
+        synchronized (subscriptions)
+        {
+            subscriptions.removeIf((subscription) -> subscription.getListener().equals(listener));
+            listenerTable = new CanListenerTable(subscriptions);
+        }
+    }
+
+    private void deliver(final CanListenerTable.Subscription[] matches, final CanFrame frame)
+    {
+        for (CanListenerTable.Subscription subscription : matches)
+        {
+            try
+            {
+                subscription.deliver(frame);
+            }
+            catch (final Exception ex)
+            {
+                metrics.listenerException();
+                logger.error("Unexpected exception in CAN message listener, reason: " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    // passes a received frame to the dispatch lanes or directly to the listeners
+    // note, also called by the CanBusReactor listener thread
+    //
+    void dispatch(final CanFrame frame)
+    {
+        metrics.received(frame.getDlc());
+        if (captureOnDispatch) capture(frame.buffer(), frame.slotOffset(), frame.slotSize(), 1);
+
+        if (dispatchLanes != null)
+        {
+            dispatchLanes.submit(frame);
+        }
+        else
+        {
+            dispatchToListeners(frame);
+        }
+    }
+
+    // passes a frame to the subscribed listeners, or classifies it if it is an error frame
+    //
+    private void dispatchToListeners(final CanFrame frame)
+    {
+        if (queueToListenerLatency != null)
+        {
+            final long receivedNanos = frame.getReceivedNanos();
+            if (receivedNanos != 0)
+            {
+                queueToListenerLatency.record(System.nanoTime() - receivedNanos);
+                if (frame.getTimestamp() != 0) kernelToQueueLatency.record(frame.getKernelLatencyNanos());
+            }
+        }
+
+        if (frame.isDataFrame())
+        {
+            final CanListenerTable table = listenerTable;
+            if (table.isEmpty()) return;
+
+            // catch-all listeners first, then those indexed by the frame's ID, and finally any that need individual matching
+            //
+            final int rawId = frame.getRawId();
+            deliver(table.catchAll(), frame);
+
+            final CanListenerTable.Subscription[] indexed = table.indexed(rawId);
+            if (indexed != null) deliver(indexed, frame);
+
+            for (CanListenerTable.Subscription subscription : table.residual())
+            {
+                if (!subscription.matches(rawId)) continue;
+
+                try
+                {
+                    subscription.deliver(frame);
+                }
+                catch (final Exception ex)
+                {
+                    metrics.listenerException();
+                    logger.error("Unexpected exception in CAN message listener, reason: " + ex.getMessage(), ex);
+                }
+            }
+
+            return;
+        }
+
+        //
+        // must be an error frame
+        //
+
+        if (frame.isBusOffError())
+        {
+            metrics.busOffError();
+            final NotificationHandler busError = (listener) -> listener.notifyBusOffError();
+            busError.notify(canNotificationListeners, "bus-off");
+        }
+        else if (frame.isControllerError())
+        {
+            metrics.controllerError();
+            final byte error = frame.getByte(1);
+            final NotificationHandler controllerError = (listener) -> listener.notifyControllerError(error);
+            controllerError.notify(canNotificationListeners, "controller");
+        }
+        else if (frame.isProtocolError())
+        {
+            metrics.protocolError();
+            final byte error = frame.getByte(2);
+            final NotificationHandler protocolError = (listener) -> listener.notifyProtocolError(error);
+            protocolError.notify(canNotificationListeners, "protocol");
+        }
+        else if (frame.isControllerRestarted())
+        {
+            metrics.controllerRestarted();
+            final NotificationHandler controllerRestarted = (listener) -> listener.notifyControllerRestarted();
+            controllerRestarted.notify(canNotificationListeners, "controller restarted");
+        }
+        else
+        {
+            metrics.otherError();
+            logger.error("Unexpected CAN error, frame id: " + frame.getRawId());
+        }
+    }
+
+    // the BATCHED mode receiver, each transport call drains as many frames as possible, i.e. a single recvmmsg() for socketCAN
+    //
+    private void batchedReceiveTask()
+    {
+        final int batchSize = config.getReceiveBatchSize();
+        final int timeoutMs = (int)RECEIVER_QUEUE_POLL_TIMEOUT_MS;
+        final CanCommsConfig.OverflowPolicy overflowPolicy = config.getOverflowPolicy();
+        final long blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getOverflowTimeout());
+        while (rxNativeTaskRunning.get())
+        {
+            // read straight into the free ring slots, if the ring is full the frames are read into the discard buffer
+            // and then handled by the overflow policy, i.e. dropped (DROP_NEWEST, BLOCK) or copied over the oldest frames (DROP_OLDEST)
+            //
+            int writable = receiverRing.writableSlots(batchSize);
+            if ((writable == 0) && (overflowPolicy == CanCommsConfig.OverflowPolicy.BLOCK) && receiverRing.awaitWritable(blockTimeoutNanos)) writable = receiverRing.writableSlots(batchSize);
+
+            final int offset = receiverRing.tailOffset();
+            final int count;
+            if (writable > 0)
+            {
+                count = transport.receive(receiverRing.buffer(), offset, receiverRing.slotSize(), writable, timeoutMs);
+            }
+            else
+            {
+                count = transport.receive(discardBuffer, 0, receiverRing.slotSize(), batchSize, timeoutMs);
+            }
+
+            if (count < 0)
+            {
+                // the handler signals both tasks to exit
+                //
+                nativeReadErrorHandler(-count);
+                break;
+            }
+
+            if (count == 0) continue;
+
+            // note, the frames are captured before they are published, so the capture includes any that are then dropped
+            //
+            if (captureOnReceive) capture((writable > 0) ? receiverRing.buffer() : discardBuffer, (writable > 0) ? offset : 0, receiverRing.slotSize(), count);
+            if (writable > 0)
+            {
+                receiverRing.publish(count);
+            }
+            else if (overflowPolicy == CanCommsConfig.OverflowPolicy.DROP_OLDEST)
+            {
+                replaceOldest(count);
+            }
+            else
+            {
+                metrics.dropped(count, "receiver ring");
+            }
+        }
+    }
+
+    // the PER_FRAME receiver used by transports without a native receiver task, each frame is queued as a new CanMessage
+    //
+    private void perFrameReceiveTask()
+    {
+        final int batchSize = config.getReceiveBatchSize();
+        final int slotSize = CanFrameRing.slotSizeFor(config);
+        final ByteBuffer frames = ByteBuffer.allocateDirect(batchSize * slotSize).order(ByteOrder.nativeOrder());
+        final CanFrame frame = new CanFrame(frames, slotSize);
+        final int timeoutMs = (int)RECEIVER_QUEUE_POLL_TIMEOUT_MS;
+        while (rxNativeTaskRunning.get())
+        {
+            final int count = transport.receive(frames, 0, slotSize, batchSize, timeoutMs);
+            if (count < 0)
+            {
+                nativeReadErrorHandler(-count);
+                break;
+            }
+
+            for (int i = 0; i < count; i++)
+            {
+                frame.moveTo(i * slotSize);
+                if (!receiverQueue.offer(frame.toMessage())) nativeDroppedFrameHandler(1);
+            }
+        }
+    }
+
+    // copies the frames held in the discard buffer into the full ring, evicting the oldest frames to make space
+    //
+    private void replaceOldest(final int count)
+    {
+        final int slotSize = receiverRing.slotSize();
+        for (int i = 0; i < count; i++)
+        {
+            while (receiverRing.writableSlots(1) == 0)
+            {
+                if (receiverRing.evictOldest()) metrics.dropped(1, "receiver ring");
+            }
+
+            overflowFrame.moveTo(i * slotSize);
+            overflowFrame.copyTo(receiverRing.buffer(), receiverRing.tailOffset());
+            receiverRing.publish(1);
+        }
+    }
+
+    // the BATCHED mode COALESCE_BY_ID receiver task, every received frame replaces any undelivered frame with the same ID
+    //
+    private void coalescingReceiveTask()
+    {
+        final int batchSize = config.getReceiveBatchSize();
+        final int slotSize = CanFrameRing.slotSizeFor(config);
+        final int timeoutMs = (int)RECEIVER_QUEUE_POLL_TIMEOUT_MS;
+        while (rxNativeTaskRunning.get())
+        {
+            final int count = transport.receive(discardBuffer, 0, slotSize, batchSize, timeoutMs);
+            if (count < 0)
+            {
+                nativeReadErrorHandler(-count);
+                break;
+            }
+
+            if ((count > 0) && captureOnReceive) capture(discardBuffer, 0, slotSize, count);
+            for (int i = 0; i < count; i++)
+            {
+                overflowFrame.moveTo(i * slotSize);
+                final int outcome = coalescingRing.offer(overflowFrame);
+                if (outcome == CoalescingFrameRing.COALESCED)
+                {
+                    metrics.coalesced();
+                }
+                else if (outcome == CoalescingFrameRing.DROPPED)
+                {
+                    metrics.dropped(1, "receiver ring");
+                }
+            }
+        }
+    }
+
+    // the BATCHED mode COALESCE_BY_ID listener task, each frame is copied out of its ID's slot before being dispatched
+    //
+    private void coalescingListenerTask()
+    {
+        receivedFrame.moveTo(0);
+        while (rxListenerTaskRunning.get())
+        {
+            final int depth = coalescingRing.size();
+            if (!coalescingRing.poll(receivedFrame.buffer()))
+            {
+                coalescingRing.awaitReadable(RECEIVER_QUEUE_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                continue;
+            }
+
+            metrics.queueDepth(depth);
+            receivedFrame.moveTo(0);
+            dispatch(receivedFrame);
+        }
+    }
+
+    // the BATCHED mode listener task, drains the receiver ring
+    //
+    private void ringListenerTask()
+    {
+        while (rxListenerTaskRunning.get())
+        {
+            final int readable = receiverRing.readableSlots();
+            if (readable == 0)
+            {
+                receiverRing.awaitReadable(RECEIVER_QUEUE_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                continue;
+            }
+
+            metrics.queueDepth(readable);
+            if (overflowFrame != null)
+            {
+                dispatchCopies(readable);
+                continue;
+            }
+
+            for (int i = 0; i < readable; i++)
+            {
+                // the listeners read the slot in place, it is only released back to the receiver once they have all returned
+                //
+                receivedFrame.moveTo(receiverRing.headOffset());
+                dispatch(receivedFrame);
+                receiverRing.release(1);
+            }
+        }
+    }
+
+    // the DROP_OLDEST listener, the head slot is copied and then claimed, a frame evicted by the receiver whilst copying is skipped
+    //
+    private void dispatchCopies(final int readable)
+    {
+        final ByteBuffer ring = receiverRing.buffer();
+        for (int i = 0; i < readable; i++)
+        {
+            final long sequence = receiverRing.headSequence();
+            final int offset = receiverRing.offsetOf(sequence);
+            for (int j = 0; j < receiverRing.slotSize(); j += 8) receivedFrame.buffer().putLong(j, ring.getLong(offset + j));
+
+            if (!receiverRing.releaseIfHead(sequence)) continue;
+
+            receivedFrame.moveTo(0);
+            dispatch(receivedFrame);
+        }
+    }
+
+    // updates the snapshot table, recorders and bus analytics with newly received frames, called by the receiving thread before they are queued
+    // note, with a reactor or in PER_FRAME mode this is called on dispatch, i.e. by the listener thread
+    //
+    private void capture(final ByteBuffer frames, final int offset, final int slotSize, final int count)
+    {
+        final long nanos = System.nanoTime();
+        if (snapshotTable != null) snapshotTable.update(frames, offset, slotSize, count, nanos);
+        if (recorder != null) recorder.record(frames, offset, slotSize, count, nanos);
+        if (flightRecorder != null) flightRecorder.record(frames, offset, slotSize, count, nanos);
+        if (busAnalytics != null) busAnalytics.update(frames, offset, slotSize, count, nanos);
+    }
+
     // note, if this method name is changed, update the native handler accordingly
     //
     private final void nativeReadErrorHandler(final int errorCode)
     {
-        logger.error("Error whilst reading from the native socketCAN file descriptor, error code: " + errorCode);
+        logger.error("Error whilst reading from the " + device + " transport, error code: " + errorCode);
 
         // unable to read from the underlying socketCAN file descriptor
         // 1, allow the native thread to exit
@@ -288,9 +1085,95 @@ public class CanCommsHandler
         rxListenerTaskRunning.set(false);
         logger.warn("The native and receiver queue threads have been signalled to exit");
 
-        // note, this method is called from within the native receiver thread
-        // so it mustn't block whilst notifying the registered error listeners as it needs to exit
-        //
+        notifyReadError(errorCode);
+    }
+
+    // note, if this method name is changed, update the native handler accordingly
+    //
+    private final void nativeDroppedFrameHandler(final int count)
+    {
+        metrics.dropped(count, "receiver queue");
+    }
+
+    CanCommsMetrics metrics()
+    {
+        return metrics;
+    }
+
+    private int currentQueueDepth()
+    {
+        if (receiverRing != null) return receiverRing.readableSlots();
+        if (coalescingRing != null) return coalescingRing.size();
+        if (receiverQueue != null) return receiverQueue.size();
+
+        return 0;
+    }
+
+    private Map<String, String> listenerDispatchTimes()
+    {
+        final Map<String, String> times = new LinkedHashMap<String, String>();
+        for (CanListenerTable.Subscription subscription : subscriptions)
+        {
+            if (subscription.getLatency() == null) continue;
+
+            final CanFrameListener listener = subscription.getListener();
+            Object source = listener;
+            if (listener instanceof CanMessageListenerAdapter) source = ((CanMessageListenerAdapter)listener).getListener();
+            if (listener instanceof CanSignalListenerAdapter) source = ((CanSignalListenerAdapter)listener).getListener();
+
+            times.put(source.toString(), subscription.getLatency().toString());
+        }
+
+        return times;
+    }
+
+    private void registerMetrics()
+    {
+        if (metricsName != null) return;
+
+        try
+        {
+            final ObjectName name = new ObjectName("bitparallel.communication:type=CanCommsHandler,device=" + ObjectName.quote(device));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metricsName = name;
+        }
+        catch (final Exception ex)
+        {
+            logger.error("Unable to register the CAN metrics MBean for device " + device + ", reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void unregisterMetrics()
+    {
+        if (metricsName == null) return;
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        }
+        catch (final Exception ex)
+        {
+            logger.error("Unable to unregister the CAN metrics MBean for device " + device + ", reason: " + ex.getMessage(), ex);
+        }
+
+        metricsName = null;
+    }
+
+    CanTransport getTransport()
+    {
+        return transport;
+    }
+
+    CanCommsConfig getConfig()
+    {
+        return config;
+    }
+
+    // note, this method is called from within the native receiver (or reactor) thread
+    // so it mustn't block whilst notifying the registered error listeners as it needs to exit
+    //
+    void notifyReadError(final int errorCode)
+    {
         final Runnable notifyTask = () -> {
             for (CanNotificationListener listener : canNotificationListeners)
             {
@@ -309,33 +1192,4 @@ public class CanCommsHandler
         notifyThread.setDaemon(true);
         notifyThread.start();
     }
-
-    // native library loading helper method, see the static initialiser above
-    //
-    private static final void loadNativeLibrary(final String libraryName) throws UnsatisfiedLinkError
-    {
-        try
-        {
-            final File javaTemp = new File(System.getProperty("java.io.tmpdir"));
-            final File tempDir = new File(javaTemp, CanCommsHandler.class.getName());
-            if (!tempDir.isDirectory()) tempDir.mkdir();
-
-            final File nativeLib = new File(tempDir, libraryName);
-            final InputStream is = CanCommsHandler.class.getClassLoader().getResourceAsStream(libraryName);
-            Files.copy(is, nativeLib.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            is.close();
-
-            // note, if using loadLibrary() on linux the actual file name must be prefixed with 'lib', it's a naming convention, but not on windows!
-            //
-            System.load(tempDir.getPath() + File.separator + libraryName);
-        }
-        catch (final Exception ex)
-        {
-            final StringBuffer sb = new StringBuffer();
-            sb.append("Failed to install the native library, reason: ");
-            sb.append(ex.getMessage());
-
-            throw new UnsatisfiedLinkError(sb.toString());
-        }
-    }
 }
@@ -0,0 +1,262 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+//
+// the live runtime metrics of a single handler, updated from the receiver, listener and transmitting threads
+//
+// notes 1, the counters are striped (LongAdder), so updating them never contends between threads
+//       2, frames replaced by the COALESCE_BY_ID overflow policy are counted separately, they aren't drops
+//       3, dropped frames are logged as a rate limited summary, at most once per DROP_LOG_INTERVAL_MS
+//
+
+final class CanCommsMetrics implements CanCommsMetricsMXBean
+{
+    static final long DROP_LOG_INTERVAL_MS = 1000;
+
+    private static final Logger logger = LogManager.getLogger(CanCommsMetrics.class);
+
+    private final String device;
+    private final IntSupplier queueDepth;
+    private final Supplier<Map<String, String>> listenerDispatchTimes;
+    private final LongAdder rxFrames, rxBytes, txFrames, txBytes, txErrors, droppedFrames;
+    private final LongAdder busOffErrors, controllerErrors, protocolErrors, controllerRestarts, otherErrors;
+    private final LongAdder listenerExceptions, coalescedFrames;
+    private final AtomicLong pendingDrops, lastDropLogNanos;
+    private volatile int queueHighWaterMark;
+
+    CanCommsMetrics(final String device, final IntSupplier queueDepth, final Supplier<Map<String, String>> listenerDispatchTimes)
+    {
+        this.device = device;
+        this.queueDepth = queueDepth;
+        this.listenerDispatchTimes = listenerDispatchTimes;
+
+        rxFrames = new LongAdder();
+        rxBytes = new LongAdder();
+        txFrames = new LongAdder();
+        txBytes = new LongAdder();
+        txErrors = new LongAdder();
+        droppedFrames = new LongAdder();
+        busOffErrors = new LongAdder();
+        controllerErrors = new LongAdder();
+        protocolErrors = new LongAdder();
+        controllerRestarts = new LongAdder();
+        otherErrors = new LongAdder();
+        listenerExceptions = new LongAdder();
+        coalescedFrames = new LongAdder();
+        pendingDrops = new AtomicLong();
+        lastDropLogNanos = new AtomicLong(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(DROP_LOG_INTERVAL_MS));
+    }
+
+    //
+    // updated by the handler
+    //
+
+    void received(final int length)
+    {
+        rxFrames.increment();
+        rxBytes.add(length);
+    }
+
+    void transmitted(final int length)
+    {
+        txFrames.increment();
+        txBytes.add(length);
+    }
+
+    void transmitFailed()
+    {
+        txErrors.increment();
+    }
+
+    void busOffError()
+    {
+        busOffErrors.increment();
+    }
+
+    void controllerError()
+    {
+        controllerErrors.increment();
+    }
+
+    void protocolError()
+    {
+        protocolErrors.increment();
+    }
+
+    void controllerRestarted()
+    {
+        controllerRestarts.increment();
+    }
+
+    void otherError()
+    {
+        otherErrors.increment();
+    }
+
+    void listenerException()
+    {
+        listenerExceptions.increment();
+    }
+
+    void coalesced()
+    {
+        coalescedFrames.increment();
+    }
+
+    // note, only called by the single listener thread
+    //
+    void queueDepth(final int depth)
+    {
+        if (depth > queueHighWaterMark) queueHighWaterMark = depth;
+    }
+
+    // the drops are accumulated and only logged if the previous summary is at least DROP_LOG_INTERVAL_MS old
+    //
+    void dropped(final int count, final String where)
+    {
+        droppedFrames.add(count);
+        pendingDrops.addAndGet(count);
+
+        final long now = System.nanoTime();
+        final long last = lastDropLogNanos.get();
+        if (((now - last) >= TimeUnit.MILLISECONDS.toNanos(DROP_LOG_INTERVAL_MS)) && lastDropLogNanos.compareAndSet(last, now)) logDrops(where);
+    }
+
+    // logs any drops not yet reported, called when the handler stops
+    //
+    void flushDrops(final String where)
+    {
+        if (pendingDrops.get() != 0) logDrops(where);
+    }
+
+    CanCommsMetricsSnapshot snapshot()
+    {
+        return new CanCommsMetricsSnapshot(this);
+    }
+
+    //
+    // CanCommsMetricsMXBean
+    //
+
+    public String getDevice()
+    {
+        return device;
+    }
+
+    public long getRxFrames()
+    {
+        return rxFrames.sum();
+    }
+
+    public long getRxBytes()
+    {
+        return rxBytes.sum();
+    }
+
+    public long getTxFrames()
+    {
+        return txFrames.sum();
+    }
+
+    public long getTxBytes()
+    {
+        return txBytes.sum();
+    }
+
+    public long getTxErrors()
+    {
+        return txErrors.sum();
+    }
+
+    public long getDroppedFrames()
+    {
+        return droppedFrames.sum();
+    }
+
+    public long getCoalescedFrames()
+    {
+        return coalescedFrames.sum();
+    }
+
+    public long getErrorFrames()
+    {
+        return busOffErrors.sum() + controllerErrors.sum() + protocolErrors.sum() + controllerRestarts.sum() + otherErrors.sum();
+    }
+
+    public long getBusOffErrors()
+    {
+        return busOffErrors.sum();
+    }
+
+    public long getControllerErrors()
+    {
+        return controllerErrors.sum();
+    }
+
+    public long getProtocolErrors()
+    {
+        return protocolErrors.sum();
+    }
+
+    public long getControllerRestarts()
+    {
+        return controllerRestarts.sum();
+    }
+
+    public long getListenerExceptions()
+    {
+        return listenerExceptions.sum();
+    }
+
+    public int getQueueDepth()
+    {
+        return queueDepth.getAsInt();
+    }
+
+    public int getQueueHighWaterMark()
+    {
+        return queueHighWaterMark;
+    }
+
+    public Map<String, String> getListenerDispatchTimes()
+    {
+        return listenerDispatchTimes.get();
+    }
+
+    public void reset()
+    {
+        rxFrames.reset();
+        rxBytes.reset();
+        txFrames.reset();
+        txBytes.reset();
+        txErrors.reset();
+        droppedFrames.reset();
+        busOffErrors.reset();
+        controllerErrors.reset();
+        protocolErrors.reset();
+        controllerRestarts.reset();
+        otherErrors.reset();
+        listenerExceptions.reset();
+        coalescedFrames.reset();
+        queueHighWaterMark = 0;
+    }
+
+    private void logDrops(final String where)
+    {
+        final long count = pendingDrops.getAndSet(0);
+        if (count != 0) logger.warn(device + ": " + count + " CAN messages discarded since the last report, the " + where + " is full, total discarded: " + droppedFrames.sum());
+    }
+}
@@ -0,0 +1,38 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.Map;
+
+// the JMX view of a handler's runtime metrics, see CanCommsConfig.setJmxRegistration()
+//
+public interface CanCommsMetricsMXBean
+{
+    String getDevice();
+
+    long getRxFrames();
+    long getRxBytes();
+    long getTxFrames();
+    long getTxBytes();
+    long getTxErrors();
+    long getDroppedFrames();
+    long getCoalescedFrames();
+
+    long getErrorFrames();
+    long getBusOffErrors();
+    long getControllerErrors();
+    long getProtocolErrors();
+    long getControllerRestarts();
+
+    long getListenerExceptions();
+    int getQueueDepth();
+    int getQueueHighWaterMark();
+
+    // listener -> dispatch time summary, only populated when listener timing is enabled
+    //
+    Map<String, String> getListenerDispatchTimes();
+
+    void reset();
+}
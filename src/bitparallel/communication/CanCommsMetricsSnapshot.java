@@ -0,0 +1,169 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.Collections;
+import java.util.Map;
+
+// an immutable, point in time copy of a handler's runtime metrics, see CanCommsHandler.getMetrics()
+//
+public class CanCommsMetricsSnapshot
+{
+    private final String device;
+    private final long timestamp;
+    private final long rxFrames, rxBytes, txFrames, txBytes, txErrors, droppedFrames, coalescedFrames;
+    private final long busOffErrors, controllerErrors, protocolErrors, controllerRestarts, errorFrames;
+    private final long listenerExceptions;
+    private final int queueDepth, queueHighWaterMark;
+    private final Map<String, String> listenerDispatchTimes;
+
+    CanCommsMetricsSnapshot(final CanCommsMetrics metrics)
+    {
+        timestamp = System.currentTimeMillis();
+        device = metrics.getDevice();
+        rxFrames = metrics.getRxFrames();
+        rxBytes = metrics.getRxBytes();
+        txFrames = metrics.getTxFrames();
+        txBytes = metrics.getTxBytes();
+        txErrors = metrics.getTxErrors();
+        droppedFrames = metrics.getDroppedFrames();
+        coalescedFrames = metrics.getCoalescedFrames();
+        busOffErrors = metrics.getBusOffErrors();
+        controllerErrors = metrics.getControllerErrors();
+        protocolErrors = metrics.getProtocolErrors();
+        controllerRestarts = metrics.getControllerRestarts();
+        errorFrames = metrics.getErrorFrames();
+        listenerExceptions = metrics.getListenerExceptions();
+        queueDepth = metrics.getQueueDepth();
+        queueHighWaterMark = metrics.getQueueHighWaterMark();
+        listenerDispatchTimes = Collections.unmodifiableMap(metrics.getListenerDispatchTimes());
+    }
+
+    public String getDevice()
+    {
+        return device;
+    }
+
+    // when the snapshot was taken, in milliseconds since the epoch
+    //
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    public long getRxFrames()
+    {
+        return rxFrames;
+    }
+
+    public long getRxBytes()
+    {
+        return rxBytes;
+    }
+
+    public long getTxFrames()
+    {
+        return txFrames;
+    }
+
+    public long getTxBytes()
+    {
+        return txBytes;
+    }
+
+    public long getTxErrors()
+    {
+        return txErrors;
+    }
+
+    public long getDroppedFrames()
+    {
+        return droppedFrames;
+    }
+
+    // frames replaced by a newer frame with the same ID, see CanCommsConfig.OverflowPolicy.COALESCE_BY_ID
+    //
+    public long getCoalescedFrames()
+    {
+        return coalescedFrames;
+    }
+
+    public long getErrorFrames()
+    {
+        return errorFrames;
+    }
+
+    public long getBusOffErrors()
+    {
+        return busOffErrors;
+    }
+
+    public long getControllerErrors()
+    {
+        return controllerErrors;
+    }
+
+    public long getProtocolErrors()
+    {
+        return protocolErrors;
+    }
+
+    public long getControllerRestarts()
+    {
+        return controllerRestarts;
+    }
+
+    public long getListenerExceptions()
+    {
+        return listenerExceptions;
+    }
+
+    public int getQueueDepth()
+    {
+        return queueDepth;
+    }
+
+    public int getQueueHighWaterMark()
+    {
+        return queueHighWaterMark;
+    }
+
+    public Map<String, String> getListenerDispatchTimes()
+    {
+        return listenerDispatchTimes;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuffer sb = new StringBuffer();
+        sb.append(device);
+        sb.append(" rx: ");
+        sb.append(rxFrames);
+        sb.append(" (");
+        sb.append(rxBytes);
+        sb.append(" bytes), tx: ");
+        sb.append(txFrames);
+        sb.append(" (");
+        sb.append(txBytes);
+        sb.append(" bytes, ");
+        sb.append(txErrors);
+        sb.append(" errors), dropped: ");
+        sb.append(droppedFrames);
+        sb.append(", coalesced: ");
+        sb.append(coalescedFrames);
+        sb.append(", error frames: ");
+        sb.append(errorFrames);
+        sb.append(", listener exceptions: ");
+        sb.append(listenerExceptions);
+        sb.append(", queue depth: ");
+        sb.append(queueDepth);
+        sb.append(" (high water mark: ");
+        sb.append(queueHighWaterMark);
+        sb.append(")");
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,19 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+// notified about a periodic frame watched using CanBroadcastManager.watch()
+// note, the supplied frame is a reused view and is only valid for the duration of the call, see CanFrame
+//
+public interface CanCyclicListener
+{
+    // the watched content has changed, including the first reception and the first reception after a timeout
+    //
+    public void cyclicFrameChanged(final CanFrame frame) throws Exception;
+
+    // the frame wasn't received within its timeout, called once until the frame is received again
+    //
+    public void cyclicFrameTimedOut(final int rawId) throws Exception;
+}
@@ -0,0 +1,98 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+// a point in time snapshot of a single dispatch lane, see CanCommsConfig.setDispatchLanes()
+// note, a lane with a growing backlog and a long running active frame identifies the slow subscriber
+//
+public class CanDispatchLaneStatus
+{
+    public static final int IDLE = -1;
+
+    private final int lane, backlog, capacity;
+    private final long delivered, dropped;
+    private final int activeRawId;
+    private final long activeNanos;
+
+    CanDispatchLaneStatus(final int lane, final int backlog, final int capacity, final long delivered, final long dropped, final int activeRawId, final long activeNanos)
+    {
+        this.lane = lane;
+        this.backlog = backlog;
+        this.capacity = capacity;
+        this.delivered = delivered;
+        this.dropped = dropped;
+        this.activeRawId = activeRawId;
+        this.activeNanos = activeNanos;
+    }
+
+    public int getLane()
+    {
+        return lane;
+    }
+
+    // the number of frames waiting to be delivered by this lane
+    //
+    public int getBacklog()
+    {
+        return backlog;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public long getDeliveredCount()
+    {
+        return delivered;
+    }
+
+    // frames discarded because the lane was full
+    //
+    public long getDroppedCount()
+    {
+        return dropped;
+    }
+
+    // the raw ID of the frame currently being delivered to the listeners, or IDLE
+    //
+    public int getActiveRawId()
+    {
+        return activeRawId;
+    }
+
+    // how long the listeners have been processing the active frame, 0 if idle
+    //
+    public long getActiveNanos()
+    {
+        return activeNanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuffer sb = new StringBuffer();
+        sb.append("lane: ");
+        sb.append(lane);
+        sb.append(", backlog: ");
+        sb.append(backlog);
+        sb.append("/");
+        sb.append(capacity);
+        sb.append(", delivered: ");
+        sb.append(delivered);
+        sb.append(", dropped: ");
+        sb.append(dropped);
+        if (activeRawId != IDLE)
+        {
+            sb.append(", active id: 0x");
+            sb.append(Integer.toHexString(activeRawId));
+            sb.append(" for ");
+            sb.append(activeNanos / 1000);
+            sb.append(" us");
+        }
+
+        return sb.toString();
+    }
+}
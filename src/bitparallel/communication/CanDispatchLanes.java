@@ -0,0 +1,202 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+//
+// partitions listener dispatch across N worker lanes by hashing the raw CAN ID, see CanCommsConfig.setDispatchLanes()
+//
+// notes 1, every frame with a given ID is handled by the same lane, so per-ID ordering is preserved
+//       2, each lane has its own SPSC slot ring, the listener thread copies the slot and moves on
+//       3, a full lane discards the newest frame (as the receiver ring does), the other lanes are unaffected
+//       4, on JDK 21+ the lanes can optionally run as virtual threads, otherwise platform threads are used
+//
+
+final class CanDispatchLanes
+{
+    private static final Logger logger = LogManager.getLogger(CanDispatchLanes.class);
+
+    private static final class Lane
+    {
+        private final int index;
+        private final CanFrameRing ring;
+        private final CanFrame frame;
+        private final AtomicBoolean running;
+        private volatile long delivered, dropped;
+        private volatile int activeRawId;
+        private volatile long activeStartNanos;
+        private Thread thread;
+
+        private Lane(final int index, final int capacity, final int slotSize, final CanCommsConfig.WaitStrategy waitStrategy)
+        {
+            this.index = index;
+            ring = new CanFrameRing(capacity, slotSize, Waiter.create(waitStrategy));
+            frame = new CanFrame(ring.buffer(), slotSize);
+            running = new AtomicBoolean(false);
+            activeRawId = CanDispatchLaneStatus.IDLE;
+            thread = new Thread();
+        }
+    }
+
+    private final Lane[] lanes;
+    private final Consumer<CanFrame> listeners;
+    private final CanCommsMetrics metrics;
+    private final boolean virtualThreads;
+    private final String name;
+
+    CanDispatchLanes(final String name, final CanCommsConfig config, final CanCommsMetrics metrics, final Consumer<CanFrame> listeners)
+    {
+        this.name = name;
+        this.metrics = metrics;
+        this.listeners = listeners;
+
+        lanes = new Lane[config.getDispatchLanes()];
+        for (int i = 0; i < lanes.length; i++) lanes[i] = new Lane(i, config.getDispatchLaneCapacity(), CanFrameRing.slotSizeFor(config), config.getWaitStrategy());
+
+        virtualThreads = config.isVirtualThreadLanes() && isVirtualThreadSupported();
+        if (config.isVirtualThreadLanes() && !virtualThreads) logger.warn("Virtual threads require JDK 21 or later, the dispatch lanes will use platform threads");
+    }
+
+    int laneCount()
+    {
+        return lanes.length;
+    }
+
+    // note, CAN identifiers are often sequential, so the ID is scrambled before selecting the lane
+    //
+    int laneOf(final int rawId)
+    {
+        final int h = rawId * 0x9e3779b9;
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    void start()
+    {
+        for (Lane lane : lanes)
+        {
+            if (lane.thread.isAlive()) continue;
+
+            lane.running.set(true);
+            lane.thread = createThread(() -> laneTask(lane), name + "-lane-" + lane.index);
+            lane.thread.start();
+        }
+    }
+
+    void stop()
+    {
+        for (Lane lane : lanes) lane.running.set(false);
+        for (Lane lane : lanes)
+        {
+            try
+            {
+                lane.thread.join();
+            }
+            catch (final InterruptedException ignored)
+            {
+            }
+        }
+    }
+
+    // called by the single listener (or reactor listener) thread, copies the frame into its lane
+    //
+    void submit(final CanFrame frame)
+    {
+        final Lane lane = lanes[laneOf(frame.getRawId())];
+        if (lane.ring.writableSlots(1) == 0)
+        {
+            // note, the handler's metrics log a rate limited summary of the discarded frames
+            //
+            lane.dropped = lane.dropped + 1;
+            metrics.dropped(1, "dispatch lane");
+            return;
+        }
+
+        frame.copyTo(lane.ring.buffer(), lane.ring.tailOffset());
+        lane.ring.publish(1);
+    }
+
+    CanDispatchLaneStatus[] status()
+    {
+        final long now = System.nanoTime();
+        final CanDispatchLaneStatus[] status = new CanDispatchLaneStatus[lanes.length];
+        for (Lane lane : lanes)
+        {
+            final int activeRawId = lane.activeRawId;
+            final long activeNanos = (activeRawId == CanDispatchLaneStatus.IDLE) ? 0 : Math.max(0, now - lane.activeStartNanos);
+            status[lane.index] = new CanDispatchLaneStatus(lane.index, lane.ring.readableSlots(), lane.ring.capacity(), lane.delivered, lane.dropped, activeRawId, activeNanos);
+        }
+
+        return status;
+    }
+
+    private void laneTask(final Lane lane)
+    {
+        while (lane.running.get())
+        {
+            final int readable = lane.ring.readableSlots();
+            if (readable == 0)
+            {
+                lane.ring.awaitReadable(CanCommsHandler.RECEIVER_QUEUE_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                continue;
+            }
+
+            for (int i = 0; i < readable; i++)
+            {
+                lane.frame.moveTo(lane.ring.headOffset());
+                lane.activeStartNanos = System.nanoTime();
+                lane.activeRawId = lane.frame.getRawId();
+
+                listeners.accept(lane.frame);
+
+                lane.activeRawId = CanDispatchLaneStatus.IDLE;
+                lane.delivered = lane.delivered + 1;
+                lane.ring.release(1);
+            }
+        }
+    }
+
+    private Thread createThread(final Runnable task, final String threadName)
+    {
+        if (virtualThreads)
+        {
+            try
+            {
+                // note, reflection keeps the Java 11 baseline, i.e. Thread.ofVirtual().name(threadName).unstarted(task)
+                //
+                final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                final Object builder = builderClass.getMethod("name", String.class).invoke(Thread.class.getMethod("ofVirtual").invoke(null), threadName);
+                return (Thread)builderClass.getMethod("unstarted", Runnable.class).invoke(builder, task);
+            }
+            catch (final ReflectiveOperationException ex)
+            {
+                logger.warn("Unable to create a virtual dispatch thread, reason: " + ex.getMessage());
+            }
+        }
+
+        final Thread thread = new Thread(task, threadName);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static boolean isVirtualThreadSupported()
+    {
+        try
+        {
+            final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            return ofVirtual != null;
+        }
+        catch (final NoSuchMethodException ex)
+        {
+            return false;
+        }
+    }
+}
@@ -6,6 +6,10 @@ package bitparallel.communication;
 
 public class CanFilter
 {
+    // defined in can.h, inverts the filter, i.e. matches when (id & mask) != (filter & mask)
+    //
+    public static final int CAN_INV_FILTER = 0x20000000;
+
     private final int mask;
     private final int filter;
 
@@ -24,4 +28,32 @@ public class CanFilter
     {
         return filter;
     }
+
+    // the same rule as the kernel filters, i.e. any filter may match, an empty set matches every frame
+    // note, used by the transports that filter in user space, error frames always match as they're selected by CAN_RAW_ERR_FILTER
+    //
+    static boolean matches(final CanFilter[] filters, final int rawId)
+    {
+        if ((filters.length == 0) || ((rawId & CanMessage.CAN_ERR_FLAG) != 0)) return true;
+
+        for (CanFilter filter : filters)
+        {
+            if (filter.matches(rawId)) return true;
+        }
+
+        return false;
+    }
+
+    boolean matches(final int rawId)
+    {
+        return matches(mask, filter, rawId);
+    }
+
+    // the kernel rule for a single filter, i.e. CAN_INV_FILTER is removed from the filter and then inverts the result
+    //
+    static boolean matches(final int mask, final int filter, final int rawId)
+    {
+        final boolean match = (rawId & mask) == (filter & ~CAN_INV_FILTER & mask);
+        return match != ((filter & CAN_INV_FILTER) != 0);
+    }
 }
@@ -0,0 +1,689 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+//
+// an always on flight recorder, holds the most recent received frames in an off-heap ring and, when triggered, writes the frames
+// leading up to (and just after) the trigger to a dump file, i.e. post-mortems carry the traffic before a fault without continuous logging
+// attach using CanCommsConfig.setFlightRecorder(), the frames are then written by the receiving thread, as the CanRecorder
+//
+// notes 1, the ring holds capacity frames using the CanRecorder record layout, each frame is a fixed size copy, i.e. nothing is
+//          allocated and nothing is written to disk until a trigger fires
+//       2, a trigger is an error frame class (e.g. CAN_ERR_BUSOFF), a controller error (e.g. CAN_ERR_CRTL_RX_OVERFLOW), a frame
+//          matching an ID filter and payload pattern, or a call to trigger()
+//       3, once triggered, recording carries on for the post-trigger window (a number of frames or a duration, whichever ends first),
+//          the ring is then frozen, i.e. copied into a second off-heap buffer, and the ring carries on recording
+//       4, the frozen copy is written by the recorder's own thread, limited to the pre-trigger window (by default the whole ring), a
+//          trigger that fires whilst a dump is still being written is counted as missed (see getMissedTriggers())
+//       5, each dump is a single segment CanRecorder recording, e.g. can0-000003-000000.canrec, read it using
+//          new CanRecordingReader(directory, "can0-000003"), its header also holds the trigger timestamp and record index
+//       6, there is a single writer, a flight recorder may only be shared by handlers attached to the same CanBusReactor
+//
+
+public class CanFlightRecorder implements Closeable
+{
+    public static final int DEFAULT_CAPACITY = 65536;
+    public static final int DEFAULT_POST_TRIGGER_FRAMES = 1024;
+    public static final long DEFAULT_POST_TRIGGER_MS = 1000;
+
+    private static final Logger logger = LogManager.getLogger(CanFlightRecorder.class);
+
+    private final Path directory;
+    private final String prefix;
+    private final int capacity, recordSize;
+    private final long epochOffsetNanos;
+    private final ByteBuffer ring, frozen;
+    private final List<Path> dumps;
+    private final ReentrantLock lock;
+    private final Condition changed;
+    private final Thread dumpThread;
+
+    // the settings, guarded by the lock
+    //
+    private long preTriggerNanos, postTriggerNanos;
+    private int postTriggerFrames, maxDumps;
+    private int errorClasses, controllerErrors;
+    private CanFilter[] triggerFilters;
+    private byte[][] triggerData, triggerMasks;
+
+    // the ring and trigger state, guarded by the lock
+    //
+    private long writtenFrames;
+    private boolean triggered, dumpPending, running;
+    private String triggerReason;
+    private long triggerTimestamp, triggerFrame, triggerDeadlineNanos;
+    private int postFrames;
+    private int frozenFrames, frozenTriggerFrame;
+    private String frozenReason;
+    private long frozenTriggerTimestamp;
+    private int dumpNumber;
+    private long triggerCount, missedTriggers;
+
+    public CanFlightRecorder(final Path directory, final String prefix) throws IOException
+    {
+        this(directory, prefix, false, DEFAULT_CAPACITY);
+    }
+
+    // note, fdFrames selects the larger CAN FD record size, it must be set if the recorded handlers use CanCommsConfig.setFdFrames(true)
+    //
+    public CanFlightRecorder(final Path directory, final String prefix, final boolean fdFrames, final int capacity) throws IOException
+    {
+        recordSize = fdFrames ? CanRecorder.FD_RECORD_SIZE : CanRecorder.CLASSIC_RECORD_SIZE;
+        if ((capacity < 2) || (capacity > (Integer.MAX_VALUE / recordSize))) throw new IllegalArgumentException("The flight recorder capacity must be between 2 and " + (Integer.MAX_VALUE / recordSize) + " frames, requested: " + capacity);
+
+        this.directory = directory;
+        this.prefix = prefix;
+        this.capacity = capacity;
+
+        epochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+        ring = ByteBuffer.allocateDirect(capacity * recordSize).order(ByteOrder.LITTLE_ENDIAN);
+        frozen = ByteBuffer.allocateDirect(capacity * recordSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        preTriggerNanos = 0;
+        postTriggerFrames = Math.min(DEFAULT_POST_TRIGGER_FRAMES, capacity / 2);
+        postTriggerNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_POST_TRIGGER_MS);
+        maxDumps = 0;
+        errorClasses = 0;
+        controllerErrors = 0;
+        triggerFilters = new CanFilter[0];
+        triggerData = new byte[0][];
+        triggerMasks = new byte[0][];
+
+        // note, existing dumps are retained and numbered after, so restarting never overwrites one
+        //
+        Files.createDirectories(directory);
+        dumps = listDumps(directory, prefix);
+        dumpNumber = dumps.isEmpty() ? 0 : dumpNumberOf(dumps.get(dumps.size() - 1), prefix) + 1;
+
+        lock = new ReentrantLock();
+        changed = lock.newCondition();
+        running = true;
+
+        dumpThread = new Thread(this::dumpTask, prefix + "-flight-recorder");
+        dumpThread.setDaemon(true);
+        dumpThread.start();
+    }
+
+    //
+    // the settings, may be changed whilst recording
+    //
+
+    // limits a dump to the frames received within the duration before the trigger, 0 (the default) dumps the whole ring
+    //
+    public CanFlightRecorder setPreTrigger(final long duration, final TimeUnit unit)
+    {
+        if (duration < 0) throw new IllegalArgumentException("The pre-trigger duration can't be negative, requested: " + duration);
+
+        lock.lock();
+        try
+        {
+            preTriggerNanos = unit.toNanos(duration);
+            return this;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // recording carries on for up to frames frames or the duration after a trigger, whichever ends first, 0 freezes at the trigger
+    // note, the frames must leave room in the ring for the frame that fired the trigger
+    //
+    public CanFlightRecorder setPostTrigger(final int frames, final long duration, final TimeUnit unit)
+    {
+        if ((frames < 0) || (frames >= capacity)) throw new IllegalArgumentException("The post-trigger frames must be between 0 and " + (capacity - 1) + ", requested: " + frames);
+        if (duration < 0) throw new IllegalArgumentException("The post-trigger duration can't be negative, requested: " + duration);
+
+        lock.lock();
+        try
+        {
+            postTriggerFrames = frames;
+            postTriggerNanos = unit.toNanos(duration);
+            return this;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // the oldest dumps are deleted once there are more than maxDumps, 0 (the default) keeps every dump
+    //
+    public CanFlightRecorder setMaxDumps(final int maxDumps)
+    {
+        if (maxDumps < 0) throw new IllegalArgumentException("The maximum number of dumps can't be negative, requested: " + maxDumps);
+
+        lock.lock();
+        try
+        {
+            this.maxDumps = maxDumps;
+            return this;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // triggers on error frames of any of the classes, e.g. CanMessage.CAN_ERR_BUSOFF | CanMessage.CAN_ERR_PROT, 0 disables
+    //
+    public CanFlightRecorder setErrorTrigger(final int errorClasses)
+    {
+        lock.lock();
+        try
+        {
+            this.errorClasses = errorClasses & CanMessage.CAN_ERR_MASK;
+            return this;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // triggers on controller error frames (CAN_ERR_CRTL) reporting any of the states, e.g. CanMessage.CAN_ERR_CRTL_RX_OVERFLOW, 0 disables
+    //
+    public CanFlightRecorder setControllerErrorTrigger(final int controllerErrors)
+    {
+        lock.lock();
+        try
+        {
+            this.controllerErrors = controllerErrors & 0xff;
+            return this;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // triggers on a frame matching the filter whose payload matches data, i.e. (payload[i] & mask[i]) == (data[i] & mask[i])
+    // note, a null mask compares every byte of data, frames shorter than data never match, a null or empty data matches any payload
+    //
+    public CanFlightRecorder addFrameTrigger(final CanFilter filter, final byte[] data, final byte[] mask)
+    {
+        final byte[] pattern = (data == null) ? new byte[0] : data.clone();
+        final byte[] patternMask = new byte[pattern.length];
+        for (int i = 0; i < pattern.length; i++) patternMask[i] = ((mask == null) || (i >= mask.length)) ? (byte)0xff : mask[i];
+
+        lock.lock();
+        try
+        {
+            final int count = triggerFilters.length;
+            final CanFilter[] filters = new CanFilter[count + 1];
+            final byte[][] datas = new byte[count + 1][];
+            final byte[][] masks = new byte[count + 1][];
+            System.arraycopy(triggerFilters, 0, filters, 0, count);
+            System.arraycopy(triggerData, 0, datas, 0, count);
+            System.arraycopy(triggerMasks, 0, masks, 0, count);
+            filters[count] = filter;
+            datas[count] = pattern;
+            masks[count] = patternMask;
+
+            triggerFilters = filters;
+            triggerData = datas;
+            triggerMasks = masks;
+            return this;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public CanFlightRecorder addFrameTrigger(final CanFilter filter)
+    {
+        return addFrameTrigger(filter, null, null);
+    }
+
+    public CanFlightRecorder clearFrameTriggers()
+    {
+        lock.lock();
+        try
+        {
+            triggerFilters = new CanFilter[0];
+            triggerData = new byte[0][];
+            triggerMasks = new byte[0][];
+            return this;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    //
+    // the application side
+    //
+
+    // fires a trigger, e.g. when the application detects a fault, returns false if a trigger is in progress or a dump is still being written
+    //
+    public boolean trigger(final String reason)
+    {
+        lock.lock();
+        try
+        {
+            if (!running || triggered) return false;
+            if (dumpPending)
+            {
+                missedTriggers++;
+                return false;
+            }
+
+            startTrigger(reason, epochOffsetNanos + System.nanoTime(), writtenFrames);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public boolean isTriggered()
+    {
+        lock.lock();
+        try
+        {
+            return triggered;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public Path getDirectory()
+    {
+        return directory;
+    }
+
+    public long getRecordedFrames()
+    {
+        lock.lock();
+        try
+        {
+            return writtenFrames;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getTriggerCount()
+    {
+        lock.lock();
+        try
+        {
+            return triggerCount;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getMissedTriggers()
+    {
+        lock.lock();
+        try
+        {
+            return missedTriggers;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // the dump files that have been written (and not deleted), oldest first
+    //
+    public List<Path> getDumps()
+    {
+        lock.lock();
+        try
+        {
+            return new ArrayList<Path>(dumps);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // stops the recorder, a trigger in progress is frozen early and the dumps are completed first
+    // note, stop the recorded handlers first, further frames are ignored
+    //
+    @Override
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            if (!running) return;
+
+            if (triggered) freeze();
+            running = false;
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        try
+        {
+            dumpThread.join();
+        }
+        catch (final InterruptedException ignored)
+        {
+        }
+    }
+
+    //
+    // writer side, only called by the single receiving thread
+    //
+
+    // records count frames held in consecutive ring slots, updateNanos is used if the frames weren't timestamped
+    //
+    void record(final ByteBuffer frames, final int offset, final int slotSize, final int count, final long updateNanos)
+    {
+        lock.lock();
+        try
+        {
+            if (!running) return;
+
+            final boolean swap = frames.order() != ByteOrder.LITTLE_ENDIAN;
+            final boolean frameTriggers = (errorClasses != 0) || (controllerErrors != 0) || (triggerFilters.length > 0);
+            final int trailerOffset = CanFrameRing.trailerOffset(slotSize);
+            final int maxLength = recordSize - CanRecorder.DATA_OFFSET;
+            for (int i = 0; i < count; i++)
+            {
+                final int frameOffset = offset + (i * slotSize);
+                final int rawId = frames.getInt(frameOffset + CanFrameRing.ID_OFFSET);
+                final int length = Math.min(frames.get(frameOffset + CanFrameRing.LENGTH_OFFSET) & 0xff, maxLength);
+                final long kernelTimestamp = frames.getLong(frameOffset + trailerOffset + CanFrameRing.SOFTWARE_TIMESTAMP_OFFSET);
+                final long receivedNanos = frames.getLong(frameOffset + trailerOffset + CanFrameRing.RECEIVED_NANOS_OFFSET);
+                final long timestamp = (kernelTimestamp != 0) ? kernelTimestamp : epochOffsetNanos + ((receivedNanos != 0) ? receivedNanos : updateNanos);
+
+                final int recordOffset = (int)(writtenFrames % capacity) * recordSize;
+                ring.putLong(recordOffset + CanRecorder.TIMESTAMP_OFFSET, timestamp);
+                ring.putInt(recordOffset + CanRecorder.ID_OFFSET, rawId);
+                ring.put(recordOffset + CanRecorder.LENGTH_OFFSET, (byte)length);
+                ring.put(recordOffset + CanRecorder.FD_FLAGS_OFFSET, frames.get(frameOffset + CanFrameRing.FD_FLAGS_OFFSET));
+                ring.put(recordOffset + CanRecorder.BUS_OFFSET, frames.get(frameOffset + CanFrameRing.BUS_OFFSET));
+
+                // note, whole payload words are copied, any bytes beyond the length are left as received
+                //
+                final int words = (length + 7) >>> 3;
+                for (int w = 0; w < words; w++)
+                {
+                    final long word = frames.getLong(frameOffset + CanFrameRing.DATA_OFFSET + (w << 3));
+                    ring.putLong(recordOffset + CanRecorder.DATA_OFFSET + (w << 3), swap ? Long.reverseBytes(word) : word);
+                }
+
+                writtenFrames++;
+
+                if (triggered)
+                {
+                    if (++postFrames >= postTriggerFrames) freeze();
+                }
+                else if (frameTriggers)
+                {
+                    final String reason = triggerReason(rawId, length, frames, frameOffset + CanFrameRing.DATA_OFFSET);
+                    if (reason == null) continue;
+
+                    if (dumpPending)
+                    {
+                        missedTriggers++;
+                        continue;
+                    }
+
+                    startTrigger(reason, timestamp, writtenFrames - 1);
+                }
+            }
+
+            if (triggered && ((updateNanos - triggerDeadlineNanos) >= 0)) freeze();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // returns why the frame fires a trigger, otherwise null
+    //
+    private String triggerReason(final int rawId, final int length, final ByteBuffer frames, final int dataOffset)
+    {
+        if ((rawId & CanMessage.CAN_ERR_FLAG) != 0)
+        {
+            final int error = rawId & CanMessage.CAN_ERR_MASK;
+            if ((error & errorClasses) != 0) return "error frame, class: 0x" + Integer.toHexString(error);
+
+            final int controller = ((error & CanMessage.CAN_ERR_CRTL) != 0) ? frames.get(dataOffset + 1) & 0xff : 0;
+            if ((controller & controllerErrors) != 0) return "controller error, status: 0x" + Integer.toHexString(controller);
+
+            return null;
+        }
+
+        for (int t = 0; t < triggerFilters.length; t++)
+        {
+            if (!triggerFilters[t].matches(rawId) || (length < triggerData[t].length)) continue;
+
+            boolean match = true;
+            for (int i = 0; match && (i < triggerData[t].length); i++) match = ((frames.get(dataOffset + i) ^ triggerData[t][i]) & triggerMasks[t][i]) == 0;
+            if (match) return "frame trigger, ID: 0x" + Integer.toHexString(rawId & CanMessage.CAN_EFF_MASK);
+        }
+
+        return null;
+    }
+
+    // note, firstFrame is the index of the frame that fired the trigger (the next frame for trigger()), called with the lock held
+    //
+    private void startTrigger(final String reason, final long timestamp, final long firstFrame)
+    {
+        triggered = true;
+        triggerCount++;
+        triggerReason = reason;
+        triggerTimestamp = timestamp;
+        triggerFrame = firstFrame;
+        triggerDeadlineNanos = System.nanoTime() + postTriggerNanos;
+        postFrames = 0;
+
+        if ((postTriggerFrames == 0) || (postTriggerNanos == 0))
+        {
+            freeze();
+        }
+        else
+        {
+            changed.signalAll();
+        }
+    }
+
+    // copies the ring, oldest frame first, for the dump thread, called with the lock held
+    //
+    private void freeze()
+    {
+        final int frameCount = (int)Math.min(writtenFrames, capacity);
+        final int oldest = (int)((writtenFrames - frameCount) % capacity);
+        final int firstPart = Math.min(frameCount, capacity - oldest);
+
+        final ByteBuffer source = ring.duplicate();
+        final ByteBuffer target = frozen.duplicate();
+        target.clear();
+        source.limit((oldest + firstPart) * recordSize).position(oldest * recordSize);
+        target.put(source);
+        source.limit((frameCount - firstPart) * recordSize).position(0);
+        target.put(source);
+
+        frozenFrames = frameCount;
+        frozenTriggerFrame = (int)(triggerFrame - (writtenFrames - frameCount));
+        frozenTriggerTimestamp = triggerTimestamp;
+        frozenReason = triggerReason;
+
+        triggered = false;
+        dumpPending = true;
+        changed.signalAll();
+    }
+
+    //
+    // the dump thread, ends the post-trigger window when no frames arrive (e.g. when bus-off) and writes the frozen copies
+    //
+
+    private void dumpTask()
+    {
+        lock.lock();
+        try
+        {
+            while (running || dumpPending)
+            {
+                if (triggered && ((System.nanoTime() - triggerDeadlineNanos) >= 0)) freeze();
+
+                if (dumpPending)
+                {
+                    final long fromTimestamp = (preTriggerNanos > 0) ? (frozenTriggerTimestamp - preTriggerNanos) : Long.MIN_VALUE;
+                    final int limit = maxDumps;
+                    final Path path = directory.resolve(String.format("%s-%06d-000000%s", prefix, dumpNumber++, CanRecorder.SEGMENT_SUFFIX));
+
+                    // note, the frozen copy isn't touched by the receiving thread whilst a dump is pending
+                    //
+                    lock.unlock();
+                    try
+                    {
+                        final int frameCount = writeDump(path, fromTimestamp);
+                        logger.warn("Flight recorder dump written to " + path + ", " + frameCount + " frames, trigger: " + frozenReason);
+                    }
+                    catch (final IOException ex)
+                    {
+                        logger.error("Unable to write the flight recorder dump " + path + ", reason: " + ex.getMessage(), ex);
+                    }
+                    finally
+                    {
+                        lock.lock();
+                    }
+
+                    if (Files.exists(path)) dumps.add(path);
+                    while ((limit > 0) && (dumps.size() > limit)) deleteDump(dumps.remove(0));
+
+                    dumpPending = false;
+                    continue;
+                }
+
+                if (!running) break;
+
+                if (triggered)
+                {
+                    changed.awaitNanos(triggerDeadlineNanos - System.nanoTime());
+                }
+                else
+                {
+                    changed.await();
+                }
+            }
+        }
+        catch (final InterruptedException ignored)
+        {
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // writes the frozen frames received from fromTimestamp onwards, returns the number written
+    //
+    private int writeDump(final Path path, final long fromTimestamp) throws IOException
+    {
+        int first = 0;
+        while ((first < frozenFrames) && (first < frozenTriggerFrame) && (frozen.getLong(first * recordSize + CanRecorder.TIMESTAMP_OFFSET) < fromTimestamp)) first++;
+
+        final int frameCount = frozenFrames - first;
+        final ByteBuffer header = ByteBuffer.allocate(CanRecorder.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, CanRecorder.MAGIC);
+        header.putInt(4, CanRecorder.VERSION);
+        header.putInt(CanRecorder.RECORD_SIZE_OFFSET, recordSize);
+        header.putLong(CanRecorder.RECORD_COUNT_OFFSET, frameCount);
+        header.putLong(CanRecorder.FIRST_TIMESTAMP_OFFSET, (frameCount == 0) ? 0 : frozen.getLong(first * recordSize + CanRecorder.TIMESTAMP_OFFSET));
+        header.putLong(CanRecorder.TRIGGER_TIMESTAMP_OFFSET, frozenTriggerTimestamp);
+        header.putLong(CanRecorder.TRIGGER_RECORD_OFFSET, frozenTriggerFrame - first);
+
+        final ByteBuffer records = frozen.duplicate();
+        records.limit(frozenFrames * recordSize).position(first * recordSize);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+        {
+            while (header.hasRemaining()) channel.write(header);
+            while (records.hasRemaining()) channel.write(records);
+            channel.force(false);
+        }
+
+        return frameCount;
+    }
+
+    private void deleteDump(final Path path)
+    {
+        try
+        {
+            Files.deleteIfExists(path);
+        }
+        catch (final IOException ex)
+        {
+            logger.error("Unable to delete the flight recorder dump " + path + ", reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static List<Path> listDumps(final Path directory, final String prefix) throws IOException
+    {
+        final List<Path> paths = new ArrayList<Path>();
+        final File[] files = directory.toFile().listFiles((dir, name) -> name.startsWith(prefix + "-") && name.endsWith("-000000" + CanRecorder.SEGMENT_SUFFIX));
+        if (files == null) throw new IOException("Unable to list the flight recorder directory: " + directory);
+
+        for (File file : files)
+        {
+            if (dumpNumberOf(file.toPath(), prefix) >= 0) paths.add(file.toPath());
+        }
+
+        paths.sort((a, b) -> Integer.compare(dumpNumberOf(a, prefix), dumpNumberOf(b, prefix)));
+        return paths;
+    }
+
+    // e.g. 3 for can0-000003-000000.canrec
+    //
+    private static int dumpNumberOf(final Path path, final String prefix)
+    {
+        final String name = path.getFileName().toString();
+        try
+        {
+            return Integer.parseInt(name.substring(prefix.length() + 1, name.length() - ("-000000" + CanRecorder.SEGMENT_SUFFIX).length()));
+        }
+        catch (final NumberFormatException | IndexOutOfBoundsException ex)
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+//
+// a reusable, read-only view of a received frame, backed by a receiver ring slot, i.e. reading a frame allocates nothing
+//
+// notes 1, the view is only valid for the duration of the CanFrameListener callback, the slot is recycled afterwards
+//       2, use copyPayload() or toMessage() to retain the frame
+//       3, multi-byte payload accessors use the little-endian (Intel) byte order, i.e. byte 0 is least significant
+//
+
+public final class CanFrame
+{
+    private final ByteBuffer slots;
+    private final ByteBuffer littleEndianSlots;
+    private final int trailerOffset;
+    private int offset;
+    private CanMessage message;
+
+    CanFrame(final ByteBuffer slots, final int slotSize)
+    {
+        this.slots = slots;
+        littleEndianSlots = slots.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        trailerOffset = CanFrameRing.trailerOffset(slotSize);
+    }
+
+    // re-points this view at a ring slot
+    //
+    void moveTo(final int offset)
+    {
+        this.offset = offset;
+        message = null;
+    }
+
+    // the buffer holding the slots, used to copy a frame into a view that owns a private (single) slot
+    //
+    ByteBuffer buffer()
+    {
+        return slots;
+    }
+
+    int slotOffset()
+    {
+        return offset;
+    }
+
+    int slotSize()
+    {
+        return trailerOffset + CanFrameRing.TRAILER_SIZE;
+    }
+
+    // copies an existing message into this view's (single) slot, used by the PER_FRAME receive mode
+    //
+    void wrap(final CanMessage message)
+    {
+        final byte[] payload = message.getPayload();
+        final int length = Math.min(payload.length, trailerOffset - CanFrameRing.DATA_OFFSET);
+        final int fdFlags = message.isFdFrame() ? (message.getFdFlags() | CanMessage.CANFD_FDF) : 0;
+
+        offset = 0;
+        slots.putInt(CanFrameRing.ID_OFFSET, message.getRawId());
+        slots.put(CanFrameRing.LENGTH_OFFSET, (byte)length);
+        slots.put(CanFrameRing.FD_FLAGS_OFFSET, (byte)fdFlags);
+        slots.put(CanFrameRing.BUS_OFFSET, (byte)0);
+        for (int i = 0; i < length; i++) slots.put(CanFrameRing.DATA_OFFSET + i, payload[i]);
+
+        slots.putLong(trailerOffset + CanFrameRing.SOFTWARE_TIMESTAMP_OFFSET, message.getTimestamp());
+        slots.putLong(trailerOffset + CanFrameRing.HARDWARE_TIMESTAMP_OFFSET, message.getHardwareTimestamp());
+        slots.putLong(trailerOffset + CanFrameRing.RECEIVED_NANOS_OFFSET, message.getReceivedNanos());
+        slots.putLong(trailerOffset + CanFrameRing.KERNEL_LATENCY_OFFSET, message.getKernelLatencyNanos());
+
+        this.message = message;
+    }
+
+    // copies the header, payload and timestamps, used to hand the frame over to a dispatch lane
+    // note, the destination slots must be the same size as the source slots
+    //
+    void copyTo(final ByteBuffer destination, final int destinationOffset)
+    {
+        final int words = 1 + ((getDlc() + 7) >>> 3);
+        for (int i = 0; i < words; i++) destination.putLong(destinationOffset + (i << 3), slots.getLong(offset + (i << 3)));
+        for (int i = 0; i < CanFrameRing.TRAILER_SIZE; i += 8) destination.putLong(destinationOffset + trailerOffset + i, slots.getLong(offset + trailerOffset + i));
+    }
+
+    // copies the whole slot without interpreting it, used when the source slot may be overwritten concurrently
+    // note, as copyTo(), the destination slots must be the same size as the source slots
+    //
+    void copySlotTo(final ByteBuffer destination, final int destinationOffset)
+    {
+        final int slotSize = slotSize();
+        for (int i = 0; i < slotSize; i += 8) destination.putLong(destinationOffset + i, slots.getLong(offset + i));
+    }
+
+    public int getId()
+    {
+        // exclude the SFF/EFF, RTR, ERR flags
+        //
+        return getRawId() & CanMessage.CAN_ERR_MASK;
+    }
+
+    public int getRawId()
+    {
+        return slots.getInt(offset + CanFrameRing.ID_OFFSET);
+    }
+
+    // the EFF, RTR and ERR flags, see CanMessage
+    //
+    public int getFlags()
+    {
+        return getRawId() & ~CanMessage.CAN_ERR_MASK;
+    }
+
+    // the payload length in bytes, up to 8 for classic frames and 64 for CAN FD frames
+    //
+    public int getDlc()
+    {
+        final int maxLength = isFdFrame() ? CanMessage.CANFD_MAX_DLEN : CanMessage.CAN_MAX_DLEN;
+        return Math.min(slots.get(offset + CanFrameRing.LENGTH_OFFSET) & 0xff, maxLength);
+    }
+
+    // the BRS, ESI and FDF flags, 0 for classic frames
+    //
+    public int getFdFlags()
+    {
+        return slots.get(offset + CanFrameRing.FD_FLAGS_OFFSET) & 0xff;
+    }
+
+    public boolean isFdFrame()
+    {
+        return (getFdFlags() & CanMessage.CANFD_FDF) != 0;
+    }
+
+    public boolean isBitRateSwitch()
+    {
+        return (getFdFlags() & CanMessage.CANFD_BRS) != 0;
+    }
+
+    public boolean isErrorStateIndicator()
+    {
+        return (getFdFlags() & CanMessage.CANFD_ESI) != 0;
+    }
+
+    // identifies the receiving bus when using a CanBusReactor, otherwise 0
+    //
+    public int getBusIndex()
+    {
+        return slots.get(offset + CanFrameRing.BUS_OFFSET) & 0xff;
+    }
+
+    // the kernel (software) receive timestamp in nanoseconds since the epoch, 0 unless CanCommsConfig.setTimestamping() is enabled
+    //
+    public long getTimestamp()
+    {
+        return slots.getLong(offset + trailerOffset + CanFrameRing.SOFTWARE_TIMESTAMP_OFFSET);
+    }
+
+    // the controller's receive timestamp in nanoseconds, 0 if the driver doesn't provide hardware timestamps
+    // note, this is based on the controller's clock, so it's only comparable with other hardware timestamps
+    //
+    public long getHardwareTimestamp()
+    {
+        return slots.getLong(offset + trailerOffset + CanFrameRing.HARDWARE_TIMESTAMP_OFFSET);
+    }
+
+    // the System.nanoTime() at which the receiver read the frame from the socket
+    //
+    long getReceivedNanos()
+    {
+        return slots.getLong(offset + trailerOffset + CanFrameRing.RECEIVED_NANOS_OFFSET);
+    }
+
+    long getKernelLatencyNanos()
+    {
+        return slots.getLong(offset + trailerOffset + CanFrameRing.KERNEL_LATENCY_OFFSET);
+    }
+
+    public boolean isExtendedId()
+    {
+        return (getRawId() & CanMessage.CAN_EFF_FLAG) != 0;
+    }
+
+    public boolean isStandardId()
+    {
+        return (getRawId() & CanMessage.CAN_EFF_FLAG) == 0;
+    }
+
+    public boolean isDataFrame()
+    {
+        return (getRawId() & CanMessage.CAN_ERR_FLAG) == 0;
+    }
+
+    public boolean isErrorFrame()
+    {
+        return (getRawId() & CanMessage.CAN_ERR_FLAG) != 0;
+    }
+
+    public boolean isRemoteTransmissionRequest()
+    {
+        return (getRawId() & CanMessage.CAN_RTR_FLAG) != 0;
+    }
+
+    public boolean isBusOffError()
+    {
+        return (getId() & CanMessage.CAN_ERR_BUSOFF) != 0;
+    }
+
+    public boolean isControllerError()
+    {
+        return (getId() & CanMessage.CAN_ERR_CRTL) != 0;
+    }
+
+    public boolean isControllerRestarted()
+    {
+        return (getId() & CanMessage.CAN_ERR_RESTARTED) != 0;
+    }
+
+    public boolean isProtocolError()
+    {
+        return (getId() & CanMessage.CAN_ERR_PROT) != 0;
+    }
+
+    public byte getByte(final int index)
+    {
+        checkPayloadRange(index, 1);
+        return slots.get(offset + CanFrameRing.DATA_OFFSET + index);
+    }
+
+    public short getShort(final int byteOffset)
+    {
+        checkPayloadRange(byteOffset, 2);
+        return littleEndianSlots.getShort(offset + CanFrameRing.DATA_OFFSET + byteOffset);
+    }
+
+    public int getInt(final int byteOffset)
+    {
+        checkPayloadRange(byteOffset, 4);
+        return littleEndianSlots.getInt(offset + CanFrameRing.DATA_OFFSET + byteOffset);
+    }
+
+    // the first 8 payload bytes as a single value, any bytes beyond the DLC read as zero
+    //
+    public long getLong()
+    {
+        final int dlc = getDlc();
+        final long payload = littleEndianSlots.getLong(offset + CanFrameRing.DATA_OFFSET);
+
+        return (dlc >= 8) ? payload : payload & ((1L << (dlc << 3)) - 1);
+    }
+
+    public long getLong(final int byteOffset)
+    {
+        checkPayloadRange(byteOffset, 8);
+        return littleEndianSlots.getLong(offset + CanFrameRing.DATA_OFFSET + byteOffset);
+    }
+
+    // copies the payload into the supplied array, returns the number of bytes copied
+    //
+    public int copyPayload(final byte[] destination)
+    {
+        final int length = Math.min(getDlc(), destination.length);
+        for (int i = 0; i < length; i++) destination[i] = slots.get(offset + CanFrameRing.DATA_OFFSET + i);
+
+        return length;
+    }
+
+    // copies part of the payload into the destination at an absolute index, used to reassemble ISO-TP messages in place
+    //
+    void copyPayloadTo(final int from, final ByteBuffer destination, final int index, final int length)
+    {
+        checkPayloadRange(from, length);
+
+        final int source = offset + CanFrameRing.DATA_OFFSET + from;
+        for (int i = 0; i < length; i++) destination.put(index + i, slots.get(source + i));
+    }
+
+    // materialises the frame as a CanMessage, the instance is shared by every caller for the current frame
+    //
+    public CanMessage toMessage()
+    {
+        if (message == null)
+        {
+            final byte[] payload = new byte[getDlc()];
+            copyPayload(payload);
+            message = new CanMessage(getRawId(), payload, getFdFlags(), getTimestamp(), getHardwareTimestamp(), getReceivedNanos(), getKernelLatencyNanos());
+        }
+
+        return message;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toMessage().toString();
+    }
+
+    private void checkPayloadRange(final int index, final int size)
+    {
+        if ((index < 0) || ((index + size) > getDlc())) throw new IndexOutOfBoundsException("Payload access out of range, offset: " + index + ", size: " + size + ", DLC: " + getDlc());
+    }
+}
@@ -0,0 +1,12 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+// note, the supplied frame is a reused view and is only valid for the duration of the call, see CanFrame
+//
+public interface CanFrameListener
+{
+    public void rxedCanFrame(final CanFrame frame) throws Exception;
+}
@@ -0,0 +1,234 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+//
+// single producer / single consumer ring of fixed size CAN frame slots held in a direct ByteBuffer
+// the native receiver writes frames straight into the free slots using recvmmsg(), so no per-frame objects are created
+//
+// slot layout (matches struct can_frame / canfd_frame, native byte order)
+//
+// bytes 0-3     : CAN identifier, including the EFF, RTR and ERR flags
+// byte 4        : payload length
+// byte 5        : CAN FD flags (BRS, ESI, FDF), 0 for classic frames
+// byte 6        : bus index, set by the CanBusReactor (otherwise 0)
+// byte 7        : reserved
+// bytes 8-15    : payload (classic slots)
+// bytes 8-71    : payload (CAN FD slots)
+//
+// note, with the DROP_OLDEST overflow policy the producer may also advance the head, see evictOldest() and releaseIfHead()
+//
+// followed by the receive timestamp trailer (the last TRAILER_SIZE bytes of every slot), all zero unless timestamping is enabled
+//
+// bytes 0-7     : kernel software receive timestamp, nanoseconds since the epoch
+// bytes 8-15    : hardware receive timestamp in nanoseconds, 0 if the driver doesn't support it
+// bytes 16-23   : System.nanoTime() compatible (CLOCK_MONOTONIC) time at which the receiver read the frame
+// bytes 24-31   : kernel to queue latency, i.e. the delay between the kernel timestamp and the receiver reading the frame
+//
+
+final class CanFrameRing implements Waiter.Source
+{
+    static final int TRAILER_SIZE = 32;
+    static final int CLASSIC_SLOT_SIZE = 16 + TRAILER_SIZE;
+    static final int FD_SLOT_SIZE = 72 + TRAILER_SIZE;
+    static final int ID_OFFSET = 0;
+    static final int LENGTH_OFFSET = 4;
+    static final int FD_FLAGS_OFFSET = 5;
+    static final int BUS_OFFSET = 6;
+    static final int DATA_OFFSET = 8;
+
+    // relative to the start of the trailer
+    //
+    static final int SOFTWARE_TIMESTAMP_OFFSET = 0;
+    static final int HARDWARE_TIMESTAMP_OFFSET = 8;
+    static final int RECEIVED_NANOS_OFFSET = 16;
+    static final int KERNEL_LATENCY_OFFSET = 24;
+
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+
+    static
+    {
+        try
+        {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(CanFrameRing.class, "head", long.class);
+            TAIL = lookup.findVarHandle(CanFrameRing.class, "tail", long.class);
+        }
+        catch (final ReflectiveOperationException ex)
+        {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int capacity, mask, slotSize;
+    private final Waiter waiter;
+
+    // note, the padding keeps the producer and consumer sequences on separate cache lines
+    //
+    private long p01, p02, p03, p04, p05, p06, p07;
+    private volatile long tail;
+    private long p11, p12, p13, p14, p15, p16, p17;
+    private volatile long head;
+    private long p21, p22, p23, p24, p25, p26, p27;
+
+    CanFrameRing(final int capacity, final int slotSize, final Waiter waiter)
+    {
+        if ((capacity < 2) || (Integer.bitCount(capacity) != 1)) throw new IllegalArgumentException("The ring capacity must be a power of two, requested: " + capacity);
+
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        this.waiter = waiter;
+        mask = capacity - 1;
+        buffer = ByteBuffer.allocateDirect(capacity * slotSize).order(ByteOrder.nativeOrder());
+    }
+
+    // CAN FD sockets need the larger slots, as any frame can carry up to 64 payload bytes
+    //
+    static int slotSizeFor(final CanCommsConfig config)
+    {
+        return config.isFdFrames() ? FD_SLOT_SIZE : CLASSIC_SLOT_SIZE;
+    }
+
+    ByteBuffer buffer()
+    {
+        return buffer;
+    }
+
+    int capacity()
+    {
+        return capacity;
+    }
+
+    int slotSize()
+    {
+        return slotSize;
+    }
+
+    static int trailerOffset(final int slotSize)
+    {
+        return slotSize - TRAILER_SIZE;
+    }
+
+    //
+    // producer side
+    //
+
+    // the number of free slots that can be written without wrapping, limited to maxSlots
+    //
+    int writableSlots(final int maxSlots)
+    {
+        final long currentTail = (long)TAIL.getOpaque(this);
+        final int free = capacity - (int)(currentTail - (long)HEAD.getAcquire(this));
+        final int contiguous = capacity - (int)(currentTail & mask);
+
+        return Math.min(maxSlots, Math.min(free, contiguous));
+    }
+
+    int tailOffset()
+    {
+        return (int)((long)TAIL.getOpaque(this) & mask) * slotSize;
+    }
+
+    // the sequence of the next slot to be published
+    //
+    long tailSequence()
+    {
+        return (long)TAIL.getOpaque(this);
+    }
+
+    void publish(final int count)
+    {
+        TAIL.setRelease(this, (long)TAIL.getOpaque(this) + count);
+        waiter.signal();
+    }
+
+    // discards the oldest frame if the ring is full, returns false if the consumer made space in the meantime
+    // note, the head is advanced before the slot is reused, so the consumer's releaseIfHead() for that frame will fail
+    //
+    boolean evictOldest()
+    {
+        final long currentTail = (long)TAIL.getOpaque(this);
+        while (true)
+        {
+            final long currentHead = (long)HEAD.getAcquire(this);
+            if ((currentTail - currentHead) < capacity) return false;
+            if (HEAD.compareAndSet(this, currentHead, currentHead + 1)) return true;
+        }
+    }
+
+    // waits for the consumer to free at least one slot, returns false if the timeout expires first
+    //
+    boolean awaitWritable(final long timeoutNanos)
+    {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        while (writableSlots(1) == 0)
+        {
+            if ((deadline - System.nanoTime()) <= 0) return false;
+            LockSupport.parkNanos(SpscQueue.BLOCK_PARK_NANOS);
+        }
+
+        return true;
+    }
+
+    //
+    // consumer side
+    //
+
+    int readableSlots()
+    {
+        return (int)((long)TAIL.getAcquire(this) - (long)HEAD.getOpaque(this));
+    }
+
+    int headOffset()
+    {
+        return (int)((long)HEAD.getOpaque(this) & mask) * slotSize;
+    }
+
+    void release(final int count)
+    {
+        HEAD.setRelease(this, (long)HEAD.getOpaque(this) + count);
+    }
+
+    //
+    // consumer side, when the producer may evict frames, i.e. the DROP_OLDEST overflow policy
+    // the consumer copies the head slot and then claims it, the copy is only valid if the claim succeeds
+    //
+
+    long headSequence()
+    {
+        return (long)HEAD.getAcquire(this);
+    }
+
+    int offsetOf(final long sequence)
+    {
+        return (int)(sequence & mask) * slotSize;
+    }
+
+    boolean releaseIfHead(final long sequence)
+    {
+        return HEAD.compareAndSet(this, sequence, sequence + 1);
+    }
+
+    // waits using the configured strategy until the producer publishes or the timeout expires
+    //
+    void awaitReadable(final long timeout, final TimeUnit unit)
+    {
+        waiter.await(this, timeout, unit);
+    }
+
+    public boolean hasData()
+    {
+        return (long)TAIL.getVolatile(this) > (long)HEAD.getOpaque(this);
+    }
+}
@@ -0,0 +1,95 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+// an immutable copy of the rate and timing of a single CAN ID, see CanBusAnalytics.getIdStatistics()
+// note, the rate and the interval range cover the last complete second, the mean and jitter are exponentially weighted (see
+//       CanBusAnalytics.INTERVAL_WEIGHT), i.e. they follow the recent frames
+//
+public class CanIdStatistics
+{
+    private final int rawId;
+    private final long totalFrames;
+    private final int frameRate;
+    private final long minIntervalNanos, maxIntervalNanos;
+    private final double meanIntervalNanos, jitterNanos;
+
+    CanIdStatistics(final int rawId, final long totalFrames, final int frameRate, final long minIntervalNanos, final long maxIntervalNanos, final double meanIntervalNanos, final double jitterNanos)
+    {
+        this.rawId = rawId;
+        this.totalFrames = totalFrames;
+        this.frameRate = frameRate;
+        this.minIntervalNanos = minIntervalNanos;
+        this.maxIntervalNanos = maxIntervalNanos;
+        this.meanIntervalNanos = meanIntervalNanos;
+        this.jitterNanos = jitterNanos;
+    }
+
+    // note, includes the EFF flag for an extended ID
+    //
+    public int getRawId()
+    {
+        return rawId;
+    }
+
+    // received and transmitted, since the analytics were created (or reset)
+    //
+    public long getTotalFrames()
+    {
+        return totalFrames;
+    }
+
+    // frames per second, i.e. the number seen in the last complete second
+    //
+    public int getFrameRate()
+    {
+        return frameRate;
+    }
+
+    // the shortest and longest gaps between frames in the last complete second, 0 if there were fewer than two frames
+    //
+    public long getMinIntervalNanos()
+    {
+        return minIntervalNanos;
+    }
+
+    public long getMaxIntervalNanos()
+    {
+        return maxIntervalNanos;
+    }
+
+    // the typical period of a cyclic frame
+    //
+    public double getMeanIntervalNanos()
+    {
+        return meanIntervalNanos;
+    }
+
+    // the standard deviation of the gap between frames
+    //
+    public double getJitterNanos()
+    {
+        return jitterNanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuffer sb = new StringBuffer();
+        sb.append("ID: 0x");
+        sb.append(Integer.toHexString(rawId & CanMessage.CAN_EFF_MASK));
+        sb.append(((rawId & CanMessage.CAN_EFF_FLAG) != 0) ? " (EFF)" : "");
+        sb.append(", rate: ");
+        sb.append(frameRate);
+        sb.append("/s, mean interval: ");
+        sb.append(String.format("%.3f", meanIntervalNanos / 1_000_000.0));
+        sb.append("ms, jitter: ");
+        sb.append(String.format("%.3f", jitterNanos / 1_000_000.0));
+        sb.append("ms, frames: ");
+        sb.append(totalFrames);
+
+        return sb.toString();
+    }
+}
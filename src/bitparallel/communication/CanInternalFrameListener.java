@@ -0,0 +1,12 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+// marks the frame listeners subscribed by the API itself, e.g. the message and signal adapters, ISO-TP channels and the request tracker
+// note, these subscriptions are never removed by CanCommsHandler.clearFrameListeners()
+//
+interface CanInternalFrameListener extends CanFrameListener
+{
+}
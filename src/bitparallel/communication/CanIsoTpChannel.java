@@ -0,0 +1,39 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+//
+// a point to point ISO-TP (ISO 15765-2) connection, i.e. messages of up to 4095 bytes (or more, using the 2016 escape sequence)
+// are segmented into a first frame and consecutive frames, with the receiver pacing the sender using flow control frames
+//
+// notes 1, a channel transmits using one CAN ID and receives using another, e.g. 0x7E0 and 0x7E8 for an OBD tester
+//       2, any number of channels can be open at once, each must use a different receive ID
+//       3, send() and receive() may be called concurrently, i.e. the channel is full duplex
+//       4, see CanCommsHandler.openIsoTpChannel()
+//
+
+public interface CanIsoTpChannel
+{
+    // sends the buffer's remaining bytes as a single message, returns once the last frame has been transmitted
+    // note, the buffer's position is advanced to its limit
+    //
+    void send(final ByteBuffer payload) throws IOException;
+
+    // waits for the next message and writes it into the buffer at its position, which is then advanced
+    // returns the message length, or -1 if no message was received within the timeout
+    // note, a message that doesn't fit into the buffer's remaining space fails with an IOException
+    //
+    int receive(final ByteBuffer buffer, final long timeout, final TimeUnit unit) throws IOException;
+
+    int getTxId();
+
+    int getRxId();
+
+    void close() throws IOException;
+}
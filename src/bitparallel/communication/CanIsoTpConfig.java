@@ -0,0 +1,166 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+// the settings of an ISO-TP (ISO 15765-2) channel, see CanCommsHandler.openIsoTpChannel()
+// note, the setters return this instance so that they can be chained
+//
+public class CanIsoTpConfig
+{
+    public static final int NO_PADDING = -1;
+    public static final long DEFAULT_TIMEOUT_MS = 1000;
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 4095;
+    public static final int MAX_BLOCK_SIZE = 255;
+    public static final long MAX_SEPARATION_TIME_US = 127_000;
+
+    private int blockSize;
+    private long separationTimeUs;
+    private int padding;
+    private long timeoutMs;
+    private int maxMessageLength;
+    private boolean fdFrames;
+    private boolean bitRateSwitch;
+    private boolean kernelIsoTp;
+
+    public CanIsoTpConfig()
+    {
+        blockSize = 0;
+        separationTimeUs = 0;
+        padding = NO_PADDING;
+        timeoutMs = DEFAULT_TIMEOUT_MS;
+        maxMessageLength = DEFAULT_MAX_MESSAGE_LENGTH;
+        fdFrames = false;
+        bitRateSwitch = false;
+        kernelIsoTp = true;
+    }
+
+    // the number of consecutive frames the sender may send before waiting for the next flow control frame
+    // note, 0 (the default) means that the whole message follows a single flow control frame
+    //
+    public CanIsoTpConfig setBlockSize(final int blockSize)
+    {
+        if ((blockSize < 0) || (blockSize > MAX_BLOCK_SIZE)) throw new IllegalArgumentException("The ISO-TP block size must be between 0 and " + MAX_BLOCK_SIZE + ", requested: " + blockSize);
+
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    // the minimum gap the sender must leave between consecutive frames (STmin), as requested by this channel's flow control frames
+    // note, sent as 100us steps below 1ms and as whole milliseconds above, a value that can't be encoded is rounded up
+    //
+    public CanIsoTpConfig setSeparationTime(final long separationTimeUs)
+    {
+        if ((separationTimeUs < 0) || (separationTimeUs > MAX_SEPARATION_TIME_US)) throw new IllegalArgumentException("The ISO-TP separation time must be between 0 and " + MAX_SEPARATION_TIME_US + "us, requested: " + separationTimeUs);
+
+        this.separationTimeUs = separationTimeUs;
+        return this;
+    }
+
+    // the byte used to pad frames to their full length, many ECUs require 0x55 or 0xAA, NO_PADDING (the default) sends the shortest frames
+    //
+    public CanIsoTpConfig setPadding(final int padding)
+    {
+        if ((padding < NO_PADDING) || (padding > 0xff)) throw new IllegalArgumentException("The ISO-TP padding must be a byte value or NO_PADDING, requested: " + padding);
+
+        this.padding = padding;
+        return this;
+    }
+
+    // how long to wait for a flow control frame (N_Bs) or the next consecutive frame (N_Cr) before the transfer fails
+    //
+    public CanIsoTpConfig setTimeout(final long timeoutMs)
+    {
+        if (timeoutMs <= 0) throw new IllegalArgumentException("The ISO-TP timeout must be positive, requested: " + timeoutMs);
+
+        this.timeoutMs = timeoutMs;
+        return this;
+    }
+
+    // the longest message that can be received without a caller supplied buffer, see CanIsoTpChannel.receive()
+    // note, messages longer than 4095 bytes use the ISO 15765-2:2016 escape sequence, the kernel channel also applies its own limit
+    //
+    public CanIsoTpConfig setMaxMessageLength(final int maxMessageLength)
+    {
+        if (maxMessageLength < 1) throw new IllegalArgumentException("The maximum ISO-TP message length must be positive, requested: " + maxMessageLength);
+
+        this.maxMessageLength = maxMessageLength;
+        return this;
+    }
+
+    // sends 64 byte CAN FD frames, the handler must be using CanCommsConfig.setFdFrames(true)
+    //
+    public CanIsoTpConfig setFdFrames(final boolean fdFrames)
+    {
+        this.fdFrames = fdFrames;
+        return this;
+    }
+
+    // sets the bit rate switch (BRS) of the transmitted CAN FD frames
+    //
+    public CanIsoTpConfig setBitRateSwitch(final boolean bitRateSwitch)
+    {
+        this.bitRateSwitch = bitRateSwitch;
+        return this;
+    }
+
+    // use the kernel CAN_ISOTP protocol when the handler uses the socketCAN transport (the default)
+    // note, if the kernel doesn't support CAN_ISOTP (the can-isotp module), the channel falls back to the Java implementation
+    //
+    public CanIsoTpConfig setKernelIsoTp(final boolean kernelIsoTp)
+    {
+        this.kernelIsoTp = kernelIsoTp;
+        return this;
+    }
+
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    public long getSeparationTime()
+    {
+        return separationTimeUs;
+    }
+
+    // the STmin byte sent in flow control frames, i.e. 0 to 127ms or 0xF1 to 0xF9 for 100 to 900us
+    //
+    int getSeparationTimeCode()
+    {
+        if (separationTimeUs == 0) return 0;
+        if (separationTimeUs < 1000) return 0xf0 + (int)((separationTimeUs + 99) / 100);
+
+        return (int)((separationTimeUs + 999) / 1000);
+    }
+
+    public int getPadding()
+    {
+        return padding;
+    }
+
+    public long getTimeout()
+    {
+        return timeoutMs;
+    }
+
+    public int getMaxMessageLength()
+    {
+        return maxMessageLength;
+    }
+
+    public boolean isFdFrames()
+    {
+        return fdFrames;
+    }
+
+    public boolean isBitRateSwitch()
+    {
+        return bitRateSwitch;
+    }
+
+    public boolean isKernelIsoTp()
+    {
+        return kernelIsoTp;
+    }
+}
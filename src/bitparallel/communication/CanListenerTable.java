@@ -0,0 +1,298 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.ArrayList;
+import java.util.List;
+
+//
+// an immutable, ID indexed view of the listener subscriptions, rebuilt whenever a subscription changes
+// dispatching a frame costs a table (SFF) or map (EFF) lookup plus a call per matching listener
+//
+// notes 1, standard IDs use a direct-indexed 2048 entry table, extended IDs use a primitive int keyed map
+//       2, range and mask subscriptions are expanded into the standard table where possible
+//       3, extended ranges and masks that cannot be expanded are checked individually, as are masks that include the RTR flag
+//
+
+final class CanListenerTable
+{
+    static final int STANDARD_ID_COUNT = CanMessage.CAN_SFF_MASK + 1;
+
+    static final CanListenerTable EMPTY = new CanListenerTable(new ArrayList<Subscription>());
+
+    // an ID with the EFF flag set, or one that doesn't fit into 11 bits, is an extended ID
+    // note, used to key every ID supplied by the API (snapshots, requests, analytics and signal decoders) as the subscriptions are
+    //
+    static boolean isExtended(final int id)
+    {
+        return ((id & CanMessage.CAN_EFF_FLAG) != 0) || ((id & CanMessage.CAN_EFF_MASK) > CanMessage.CAN_SFF_MASK);
+    }
+
+    // the raw ID of a received frame with the supplied ID, i.e. the EFF flag is only set for an extended ID and the RTR and ERR flags are removed
+    //
+    static int toKey(final int id)
+    {
+        return isExtended(id) ? ((id & CanMessage.CAN_EFF_MASK) | CanMessage.CAN_EFF_FLAG) : (id & CanMessage.CAN_SFF_MASK);
+    }
+
+    // a single listener subscription, the source is the listener as registered, used to find it again when removing it
+    //
+    static final class Subscription
+    {
+        private static final int ALL = 0;
+        private static final int RANGE = 1;
+        private static final int FILTER = 2;
+
+        private final CanFrameListener listener;
+        private final int kind, fromId, toId, mask, filter;
+        private final boolean extended;
+        private LatencyHistogram latency;
+
+        private Subscription(final CanFrameListener listener, final int kind, final boolean extended, final int fromId, final int toId, final int mask, final int filter)
+        {
+            this.listener = listener;
+            this.kind = kind;
+            this.extended = extended;
+            this.fromId = fromId;
+            this.toId = toId;
+            this.mask = mask;
+            this.filter = filter;
+        }
+
+        static Subscription all(final CanFrameListener listener)
+        {
+            return new Subscription(listener, ALL, false, 0, 0, 0, 0);
+        }
+
+        // note, an extended range is one where either ID is extended, see isExtended()
+        //
+        static Subscription range(final CanFrameListener listener, final int fromId, final int toId)
+        {
+            final boolean extended = isExtended(fromId) || isExtended(toId);
+            final int idMask = extended ? CanMessage.CAN_EFF_MASK : CanMessage.CAN_SFF_MASK;
+            final int from = fromId & CanMessage.CAN_EFF_MASK;
+            final int to = toId & CanMessage.CAN_EFF_MASK;
+            if ((from > to) || (to > idMask)) throw new IllegalArgumentException("Invalid CAN ID range: 0x" + Integer.toHexString(fromId) + " to 0x" + Integer.toHexString(toId));
+
+            return new Subscription(listener, RANGE, extended, from, to, 0, 0);
+        }
+
+        // matches using the kernel CAN_RAW_FILTER rule, i.e. (received_id & mask) == (filter & mask) using the raw ID, inverted by CAN_INV_FILTER
+        //
+        static Subscription filter(final CanFrameListener listener, final CanFilter canFilter)
+        {
+            return new Subscription(listener, FILTER, false, 0, 0, canFilter.getMask(), canFilter.getFilter());
+        }
+
+        // the extended ID part of a mask subscription that has already been expanded into the standard table
+        //
+        static Subscription extendedOnly(final Subscription subscription)
+        {
+            final Subscription extendedOnly = new Subscription(subscription.listener, FILTER, true, 0, 0, subscription.mask | CanMessage.CAN_EFF_FLAG, subscription.filter | CanMessage.CAN_EFF_FLAG);
+            extendedOnly.latency = subscription.latency;
+
+            return extendedOnly;
+        }
+
+        CanFrameListener getListener()
+        {
+            return listener;
+        }
+
+        // when set, the time spent in the listener is recorded, note, shared by every subscription made by the same listener
+        //
+        void setLatency(final LatencyHistogram latency)
+        {
+            this.latency = latency;
+        }
+
+        LatencyHistogram getLatency()
+        {
+            return latency;
+        }
+
+        void deliver(final CanFrame frame) throws Exception
+        {
+            if (latency == null)
+            {
+                listener.rxedCanFrame(frame);
+                return;
+            }
+
+            final long start = System.nanoTime();
+            try
+            {
+                listener.rxedCanFrame(frame);
+            }
+            finally
+            {
+                latency.record(System.nanoTime() - start);
+            }
+        }
+
+        boolean matches(final int rawId)
+        {
+            switch (kind)
+            {
+                case ALL:
+                    return true;
+
+                case RANGE:
+                    final int id = rawId & CanMessage.CAN_EFF_MASK;
+                    return (((rawId & CanMessage.CAN_EFF_FLAG) != 0) == extended) && (id >= fromId) && (id <= toId);
+
+                default:
+                    return CanFilter.matches(mask, filter, rawId);
+            }
+        }
+    }
+
+    private final Subscription[] catchAll;
+    private final Subscription[][] standard;
+    private final IntObjectMap<Subscription[]> extended;
+    private final Subscription[] residual;
+    private final boolean empty;
+
+    CanListenerTable(final List<Subscription> subscriptions)
+    {
+        final List<Subscription> allList = new ArrayList<Subscription>();
+        final List<Subscription> residualList = new ArrayList<Subscription>();
+        final List<List<Subscription>> standardLists = new ArrayList<List<Subscription>>(STANDARD_ID_COUNT);
+        for (int i = 0; i < STANDARD_ID_COUNT; i++) standardLists.add(null);
+
+        final IntObjectMap<List<Subscription>> extendedLists = new IntObjectMap<List<Subscription>>();
+        for (Subscription subscription : subscriptions)
+        {
+            switch (subscription.kind)
+            {
+                case Subscription.ALL:
+                    allList.add(subscription);
+                    break;
+
+                case Subscription.RANGE:
+                    if (!subscription.extended)
+                    {
+                        for (int id = subscription.fromId; id <= subscription.toId; id++) append(standardLists, id, subscription);
+                    }
+                    else if (subscription.fromId == subscription.toId)
+                    {
+                        appendExtended(extendedLists, subscription.fromId, subscription);
+                    }
+                    else
+                    {
+                        residualList.add(subscription);
+                    }
+                    break;
+
+                default:
+                    addFilter(subscription, standardLists, extendedLists, residualList);
+                    break;
+            }
+        }
+
+        catchAll = allList.toArray(new Subscription[0]);
+        residual = residualList.toArray(new Subscription[0]);
+
+        standard = new Subscription[STANDARD_ID_COUNT][];
+        for (int id = 0; id < STANDARD_ID_COUNT; id++)
+        {
+            final List<Subscription> list = standardLists.get(id);
+            if (list != null) standard[id] = list.toArray(new Subscription[0]);
+        }
+
+        extended = new IntObjectMap<Subscription[]>(extendedLists.size());
+        extendedLists.forEach((id, list) -> extended.put(id, list.toArray(new Subscription[0])));
+
+        empty = subscriptions.isEmpty();
+    }
+
+    boolean isEmpty()
+    {
+        return empty;
+    }
+
+    Subscription[] catchAll()
+    {
+        return catchAll;
+    }
+
+    // the subscriptions indexed by the frame's ID, or null if there are none
+    //
+    Subscription[] indexed(final int rawId)
+    {
+        if ((rawId & CanMessage.CAN_EFF_FLAG) != 0) return extended.get(rawId & CanMessage.CAN_EFF_MASK);
+        return standard[rawId & CanMessage.CAN_SFF_MASK];
+    }
+
+    // subscriptions that must be individually matched using Subscription.matches()
+    //
+    Subscription[] residual()
+    {
+        return residual;
+    }
+
+    private static void addFilter(final Subscription subscription, final List<List<Subscription>> standardLists, final IntObjectMap<List<Subscription>> extendedLists, final List<Subscription> residualList)
+    {
+        final int mask = subscription.mask;
+        final int filter = subscription.filter;
+
+        // masks that test the RTR or ERR flags, or that are inverted, can't be expanded into the tables
+        //
+        if (((mask & (CanMessage.CAN_RTR_FLAG | CanMessage.CAN_ERR_FLAG)) != 0) || ((filter & CanFilter.CAN_INV_FILTER) != 0))
+        {
+            residualList.add(subscription);
+            return;
+        }
+
+        // the standard IDs are expanded, unless the mask requires the EFF flag to be set
+        //
+        final boolean testsFormat = (mask & CanMessage.CAN_EFF_FLAG) != 0;
+        if (!testsFormat || ((filter & CanMessage.CAN_EFF_FLAG) == 0))
+        {
+            for (int id = 0; id < STANDARD_ID_COUNT; id++)
+            {
+                if ((id & mask) == (filter & mask)) append(standardLists, id, subscription);
+            }
+        }
+
+        // extended IDs can only be indexed if every identifier bit is tested, otherwise they are matched individually
+        //
+        if (!testsFormat || ((filter & CanMessage.CAN_EFF_FLAG) != 0))
+        {
+            if ((mask & CanMessage.CAN_EFF_MASK) == CanMessage.CAN_EFF_MASK)
+            {
+                appendExtended(extendedLists, filter & CanMessage.CAN_EFF_MASK, subscription);
+            }
+            else
+            {
+                residualList.add(Subscription.extendedOnly(subscription));
+            }
+        }
+    }
+
+    private static void append(final List<List<Subscription>> lists, final int id, final Subscription subscription)
+    {
+        List<Subscription> list = lists.get(id);
+        if (list == null)
+        {
+            list = new ArrayList<Subscription>(2);
+            lists.set(id, list);
+        }
+
+        list.add(subscription);
+    }
+
+    private static void appendExtended(final IntObjectMap<List<Subscription>> lists, final int id, final Subscription subscription)
+    {
+        List<Subscription> list = lists.get(id);
+        if (list == null)
+        {
+            list = new ArrayList<Subscription>(2);
+            lists.put(id, list);
+        }
+
+        list.add(subscription);
+    }
+}
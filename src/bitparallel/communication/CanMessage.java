@@ -27,6 +27,17 @@ public class CanMessage
     public static final int CAN_RTR_FLAG = 0x40000000;                  // remote transmission request */
     public static final int CAN_ERR_FLAG = 0x20000000;                  // error message frame */
 
+    public static final int CAN_MAX_DLEN = 8;                           // classic CAN payload
+    public static final int CANFD_MAX_DLEN = 64;                        // CAN FD payload
+
+    //
+    // CAN FD frame flags, defined in can.h
+    //
+
+    public static final int CANFD_BRS = 0x01;                           // bit rate switch (second bitrate for payload data)
+    public static final int CANFD_ESI = 0x02;                           // error state indicator of the transmitting node
+    public static final int CANFD_FDF = 0x04;                           // mark CAN FD for dual use of struct canfd_frame
+
     //
     // defined in can/error.h, CAN controller error status - data[1], data[2]
     //
@@ -35,6 +46,7 @@ public class CanMessage
     public static final int CAN_ERR_PROT = 0x00000008;                  // can protocol errors and notifications - data[2]
     public static final int CAN_ERR_BUSOFF = 0x00000040;                // bus off
     public static final int CAN_ERR_RESTARTED = 0x00000100;             // controller restarted
+    public static final int CAN_ERR_CNT = 0x00000200;                   // TX error counter - data[6], RX error counter - data[7]
 
     // data[1] bits
     //
@@ -56,13 +68,41 @@ public class CanMessage
 
     private int id;
     private final byte[] payload;
+    private final int fdFlags;
+    private final long timestamp, hardwareTimestamp, receivedNanos, kernelLatencyNanos;
 
-    // note, used by the native receiver task
+    // note, a classic CAN message
     //
     public CanMessage(final int id, final byte[] payload)
+    {
+        this(id, payload, 0, 0, 0, 0, 0);
+    }
+
+    // note, CANFD_FDF is set for CAN FD messages
+    //
+    public CanMessage(final int id, final byte[] payload, final int fdFlags)
+    {
+        this(id, payload, fdFlags, 0, 0, 0, 0);
+    }
+
+    // a message with a known receive time, in nanoseconds since the epoch
+    //
+    public CanMessage(final int id, final byte[] payload, final int fdFlags, final long timestamp)
+    {
+        this(id, payload, fdFlags, timestamp, 0, 0, 0);
+    }
+
+    // note, used by the native receiver task, the last two values are only used to measure the receive latency
+    //
+    CanMessage(final int id, final byte[] payload, final int fdFlags, final long timestamp, final long hardwareTimestamp, final long receivedNanos, final long kernelLatencyNanos)
     {
         this.id = id;
         this.payload = payload;
+        this.fdFlags = fdFlags;
+        this.timestamp = timestamp;
+        this.hardwareTimestamp = hardwareTimestamp;
+        this.receivedNanos = receivedNanos;
+        this.kernelLatencyNanos = kernelLatencyNanos;
     }
 
     // intended to be used when transmitting
@@ -74,6 +114,22 @@ public class CanMessage
         if (isRTR) this.id = this.id | CAN_RTR_FLAG;
 
         this.payload = payload;
+        fdFlags = 0;
+        timestamp = 0;
+        hardwareTimestamp = 0;
+        receivedNanos = 0;
+        kernelLatencyNanos = 0;
+    }
+
+    // intended to be used when transmitting CAN FD messages, the payload can be up to 64 bytes
+    // note, when transmitted, lengths that are not a valid CAN FD length are zero padded, i.e. 9 to 12, 13 to 16 etc.
+    //
+    public static CanMessage fdMessage(final boolean isEFF, final int id, final byte[] payload, final boolean bitRateSwitch)
+    {
+        if (payload.length > CANFD_MAX_DLEN) throw new IllegalArgumentException("A CAN FD payload is limited to " + CANFD_MAX_DLEN + " bytes, requested: " + payload.length);
+
+        final int rawId = isEFF ? (id | CAN_EFF_FLAG) : id;
+        return new CanMessage(rawId, payload, bitRateSwitch ? (CANFD_FDF | CANFD_BRS) : CANFD_FDF);
     }
 
     public final int getId()
@@ -93,6 +149,52 @@ public class CanMessage
         return payload;
     }
 
+    // the kernel receive timestamp in nanoseconds since the epoch, 0 if unknown, see CanCommsConfig.setTimestamping()
+    //
+    public final long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    // the controller's receive timestamp in nanoseconds, 0 if the driver doesn't provide hardware timestamps
+    //
+    public final long getHardwareTimestamp()
+    {
+        return hardwareTimestamp;
+    }
+
+    final long getReceivedNanos()
+    {
+        return receivedNanos;
+    }
+
+    final long getKernelLatencyNanos()
+    {
+        return kernelLatencyNanos;
+    }
+
+    public final int getFdFlags()
+    {
+        return fdFlags;
+    }
+
+    // note, payloads longer than 8 bytes can only be carried by CAN FD frames
+    //
+    public final boolean isFdFrame()
+    {
+        return ((fdFlags & CANFD_FDF) != 0) || (payload.length > CAN_MAX_DLEN);
+    }
+
+    public final boolean isBitRateSwitch()
+    {
+        return (fdFlags & CANFD_BRS) != 0;
+    }
+
+    public final boolean isErrorStateIndicator()
+    {
+        return (fdFlags & CANFD_ESI) != 0;
+    }
+
     public final boolean isExtendedId()
     {
         return (id & CAN_EFF_FLAG) != 0;
@@ -216,6 +318,9 @@ public class CanMessage
             sb.append("EFF");
         }
 
+        if (isFdFrame()) sb.append(", FD");
+        if (isBitRateSwitch()) sb.append(", BRS");
+        if (isErrorStateIndicator()) sb.append(", ESI");
         if (isRemoteTransmissionRequest()) sb.append(", RTR");
         if (isErrorFrame()) sb.append(", ERR");     // FIXME! expand this...
         sb.append("]");
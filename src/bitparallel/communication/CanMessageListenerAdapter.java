@@ -0,0 +1,40 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+// presents a CanMessageListener as a CanFrameListener, the message is only materialised when a listener needs it
+// note, equality is delegated to the wrapped listener so that it can be found again when removing it
+//
+final class CanMessageListenerAdapter implements CanInternalFrameListener
+{
+    private final CanMessageListener listener;
+
+    CanMessageListenerAdapter(final CanMessageListener listener)
+    {
+        this.listener = listener;
+    }
+
+    public void rxedCanFrame(final CanFrame frame) throws Exception
+    {
+        listener.rxedCanMessage(frame.toMessage());
+    }
+
+    CanMessageListener getListener()
+    {
+        return listener;
+    }
+
+    @Override
+    public boolean equals(final Object other)
+    {
+        return (other instanceof CanMessageListenerAdapter) && (((CanMessageListenerAdapter)other).listener == listener);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return System.identityHashCode(listener);
+    }
+}
@@ -0,0 +1,271 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+//
+// records received frames into rolling, memory-mapped segment files using a compact fixed size binary format
+// attach using CanCommsConfig.setRecorder(), the frames are then written by the receiving thread, i.e. bypassing the listeners
+// use CanRecordingReader to read, seek by time or export a recording to the candump -L text format
+//
+// notes 1, there is a single writer, a recorder may only be shared by handlers attached to the same CanBusReactor
+//       2, each segment is sized up front and mapped once, a full segment is closed and the next one is created and mapped
+//       3, the oldest segments are deleted once there are more than maxSegments, 0 keeps every segment
+//       4, a write failure is logged and stops the recording, the handler itself carries on receiving
+//
+// segment layout (little-endian), a HEADER_SIZE header followed by fixed size records in arrival order
+//
+// bytes 0-3     : MAGIC
+// bytes 4-7     : format VERSION
+// bytes 8-11    : record size, CLASSIC_RECORD_SIZE or FD_RECORD_SIZE
+// bytes 16-23   : number of records written, updated after every batch
+// bytes 24-31   : timestamp of the first record
+// bytes 32-39   : timestamp of the trigger, CanFlightRecorder dumps only (otherwise 0)
+// bytes 40-47   : index of the first record at or after the trigger, CanFlightRecorder dumps only
+//
+// record layout (little-endian)
+//
+// bytes 0-7     : timestamp, nanoseconds since the epoch, the kernel timestamp if available otherwise the receiver's clock
+// bytes 8-11    : CAN identifier, including the EFF, RTR and ERR flags
+// byte 12       : payload length
+// byte 13       : CAN FD flags (BRS, ESI, FDF), 0 for classic frames
+// byte 14       : bus index, set by the CanBusReactor (otherwise 0)
+// byte 15       : reserved
+// bytes 16-     : payload, 8 or 64 bytes
+//
+
+public class CanRecorder implements Closeable
+{
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public static final String SEGMENT_SUFFIX = ".canrec";
+
+    static final int MAGIC = 0x43414e52;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE_OFFSET = 8;
+    static final int RECORD_COUNT_OFFSET = 16;
+    static final int FIRST_TIMESTAMP_OFFSET = 24;
+    static final int TRIGGER_TIMESTAMP_OFFSET = 32;
+    static final int TRIGGER_RECORD_OFFSET = 40;
+
+    static final int CLASSIC_RECORD_SIZE = 16 + CanMessage.CAN_MAX_DLEN;
+    static final int FD_RECORD_SIZE = 16 + CanMessage.CANFD_MAX_DLEN;
+    static final int TIMESTAMP_OFFSET = 0;
+    static final int ID_OFFSET = 8;
+    static final int LENGTH_OFFSET = 12;
+    static final int FD_FLAGS_OFFSET = 13;
+    static final int BUS_OFFSET = 14;
+    static final int DATA_OFFSET = 16;
+
+    private static final Logger logger = LogManager.getLogger(CanRecorder.class);
+
+    private final Path directory;
+    private final String prefix;
+    private final int recordSize, recordsPerSegment, maxSegments;
+    private final long epochOffsetNanos;
+    private final List<Path> segments;
+    private int segmentNumber;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long segmentRecords;
+    private volatile long recordedFrames;
+    private volatile boolean recording;
+
+    public CanRecorder(final Path directory, final String prefix) throws IOException
+    {
+        this(directory, prefix, false, DEFAULT_SEGMENT_SIZE, 0);
+    }
+
+    // note, fdFrames selects the larger CAN FD record size, it must be set if the recorded handlers use CanCommsConfig.setFdFrames(true)
+    //
+    public CanRecorder(final Path directory, final String prefix, final boolean fdFrames, final long segmentSize, final int maxSegments) throws IOException
+    {
+        if (maxSegments < 0) throw new IllegalArgumentException("The maximum number of segments can't be negative, requested: " + maxSegments);
+
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxSegments = maxSegments;
+
+        recordSize = fdFrames ? FD_RECORD_SIZE : CLASSIC_RECORD_SIZE;
+        recordsPerSegment = (int)Math.min(Integer.MAX_VALUE / recordSize, (segmentSize - HEADER_SIZE) / recordSize);
+        if (recordsPerSegment < 1) throw new IllegalArgumentException("The segment size is too small to hold a record, requested: " + segmentSize);
+
+        // note, converts System.nanoTime() to the epoch when the frames aren't timestamped by the kernel
+        //
+        epochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+        // note, existing segments are retained and numbered after, so restarting a recording never overwrites one
+        //
+        Files.createDirectories(directory);
+        segments = new ArrayList<Path>(listSegments(directory, prefix));
+        segmentNumber = segments.isEmpty() ? 0 : segmentNumberOf(segments.get(segments.size() - 1), prefix) + 1;
+
+        openSegment();
+        recording = true;
+    }
+
+    // the segment files belonging to the prefix, in recording order
+    //
+    static List<Path> listSegments(final Path directory, final String prefix) throws IOException
+    {
+        final List<Path> paths = new ArrayList<Path>();
+        final File[] files = directory.toFile().listFiles((dir, name) -> name.startsWith(prefix + "-") && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) throw new IOException("Unable to list the recording directory: " + directory);
+
+        for (File file : files)
+        {
+            if (segmentNumberOf(file.toPath(), prefix) >= 0) paths.add(file.toPath());
+        }
+
+        paths.sort((a, b) -> Integer.compare(segmentNumberOf(a, prefix), segmentNumberOf(b, prefix)));
+        return paths;
+    }
+
+    public boolean isRecording()
+    {
+        return recording;
+    }
+
+    public long getRecordedFrames()
+    {
+        return recordedFrames;
+    }
+
+    public Path getDirectory()
+    {
+        return directory;
+    }
+
+    // stops the recording and closes the current segment
+    // note, stop the recorded handlers first, as the recorder isn't synchronised with the receiving thread
+    //
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (!recording) return;
+
+        recording = false;
+        closeSegment();
+    }
+
+    //
+    // writer side, only called by the single receiving thread
+    //
+
+    // records count frames held in consecutive ring slots, updateNanos is used if the frames weren't timestamped
+    //
+    void record(final ByteBuffer frames, final int offset, final int slotSize, final int count, final long updateNanos)
+    {
+        if (!recording) return;
+
+        final boolean swap = frames.order() != ByteOrder.LITTLE_ENDIAN;
+        final int trailerOffset = CanFrameRing.trailerOffset(slotSize);
+        final int maxLength = recordSize - DATA_OFFSET;
+        for (int i = 0; i < count; i++)
+        {
+            if ((segmentRecords == recordsPerSegment) && !nextSegment())
+            {
+                recordedFrames += i;
+                return;
+            }
+
+            final int frameOffset = offset + (i * slotSize);
+            final int length = Math.min(frames.get(frameOffset + CanFrameRing.LENGTH_OFFSET) & 0xff, maxLength);
+            final long kernelTimestamp = frames.getLong(frameOffset + trailerOffset + CanFrameRing.SOFTWARE_TIMESTAMP_OFFSET);
+            final long receivedNanos = frames.getLong(frameOffset + trailerOffset + CanFrameRing.RECEIVED_NANOS_OFFSET);
+            final long timestamp = (kernelTimestamp != 0) ? kernelTimestamp : epochOffsetNanos + ((receivedNanos != 0) ? receivedNanos : updateNanos);
+
+            final int recordOffset = HEADER_SIZE + (int)segmentRecords * recordSize;
+            segment.putLong(recordOffset + TIMESTAMP_OFFSET, timestamp);
+            segment.putInt(recordOffset + ID_OFFSET, frames.getInt(frameOffset + CanFrameRing.ID_OFFSET));
+            segment.put(recordOffset + LENGTH_OFFSET, (byte)length);
+            segment.put(recordOffset + FD_FLAGS_OFFSET, frames.get(frameOffset + CanFrameRing.FD_FLAGS_OFFSET));
+            segment.put(recordOffset + BUS_OFFSET, frames.get(frameOffset + CanFrameRing.BUS_OFFSET));
+
+            // note, whole payload words are copied, any bytes beyond the length are left as received
+            //
+            final int words = (length + 7) >>> 3;
+            for (int w = 0; w < words; w++)
+            {
+                final long word = frames.getLong(frameOffset + CanFrameRing.DATA_OFFSET + (w << 3));
+                segment.putLong(recordOffset + DATA_OFFSET + (w << 3), swap ? Long.reverseBytes(word) : word);
+            }
+
+            if (segmentRecords == 0) segment.putLong(FIRST_TIMESTAMP_OFFSET, timestamp);
+            segmentRecords++;
+        }
+
+        segment.putLong(RECORD_COUNT_OFFSET, segmentRecords);
+        recordedFrames += count;
+    }
+
+    private boolean nextSegment()
+    {
+        try
+        {
+            segment.putLong(RECORD_COUNT_OFFSET, segmentRecords);
+            closeSegment();
+            openSegment();
+            return true;
+        }
+        catch (final IOException ex)
+        {
+            recording = false;
+            logger.error("Unable to create the next recording segment in " + directory + ", the recording has stopped, reason: " + ex.getMessage(), ex);
+            return false;
+        }
+    }
+
+    private void openSegment() throws IOException
+    {
+        final Path path = directory.resolve(String.format("%s-%06d%s", prefix, segmentNumber++, SEGMENT_SUFFIX));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)recordsPerSegment * recordSize);
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, VERSION);
+        segment.putInt(RECORD_SIZE_OFFSET, recordSize);
+        segment.putLong(RECORD_COUNT_OFFSET, 0);
+        segmentRecords = 0;
+
+        segments.add(path);
+        while ((maxSegments > 0) && (segments.size() > maxSegments)) Files.deleteIfExists(segments.remove(0));
+    }
+
+    private void closeSegment() throws IOException
+    {
+        segment.force();
+        channel.close();
+    }
+
+    private static int segmentNumberOf(final Path path, final String prefix)
+    {
+        final String name = path.getFileName().toString();
+        try
+        {
+            return Integer.parseInt(name.substring(prefix.length() + 1, name.length() - SEGMENT_SUFFIX.length()));
+        }
+        catch (final NumberFormatException | IndexOutOfBoundsException ex)
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+//
+// reads a recording made by CanRecorder, one frame at a time, i.e. a cursor over the records of every segment
+// call next() to advance, then read the current frame using the getters, reading allocates nothing unless toMessage() is used
+//
+// notes 1, seek() uses each segment's first timestamp to select the segment, then a binary search over its fixed size records
+//       2, the records are in arrival order, i.e. with several buses the timestamps may be slightly out of order, seek() is then approximate
+//       3, a segment that is still being recorded can be read, only the records written when it was opened are visible
+//
+
+public class CanRecordingReader implements CanTraceSource
+{
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final List<Path> segments;
+    private final long[] firstTimestamps;
+    private final StringBuilder line;
+    private int segmentIndex, recordSize;
+    private long segmentRecords, position;
+    private MappedByteBuffer segment;
+    private int recordOffset;
+
+    public CanRecordingReader(final Path directory, final String prefix) throws IOException
+    {
+        segments = CanRecorder.listSegments(directory, prefix);
+        firstTimestamps = new long[segments.size()];
+        line = new StringBuilder(200);
+
+        for (int i = 0; i < segments.size(); i++)
+        {
+            openSegment(i);
+            firstTimestamps[i] = (segmentRecords == 0) ? Long.MAX_VALUE : segment.getLong(CanRecorder.FIRST_TIMESTAMP_OFFSET);
+        }
+
+        rewind();
+    }
+
+    public int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    // positions the cursor before the first frame, the next call to next() reads it
+    //
+    public void rewind()
+    {
+        segment = null;
+        segmentIndex = -1;
+        segmentRecords = 0;
+        position = 0;
+    }
+
+    // advances to the next frame, returns false once every segment has been read
+    //
+    @Override
+    public boolean next() throws IOException
+    {
+        while (position >= segmentRecords)
+        {
+            if ((segmentIndex + 1) >= segments.size()) return false;
+
+            openSegment(segmentIndex + 1);
+            position = 0;
+        }
+
+        recordOffset = CanRecorder.HEADER_SIZE + (int)position++ * recordSize;
+        return true;
+    }
+
+    // positions the cursor so that the next call to next() reads the first frame with a timestamp at or after the supplied time
+    // note, the time is in nanoseconds since the epoch, returns false if every frame was recorded before it
+    //
+    public boolean seek(final long timestamp) throws IOException
+    {
+        // the last segment that starts at or before the requested time, the frame may also be at the start of the following one
+        //
+        int index = 0;
+        for (int i = 0; i < firstTimestamps.length; i++)
+        {
+            if (firstTimestamps[i] <= timestamp) index = i;
+        }
+
+        for (int i = index; i < segments.size(); i++)
+        {
+            openSegment(i);
+
+            long low = 0;
+            long high = segmentRecords;
+            while (low < high)
+            {
+                final long middle = (low + high) >>> 1;
+                if (timestampAt(middle) < timestamp)
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+
+            if (low < segmentRecords)
+            {
+                position = low;
+                return true;
+            }
+        }
+
+        position = segmentRecords;
+        return false;
+    }
+
+    @Override
+    public void close()
+    {
+        segment = null;
+        segmentRecords = 0;
+        position = 0;
+    }
+
+    //
+    // the current frame, valid after next() returns true
+    //
+
+    // nanoseconds since the epoch
+    //
+    @Override
+    public long getTimestamp()
+    {
+        return segment.getLong(recordOffset + CanRecorder.TIMESTAMP_OFFSET);
+    }
+
+    public int getRawId()
+    {
+        return segment.getInt(recordOffset + CanRecorder.ID_OFFSET);
+    }
+
+    public int getId()
+    {
+        return getRawId() & CanMessage.CAN_ERR_MASK;
+    }
+
+    public int getDlc()
+    {
+        return segment.get(recordOffset + CanRecorder.LENGTH_OFFSET) & 0xff;
+    }
+
+    public int getFdFlags()
+    {
+        return segment.get(recordOffset + CanRecorder.FD_FLAGS_OFFSET) & 0xff;
+    }
+
+    public boolean isFdFrame()
+    {
+        return (getFdFlags() & CanMessage.CANFD_FDF) != 0;
+    }
+
+    public int getBusIndex()
+    {
+        return segment.get(recordOffset + CanRecorder.BUS_OFFSET) & 0xff;
+    }
+
+    public byte getByte(final int index)
+    {
+        if ((index < 0) || (index >= getDlc())) throw new IndexOutOfBoundsException("Payload access out of range, offset: " + index + ", DLC: " + getDlc());
+        return segment.get(recordOffset + CanRecorder.DATA_OFFSET + index);
+    }
+
+    // copies the payload into the supplied array, returns the number of bytes copied
+    //
+    public int copyPayload(final byte[] destination)
+    {
+        final int length = Math.min(getDlc(), destination.length);
+        for (int i = 0; i < length; i++) destination[i] = segment.get(recordOffset + CanRecorder.DATA_OFFSET + i);
+
+        return length;
+    }
+
+    // materialises the current frame as a new CanMessage, e.g. to transmit it
+    //
+    @Override
+    public CanMessage toMessage()
+    {
+        final byte[] payload = new byte[getDlc()];
+        copyPayload(payload);
+
+        return new CanMessage(getRawId(), payload, getFdFlags(), getTimestamp());
+    }
+
+    //
+    // candump -L export, e.g. (1636112432.123456) can0 123#1122334455667788
+    //
+
+    // writes the current frame as a single candump -L line, excluding the line separator
+    // note, devices is indexed by the bus index, i.e. a single device name is used for a single bus recording
+    //
+    public void appendCandump(final Appendable out, final String... devices) throws IOException
+    {
+        final long timestamp = getTimestamp();
+        final long seconds = timestamp / 1_000_000_000L;
+        final long micros = (timestamp % 1_000_000_000L) / 1_000L;
+        final int busIndex = getBusIndex();
+
+        line.setLength(0);
+        line.append('(');
+        appendDecimal(seconds, 10);
+        line.append('.');
+        appendDecimal(micros, 6);
+        line.append(") ");
+        line.append((busIndex < devices.length) ? devices[busIndex] : devices[0]);
+        line.append(' ');
+
+        // note, matches the can-utils formatting, i.e. 3 digit standard IDs, 8 digit extended IDs and error frames (including the ERR flag)
+        //
+        final int rawId = getRawId();
+        if ((rawId & CanMessage.CAN_ERR_FLAG) != 0)
+        {
+            appendHex(rawId & (CanMessage.CAN_ERR_MASK | CanMessage.CAN_ERR_FLAG), 8);
+        }
+        else if ((rawId & CanMessage.CAN_EFF_FLAG) != 0)
+        {
+            appendHex(rawId & CanMessage.CAN_EFF_MASK, 8);
+        }
+        else
+        {
+            appendHex(rawId & CanMessage.CAN_SFF_MASK, 3);
+        }
+
+        line.append('#');
+        final int length = getDlc();
+        if (isFdFrame())
+        {
+            line.append('#');
+            line.append(HEX_DIGITS[getFdFlags() & (CanMessage.CANFD_BRS | CanMessage.CANFD_ESI)]);
+        }
+        else if ((rawId & CanMessage.CAN_RTR_FLAG) != 0)
+        {
+            line.append('R');
+            if (length > 0) line.append(HEX_DIGITS[Math.min(length, CanMessage.CAN_MAX_DLEN)]);
+            out.append(line);
+            return;
+        }
+
+        for (int i = 0; i < length; i++)
+        {
+            final int value = segment.get(recordOffset + CanRecorder.DATA_OFFSET + i) & 0xff;
+            line.append(HEX_DIGITS[value >>> 4]);
+            line.append(HEX_DIGITS[value & 0x0f]);
+        }
+
+        out.append(line);
+    }
+
+    // exports the frames with timestamps in the range [from, to), returns the number of frames written
+    // note, use Long.MIN_VALUE and Long.MAX_VALUE to export the whole recording, the cursor is left after the last exported frame
+    //
+    public long exportCandump(final Appendable out, final long from, final long to, final String... devices) throws IOException
+    {
+        if (devices.length == 0) throw new IllegalArgumentException("At least one device name is required");
+        if (!seek(from)) return 0;
+
+        long count = 0;
+        while (next())
+        {
+            if (getTimestamp() >= to) break;
+
+            appendCandump(out, devices);
+            out.append('\n');
+            count++;
+        }
+
+        return count;
+    }
+
+    private long timestampAt(final long index)
+    {
+        return segment.getLong(CanRecorder.HEADER_SIZE + (int)index * recordSize + CanRecorder.TIMESTAMP_OFFSET);
+    }
+
+    private void openSegment(final int index) throws IOException
+    {
+        if ((segment != null) && (segmentIndex == index)) return;
+
+        try (final FileChannel channel = FileChannel.open(segments.get(index), StandardOpenOption.READ))
+        {
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if ((mapped.capacity() < CanRecorder.HEADER_SIZE) || (mapped.getInt(0) != CanRecorder.MAGIC)) throw new IOException("Not a CAN recording segment: " + segments.get(index));
+            if (mapped.getInt(4) != CanRecorder.VERSION) throw new IOException("Unsupported CAN recording version " + mapped.getInt(4) + ": " + segments.get(index));
+
+            segment = mapped;
+            segmentIndex = index;
+            recordSize = mapped.getInt(CanRecorder.RECORD_SIZE_OFFSET);
+            segmentRecords = Math.min(mapped.getLong(CanRecorder.RECORD_COUNT_OFFSET), (mapped.capacity() - CanRecorder.HEADER_SIZE) / recordSize);
+            position = 0;
+        }
+    }
+
+    private void appendDecimal(final long value, final int digits)
+    {
+        final String text = Long.toString(value);
+        for (int i = text.length(); i < digits; i++) line.append('0');
+        line.append(text);
+    }
+
+    private void appendHex(final int value, final int digits)
+    {
+        for (int shift = (digits - 1) << 2; shift >= 0; shift -= 4) line.append(HEX_DIGITS[(value >>> shift) & 0x0f]);
+    }
+}
@@ -0,0 +1,129 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+//
+// replays a recorded trace onto a bus using CanCommsHandler.transmit(), e.g. to reproduce field load on the bench
+//
+// notes 1, each frame is scheduled against an absolute deadline, i.e. the start time plus its (scaled) offset into the trace
+//          so a late frame doesn't delay those that follow it and the timing error never accumulates (drift correction)
+//       2, the replay thread parks until SPIN_THRESHOLD_NANOS before each deadline and then spins, trading CPU for accuracy
+//       3, if the replay falls more than REBASE_THRESHOLD_NANOS behind (e.g. a long GC pause) the schedule is moved on
+//          rather than sending the backlog as a burst, see CanReplayResult.getRebaseCount()
+//       4, error frames are skipped, a failed transmit is counted and the replay carries on
+//       5, replay() runs on the calling thread, stop() may be called from any other thread
+//
+
+public class CanReplay
+{
+    // no timing, the frames are transmitted as fast as the handler accepts them
+    //
+    public static final double MAX_SPEED = 0;
+
+    public static final long SPIN_THRESHOLD_NANOS = 200_000;
+    public static final long REBASE_THRESHOLD_NANOS = 50_000_000;
+
+    private static final Logger logger = LogManager.getLogger(CanReplay.class);
+
+    private final CanCommsHandler handler;
+    private volatile boolean stopped;
+
+    public CanReplay(final CanCommsHandler handler)
+    {
+        this.handler = handler;
+    }
+
+    // replays the trace in real time
+    //
+    public CanReplayResult replay(final CanTraceSource source) throws IOException
+    {
+        return replay(source, 1.0);
+    }
+
+    // speed scales the original timing, e.g. 2.0 replays twice as fast and 0.5 at half speed, use MAX_SPEED for no timing
+    // note, the source is read to the end (or until stopped) but isn't closed
+    //
+    public CanReplayResult replay(final CanTraceSource source, final double speed) throws IOException
+    {
+        if ((speed < 0) || Double.isNaN(speed) || Double.isInfinite(speed)) throw new IllegalArgumentException("The replay speed must be positive or MAX_SPEED, requested: " + speed);
+
+        stopped = false;
+        final boolean timed = speed != MAX_SPEED;
+        final LatencyHistogram timingError = new LatencyHistogram();
+        long frames = 0, skipped = 0, transmitErrors = 0, rebases = 0;
+        long firstTimestamp = Long.MIN_VALUE;
+        final long beginNanos = System.nanoTime();
+        long startNanos = beginNanos;
+
+        while (!stopped && source.next())
+        {
+            final CanMessage message = source.toMessage();
+            if (message.isErrorFrame())
+            {
+                skipped++;
+                continue;
+            }
+
+            if (timed)
+            {
+                if (firstTimestamp == Long.MIN_VALUE) firstTimestamp = source.getTimestamp();
+
+                final long deadline = startNanos + (long)((source.getTimestamp() - firstTimestamp) / speed);
+                long lateness = waitUntil(deadline);
+                if (lateness > REBASE_THRESHOLD_NANOS)
+                {
+                    startNanos += lateness;
+                    lateness = 0;
+                    rebases++;
+                }
+
+                timingError.record(lateness);
+            }
+
+            try
+            {
+                handler.transmit(message);
+                frames++;
+            }
+            catch (final IOException ex)
+            {
+                if (transmitErrors++ == 0) logger.warn("Unable to transmit a replayed frame, reason: " + ex.getMessage());
+            }
+        }
+
+        final CanReplayResult result = new CanReplayResult(frames, skipped, transmitErrors, rebases, System.nanoTime() - beginNanos, timed ? timingError : null);
+        logger.info("Replay on " + handler.getDevice() + " complete, " + result);
+
+        return result;
+    }
+
+    // stops a replay in progress, the current frame is completed first
+    //
+    public void stop()
+    {
+        stopped = true;
+    }
+
+    // returns how late the deadline was met, never negative
+    //
+    private long waitUntil(final long deadline)
+    {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > SPIN_THRESHOLD_NANOS)
+        {
+            if (stopped) return 0;
+            LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+        }
+
+        while ((remaining = deadline - System.nanoTime()) > 0) Thread.onSpinWait();
+        return -remaining;
+    }
+}
@@ -0,0 +1,90 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+// the outcome of a CanReplay, i.e. the achieved throughput and how closely the original timing was reproduced
+//
+public class CanReplayResult
+{
+    private final long frames, skipped, transmitErrors, rebases, elapsedNanos;
+    private final LatencyHistogram timingError;
+
+    CanReplayResult(final long frames, final long skipped, final long transmitErrors, final long rebases, final long elapsedNanos, final LatencyHistogram timingError)
+    {
+        this.frames = frames;
+        this.skipped = skipped;
+        this.transmitErrors = transmitErrors;
+        this.rebases = rebases;
+        this.elapsedNanos = elapsedNanos;
+        this.timingError = timingError;
+    }
+
+    // the number of frames transmitted
+    //
+    public long getFrames()
+    {
+        return frames;
+    }
+
+    // frames that can't be transmitted, i.e. error frames
+    //
+    public long getSkippedFrames()
+    {
+        return skipped;
+    }
+
+    public long getTransmitErrors()
+    {
+        return transmitErrors;
+    }
+
+    // the number of times the schedule was moved on because the replay fell too far behind, see CanReplay.REBASE_THRESHOLD_NANOS
+    //
+    public long getRebaseCount()
+    {
+        return rebases;
+    }
+
+    public long getElapsedNanos()
+    {
+        return elapsedNanos;
+    }
+
+    public double getFramesPerSecond()
+    {
+        return (elapsedNanos == 0) ? 0 : (frames * 1_000_000_000.0) / elapsedNanos;
+    }
+
+    // how late each frame was transmitted relative to its scheduled time, or null for a CanReplay.MAX_SPEED replay
+    //
+    public LatencyHistogram getTimingError()
+    {
+        return timingError;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuffer sb = new StringBuffer();
+        sb.append("frames: ");
+        sb.append(frames);
+        sb.append(", skipped: ");
+        sb.append(skipped);
+        sb.append(", transmit errors: ");
+        sb.append(transmitErrors);
+        sb.append(String.format(", elapsed: %.3f s", elapsedNanos / 1_000_000_000.0));
+        sb.append(String.format(", rate: %.1f frames/s", getFramesPerSecond()));
+        if (timingError != null)
+        {
+            sb.append(", rebases: ");
+            sb.append(rebases);
+            sb.append(", timing error [");
+            sb.append(timingError);
+            sb.append("]");
+        }
+
+        return sb.toString();
+    }
+}
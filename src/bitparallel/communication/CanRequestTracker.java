@@ -0,0 +1,128 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+//
+// matches received frames against the outstanding CanCommsHandler.request() calls, see CanCommsHandler.request()
+//
+// notes 1, the outstanding requests are held in an ID keyed map, i.e. a received frame costs a single lookup however many are pending
+//       2, requests awaiting the same response ID are answered in the order they were made
+//       3, the timeouts are expired by a shared CanTimerWheel, rather than a scheduled task per request
+//       4, the futures are completed by the handler's listener thread (or the timer wheel thread on timeout), dependent actions that
+//          are not quick should use the CompletableFuture async methods
+//
+
+final class CanRequestTracker implements CanInternalFrameListener
+{
+    static final class PendingRequest
+    {
+        private final int responseKey;
+        private final CompletableFuture<CanMessage> future;
+        private CanTimerWheel.Timeout timeout;
+
+        private PendingRequest(final int responseKey)
+        {
+            this.responseKey = responseKey;
+            future = new CompletableFuture<CanMessage>();
+        }
+
+        CompletableFuture<CanMessage> getFuture()
+        {
+            return future;
+        }
+    }
+
+    private final CanTimerWheel timerWheel;
+    private final IntObjectMap<ArrayDeque<PendingRequest>> pending;
+    private int pendingCount;
+
+    CanRequestTracker(final String device, final long timerTickMs)
+    {
+        timerWheel = new CanTimerWheel(device, timerTickMs, TimeUnit.MILLISECONDS);
+        pending = new IntObjectMap<ArrayDeque<PendingRequest>>();
+        pendingCount = 0;
+    }
+
+    // registered before the request is transmitted, so that an immediate response can't be missed
+    //
+    PendingRequest register(final int responseId, final long timeoutNanos)
+    {
+        final PendingRequest request = new PendingRequest(CanListenerTable.toKey(responseId));
+        synchronized (this)
+        {
+            // note, the timeout can't expire the request until it has been added, as expiring requires this lock
+            //
+            request.timeout = timerWheel.schedule(() -> expire(request, timeoutNanos), timeoutNanos, TimeUnit.NANOSECONDS);
+
+            ArrayDeque<PendingRequest> requests = pending.get(request.responseKey);
+            if (requests == null)
+            {
+                requests = new ArrayDeque<PendingRequest>();
+                pending.put(request.responseKey, requests);
+            }
+
+            requests.add(request);
+            pendingCount++;
+        }
+
+        return request;
+    }
+
+    // used when the request couldn't be transmitted
+    //
+    void fail(final PendingRequest request, final Throwable cause)
+    {
+        if (remove(request)) request.future.completeExceptionally(cause);
+    }
+
+    synchronized int getPendingCount()
+    {
+        return pendingCount;
+    }
+
+    @Override
+    public void rxedCanFrame(final CanFrame frame)
+    {
+        if (!frame.isDataFrame() || frame.isRemoteTransmissionRequest()) return;
+
+        PendingRequest request = null;
+        synchronized (this)
+        {
+            final ArrayDeque<PendingRequest> requests = pending.get(CanListenerTable.toKey(frame.getRawId()));
+            if (requests == null) return;
+
+            // note, requests that the caller has cancelled are skipped
+            //
+            while (((request = requests.poll()) != null) && request.future.isDone()) pendingCount--;
+            if (request != null) pendingCount--;
+            if (requests.isEmpty()) pending.remove(CanListenerTable.toKey(frame.getRawId()));
+        }
+
+        if (request == null) return;
+
+        request.timeout.cancel();
+        request.future.complete(frame.toMessage());
+    }
+
+    private void expire(final PendingRequest request, final long timeoutNanos)
+    {
+        if (remove(request)) request.future.completeExceptionally(new TimeoutException("No response from CAN ID 0x" + Integer.toHexString(request.responseKey & CanMessage.CAN_EFF_MASK) + " within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms"));
+    }
+
+    private synchronized boolean remove(final PendingRequest request)
+    {
+        final ArrayDeque<PendingRequest> requests = pending.get(request.responseKey);
+        if ((requests == null) || !requests.remove(request)) return false;
+
+        pendingCount--;
+        if (requests.isEmpty()) pending.remove(request.responseKey);
+        return true;
+    }
+}
@@ -0,0 +1,232 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+//
+// a single signal definition, compiled into the byte window and shifts needed to extract it, see CanSignalDatabase
+// decoding reads the covered payload bytes into a long and then shifts, masks and sign extends it, i.e. nothing is allocated
+//
+// notes 1, the start bit and byte order follow the DBC convention, i.e. the start bit is the LSB of an Intel (little-endian)
+//          signal and the MSB of a Motorola (big-endian) signal, bits are numbered from bit 0 of byte 0 upwards
+//       2, a signal may be up to 64 bits long but must lie within 8 consecutive payload bytes
+//       3, payload bytes beyond the frame's DLC read as zero
+//
+
+public final class CanSignal
+{
+    public static final int NOT_MULTIPLEXED = -1;
+
+    private final String name, unit;
+    private final int startBit, length;
+    private final boolean bigEndian, signed, multiplexor;
+    private final int multiplexValue;
+    private final double factor, offset, minimum, maximum;
+
+    // the compiled extraction, the first payload byte, the number of bytes covered and the right shift of the assembled window
+    //
+    private final int firstByte, byteCount, shift;
+    private final long mask;
+
+    public CanSignal(final String name, final int startBit, final int length, final boolean bigEndian, final boolean signed, final double factor, final double offset)
+    {
+        this(name, startBit, length, bigEndian, signed, factor, offset, 0, 0, "", false, NOT_MULTIPLEXED);
+    }
+
+    // note, a multiplexor signal selects which of the message's multiplexed signals are present, i.e. those whose multiplexValue it equals
+    //
+    public CanSignal(final String name, final int startBit, final int length, final boolean bigEndian, final boolean signed, final double factor, final double offset, final double minimum, final double maximum, final String unit, final boolean multiplexor, final int multiplexValue)
+    {
+        if ((length < 1) || (length > 64)) throw new IllegalArgumentException("The length of signal " + name + " must be from 1 to 64 bits, requested: " + length);
+        if ((startBit < 0) || (startBit >= (CanMessage.CANFD_MAX_DLEN << 3))) throw new IllegalArgumentException("The start bit of signal " + name + " is out of range: " + startBit);
+
+        this.name = name;
+        this.startBit = startBit;
+        this.length = length;
+        this.bigEndian = bigEndian;
+        this.signed = signed;
+        this.factor = factor;
+        this.offset = offset;
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.unit = unit;
+        this.multiplexor = multiplexor;
+        this.multiplexValue = multiplexValue;
+
+        mask = (length == 64) ? -1L : (1L << length) - 1;
+        if (bigEndian)
+        {
+            // the MSB is bit (startBit % 8) of byte (startBit / 8), the signal then continues into the following bytes
+            //
+            final int msbBits = (startBit & 7) + 1;
+            firstByte = startBit >>> 3;
+            byteCount = (length <= msbBits) ? 1 : 1 + ((length - msbBits + 7) >>> 3);
+            shift = (byteCount << 3) - (8 - msbBits) - length;
+        }
+        else
+        {
+            firstByte = startBit >>> 3;
+            byteCount = ((startBit & 7) + length + 7) >>> 3;
+            shift = startBit & 7;
+        }
+
+        if (byteCount > 8) throw new IllegalArgumentException("Signal " + name + " spans more than 8 payload bytes");
+        if ((firstByte + byteCount) > CanMessage.CANFD_MAX_DLEN) throw new IllegalArgumentException("Signal " + name + " extends beyond the largest payload");
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getUnit()
+    {
+        return unit;
+    }
+
+    public int getStartBit()
+    {
+        return startBit;
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    public boolean isBigEndian()
+    {
+        return bigEndian;
+    }
+
+    public boolean isSigned()
+    {
+        return signed;
+    }
+
+    public double getFactor()
+    {
+        return factor;
+    }
+
+    public double getOffset()
+    {
+        return offset;
+    }
+
+    public double getMinimum()
+    {
+        return minimum;
+    }
+
+    public double getMaximum()
+    {
+        return maximum;
+    }
+
+    public boolean isMultiplexor()
+    {
+        return multiplexor;
+    }
+
+    // the multiplexor value that selects this signal, or NOT_MULTIPLEXED
+    //
+    public int getMultiplexValue()
+    {
+        return multiplexValue;
+    }
+
+    // true if a payload of the length holds every bit of the signal, otherwise getRaw() reads the missing bytes as 0
+    //
+    public boolean isCoveredBy(final int payloadLength)
+    {
+        return (firstByte + byteCount) <= payloadLength;
+    }
+
+    //
+    // decoding, the raw value is sign extended for signed signals, the physical value is raw * factor + offset
+    //
+
+    public long getRaw(final CanFrame frame)
+    {
+        final int dlc = frame.getDlc();
+        long window = 0;
+        if (bigEndian)
+        {
+            for (int i = firstByte; i < (firstByte + byteCount); i++) window = (window << 8) | ((i < dlc) ? (frame.getByte(i) & 0xff) : 0);
+        }
+        else
+        {
+            for (int i = firstByte + byteCount - 1; i >= firstByte; i--) window = (window << 8) | ((i < dlc) ? (frame.getByte(i) & 0xff) : 0);
+        }
+
+        return extend(window);
+    }
+
+    public long getRaw(final byte[] payload)
+    {
+        long window = 0;
+        if (bigEndian)
+        {
+            for (int i = firstByte; i < (firstByte + byteCount); i++) window = (window << 8) | ((i < payload.length) ? (payload[i] & 0xff) : 0);
+        }
+        else
+        {
+            for (int i = firstByte + byteCount - 1; i >= firstByte; i--) window = (window << 8) | ((i < payload.length) ? (payload[i] & 0xff) : 0);
+        }
+
+        return extend(window);
+    }
+
+    public double getValue(final CanFrame frame)
+    {
+        return toPhysical(getRaw(frame));
+    }
+
+    public double getValue(final byte[] payload)
+    {
+        return toPhysical(getRaw(payload));
+    }
+
+    public double getValue(final CanMessage message)
+    {
+        return toPhysical(getRaw(message.getPayload()));
+    }
+
+    public double toPhysical(final long raw)
+    {
+        return (raw * factor) + offset;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuffer sb = new StringBuffer();
+        sb.append(name);
+        sb.append(" (");
+        sb.append(startBit);
+        sb.append("|");
+        sb.append(length);
+        sb.append(bigEndian ? "@0" : "@1");
+        sb.append(signed ? "-" : "+");
+        sb.append(", factor: ");
+        sb.append(factor);
+        sb.append(", offset: ");
+        sb.append(offset);
+        if (!unit.isEmpty())
+        {
+            sb.append(", unit: ");
+            sb.append(unit);
+        }
+
+        sb.append(")");
+        return sb.toString();
+    }
+
+    private long extend(final long window)
+    {
+        final long raw = (window >>> shift) & mask;
+        return (signed && (length < 64)) ? (raw << (64 - length)) >> (64 - length) : raw;
+    }
+}
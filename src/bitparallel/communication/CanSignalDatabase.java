@@ -0,0 +1,153 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//
+// a set of message and signal definitions, compiled into one CanSignalDecoder per CAN ID
+// the definitions are usually loaded from a DBC file, e.g. CanSignalDatabase.load(Paths.get("vehicle.dbc"))
+//
+// notes 1, only the BO_ (message) and SG_ (signal) entries are used, every other DBC entry is ignored
+//       2, simple multiplexing is supported (M and mN), extended multiplexing and IEEE float signals (SIG_VALTYPE_) are not
+//       3, as in the DBC format, bit 31 of a message ID marks an extended ID, i.e. it matches CanMessage.CAN_EFF_FLAG
+//       4, immutable once loaded, so a database can be shared by any number of threads
+//
+
+public final class CanSignalDatabase
+{
+    private static final Pattern MESSAGE = Pattern.compile("^BO_\\s+(\\d+)\\s+(\\w+)\\s*:\\s*(\\d+)\\s*(\\S*)");
+    private static final Pattern SIGNAL = Pattern.compile("^SG_\\s+(\\w+)\\s*(M|m\\d+M?)?\\s*:\\s*(\\d+)\\|(\\d+)@([01])([+-])\\s*\\(([^,]+),([^)]+)\\)\\s*\\[([^|]*)\\|([^\\]]*)\\]\\s*\"([^\"]*)\"");
+
+    private final IntObjectMap<CanSignalDecoder> byId;
+    private final Map<String, CanSignalDecoder> byName;
+
+    public CanSignalDatabase(final Collection<CanSignalDecoder> decoders)
+    {
+        byId = new IntObjectMap<CanSignalDecoder>(decoders.size());
+        byName = new LinkedHashMap<String, CanSignalDecoder>();
+        for (CanSignalDecoder decoder : decoders)
+        {
+            if (byId.put(decoder.getRawId(), decoder) != null) throw new IllegalArgumentException("The CAN ID of message " + decoder.getName() + " is defined more than once");
+            byName.put(decoder.getName(), decoder);
+        }
+    }
+
+    public static CanSignalDatabase load(final Path file) throws IOException
+    {
+        try (final Reader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1))
+        {
+            return parse(reader);
+        }
+    }
+
+    public static CanSignalDatabase parse(final Reader source) throws IOException
+    {
+        final BufferedReader reader = (source instanceof BufferedReader) ? (BufferedReader)source : new BufferedReader(source);
+        final List<CanSignalDecoder> decoders = new ArrayList<CanSignalDecoder>();
+        final List<CanSignal> signals = new ArrayList<CanSignal>();
+
+        int lineNumber = 0;
+        int messageId = 0, messageDlc = 0;
+        String messageName = null;
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            lineNumber++;
+            line = line.trim();
+            if (line.startsWith("BO_ "))
+            {
+                if (messageName != null) decoders.add(new CanSignalDecoder(messageId, messageName, messageDlc, signals.toArray(new CanSignal[0])));
+                signals.clear();
+
+                final Matcher matcher = MESSAGE.matcher(line);
+                if (!matcher.find()) throw new IOException("Invalid DBC message definition at line " + lineNumber + ": " + line);
+
+                messageId = (int)Long.parseLong(matcher.group(1));
+                messageName = matcher.group(2);
+                messageDlc = Integer.parseInt(matcher.group(3));
+            }
+            else if (line.startsWith("SG_ "))
+            {
+                final Matcher matcher = SIGNAL.matcher(line);
+                if (!matcher.find()) throw new IOException("Invalid DBC signal definition at line " + lineNumber + ": " + line);
+                if (messageName == null) throw new IOException("DBC signal definition without a message at line " + lineNumber + ": " + line);
+
+                try
+                {
+                    signals.add(toSignal(matcher));
+                }
+                catch (final IllegalArgumentException ex)
+                {
+                    throw new IOException("Invalid DBC signal definition at line " + lineNumber + ", reason: " + ex.getMessage());
+                }
+            }
+        }
+
+        if (messageName != null) decoders.add(new CanSignalDecoder(messageId, messageName, messageDlc, signals.toArray(new CanSignal[0])));
+        return new CanSignalDatabase(decoders);
+    }
+
+    // the decoder for a received frame's raw ID (i.e. CanFrame.getRawId()), or null if the ID isn't defined
+    //
+    public CanSignalDecoder getDecoder(final int rawId)
+    {
+        return byId.get(rawId & (CanMessage.CAN_EFF_FLAG | CanMessage.CAN_EFF_MASK));
+    }
+
+    public CanSignalDecoder getDecoder(final String messageName)
+    {
+        return byName.get(messageName);
+    }
+
+    public Collection<CanSignalDecoder> getDecoders()
+    {
+        return byName.values();
+    }
+
+    // returns null if either the message or the signal isn't defined
+    //
+    public CanSignal getSignal(final String messageName, final String signalName)
+    {
+        final CanSignalDecoder decoder = byName.get(messageName);
+        return (decoder == null) ? null : decoder.getSignal(signalName);
+    }
+
+    private static CanSignal toSignal(final Matcher matcher)
+    {
+        final String multiplexing = matcher.group(2);
+        final boolean multiplexor = "M".equals(multiplexing);
+        final int multiplexValue = ((multiplexing == null) || multiplexor) ? CanSignal.NOT_MULTIPLEXED : Integer.parseInt(multiplexing.replace("M", "").substring(1));
+
+        final String name = matcher.group(1);
+        final int startBit = Integer.parseInt(matcher.group(3));
+        final int length = Integer.parseInt(matcher.group(4));
+        final boolean bigEndian = "0".equals(matcher.group(5));
+        final boolean signed = "-".equals(matcher.group(6));
+        final double factor = Double.parseDouble(matcher.group(7).trim());
+        final double offset = Double.parseDouble(matcher.group(8).trim());
+        final double minimum = parseOptional(matcher.group(9));
+        final double maximum = parseOptional(matcher.group(10));
+
+        return new CanSignal(name, startBit, length, bigEndian, signed, factor, offset, minimum, maximum, matcher.group(11), multiplexor, multiplexValue);
+    }
+
+    private static double parseOptional(final String value)
+    {
+        return value.trim().isEmpty() ? 0 : Double.parseDouble(value.trim());
+    }
+}
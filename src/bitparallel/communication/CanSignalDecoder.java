@@ -0,0 +1,107 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.Arrays;
+
+//
+// the compiled signal table of a single CAN ID (a DBC message), see CanSignalDatabase
+// note, immutable, so a decoder can be shared by any number of listener threads
+//
+
+public final class CanSignalDecoder
+{
+    private final int rawId, dlc;
+    private final String name;
+    private final CanSignal[] signals;
+    private final CanSignal multiplexor;
+
+    // note, as CanCommsHandler.addFrameListener(), an ID with the EFF flag set (or one that doesn't fit into 11 bits) is an extended ID
+    //
+    public CanSignalDecoder(final int id, final String name, final int dlc, final CanSignal[] signals)
+    {
+        this.rawId = CanListenerTable.toKey(id);
+        this.name = name;
+        this.dlc = dlc;
+        this.signals = signals.clone();
+
+        CanSignal found = null;
+        for (CanSignal signal : signals)
+        {
+            if (!signal.isMultiplexor()) continue;
+            if (found != null) throw new IllegalArgumentException("Message " + name + " has more than one multiplexor signal");
+
+            found = signal;
+        }
+
+        multiplexor = found;
+    }
+
+    // including the EFF flag for extended IDs
+    //
+    public int getRawId()
+    {
+        return rawId;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getDlc()
+    {
+        return dlc;
+    }
+
+    public CanSignal[] getSignals()
+    {
+        return signals.clone();
+    }
+
+    // the multiplexor signal, or null if the message isn't multiplexed
+    //
+    public CanSignal getMultiplexor()
+    {
+        return multiplexor;
+    }
+
+    // returns null if the message doesn't define the signal
+    //
+    public CanSignal getSignal(final String signalName)
+    {
+        for (CanSignal signal : signals)
+        {
+            if (signal.getName().equals(signalName)) return signal;
+        }
+
+        return null;
+    }
+
+    // false for a remote request, a payload too short to hold the signal (or its multiplexor), or a multiplexed signal that isn't
+    // selected by the frame's multiplexor value
+    //
+    public boolean isPresent(final CanSignal signal, final CanFrame frame)
+    {
+        if (frame.isRemoteTransmissionRequest() || !signal.isCoveredBy(frame.getDlc())) return false;
+        if ((signal.getMultiplexValue() == CanSignal.NOT_MULTIPLEXED) || (multiplexor == null)) return true;
+
+        return multiplexor.isCoveredBy(frame.getDlc()) && (multiplexor.getRaw(frame) == signal.getMultiplexValue());
+    }
+
+    public boolean isPresent(final CanSignal signal, final byte[] payload)
+    {
+        if (!signal.isCoveredBy(payload.length)) return false;
+        if ((signal.getMultiplexValue() == CanSignal.NOT_MULTIPLEXED) || (multiplexor == null)) return true;
+
+        return multiplexor.isCoveredBy(payload.length) && (multiplexor.getRaw(payload) == signal.getMultiplexValue());
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + " (0x" + Integer.toHexString(rawId & CanMessage.CAN_EFF_MASK) + "): " + Arrays.toString(signals);
+    }
+}
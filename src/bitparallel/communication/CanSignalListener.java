@@ -0,0 +1,13 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+// called when a subscribed signal's decoded value changes, see CanCommsHandler.addSignalListener()
+// note, the value is the physical value (raw * factor + offset), rawValue is the extracted and sign extended bit field
+//
+public interface CanSignalListener
+{
+    public void signalChanged(final CanSignal signal, final double value, final long rawValue) throws Exception;
+}
@@ -0,0 +1,59 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+// presents a CanSignalListener as a CanFrameListener, the signal is decoded from every matching frame
+// but the listener is only called for the first value and then whenever the raw value changes
+//
+// notes 1, signals are only decoded from frames that carry them, i.e. not from remote requests, frames too short to hold the signal
+//          (or its multiplexor) or, for multiplexed signals, frames with another multiplexor value
+//       2, equality is delegated to the wrapped listener so that it can be found again when removing it
+//       3, the last value is only accessed by the thread delivering the signal's ID, i.e. the listener thread or its dispatch lane
+//
+final class CanSignalListenerAdapter implements CanInternalFrameListener
+{
+    private final CanSignalListener listener;
+    private final CanSignalDecoder decoder;
+    private final CanSignal signal;
+    private boolean decoded;
+    private long lastRaw;
+
+    CanSignalListenerAdapter(final CanSignalListener listener, final CanSignalDecoder decoder, final CanSignal signal)
+    {
+        this.listener = listener;
+        this.decoder = decoder;
+        this.signal = signal;
+        decoded = false;
+    }
+
+    public void rxedCanFrame(final CanFrame frame) throws Exception
+    {
+        if (!decoder.isPresent(signal, frame)) return;
+
+        final long raw = signal.getRaw(frame);
+        if (decoded && (raw == lastRaw)) return;
+
+        decoded = true;
+        lastRaw = raw;
+        listener.signalChanged(signal, signal.toPhysical(raw), raw);
+    }
+
+    CanSignalListener getListener()
+    {
+        return listener;
+    }
+
+    @Override
+    public boolean equals(final Object other)
+    {
+        return (other instanceof CanSignalListenerAdapter) && (((CanSignalListenerAdapter)other).listener == listener);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return System.identityHashCode(listener);
+    }
+}
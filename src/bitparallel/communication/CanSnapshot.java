@@ -0,0 +1,111 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+//
+// a reusable copy of a single CanSnapshotTable entry, filled in by CanSnapshotTable.readLatest(), i.e. sampling allocates nothing
+// note, not thread safe, each reading thread should use its own instance
+//
+
+public final class CanSnapshot
+{
+    private final long[] payload;
+    private int rawId, dlc, fdFlags;
+    private long timestamp, updateNanos, updateCount;
+
+    public CanSnapshot()
+    {
+        payload = new long[CanMessage.CANFD_MAX_DLEN >>> 3];
+    }
+
+    long[] payloadWords()
+    {
+        return payload;
+    }
+
+    void set(final int rawId, final int dlc, final int fdFlags, final long timestamp, final long updateNanos, final long updateCount)
+    {
+        this.rawId = rawId;
+        this.dlc = dlc;
+        this.fdFlags = fdFlags;
+        this.timestamp = timestamp;
+        this.updateNanos = updateNanos;
+        this.updateCount = updateCount;
+    }
+
+    public int getId()
+    {
+        return rawId & CanMessage.CAN_ERR_MASK;
+    }
+
+    public int getRawId()
+    {
+        return rawId;
+    }
+
+    public boolean isExtendedId()
+    {
+        return (rawId & CanMessage.CAN_EFF_FLAG) != 0;
+    }
+
+    public int getDlc()
+    {
+        return dlc;
+    }
+
+    public boolean isFdFrame()
+    {
+        return (fdFlags & CanMessage.CANFD_FDF) != 0;
+    }
+
+    public int getFdFlags()
+    {
+        return fdFlags;
+    }
+
+    public byte getByte(final int index)
+    {
+        if ((index < 0) || (index >= dlc)) throw new IndexOutOfBoundsException("Payload access out of range, offset: " + index + ", DLC: " + dlc);
+        return (byte)(payload[index >>> 3] >>> ((index & 7) << 3));
+    }
+
+    // the first 8 payload bytes as a single little-endian value, any bytes beyond the DLC read as zero, see CanFrame.getLong()
+    //
+    public long getLong()
+    {
+        return (dlc >= 8) ? payload[0] : payload[0] & ((1L << (dlc << 3)) - 1);
+    }
+
+    // copies the payload into the supplied array, returns the number of bytes copied
+    //
+    public int copyPayload(final byte[] destination)
+    {
+        final int length = Math.min(dlc, destination.length);
+        for (int i = 0; i < length; i++) destination[i] = (byte)(payload[i >>> 3] >>> ((i & 7) << 3));
+
+        return length;
+    }
+
+    // the kernel receive timestamp in nanoseconds since the epoch, 0 unless CanCommsConfig.setTimestamping() is enabled
+    //
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    // the System.nanoTime() at which the frame was received, i.e. System.nanoTime() - getUpdateNanos() is the age of the value
+    //
+    public long getUpdateNanos()
+    {
+        return updateNanos;
+    }
+
+    // the number of frames received with this ID, a reader can compare successive counts to detect missed or stale updates
+    //
+    public long getUpdateCount()
+    {
+        return updateCount;
+    }
+}
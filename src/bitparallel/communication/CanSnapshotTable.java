@@ -0,0 +1,248 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+//
+// the latest received frame of every CAN ID, for consumers that sample the bus state at their own rate instead of listening
+// enabled using CanCommsConfig.setSnapshotTable(true), see CanCommsHandler.getSnapshotTable()
+//
+// notes 1, the table has a single writer, the handler's receiver thread (the listener thread in PER_FRAME mode or with a reactor)
+//       2, every slot is guarded by a sequence lock, readers copy the slot and retry if it changed, they never block the writer
+//       3, standard IDs use a direct 2048 slot table, extended IDs are assigned slots on first sight, up to the configured limit
+//       4, only data frames are recorded, i.e. RTR and error frames are ignored
+//
+// slot layout, a power of two number of longs so that slots don't share cache lines
+//
+// long 0        : sequence, odd whilst the slot is being written, the update count is sequence / 2
+// long 1        : raw ID (upper 32 bits), CAN FD flags (bits 8-15) and payload length (bits 0-7)
+// long 2        : kernel receive timestamp, nanoseconds since the epoch, 0 unless timestamping is enabled
+// long 3        : System.nanoTime() at which the frame was received
+// long 4..      : payload, little-endian, i.e. byte 0 is the least significant byte of long 4
+//
+
+public final class CanSnapshotTable
+{
+    public static final int NOT_RECEIVED = -1;
+
+    static final int SEQUENCE = 0;
+    static final int HEADER = 1;
+    static final int TIMESTAMP = 2;
+    static final int UPDATE_NANOS = 3;
+    static final int PAYLOAD = 4;
+
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final long[] slots;
+    private final int stride, payloadWords, maxDlc;
+    private final int[] extendedKeys, extendedSlots;
+    private final int extendedMask, extendedLimit;
+    private int extendedAssigned;
+
+    // note, extendedIds is the maximum number of distinct extended IDs that can be recorded
+    //
+    CanSnapshotTable(final boolean fdFrames, final int extendedIds)
+    {
+        maxDlc = fdFrames ? CanMessage.CANFD_MAX_DLEN : CanMessage.CAN_MAX_DLEN;
+        payloadWords = maxDlc >>> 3;
+        stride = Integer.highestOneBit(PAYLOAD + payloadWords - 1) << 1;
+
+        // note, the extended ID index is kept at most half full, so the probe sequences stay short
+        //
+        extendedLimit = extendedIds;
+        final int indexSize = Math.max(2, Integer.highestOneBit(Math.max(1, extendedIds) * 2 - 1) << 1);
+        extendedKeys = new int[indexSize];
+        extendedSlots = new int[indexSize];
+        extendedMask = indexSize - 1;
+        extendedAssigned = 0;
+
+        slots = new long[(CanListenerTable.STANDARD_ID_COUNT + extendedIds) * stride];
+    }
+
+    //
+    // writer side, only called by the single receiving thread
+    //
+
+    // records count frames held in consecutive ring slots, updateNanos is used if the frames weren't timestamped by the receiver
+    //
+    void update(final ByteBuffer frames, final int offset, final int slotSize, final int count, final long updateNanos)
+    {
+        final boolean swap = frames.order() != ByteOrder.LITTLE_ENDIAN;
+        final int trailerOffset = CanFrameRing.trailerOffset(slotSize);
+        for (int i = 0; i < count; i++)
+        {
+            final int frameOffset = offset + (i * slotSize);
+            final int rawId = frames.getInt(frameOffset + CanFrameRing.ID_OFFSET);
+            if ((rawId & (CanMessage.CAN_ERR_FLAG | CanMessage.CAN_RTR_FLAG)) != 0) continue;
+
+            final int slot = slotOf(rawId);
+            if (slot < 0) continue;
+
+            final int dlc = Math.min(frames.get(frameOffset + CanFrameRing.LENGTH_OFFSET) & 0xff, maxDlc);
+            final int fdFlags = frames.get(frameOffset + CanFrameRing.FD_FLAGS_OFFSET) & 0xff;
+            final long receivedNanos = frames.getLong(frameOffset + trailerOffset + CanFrameRing.RECEIVED_NANOS_OFFSET);
+
+            final int base = slot * stride;
+            final long sequence = slots[base + SEQUENCE];
+            LONGS.setOpaque(slots, base + SEQUENCE, sequence + 1);
+            VarHandle.storeStoreFence();
+
+            slots[base + HEADER] = ((long)rawId << 32) | (fdFlags << 8) | dlc;
+            slots[base + TIMESTAMP] = frames.getLong(frameOffset + trailerOffset + CanFrameRing.SOFTWARE_TIMESTAMP_OFFSET);
+            slots[base + UPDATE_NANOS] = (receivedNanos != 0) ? receivedNanos : updateNanos;
+
+            final int words = (dlc + 7) >>> 3;
+            for (int w = 0; w < words; w++)
+            {
+                final long word = frames.getLong(frameOffset + CanFrameRing.DATA_OFFSET + (w << 3));
+                slots[base + PAYLOAD + w] = swap ? Long.reverseBytes(word) : word;
+            }
+
+            LONGS.setRelease(slots, base + SEQUENCE, sequence + 2);
+        }
+    }
+
+    //
+    // reader side, any number of threads
+    //
+
+    // copies the latest payload of the ID into the supplied array, returns the payload length or NOT_RECEIVED
+    // note, as CanCommsHandler.addFrameListener(), an ID with the EFF flag set (or one that doesn't fit into 11 bits) is an extended ID
+    //
+    public int readLatest(final int id, final byte[] payload)
+    {
+        final int slot = find(id);
+        if (slot < 0) return NOT_RECEIVED;
+
+        final int base = slot * stride;
+        while (true)
+        {
+            final long sequence = (long)LONGS.getAcquire(slots, base + SEQUENCE);
+            if (sequence == 0) return NOT_RECEIVED;
+            if ((sequence & 1) != 0)
+            {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            final int dlc = (int)slots[base + HEADER] & 0xff;
+            final int length = Math.min(dlc, payload.length);
+            for (int i = 0; i < length; i++) payload[i] = (byte)(slots[base + PAYLOAD + (i >>> 3)] >>> ((i & 7) << 3));
+
+            VarHandle.loadLoadFence();
+            if ((long)LONGS.getOpaque(slots, base + SEQUENCE) == sequence) return length;
+        }
+    }
+
+    // copies the whole of the ID's latest frame, returns false if it hasn't been received
+    //
+    public boolean readLatest(final int id, final CanSnapshot snapshot)
+    {
+        final int slot = find(id);
+        if (slot < 0) return false;
+
+        final int base = slot * stride;
+        final long[] payload = snapshot.payloadWords();
+        while (true)
+        {
+            final long sequence = (long)LONGS.getAcquire(slots, base + SEQUENCE);
+            if (sequence == 0) return false;
+            if ((sequence & 1) != 0)
+            {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            final long header = slots[base + HEADER];
+            final long timestamp = slots[base + TIMESTAMP];
+            final long updateNanos = slots[base + UPDATE_NANOS];
+            final int words = Math.min(payloadWords, payload.length);
+            for (int w = 0; w < words; w++) payload[w] = slots[base + PAYLOAD + w];
+
+            VarHandle.loadLoadFence();
+            if ((long)LONGS.getOpaque(slots, base + SEQUENCE) != sequence) continue;
+
+            snapshot.set((int)(header >>> 32), (int)header & 0xff, ((int)header >>> 8) & 0xff, timestamp, updateNanos, sequence >>> 1);
+            return true;
+        }
+    }
+
+    // the number of frames received with the ID, 0 if it hasn't been received
+    //
+    public long getUpdateCount(final int id)
+    {
+        final int slot = find(id);
+        return (slot < 0) ? 0 : ((long)LONGS.getAcquire(slots, (slot * stride) + SEQUENCE) >>> 1);
+    }
+
+    // the System.nanoTime() at which the ID was last received, 0 if it hasn't been received
+    // note, may be from a frame that is still being replaced, use readLatest() for a consistent view
+    //
+    public long getUpdateNanos(final int id)
+    {
+        final int slot = find(id);
+        return (slot < 0) ? 0 : (long)LONGS.getOpaque(slots, (slot * stride) + UPDATE_NANOS);
+    }
+
+    // the number of distinct extended IDs that can be recorded, see CanCommsConfig.setSnapshotExtendedIds()
+    //
+    public int getExtendedIdCapacity()
+    {
+        return extendedLimit;
+    }
+
+    // the writer assigns a slot on first sight of an extended ID, returns -1 if the table is full
+    // note, the slot number is written before the key is published, so a reader that finds the key also sees its slot
+    //
+    private int slotOf(final int rawId)
+    {
+        if ((rawId & CanMessage.CAN_EFF_FLAG) == 0) return rawId & CanMessage.CAN_SFF_MASK;
+
+        int index = mix(rawId) & extendedMask;
+        int key;
+        while ((key = extendedKeys[index]) != 0)
+        {
+            if (key == rawId) return extendedSlots[index];
+            index = (index + 1) & extendedMask;
+        }
+
+        if (extendedAssigned == extendedLimit) return -1;
+
+        final int slot = CanListenerTable.STANDARD_ID_COUNT + extendedAssigned++;
+        extendedSlots[index] = slot;
+        INTS.setRelease(extendedKeys, index, rawId);
+
+        return slot;
+    }
+
+    private int find(final int id)
+    {
+        final int rawId = CanListenerTable.toKey(id);
+        if ((rawId & CanMessage.CAN_EFF_FLAG) == 0) return rawId;
+
+        int index = mix(rawId) & extendedMask;
+        int key;
+        while ((key = (int)INTS.getAcquire(extendedKeys, index)) != 0)
+        {
+            if (key == rawId) return extendedSlots[index];
+            index = (index + 1) & extendedMask;
+        }
+
+        return -1;
+    }
+
+    // note, as IntObjectMap, the keys are scrambled before masking as CAN identifiers are often sequential
+    //
+    private static int mix(final int key)
+    {
+        final int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,183 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+//
+// a hashed timer wheel, i.e. scheduling and cancelling a timeout are O(1) and a single thread expires any number of timeouts
+//
+// notes 1, the wheel advances once per tick, a timeout expires on the first tick at or after its deadline, i.e. up to a tick late
+//       2, timeouts are handed to the wheel thread using a lock free queue, each bucket is then only accessed by the wheel thread
+//       3, a cancelled timeout is only marked, the wheel discards it when its bucket is next visited
+//       4, the wheel thread runs whilst timeouts are pending, it's started by schedule() and exits once the wheel is empty
+//       5, the tasks are run by the wheel thread, so they must be short
+//
+
+final class CanTimerWheel
+{
+    static final int WHEEL_SIZE = 512;
+
+    private static final Logger logger = LogManager.getLogger(CanTimerWheel.class);
+
+    static final class Timeout
+    {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+        private Timeout next;
+
+        private Timeout(final Runnable task, final long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+            cancelled = false;
+        }
+
+        void cancel()
+        {
+            cancelled = true;
+        }
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final ConcurrentLinkedQueue<Timeout> scheduled;
+    private final Object lifecycleLock;
+    private volatile Thread wheelThread;
+    private long startNanos, currentTick;
+    private int pendingTimeouts;
+
+    CanTimerWheel(final String name, final long tick, final TimeUnit unit)
+    {
+        this.name = name;
+
+        tickNanos = unit.toNanos(tick);
+        buckets = new Timeout[WHEEL_SIZE];
+        scheduled = new ConcurrentLinkedQueue<Timeout>();
+        lifecycleLock = new Object();
+        wheelThread = null;
+    }
+
+    Timeout schedule(final Runnable task, final long delay, final TimeUnit unit)
+    {
+        final Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        scheduled.add(timeout);
+
+        synchronized (lifecycleLock)
+        {
+            if (wheelThread == null)
+            {
+                wheelThread = new Thread(this::wheelTask, "can-timer-" + name);
+                wheelThread.setDaemon(true);
+                wheelThread.start();
+            }
+        }
+
+        return timeout;
+    }
+
+    private void wheelTask()
+    {
+        startNanos = System.nanoTime();
+        currentTick = 0;
+        pendingTimeouts = 0;
+
+        while (true)
+        {
+            addScheduled();
+            expireBucket();
+
+            // note, the thread only exits once nothing more can be scheduled without it being restarted
+            //
+            if (pendingTimeouts == 0)
+            {
+                synchronized (lifecycleLock)
+                {
+                    if (scheduled.isEmpty())
+                    {
+                        wheelThread = null;
+                        break;
+                    }
+                }
+            }
+
+            currentTick++;
+            final long tickDeadline = startNanos + (currentTick * tickNanos);
+            long remaining;
+            while ((remaining = tickDeadline - System.nanoTime()) > 0) LockSupport.parkNanos(remaining);
+        }
+    }
+
+    // places each newly scheduled timeout in the bucket of the tick at (or after) its deadline
+    //
+    private void addScheduled()
+    {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null)
+        {
+            if (timeout.cancelled) continue;
+
+            final long deadlineTick = Math.max(currentTick, (timeout.deadline - startNanos + tickNanos - 1) / tickNanos);
+            final int index = (int)(deadlineTick & (WHEEL_SIZE - 1));
+            timeout.remainingRounds = (deadlineTick - currentTick) / WHEEL_SIZE;
+            timeout.next = buckets[index];
+            buckets[index] = timeout;
+            pendingTimeouts++;
+        }
+    }
+
+    private void expireBucket()
+    {
+        final int index = (int)(currentTick & (WHEEL_SIZE - 1));
+        Timeout previous = null;
+        Timeout timeout = buckets[index];
+        while (timeout != null)
+        {
+            final Timeout next = timeout.next;
+            final boolean expired = !timeout.cancelled && (timeout.remainingRounds == 0);
+            if (timeout.cancelled || expired)
+            {
+                if (previous == null)
+                {
+                    buckets[index] = next;
+                }
+                else
+                {
+                    previous.next = next;
+                }
+
+                timeout.next = null;
+                pendingTimeouts--;
+            }
+            else
+            {
+                timeout.remainingRounds--;
+                previous = timeout;
+            }
+
+            if (expired)
+            {
+                try
+                {
+                    timeout.task.run();
+                }
+                catch (final Exception ex)
+                {
+                    logger.error("Unexpected exception in CAN timeout task, reason: " + ex.getMessage(), ex);
+                }
+            }
+
+            timeout = next;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// a recorded sequence of frames in time order, e.g. a CanRecordingReader or a CandumpLogReader, see CanReplay
+//
+public interface CanTraceSource extends Closeable
+{
+    // advances to the next frame, returns false at the end of the trace
+    //
+    boolean next() throws IOException;
+
+    // the current frame's timestamp, nanoseconds since the epoch
+    //
+    long getTimestamp();
+
+    // the current frame as a new CanMessage
+    //
+    CanMessage toMessage();
+}
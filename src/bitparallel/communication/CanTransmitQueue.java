@@ -0,0 +1,334 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+//
+// a bounded transmit queue, ordered by CAN arbitration priority and drained by a single writer thread, see CanCommsHandler.transmitAsync()
+//
+// notes 1, the pending frames are held in a binary heap, the lowest arbitration field (i.e. the frame that would win on the bus) is sent
+//          first, frames with the same ID are sent in the order they were queued
+//       2, offer() never blocks, a full queue fails the returned future immediately
+//       3, when replacing, a frame that is still queued with the same raw ID is overwritten in place (it keeps its position) and its
+//          future is cancelled, i.e. only the latest value of a signal is sent
+//       4, the writer drains up to MAX_BATCH_SIZE frames at a time and hands them to the transport as a single batch (sendmmsg())
+//       5, the futures are completed by the writer thread
+//
+
+final class CanTransmitQueue
+{
+    static final int MAX_BATCH_SIZE = 64;
+
+    private static final Logger logger = LogManager.getLogger(CanTransmitQueue.class);
+
+    private static final class Entry
+    {
+        private final long priority;
+        private final long sequence;
+        private CanMessage message;
+        private CompletableFuture<Void> future;
+
+        private Entry(final CanMessage message, final long sequence)
+        {
+            this.message = message;
+            this.sequence = sequence;
+
+            priority = CanVirtualBus.arbitrationField(message);
+            future = new CompletableFuture<Void>();
+        }
+
+        private boolean before(final Entry other)
+        {
+            final int order = Long.compareUnsigned(priority, other.priority);
+            return (order < 0) || ((order == 0) && (sequence < other.sequence));
+        }
+    }
+
+    private final String name;
+    private final CanTransport transport;
+    private final CanCommsMetrics metrics;
+    private final CanBusAnalytics busAnalytics;
+    private final Entry[] heap;
+    private final IntObjectMap<Entry> latestById;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final AtomicBoolean running;
+    private final CanMessage[] batch;
+    private final Entry[] batchEntries;
+    private long nextSequence;
+    private int size;
+    private boolean stopped;
+    private Thread writerThread;
+
+    // note, busAnalytics is null unless enabled
+    //
+    CanTransmitQueue(final String name, final int capacity, final CanTransport transport, final CanCommsMetrics metrics, final CanBusAnalytics busAnalytics)
+    {
+        this.name = name;
+        this.transport = transport;
+        this.metrics = metrics;
+        this.busAnalytics = busAnalytics;
+
+        heap = new Entry[capacity];
+        latestById = new IntObjectMap<Entry>(capacity);
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+        running = new AtomicBoolean(false);
+        batch = new CanMessage[MAX_BATCH_SIZE];
+        batchEntries = new Entry[MAX_BATCH_SIZE];
+        nextSequence = 0;
+        size = 0;
+        stopped = false;
+        writerThread = new Thread();
+    }
+
+    void start()
+    {
+        if (writerThread.isAlive()) return;
+
+        lock.lock();
+        try
+        {
+            stopped = false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        running.set(true);
+        writerThread = new Thread(this::writerTask, name + "-tx");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // note, the frames still queued are failed, as the transport is about to be closed
+    //
+    void stop()
+    {
+        running.set(false);
+        lock.lock();
+        try
+        {
+            stopped = true;
+            notEmpty.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        try
+        {
+            writerThread.join();
+        }
+        catch (final InterruptedException ignored)
+        {
+        }
+
+        lock.lock();
+        try
+        {
+            while (size > 0) removeFirst().future.completeExceptionally(new IOException("The " + name + " transmit queue was stopped before the frame was sent"));
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    int size()
+    {
+        lock.lock();
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // note, frames offered before start() are sent once started, after stop() the returned future fails immediately
+    //
+    CompletableFuture<Void> offer(final CanMessage message, final boolean replacePending)
+    {
+        lock.lock();
+        try
+        {
+            if (stopped)
+            {
+                final CompletableFuture<Void> rejected = new CompletableFuture<Void>();
+                rejected.completeExceptionally(new IOException("The " + name + " transmit queue has been stopped"));
+                metrics.transmitFailed();
+
+                return rejected;
+            }
+
+            final Entry queued = replacePending ? latestById.get(message.getRawId()) : null;
+            if (queued != null)
+            {
+                final CompletableFuture<Void> replaced = queued.future;
+                queued.message = message;
+                queued.future = new CompletableFuture<Void>();
+                replaced.cancel(false);
+
+                return queued.future;
+            }
+
+            if (size == heap.length)
+            {
+                final CompletableFuture<Void> rejected = new CompletableFuture<Void>();
+                rejected.completeExceptionally(new IOException("The " + name + " transmit queue is full, capacity: " + heap.length));
+                metrics.transmitFailed();
+
+                return rejected;
+            }
+
+            final Entry entry = new Entry(message, nextSequence++);
+            siftUp(size++, entry);
+            latestById.put(message.getRawId(), entry);
+            notEmpty.signal();
+
+            return entry.future;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void writerTask()
+    {
+        logger.info("The " + name + " transmit queue writer task is running");
+
+        while (running.get())
+        {
+            // note, the transport gives up on a frame that can't be written within its transmit timeout, so stop() is seen between attempts
+            //
+            final int count = takeBatch();
+            int sent = 0;
+            while ((sent < count) && running.get())
+            {
+                try
+                {
+                    final int written = transport.transmit(batch, sent, count - sent);
+                    final long writtenNanos = System.nanoTime();
+                    for (int i = sent; i < (sent + written); i++)
+                    {
+                        metrics.transmitted(batch[i].getPayload().length);
+                        if (busAnalytics != null) busAnalytics.transmitted(batch[i], writtenNanos);
+                        batchEntries[i].future.complete(null);
+                    }
+
+                    sent += written;
+                }
+                catch (final IOException ex)
+                {
+                    // note, the failed frame is reported and the rest of the batch is retried
+                    //
+                    metrics.transmitFailed();
+                    batchEntries[sent].future.completeExceptionally(ex);
+                    sent++;
+                }
+            }
+
+            for (int i = sent; i < count; i++) batchEntries[i].future.completeExceptionally(new IOException("The " + name + " transmit queue was stopped before the frame was sent"));
+            for (int i = 0; i < count; i++)
+            {
+                batch[i] = null;
+                batchEntries[i] = null;
+            }
+        }
+
+        logger.info("The " + name + " transmit queue writer task has exited");
+    }
+
+    // removes the highest priority frames (up to MAX_BATCH_SIZE), waits for up to the receiver poll timeout whilst the queue is empty
+    //
+    private int takeBatch()
+    {
+        lock.lock();
+        try
+        {
+            if (size == 0) notEmpty.awaitNanos(TimeUnit.MILLISECONDS.toNanos(CanCommsHandler.RECEIVER_QUEUE_POLL_TIMEOUT_MS));
+
+            int count = 0;
+            while ((size > 0) && (count < MAX_BATCH_SIZE))
+            {
+                final Entry entry = removeFirst();
+                batch[count] = entry.message;
+                batchEntries[count++] = entry;
+            }
+
+            return count;
+        }
+        catch (final InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            running.set(false);
+            return 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    //
+    // the binary heap, only accessed whilst holding the lock
+    //
+
+    private Entry removeFirst()
+    {
+        final Entry first = heap[0];
+        final Entry last = heap[--size];
+        heap[size] = null;
+        if (size > 0) siftDown(0, last);
+
+        if (latestById.get(first.message.getRawId()) == first) latestById.remove(first.message.getRawId());
+        return first;
+    }
+
+    private void siftUp(int index, final Entry entry)
+    {
+        while (index > 0)
+        {
+            final int parent = (index - 1) >>> 1;
+            if (!entry.before(heap[parent])) break;
+
+            heap[index] = heap[parent];
+            index = parent;
+        }
+
+        heap[index] = entry;
+    }
+
+    private void siftDown(int index, final Entry entry)
+    {
+        final int half = size >>> 1;
+        while (index < half)
+        {
+            int child = (2 * index) + 1;
+            if (((child + 1) < size) && heap[child + 1].before(heap[child])) child++;
+            if (!heap[child].before(entry)) break;
+
+            heap[index] = heap[child];
+            index = child;
+        }
+
+        heap[index] = entry;
+    }
+}
@@ -0,0 +1,66 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+//
+// the link between a CanCommsHandler and a CAN bus, i.e. opens a device, transmits frames and receives them in batches
+// the default implementation is SocketCanTransport (JNI), CanVirtualBus provides an in-process bus for testing without hardware
+//
+// notes 1, each handler creates its own transport using the factory supplied by CanCommsConfig.setTransport()
+//       2, receive() writes frames using the CanFrameRing slot layout, i.e. the handler's rings are filled in place
+//       3, receive() is only called by the handler's receiver thread, transmit() may be called from any thread
+//       4, the batch transmit() is only called by the handler's transmit queue writer thread, see CanCommsHandler.transmitAsync()
+//
+
+public interface CanTransport
+{
+    interface Factory
+    {
+        CanTransport create();
+    }
+
+    // note, the filters are applied by the transport, as are the CAN FD and timestamping settings
+    //
+    void open(final String device, final CanFilter[] filters, final CanCommsConfig config) throws IOException;
+
+    // atomically replaces the active filters whilst the transport is open, an empty array removes all filtering
+    //
+    void setFilters(final CanFilter[] filters) throws IOException;
+
+    // note, waits whilst the device is busy, but fails rather than blocking indefinitely, e.g. whilst the controller is bus-off
+    //
+    void transmit(final CanMessage message) throws IOException;
+
+    // transmits up to count frames starting at messages[offset], returns the number sent, which is at least 1
+    // note, fails only if the first frame can't be sent, a later failure is reported by the next call
+    //
+    default int transmit(final CanMessage[] messages, final int offset, final int count) throws IOException
+    {
+        for (int i = 0; i < count; i++)
+        {
+            try
+            {
+                transmit(messages[offset + i]);
+            }
+            catch (final IOException ex)
+            {
+                if (i == 0) throw ex;
+                return i;
+            }
+        }
+
+        return count;
+    }
+
+    // reads up to maxFrames frames into consecutive slots starting at offset, waiting for up to timeoutMs for the first frame
+    // returns the number of frames read, 0 on timeout or a negated ERRNO if the read failed
+    //
+    int receive(final ByteBuffer buffer, final int offset, final int slotSize, final int maxFrames, final int timeoutMs);
+
+    void close() throws IOException;
+}
@@ -0,0 +1,302 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+//
+// an in-process CAN bus, every handler created using CanCommsConfig.setTransport(bus) becomes a node on the bus
+// i.e. the whole handler pipeline can be run and stress tested in pure Java, without CAN hardware or the native library
+//
+// notes 1, as socketCAN, a transmitted frame is received by every other node but not by the transmitting node
+//       2, each node has a FIFO transmit queue, the head frames of the nodes then compete for the bus using CAN arbitration
+//          i.e. the lowest identifier wins, a standard frame beats an extended frame with the same base ID and data beats RTR
+//       3, with a bit rate each frame occupies the bus for its nominal length (excluding stuff bits), otherwise frames are
+//          delivered as fast as the arbiter thread can copy them, i.e. UNLIMITED_BIT_RATE
+//       4, a node's receive ring has the handler's ring capacity, frames that arrive whilst it is full are dropped (see getDroppedFrames())
+//       5, the arbiter thread runs whilst at least one node is open
+//
+
+public class CanVirtualBus implements CanTransport.Factory
+{
+    public static final int UNLIMITED_BIT_RATE = 0;
+    public static final int TRANSMIT_QUEUE_LENGTH = 64;
+
+    private static final long SPIN_THRESHOLD_NANOS = 50_000;
+    private static final Logger logger = LogManager.getLogger(CanVirtualBus.class);
+
+    private final String name;
+    private final int bitRate, dataBitRate;
+    private final long epochOffsetNanos;
+    private final CopyOnWriteArrayList<CanVirtualNode> nodes;
+    private final ReentrantLock lock;
+    private final Condition framePending, queueSpace;
+    private final AtomicLong frameCount, arbitrationLosses, droppedFrames;
+    private int pendingFrames;
+    private Thread arbiterThread;
+
+    public CanVirtualBus(final String name)
+    {
+        this(name, UNLIMITED_BIT_RATE, UNLIMITED_BIT_RATE);
+    }
+
+    public CanVirtualBus(final String name, final int bitRate)
+    {
+        this(name, bitRate, bitRate);
+    }
+
+    // the data bit rate is used for the data phase of CAN FD frames with the bit rate switch (BRS) set
+    //
+    public CanVirtualBus(final String name, final int bitRate, final int dataBitRate)
+    {
+        if ((bitRate < 0) || (dataBitRate < 0)) throw new IllegalArgumentException("The bit rates can't be negative, requested: " + bitRate + ", " + dataBitRate);
+        if ((bitRate == UNLIMITED_BIT_RATE) != (dataBitRate == UNLIMITED_BIT_RATE)) throw new IllegalArgumentException("Either both or neither bit rate must be UNLIMITED_BIT_RATE");
+
+        this.name = name;
+        this.bitRate = bitRate;
+        this.dataBitRate = dataBitRate;
+
+        epochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+        nodes = new CopyOnWriteArrayList<CanVirtualNode>();
+        lock = new ReentrantLock();
+        framePending = lock.newCondition();
+        queueSpace = lock.newCondition();
+        frameCount = new AtomicLong();
+        arbitrationLosses = new AtomicLong();
+        droppedFrames = new AtomicLong();
+        pendingFrames = 0;
+        arbiterThread = null;
+    }
+
+    // called by each handler, the node joins the bus when the handler opens it
+    //
+    @Override
+    public CanTransport create()
+    {
+        return new CanVirtualNode(this);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getBitRate()
+    {
+        return bitRate;
+    }
+
+    public int getDataBitRate()
+    {
+        return dataBitRate;
+    }
+
+    public int getNodeCount()
+    {
+        return nodes.size();
+    }
+
+    // the number of frames that have won arbitration and been sent
+    //
+    public long getFrameCount()
+    {
+        return frameCount.get();
+    }
+
+    // incremented for each node whose pending frame lost arbitration, i.e. it had to wait for a higher priority frame
+    //
+    public long getArbitrationLosses()
+    {
+        return arbitrationLosses.get();
+    }
+
+    // the frames that a node couldn't receive as its receive ring was full
+    //
+    public long getDroppedFrames()
+    {
+        return droppedFrames.get();
+    }
+
+    //
+    // called by the nodes
+    //
+
+    void attach(final CanVirtualNode node)
+    {
+        lock.lock();
+        try
+        {
+            nodes.add(node);
+            if (arbiterThread == null)
+            {
+                arbiterThread = new Thread(this::arbiterTask, "can-virtual-" + name);
+                arbiterThread.setDaemon(true);
+                arbiterThread.start();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // any frames the node has yet to send are discarded
+    //
+    void detach(final CanVirtualNode node)
+    {
+        lock.lock();
+        try
+        {
+            if (!nodes.remove(node)) return;
+
+            pendingFrames -= node.clearTransmitQueue();
+            framePending.signal();
+            queueSpace.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // queues the frame for arbitration, waits whilst the node's transmit queue is full
+    //
+    void transmit(final CanVirtualNode node, final CanMessage message) throws IOException
+    {
+        lock.lock();
+        try
+        {
+            while (node.isOpen() && (node.transmitQueueLength() >= TRANSMIT_QUEUE_LENGTH)) queueSpace.await();
+            if (!node.isOpen()) throw new IOException("Unable to transmit, the virtual CAN node has been closed");
+
+            node.queueTransmit(message);
+            pendingFrames++;
+            framePending.signal();
+        }
+        catch (final InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst waiting for virtual CAN transmit queue space");
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    void dropped()
+    {
+        droppedFrames.incrementAndGet();
+    }
+
+    // the receive timestamp of a frame delivered at the supplied System.nanoTime(), in nanoseconds since the epoch
+    //
+    long toEpochNanos(final long nanos)
+    {
+        return nanos + epochOffsetNanos;
+    }
+
+    //
+    // arbitration
+    //
+
+    private void arbiterTask()
+    {
+        logger.info("The virtual CAN bus " + name + " arbiter task is running");
+
+        long busFreeNanos = System.nanoTime();
+        while (true)
+        {
+            final CanVirtualNode winner;
+            final CanMessage message;
+            lock.lock();
+            try
+            {
+                while ((pendingFrames == 0) && !nodes.isEmpty()) framePending.awaitUninterruptibly();
+                if (nodes.isEmpty())
+                {
+                    arbiterThread = null;
+                    break;
+                }
+
+                // the head frame of every node with a pending frame takes part, the lowest arbitration field wins
+                //
+                CanVirtualNode lowest = null;
+                int contenders = 0;
+                for (CanVirtualNode node : nodes)
+                {
+                    if (node.transmitQueueLength() == 0) continue;
+
+                    contenders++;
+                    if ((lowest == null) || (Long.compareUnsigned(node.headArbitrationField(), lowest.headArbitrationField()) < 0)) lowest = node;
+                }
+
+                winner = lowest;
+                message = winner.pollTransmit();
+                pendingFrames--;
+                arbitrationLosses.addAndGet(contenders - 1);
+                queueSpace.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            if (bitRate != UNLIMITED_BIT_RATE)
+            {
+                // the frame starts when the bus becomes free (or now, if idle) and is received once its last bit has been sent
+                //
+                busFreeNanos = Math.max(busFreeNanos, System.nanoTime()) + frameNanos(message);
+                waitUntil(busFreeNanos);
+            }
+
+            final long deliveredNanos = System.nanoTime();
+            for (CanVirtualNode node : nodes)
+            {
+                if (node != winner) node.deliver(message, deliveredNanos);
+            }
+
+            frameCount.incrementAndGet();
+        }
+
+        logger.info("The virtual CAN bus " + name + " arbiter task has exited");
+    }
+
+    // the identifier bits in the order they are sent on the bus, compared as an unsigned value, lower wins
+    // i.e. the base ID, RTR (standard) or SRR (extended), IDE, the extended ID and finally the extended RTR bit
+    //
+    static long arbitrationField(final CanMessage message)
+    {
+        final int rawId = message.getRawId();
+        final long rtr = ((rawId & CanMessage.CAN_RTR_FLAG) != 0) && !message.isFdFrame() ? 1 : 0;
+        if ((rawId & CanMessage.CAN_EFF_FLAG) == 0) return ((long)(rawId & CanMessage.CAN_SFF_MASK) << 21) | (rtr << 20);
+
+        final int id = rawId & CanMessage.CAN_EFF_MASK;
+        return ((long)(id >>> 18) << 21) | (1L << 20) | (1L << 19) | ((long)(id & 0x3ffff) << 1) | rtr;
+    }
+
+    // the nominal frame length excluding stuff bits, including the 3 bit inter-frame space, see CanBitTiming
+    //
+    private long frameNanos(final CanMessage message)
+    {
+        return CanBitTiming.frameNanos(message.getRawId(), message.getPayload().length, message.getFdFlags(), message.isFdFrame(), false, bitRate, dataBitRate);
+    }
+
+    private static void waitUntil(final long deadline)
+    {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > SPIN_THRESHOLD_NANOS) LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+        while (deadline - System.nanoTime() > 0) Thread.onSpinWait();
+    }
+}
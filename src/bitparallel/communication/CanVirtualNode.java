@@ -0,0 +1,206 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+//
+// a single handler's connection to a CanVirtualBus, i.e. the virtual equivalent of a socketCAN socket
+//
+// notes 1, the transmit queue is guarded by the bus lock, the receive ring is written by the bus arbiter thread
+//          and read by the handler's receiver thread, i.e. it is single producer / single consumer
+//       2, as the native transport, the filters are applied before a frame is queued and CAN FD frames are only received
+//          when using CanCommsConfig.setFdFrames(true)
+//
+
+final class CanVirtualNode implements CanTransport
+{
+    // as the kernel, the errors reported by receive()
+    //
+    private static final int EBADF = 9;
+    private static final int EINVAL = 22;
+
+    private final CanVirtualBus bus;
+    private final ArrayDeque<CanMessage> transmitQueue;
+    private volatile CanFilter[] filters;
+    private volatile boolean open;
+    private CanFrameRing ring;
+    private boolean fdFrames, timestamping;
+
+    CanVirtualNode(final CanVirtualBus bus)
+    {
+        this.bus = bus;
+
+        transmitQueue = new ArrayDeque<CanMessage>(CanVirtualBus.TRANSMIT_QUEUE_LENGTH);
+        filters = new CanFilter[0];
+        open = false;
+    }
+
+    // note, the device name is only used for logging, the node always joins the bus that created it
+    //
+    @Override
+    public void open(final String device, final CanFilter[] filters, final CanCommsConfig config) throws IOException
+    {
+        if (open) throw new IOException("The virtual CAN node " + device + " is already open");
+
+        this.filters = filters.clone();
+        fdFrames = config.isFdFrames();
+        timestamping = config.isTimestamping();
+        ring = new CanFrameRing(config.getRingCapacity(), CanFrameRing.slotSizeFor(config), Waiter.create(config.getWaitStrategy()));
+
+        open = true;
+        bus.attach(this);
+    }
+
+    @Override
+    public void setFilters(final CanFilter[] filters)
+    {
+        this.filters = filters.clone();
+    }
+
+    @Override
+    public void transmit(final CanMessage message) throws IOException
+    {
+        final int length = message.getPayload().length;
+        if ((message.isFdFrame() && !fdFrames) || (length > (message.isFdFrame() ? CanMessage.CANFD_MAX_DLEN : CanMessage.CAN_MAX_DLEN)))
+        {
+            final StringBuffer sb = new StringBuffer();
+            sb.append("Unable to transmit a ");
+            sb.append(message.isFdFrame() ? "CAN FD" : "CAN");
+            sb.append(" message with a ");
+            sb.append(length);
+            sb.append(" byte payload");
+            if (message.isFdFrame() && !fdFrames) sb.append(", CAN FD frames are not enabled");
+
+            throw new IOException(sb.toString());
+        }
+
+        bus.transmit(this, message);
+    }
+
+    @Override
+    public int receive(final ByteBuffer buffer, final int offset, final int slotSize, final int maxFrames, final int timeoutMs)
+    {
+        if (!open) return -EBADF;
+        if ((slotSize != ring.slotSize()) || (maxFrames <= 0)) return -EINVAL;
+
+        if (ring.readableSlots() == 0) ring.awaitReadable(timeoutMs, TimeUnit.MILLISECONDS);
+
+        final int count = Math.min(ring.readableSlots(), maxFrames);
+        final ByteBuffer slots = ring.buffer();
+        final int trailerOffset = CanFrameRing.trailerOffset(slotSize);
+        for (int i = 0; i < count; i++)
+        {
+            final int from = ring.headOffset();
+            final int to = offset + (i * slotSize);
+            for (int j = 0; j < slotSize; j += 8) buffer.putLong(to + j, slots.getLong(from + j));
+
+            // as the native receiver, the read time and the delay since delivery (the kernel to queue latency)
+            //
+            if (timestamping)
+            {
+                final long now = System.nanoTime();
+                buffer.putLong(to + trailerOffset + CanFrameRing.KERNEL_LATENCY_OFFSET, now - slots.getLong(from + trailerOffset + CanFrameRing.RECEIVED_NANOS_OFFSET));
+                buffer.putLong(to + trailerOffset + CanFrameRing.RECEIVED_NANOS_OFFSET, now);
+            }
+
+            ring.release(1);
+        }
+
+        return count;
+    }
+
+    @Override
+    public void close()
+    {
+        open = false;
+        bus.detach(this);
+    }
+
+    boolean isOpen()
+    {
+        return open;
+    }
+
+    //
+    // the transmit queue, only accessed whilst holding the bus lock
+    //
+
+    int transmitQueueLength()
+    {
+        return transmitQueue.size();
+    }
+
+    void queueTransmit(final CanMessage message)
+    {
+        transmitQueue.add(message);
+    }
+
+    long headArbitrationField()
+    {
+        return CanVirtualBus.arbitrationField(transmitQueue.peek());
+    }
+
+    CanMessage pollTransmit()
+    {
+        return transmitQueue.poll();
+    }
+
+    int clearTransmitQueue()
+    {
+        final int count = transmitQueue.size();
+        transmitQueue.clear();
+
+        return count;
+    }
+
+    // called by the bus arbiter thread, writes the frame into the next free receive slot
+    //
+    void deliver(final CanMessage message, final long deliveredNanos)
+    {
+        if (!open || (message.isFdFrame() && !fdFrames) || !CanFilter.matches(filters, message.getRawId())) return;
+        if (ring.writableSlots(1) == 0)
+        {
+            bus.dropped();
+            return;
+        }
+
+        // note, as the native transmitter, CAN FD payloads are padded to a valid CAN FD length
+        //
+        final byte[] payload = message.getPayload();
+        final int length = message.isFdFrame() ? paddedFdLength(payload.length) : payload.length;
+        final ByteBuffer slots = ring.buffer();
+        final int slot = ring.tailOffset();
+        final int trailer = slot + CanFrameRing.trailerOffset(ring.slotSize());
+
+        slots.putInt(slot + CanFrameRing.ID_OFFSET, message.getRawId());
+        slots.put(slot + CanFrameRing.LENGTH_OFFSET, (byte)length);
+        slots.put(slot + CanFrameRing.FD_FLAGS_OFFSET, (byte)(message.isFdFrame() ? (message.getFdFlags() | CanMessage.CANFD_FDF) : 0));
+        slots.put(slot + CanFrameRing.BUS_OFFSET, (byte)0);
+        for (int i = 0; i < length; i++) slots.put(slot + CanFrameRing.DATA_OFFSET + i, (i < payload.length) ? payload[i] : 0);
+
+        slots.putLong(trailer + CanFrameRing.SOFTWARE_TIMESTAMP_OFFSET, timestamping ? bus.toEpochNanos(deliveredNanos) : 0);
+        slots.putLong(trailer + CanFrameRing.HARDWARE_TIMESTAMP_OFFSET, 0);
+        slots.putLong(trailer + CanFrameRing.RECEIVED_NANOS_OFFSET, timestamping ? deliveredNanos : 0);
+        slots.putLong(trailer + CanFrameRing.KERNEL_LATENCY_OFFSET, 0);
+
+        ring.publish(1);
+    }
+
+    // CAN FD only supports payloads of 0 to 8, 12, 16, 20, 24, 32, 48 and 64 bytes
+    //
+    static int paddedFdLength(final int length)
+    {
+        if (length <= 8) return length;
+        if (length <= 24) return (length + 3) & ~3;
+        if (length <= 32) return 32;
+        if (length <= 48) return 48;
+
+        return CanMessage.CANFD_MAX_DLEN;
+    }
+}
@@ -0,0 +1,163 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+//
+// reads a candump -L (or canplayer) log file, one frame at a time, e.g. (1636112432.123456) can0 123#1122334455667788
+//
+// notes 1, supports standard and extended IDs, RTR frames (123#R, 123#R4), CAN FD frames (123##1AABB) and error frames
+//       2, when a device is supplied only the frames logged from that interface are returned, otherwise every frame is returned
+//       3, blank lines and lines starting with # are skipped, any other unparseable line throws an IOException
+//
+
+public class CandumpLogReader implements CanTraceSource
+{
+    private final BufferedReader reader;
+    private final String device;
+    private long lineNumber;
+    private long timestamp;
+    private String lineDevice;
+    private int rawId, fdFlags;
+    private byte[] payload;
+
+    public CandumpLogReader(final Path file) throws IOException
+    {
+        this(file, null);
+    }
+
+    public CandumpLogReader(final Path file, final String device) throws IOException
+    {
+        this.device = device;
+
+        reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII);
+        lineNumber = 0;
+    }
+
+    @Override
+    public boolean next() throws IOException
+    {
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || (line.charAt(0) == '#')) continue;
+
+            parse(line);
+            if ((device == null) || device.equals(lineDevice)) return true;
+        }
+
+        return false;
+    }
+
+    // nanoseconds since the epoch, note, candump logs have a microsecond resolution
+    //
+    @Override
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    // the interface the frame was logged from
+    //
+    public String getDevice()
+    {
+        return lineDevice;
+    }
+
+    public int getRawId()
+    {
+        return rawId;
+    }
+
+    @Override
+    public CanMessage toMessage()
+    {
+        return new CanMessage(rawId, payload.clone(), fdFlags, timestamp);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+
+    private void parse(final String line) throws IOException
+    {
+        final int timeEnd = line.indexOf(')');
+        final int deviceEnd = (timeEnd < 0) ? -1 : line.indexOf(' ', timeEnd + 2);
+        if ((line.charAt(0) != '(') || (timeEnd < 0) || (deviceEnd < 0)) throw invalid(line);
+
+        try
+        {
+            timestamp = parseTimestamp(line.substring(1, timeEnd));
+            lineDevice = line.substring(timeEnd + 1, deviceEnd).trim();
+
+            final String frame = line.substring(deviceEnd + 1).trim();
+            final int separator = frame.indexOf('#');
+            if ((separator != 3) && (separator != 8)) throw invalid(line);
+
+            // note, as can-utils, an 8 digit ID is extended unless it is an error frame
+            //
+            final int id = (int)Long.parseLong(frame.substring(0, separator), 16);
+            if (separator == 3)
+            {
+                rawId = id;
+            }
+            else
+            {
+                rawId = ((id & CanMessage.CAN_ERR_FLAG) != 0) ? (id & (CanMessage.CAN_ERR_FLAG | CanMessage.CAN_ERR_MASK)) : ((id & CanMessage.CAN_EFF_MASK) | CanMessage.CAN_EFF_FLAG);
+            }
+
+            int index = separator + 1;
+            fdFlags = 0;
+            if ((index < frame.length()) && (frame.charAt(index) == '#'))
+            {
+                fdFlags = CanMessage.CANFD_FDF | (Character.digit(frame.charAt(index + 1), 16) & (CanMessage.CANFD_BRS | CanMessage.CANFD_ESI));
+                index += 2;
+            }
+            else if ((index < frame.length()) && (Character.toUpperCase(frame.charAt(index)) == 'R'))
+            {
+                // note, the optional length digit follows the R
+                //
+                rawId |= CanMessage.CAN_RTR_FLAG;
+                payload = new byte[(index + 1 < frame.length()) ? Math.max(0, Character.digit(frame.charAt(index + 1), 16)) : 0];
+                return;
+            }
+
+            final String data = frame.substring(index).replace(".", "");
+            if ((data.length() & 1) != 0) throw invalid(line);
+
+            payload = new byte[data.length() >>> 1];
+            for (int i = 0; i < payload.length; i++) payload[i] = (byte)Integer.parseInt(data.substring(i << 1, (i << 1) + 2), 16);
+        }
+        catch (final NumberFormatException | IndexOutOfBoundsException ex)
+        {
+            throw invalid(line);
+        }
+    }
+
+    // seconds.fraction, the fraction may have any number of digits (usually 6)
+    //
+    private static long parseTimestamp(final String text)
+    {
+        final int point = text.indexOf('.');
+        if (point < 0) return Long.parseLong(text) * 1_000_000_000L;
+
+        final String fraction = (text.substring(point + 1) + "000000000").substring(0, 9);
+        return (Long.parseLong(text.substring(0, point)) * 1_000_000_000L) + Long.parseLong(fraction);
+    }
+
+    private IOException invalid(final String line)
+    {
+        return new IOException("Invalid candump log entry at line " + lineNumber + ": " + line);
+    }
+}
@@ -0,0 +1,159 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+//
+// the index behind the COALESCE_BY_ID overflow policy, each CAN ID owns a value slot and the slots are queued in arrival order
+// the owner (CoalescingQueue or CoalescingFrameRing) holds the slot values, this class only decides which slots are delivered
+//
+// notes 1, a slot is queued at most once, a newer value for a queued slot simply replaces it (i.e. is coalesced)
+//       2, the producer writes the value before publishing, the consumer takes the slot before reading the value
+//          so a value written during the hand-off is either read now or causes the slot to be queued again, it's never lost
+//       3, slots are assigned on first sight of an ID and are never reclaimed, the capacity limits the number of distinct IDs
+//       4, standard data frame IDs use a direct table, any other raw IDs (EFF, RTR, ERR) use a hash map, neither allocates per frame
+//
+
+final class CoalescingBuffer implements Waiter.Source
+{
+    private static final int STANDARD_ID_COUNT = 1 << 11;
+
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+
+    static
+    {
+        try
+        {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(CoalescingBuffer.class, "head", long.class);
+            TAIL = lookup.findVarHandle(CoalescingBuffer.class, "tail", long.class);
+        }
+        catch (final ReflectiveOperationException ex)
+        {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private final int capacity, mask;
+    private final Waiter waiter;
+    private final int[] standardSlots, ready;
+    private final IntObjectMap<Integer> otherSlots;
+    private final AtomicIntegerArray pending;
+    private int assigned;
+
+    // note, the padding keeps the producer and consumer sequences on separate cache lines
+    //
+    private long p01, p02, p03, p04, p05, p06, p07;
+    private volatile long tail;
+    private long p11, p12, p13, p14, p15, p16, p17;
+    private volatile long head;
+    private long p21, p22, p23, p24, p25, p26, p27;
+
+    CoalescingBuffer(final int capacity, final Waiter waiter)
+    {
+        if ((capacity < 2) || (Integer.bitCount(capacity) != 1)) throw new IllegalArgumentException("The coalescing capacity must be a power of two, requested: " + capacity);
+
+        this.capacity = capacity;
+        this.waiter = waiter;
+        mask = capacity - 1;
+        standardSlots = new int[STANDARD_ID_COUNT];
+        ready = new int[capacity];
+        otherSlots = new IntObjectMap<Integer>();
+        pending = new AtomicIntegerArray(capacity);
+        assigned = 0;
+    }
+
+    int capacity()
+    {
+        return capacity;
+    }
+
+    //
+    // producer side
+    //
+
+    // the value slot owned by the raw ID, or -1 if every slot is already owned by other IDs
+    //
+    int slotOf(final int rawId)
+    {
+        if ((rawId >= 0) && (rawId < STANDARD_ID_COUNT))
+        {
+            // note, the table holds slot + 1, so that 0 means unassigned
+            //
+            final int slot = standardSlots[rawId] - 1;
+            if (slot >= 0) return slot;
+            if (assigned == capacity) return -1;
+
+            standardSlots[rawId] = assigned + 1;
+            return assigned++;
+        }
+
+        final Integer slot = otherSlots.get(rawId);
+        if (slot != null) return slot;
+        if (assigned == capacity) return -1;
+
+        otherSlots.put(rawId, assigned);
+        return assigned++;
+    }
+
+    // queues the slot once its value has been written, returns false if it was already queued, i.e. the previous value was coalesced
+    //
+    boolean publish(final int slot)
+    {
+        if (!pending.compareAndSet(slot, 0, 1)) return false;
+
+        // note, every slot is queued at most once, so the ready ring can never overflow
+        //
+        final long currentTail = (long)TAIL.getOpaque(this);
+        ready[(int)(currentTail & mask)] = slot;
+        TAIL.setRelease(this, currentTail + 1);
+        waiter.signal();
+
+        return true;
+    }
+
+    //
+    // consumer side
+    //
+
+    // the next slot to deliver, or -1 if none are queued, the caller then reads the slot's current value
+    //
+    int poll()
+    {
+        final long currentHead = (long)HEAD.getOpaque(this);
+        if (currentHead >= (long)TAIL.getAcquire(this)) return -1;
+
+        final int slot = ready[(int)(currentHead & mask)];
+        HEAD.setRelease(this, currentHead + 1);
+
+        // note, a volatile write, so it can't be reordered with the caller's (volatile or acquiring) read of the value
+        //
+        pending.set(slot, 0);
+
+        return slot;
+    }
+
+    // waits using the configured strategy until the producer publishes or the timeout expires
+    //
+    void await(final long timeout, final TimeUnit unit)
+    {
+        waiter.await(this, timeout, unit);
+    }
+
+    int size()
+    {
+        return (int)((long)TAIL.getAcquire(this) - (long)HEAD.getOpaque(this));
+    }
+
+    public boolean hasData()
+    {
+        return (long)TAIL.getVolatile(this) > (long)HEAD.getOpaque(this);
+    }
+}
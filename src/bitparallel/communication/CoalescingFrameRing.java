@@ -0,0 +1,129 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+//
+// the BATCHED receiver ring used by the COALESCE_BY_ID overflow policy, holds the latest undelivered frame per CAN ID
+// each CAN ID owns a frame slot, see CoalescingBuffer, which the receiver overwrites in place
+//
+// notes 1, every slot is guarded by a sequence lock, i.e. the version is odd whilst the receiver is writing the slot
+//       2, the listener copies the slot and retries if the version changed, so the listeners never see a torn frame
+//       3, the listener remembers the last version it delivered per slot, so a re-queued but unchanged slot is skipped
+//
+
+final class CoalescingFrameRing implements Waiter.Source
+{
+    static final int QUEUED = 1;
+    static final int COALESCED = 0;
+    static final int DROPPED = -1;
+
+    private static final VarHandle VERSIONS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final CoalescingBuffer index;
+    private final ByteBuffer slots;
+    private final CanFrame slotView;
+    private final int slotSize;
+    private final int[] versions, delivered;
+
+    CoalescingFrameRing(final int capacity, final int slotSize, final Waiter waiter)
+    {
+        this.slotSize = slotSize;
+
+        index = new CoalescingBuffer(capacity, waiter);
+        slots = ByteBuffer.allocateDirect(capacity * slotSize).order(ByteOrder.nativeOrder());
+        slotView = new CanFrame(slots, slotSize);
+        versions = new int[capacity];
+        delivered = new int[capacity];
+    }
+
+    int capacity()
+    {
+        return index.capacity();
+    }
+
+    //
+    // producer side
+    //
+
+    // copies the received frame into its ID's slot, returns QUEUED, COALESCED (replaced an undelivered frame) or DROPPED
+    //
+    int offer(final CanFrame frame)
+    {
+        final int slot = index.slotOf(frame.getRawId());
+        if (slot < 0) return DROPPED;
+
+        final int version = versions[slot];
+        VERSIONS.setOpaque(versions, slot, version + 1);
+        VarHandle.storeStoreFence();
+        frame.copyTo(slots, slot * slotSize);
+        VERSIONS.setRelease(versions, slot, version + 2);
+
+        return index.publish(slot) ? QUEUED : COALESCED;
+    }
+
+    //
+    // consumer side
+    //
+
+    // copies the next frame to deliver to the start of the destination buffer, returns false if none are queued
+    //
+    boolean poll(final ByteBuffer destination)
+    {
+        int slot;
+        while ((slot = index.poll()) >= 0)
+        {
+            final int version = copySlot(slot, destination);
+            if (version == delivered[slot]) continue;
+
+            delivered[slot] = version;
+            return true;
+        }
+
+        return false;
+    }
+
+    // waits using the configured strategy until the producer publishes or the timeout expires
+    //
+    void awaitReadable(final long timeout, final TimeUnit unit)
+    {
+        index.await(timeout, unit);
+    }
+
+    int size()
+    {
+        return index.size();
+    }
+
+    public boolean hasData()
+    {
+        return index.hasData();
+    }
+
+    // note, the whole slot is copied without being interpreted, as the payload length may be torn until the version is checked
+    //
+    private int copySlot(final int slot, final ByteBuffer destination)
+    {
+        slotView.moveTo(slot * slotSize);
+        while (true)
+        {
+            final int version = (int)VERSIONS.getVolatile(versions, slot);
+            if ((version & 1) != 0)
+            {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            slotView.copySlotTo(destination, 0);
+            VarHandle.loadLoadFence();
+            if ((int)VERSIONS.getOpaque(versions, slot) == version) return version;
+        }
+    }
+}
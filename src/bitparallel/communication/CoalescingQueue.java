@@ -0,0 +1,82 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToIntFunction;
+
+//
+// the PER_FRAME receiver queue used by the COALESCE_BY_ID overflow policy, holds the latest undelivered element per key
+// note, the consumer takes each value with getAndSet(null), so a slot that was re-queued after its value was taken is skipped
+//
+
+final class CoalescingQueue<E> implements ReceiveQueue<E>
+{
+    private final CoalescingBuffer buffer;
+    private final AtomicReferenceArray<E> values;
+    private final ToIntFunction<E> keyOf;
+    private final Runnable coalesced;
+
+    // note, coalesced is called by the producer for each replaced element
+    //
+    CoalescingQueue(final int capacity, final Waiter waiter, final ToIntFunction<E> keyOf, final Runnable coalesced)
+    {
+        this.keyOf = keyOf;
+        this.coalesced = coalesced;
+
+        buffer = new CoalescingBuffer(capacity, waiter);
+        values = new AtomicReferenceArray<E>(capacity);
+    }
+
+    // producer only, returns false if the element was discarded as every slot is owned by other keys
+    //
+    public boolean offer(final E element)
+    {
+        final int slot = buffer.slotOf(keyOf.applyAsInt(element));
+        if (slot < 0) return false;
+
+        values.set(slot, element);
+        if (!buffer.publish(slot)) coalesced.run();
+
+        return true;
+    }
+
+    // consumer only, waits using the configured strategy if the queue is empty
+    //
+    public E poll(final long timeout, final TimeUnit unit)
+    {
+        E element = next();
+        if (element == null)
+        {
+            buffer.await(timeout, unit);
+            element = next();
+        }
+
+        return element;
+    }
+
+    public int size()
+    {
+        return buffer.size();
+    }
+
+    public boolean hasData()
+    {
+        return buffer.hasData();
+    }
+
+    private E next()
+    {
+        int slot;
+        while ((slot = buffer.poll()) >= 0)
+        {
+            final E element = values.getAndSet(slot, null);
+            if (element != null) return element;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,175 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.Arrays;
+
+//
+// open addressing (linear probing) hash map with primitive int keys, i.e. lookups neither box nor allocate
+// note, not thread safe, instances are either confined to a single thread or published immutably
+//
+
+final class IntObjectMap<V>
+{
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys;
+    private Object[] values;
+    private int mask, size, resizeThreshold;
+
+    IntObjectMap()
+    {
+        this(MIN_CAPACITY);
+    }
+
+    IntObjectMap(final int expectedSize)
+    {
+        allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize) * 2 - 1) << 1));
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(final int key)
+    {
+        int index = mix(key) & mask;
+        Object value;
+        while ((value = values[index]) != null)
+        {
+            if (keys[index] == key) return (V)value;
+            index = (index + 1) & mask;
+        }
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(final int key, final V value)
+    {
+        if (value == null) throw new IllegalArgumentException("Null values are not supported");
+
+        int index = mix(key) & mask;
+        Object existing;
+        while ((existing = values[index]) != null)
+        {
+            if (keys[index] == key)
+            {
+                values[index] = value;
+                return (V)existing;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+        if (++size > resizeThreshold) allocate(keys.length << 1);
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(final int key)
+    {
+        int index = mix(key) & mask;
+        Object existing;
+        while ((existing = values[index]) != null)
+        {
+            if (keys[index] == key)
+            {
+                values[index] = null;
+                size--;
+                compactFrom(index);
+
+                return (V)existing;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        return null;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    void clear()
+    {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    // visits every entry, used when rebuilding or draining a map
+    //
+    interface EntryVisitor<V>
+    {
+        void visit(final int key, final V value);
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(final EntryVisitor<V> visitor)
+    {
+        for (int i = 0; i < values.length; i++)
+        {
+            if (values[i] != null) visitor.visit(keys[i], (V)values[i]);
+        }
+    }
+
+    // backward shift deletion, keeps the probe sequences intact without using tombstones
+    //
+    private void compactFrom(final int deleted)
+    {
+        int gap = deleted;
+        int index = (deleted + 1) & mask;
+        while (values[index] != null)
+        {
+            final int home = mix(keys[index]) & mask;
+            if (((index - home) & mask) >= ((index - gap) & mask))
+            {
+                keys[gap] = keys[index];
+                values[gap] = values[index];
+                values[index] = null;
+                gap = index;
+            }
+
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void allocate(final int capacity)
+    {
+        final int[] oldKeys = keys;
+        final Object[] oldValues = values;
+
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (capacity * 2) / 3;
+        size = 0;
+
+        if (oldValues != null)
+        {
+            for (int i = 0; i < oldValues.length; i++)
+            {
+                if (oldValues[i] == null) continue;
+
+                int index = mix(oldKeys[i]) & mask;
+                while (values[index] != null) index = (index + 1) & mask;
+
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+                size++;
+            }
+        }
+    }
+
+    // note, CAN identifiers are often sequential, so the keys are scrambled before masking
+    //
+    private static int mix(final int key)
+    {
+        final int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
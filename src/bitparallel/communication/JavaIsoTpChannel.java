@@ -0,0 +1,599 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+//
+// ISO-TP implemented using the handler's frame listeners and transmit(), i.e. it works with any CanTransport
+//
+// notes 1, received frames are reassembled by the handler's listener thread directly into the buffer passed to a waiting receive()
+//          a message that starts whilst nobody is waiting is reassembled into an internal buffer, which then holds it for the next
+//          receive(), further messages are rejected (a flow control overflow) until it has been collected
+//       2, the sender waits for each flow control frame, honours the receiver's block size and separation time (STmin) and
+//          waits for up to MAX_WAIT_FRAMES flow control wait frames before failing
+//       3, a new first or single frame abandons an incomplete message, as required by ISO 15765-2
+//       4, the handler must be started, as the flow control frames are received using its listeners
+//
+
+final class JavaIsoTpChannel implements CanIsoTpChannel, CanInternalFrameListener
+{
+    private static final int SINGLE_FRAME = 0;
+    private static final int FIRST_FRAME = 1;
+    private static final int CONSECUTIVE_FRAME = 2;
+    private static final int FLOW_CONTROL = 3;
+
+    private static final int CONTINUE_TO_SEND = 0;
+    private static final int WAIT = 1;
+    private static final int OVERFLOW = 2;
+    private static final int NO_FLOW_CONTROL = -1;
+
+    private static final int MAX_SHORT_LENGTH = 4095;
+    private static final int MAX_WAIT_FRAMES = 16;
+    private static final long SPIN_THRESHOLD_NANOS = 50_000;
+
+    private static final Logger logger = LogManager.getLogger(JavaIsoTpChannel.class);
+
+    private final CanCommsHandler handler;
+    private final int txId, rxId;
+    private final CanIsoTpConfig config;
+    private final int frameLength, fdFlags;
+    private final long timeoutNanos;
+    private final ReentrantLock lock;
+    private final Condition flowControlReceived, messageReceived;
+    private final Object sendLock;
+    private volatile boolean open;
+
+    // the latest flow control frame, guarded by the lock
+    //
+    private int flowStatus, flowBlockSize, flowSeparationCode;
+
+    // the message being reassembled, guarded by the lock
+    //
+    private ByteBuffer posted, held, target;
+    private int targetBase, rxLength, rxIndex, rxSequence, rxBlockCount;
+    private int deliveredLength, heldLength;
+    private boolean rxActive;
+    private long rxDeadline;
+    private String rxError;
+
+    JavaIsoTpChannel(final CanCommsHandler handler, final int txId, final int rxId, final CanIsoTpConfig config)
+    {
+        this.handler = handler;
+        this.txId = txId;
+        this.rxId = rxId;
+        this.config = config;
+
+        frameLength = config.isFdFrames() ? CanMessage.CANFD_MAX_DLEN : CanMessage.CAN_MAX_DLEN;
+        fdFlags = config.isFdFrames() ? (config.isBitRateSwitch() ? (CanMessage.CANFD_FDF | CanMessage.CANFD_BRS) : CanMessage.CANFD_FDF) : 0;
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getTimeout());
+        lock = new ReentrantLock();
+        flowControlReceived = lock.newCondition();
+        messageReceived = lock.newCondition();
+        sendLock = new Object();
+
+        flowStatus = NO_FLOW_CONTROL;
+        posted = null;
+        held = null;
+        target = null;
+        deliveredLength = -1;
+        heldLength = -1;
+        rxActive = false;
+        rxError = null;
+
+        open = true;
+        handler.addFrameListener(rxId, this);
+    }
+
+    @Override
+    public int getTxId()
+    {
+        return txId;
+    }
+
+    @Override
+    public int getRxId()
+    {
+        return rxId;
+    }
+
+    @Override
+    public void close()
+    {
+        open = false;
+        handler.removeFrameListener(this);
+
+        lock.lock();
+        try
+        {
+            rxActive = false;
+            flowControlReceived.signalAll();
+            messageReceived.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    //
+    // transmitting
+    //
+
+    @Override
+    public void send(final ByteBuffer payload) throws IOException
+    {
+        synchronized (sendLock)
+        {
+            if (!open) throw new IOException("The ISO-TP channel 0x" + Integer.toHexString(txId) + " is closed");
+
+            final int length = payload.remaining();
+            if (length <= (frameLength - 2) || (length < CanMessage.CAN_MAX_DLEN))
+            {
+                // a single frame, CAN FD payloads longer than 7 bytes use the escaped length, i.e. a zero length nibble
+                //
+                final int header = (length < CanMessage.CAN_MAX_DLEN) ? 1 : 2;
+                final byte[] data = frameData(header + length);
+                data[0] = (byte)((header == 1) ? length : 0);
+                if (header == 2) data[1] = (byte)length;
+                payload.get(data, header, length);
+
+                transmitFrame(data);
+                return;
+            }
+
+            // the first frame, messages longer than 4095 bytes use the 32 bit escaped length
+            //
+            final boolean escaped = length > MAX_SHORT_LENGTH;
+            final int header = escaped ? 6 : 2;
+            final byte[] first = new byte[frameLength];
+            first[0] = (byte)((FIRST_FRAME << 4) | (escaped ? 0 : (length >>> 8)));
+            first[1] = (byte)(escaped ? 0 : length);
+            if (escaped)
+            {
+                first[2] = (byte)(length >>> 24);
+                first[3] = (byte)(length >>> 16);
+                first[4] = (byte)(length >>> 8);
+                first[5] = (byte)length;
+            }
+
+            payload.get(first, header, frameLength - header);
+            resetFlowControl();
+            transmitFrame(first);
+
+            int sequence = 1;
+            while (payload.hasRemaining())
+            {
+                awaitFlowControl(length);
+
+                // note, STmin separates the consecutive frames, the first frame of each block is sent immediately
+                //
+                final int blockSize = flowBlockSize;
+                final long separationNanos = separationNanos(flowSeparationCode);
+                long nextFrameNanos = System.nanoTime();
+                for (int sent = 0; payload.hasRemaining() && ((blockSize == 0) || (sent < blockSize)); sent++)
+                {
+                    if (sent > 0) waitUntil(nextFrameNanos);
+
+                    final int count = Math.min(payload.remaining(), frameLength - 1);
+                    final byte[] data = frameData(count + 1);
+                    data[0] = (byte)((CONSECUTIVE_FRAME << 4) | (sequence & 0x0f));
+                    payload.get(data, 1, count);
+
+                    // the next flow control frame may arrive as soon as the last frame of the block has been sent
+                    //
+                    if ((blockSize > 0) && (sent == (blockSize - 1)) && payload.hasRemaining()) resetFlowControl();
+
+                    transmitFrame(data);
+                    nextFrameNanos = System.nanoTime() + separationNanos;
+                    sequence++;
+                }
+            }
+        }
+    }
+
+    // waits for a continue to send flow control frame, its block size and separation time are then used for the next block
+    //
+    private void awaitFlowControl(final int length) throws IOException
+    {
+        lock.lock();
+        try
+        {
+            int waitFrames = 0;
+            long remaining = timeoutNanos;
+            while (true)
+            {
+                while (flowStatus == NO_FLOW_CONTROL)
+                {
+                    if (!open) throw new IOException("The ISO-TP channel 0x" + Integer.toHexString(txId) + " was closed whilst sending");
+                    if (remaining <= 0) throw new IOException("Timed out waiting for a flow control frame from 0x" + Integer.toHexString(rxId));
+
+                    remaining = flowControlReceived.awaitNanos(remaining);
+                }
+
+                final int status = flowStatus;
+                flowStatus = NO_FLOW_CONTROL;
+                switch (status)
+                {
+                    case CONTINUE_TO_SEND:
+                        return;
+
+                    case WAIT:
+                        if (++waitFrames > MAX_WAIT_FRAMES) throw new IOException("The receiver 0x" + Integer.toHexString(rxId) + " sent more than " + MAX_WAIT_FRAMES + " flow control wait frames");
+
+                        remaining = timeoutNanos;
+                        break;
+
+                    case OVERFLOW:
+                        throw new IOException("The receiver 0x" + Integer.toHexString(rxId) + " can't accept a message of " + length + " bytes");
+
+                    default:
+                        throw new IOException("Invalid flow control status from 0x" + Integer.toHexString(rxId) + ": " + status);
+                }
+            }
+        }
+        catch (final InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst waiting for a flow control frame");
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void resetFlowControl()
+    {
+        lock.lock();
+        try
+        {
+            flowStatus = NO_FLOW_CONTROL;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void transmitFlowControl(final int status)
+    {
+        final byte[] data = frameData(3);
+        data[0] = (byte)((FLOW_CONTROL << 4) | status);
+        data[1] = (byte)config.getBlockSize();
+        data[2] = (byte)config.getSeparationTimeCode();
+
+        try
+        {
+            transmitFrame(data);
+        }
+        catch (final IOException ex)
+        {
+            logger.error("Unable to transmit an ISO-TP flow control frame using 0x" + Integer.toHexString(txId) + ", reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void transmitFrame(final byte[] data) throws IOException
+    {
+        handler.transmit(new CanMessage(txId, data, fdFlags));
+    }
+
+    // a frame's payload, padded to a valid length using the padding byte (if any)
+    // note, without padding CAN FD frames longer than 8 bytes are zero padded by the transport
+    //
+    private byte[] frameData(final int length)
+    {
+        if (config.getPadding() == CanIsoTpConfig.NO_PADDING) return new byte[length];
+
+        final byte[] data = new byte[(length <= CanMessage.CAN_MAX_DLEN) ? CanMessage.CAN_MAX_DLEN : CanVirtualNode.paddedFdLength(length)];
+        for (int i = length; i < data.length; i++) data[i] = (byte)config.getPadding();
+
+        return data;
+    }
+
+    // STmin, 0 to 127ms or 100 to 900us, the reserved values are treated as the maximum (127ms)
+    //
+    private static long separationNanos(final int code)
+    {
+        if (code <= 0x7f) return TimeUnit.MILLISECONDS.toNanos(code);
+        if ((code >= 0xf1) && (code <= 0xf9)) return TimeUnit.MICROSECONDS.toNanos((code - 0xf0) * 100L);
+
+        return TimeUnit.MILLISECONDS.toNanos(0x7f);
+    }
+
+    private static void waitUntil(final long deadline)
+    {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > SPIN_THRESHOLD_NANOS) LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+        while (deadline - System.nanoTime() > 0) Thread.onSpinWait();
+    }
+
+    //
+    // receiving
+    //
+
+    @Override
+    public int receive(final ByteBuffer buffer, final long timeout, final TimeUnit unit) throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if (!open) throw new IOException("The ISO-TP channel 0x" + Integer.toHexString(rxId) + " is closed");
+            if (posted != null) throw new IllegalStateException("Another thread is already receiving using the ISO-TP channel 0x" + Integer.toHexString(rxId));
+
+            posted = buffer;
+            deliveredLength = -1;
+            rxError = null;
+
+            long remaining = unit.toNanos(timeout);
+            while (true)
+            {
+                if (heldLength >= 0) return collectHeld(buffer);
+                if (deliveredLength >= 0) return deliveredLength;
+                if (rxError != null) throw new IOException(rxError);
+                if (!open) throw new IOException("The ISO-TP channel 0x" + Integer.toHexString(rxId) + " was closed whilst receiving");
+
+                // once a message has started its consecutive frames are awaited (N_Cr), regardless of the receive timeout
+                //
+                if (rxActive && (target == posted))
+                {
+                    final long pending = rxDeadline - System.nanoTime();
+                    if (pending <= 0) throw new IOException("Timed out waiting for an ISO-TP consecutive frame from 0x" + Integer.toHexString(rxId));
+
+                    messageReceived.awaitNanos(pending);
+                }
+                else
+                {
+                    if (remaining <= 0) return -1;
+                    remaining = messageReceived.awaitNanos(remaining);
+                }
+            }
+        }
+        catch (final InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst waiting for an ISO-TP message");
+        }
+        finally
+        {
+            // note, an incomplete message can't continue once the caller's buffer has been returned
+            //
+            if (rxActive && (target == posted)) rxActive = false;
+            posted = null;
+            lock.unlock();
+        }
+    }
+
+    // copies a message that arrived whilst nobody was waiting, called whilst holding the lock
+    //
+    private int collectHeld(final ByteBuffer buffer) throws IOException
+    {
+        final int length = heldLength;
+        heldLength = -1;
+        if (length > buffer.remaining()) throw new IOException("The received ISO-TP message of " + length + " bytes doesn't fit into the buffer's " + buffer.remaining() + " bytes");
+
+        buffer.put(held.duplicate().position(0).limit(length));
+        return length;
+    }
+
+    // called by the handler's listener thread for every frame with the receive ID
+    //
+    @Override
+    public void rxedCanFrame(final CanFrame frame)
+    {
+        final int dlc = frame.getDlc();
+        if ((dlc == 0) || !frame.isDataFrame()) return;
+
+        final int pci = frame.getByte(0) & 0xff;
+        switch (pci >>> 4)
+        {
+            case SINGLE_FRAME:
+                rxedSingleFrame(frame, pci, dlc);
+                break;
+
+            case FIRST_FRAME:
+                rxedFirstFrame(frame, pci, dlc);
+                break;
+
+            case CONSECUTIVE_FRAME:
+                rxedConsecutiveFrame(frame, pci, dlc);
+                break;
+
+            case FLOW_CONTROL:
+                rxedFlowControl(frame, pci, dlc);
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private void rxedSingleFrame(final CanFrame frame, final int pci, final int dlc)
+    {
+        final boolean escaped = ((pci & 0x0f) == 0) && (dlc > CanMessage.CAN_MAX_DLEN);
+        final int header = escaped ? 2 : 1;
+        final int length = escaped ? (frame.getByte(1) & 0xff) : (pci & 0x0f);
+        if ((length == 0) || ((header + length) > dlc)) return;
+
+        lock.lock();
+        try
+        {
+            if (!startMessage(length)) return;
+
+            frame.copyPayloadTo(header, target, targetBase, length);
+            rxIndex = length;
+            completeMessage();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void rxedFirstFrame(final CanFrame frame, final int pci, final int dlc)
+    {
+        if (dlc < CanMessage.CAN_MAX_DLEN) return;
+
+        final long shortLength = ((pci & 0x0f) << 8) | (frame.getByte(1) & 0xff);
+        final boolean escaped = shortLength == 0;
+        final int header = escaped ? 6 : 2;
+        final long length = escaped ? (Integer.reverseBytes(frame.getInt(2)) & 0xffffffffL) : shortLength;
+
+        final boolean accepted;
+        lock.lock();
+        try
+        {
+            accepted = (length <= Integer.MAX_VALUE) && startMessage((int)length);
+            if (accepted)
+            {
+                final int count = Math.min(dlc - header, rxLength);
+                frame.copyPayloadTo(header, target, targetBase, count);
+                rxIndex = count;
+                rxSequence = 1;
+                rxBlockCount = 0;
+                rxActive = true;
+                rxDeadline = System.nanoTime() + timeoutNanos;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        transmitFlowControl(accepted ? CONTINUE_TO_SEND : OVERFLOW);
+    }
+
+    private void rxedConsecutiveFrame(final CanFrame frame, final int pci, final int dlc)
+    {
+        boolean blockComplete = false;
+        lock.lock();
+        try
+        {
+            if (!rxActive) return;
+            if ((pci & 0x0f) != (rxSequence & 0x0f))
+            {
+                abandonMessage("ISO-TP sequence error from 0x" + Integer.toHexString(rxId) + ", expected " + (rxSequence & 0x0f) + " but received " + (pci & 0x0f), target == posted);
+                return;
+            }
+
+            final int count = Math.min(dlc - 1, rxLength - rxIndex);
+            frame.copyPayloadTo(1, target, targetBase + rxIndex, count);
+            rxIndex += count;
+            rxSequence++;
+            rxDeadline = System.nanoTime() + timeoutNanos;
+            if (rxIndex == rxLength)
+            {
+                completeMessage();
+            }
+            else if ((config.getBlockSize() > 0) && (++rxBlockCount == config.getBlockSize()))
+            {
+                rxBlockCount = 0;
+                blockComplete = true;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (blockComplete) transmitFlowControl(CONTINUE_TO_SEND);
+    }
+
+    private void rxedFlowControl(final CanFrame frame, final int pci, final int dlc)
+    {
+        if (dlc < 3) return;
+
+        lock.lock();
+        try
+        {
+            flowStatus = pci & 0x0f;
+            flowBlockSize = frame.getByte(1) & 0xff;
+            flowSeparationCode = frame.getByte(2) & 0xff;
+            flowControlReceived.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // chooses where the message is reassembled, returns false if it can't be accepted, called whilst holding the lock
+    //
+    private boolean startMessage(final int length)
+    {
+        if (rxActive)
+        {
+            logger.warn("Abandoned an incomplete ISO-TP message from 0x" + Integer.toHexString(rxId) + ", a new message has started");
+            rxActive = false;
+        }
+
+        if ((posted != null) && (deliveredLength < 0) && (rxError == null))
+        {
+            if (length > posted.remaining())
+            {
+                abandonMessage("The received ISO-TP message of " + length + " bytes doesn't fit into the buffer's " + posted.remaining() + " bytes", true);
+                return false;
+            }
+
+            target = posted;
+            targetBase = posted.position();
+        }
+        else if ((heldLength >= 0) || (length > config.getMaxMessageLength()))
+        {
+            logger.warn("Rejected an ISO-TP message of " + length + " bytes from 0x" + Integer.toHexString(rxId) + ((heldLength >= 0) ? ", the previous message hasn't been received" : ", it exceeds the maximum message length"));
+            return false;
+        }
+        else
+        {
+            if (held == null) held = ByteBuffer.allocate(config.getMaxMessageLength());
+            target = held;
+            targetBase = 0;
+        }
+
+        rxLength = length;
+        rxIndex = 0;
+        return true;
+    }
+
+    private void completeMessage()
+    {
+        rxActive = false;
+        if (target == posted)
+        {
+            posted.position(targetBase + rxLength);
+            deliveredLength = rxLength;
+        }
+        else
+        {
+            heldLength = rxLength;
+        }
+
+        messageReceived.signalAll();
+    }
+
+    // the reason is reported by the waiting receive() when the message was being reassembled into its buffer, otherwise it's logged
+    //
+    private void abandonMessage(final String reason, final boolean reportToReceiver)
+    {
+        rxActive = false;
+        if (reportToReceiver)
+        {
+            rxError = reason;
+            messageReceived.signalAll();
+        }
+        else
+        {
+            logger.warn(reason);
+        }
+    }
+}
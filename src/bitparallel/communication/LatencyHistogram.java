@@ -0,0 +1,124 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//
+// a fixed size, log-linear (HDR style) histogram of nanosecond latencies, recording a value allocates nothing
+//
+// notes 1, values below 64ns are recorded exactly, larger values are held in 32 sub-buckets per power of two, i.e. within ~3%
+//       2, values beyond MAX_TRACKABLE_NANOS (~18 minutes) are recorded as MAX_TRACKABLE_NANOS
+//       3, recording is thread safe, the reported statistics are a (non-atomic) point in time view
+//
+
+public class LatencyHistogram
+{
+    public static final long MAX_TRACKABLE_NANOS = (1L << 40) - 1;
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT << 1;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + ((40 - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT);
+
+    private final AtomicLongArray counts;
+    private final AtomicLong count, sum, max;
+
+    public LatencyHistogram()
+    {
+        counts = new AtomicLongArray(BUCKET_COUNT);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    public void record(final long nanos)
+    {
+        final long value = Math.min(Math.max(nanos, 0), MAX_TRACKABLE_NANOS);
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        if (value > max.get()) max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        final long total = count.get();
+        return (total == 0) ? 0 : (double)sum.get() / total;
+    }
+
+    // the highest value (within the bucket precision) that the requested percentage of recorded values do not exceed
+    //
+    public long getValueAtPercentile(final double percentile)
+    {
+        final long total = count.get();
+        if (total == 0) return 0;
+
+        final long target = Math.max(1, (long)Math.ceil((Math.min(Math.max(percentile, 0), 100) / 100.0) * total));
+        long accumulated = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            accumulated += counts.get(i);
+            if (accumulated >= target) return Math.min(highestValueOf(i), max.get());
+        }
+
+        return max.get();
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++) counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuffer sb = new StringBuffer();
+        sb.append("count: ");
+        sb.append(getCount());
+        sb.append(String.format(", mean: %.1f us", getMean() / 1000.0));
+        sb.append(String.format(", p50: %.1f us", getValueAtPercentile(50) / 1000.0));
+        sb.append(String.format(", p99: %.1f us", getValueAtPercentile(99) / 1000.0));
+        sb.append(String.format(", p99.9: %.1f us", getValueAtPercentile(99.9) / 1000.0));
+        sb.append(String.format(", max: %.1f us", getMax() / 1000.0));
+
+        return sb.toString();
+    }
+
+    // values below LINEAR_LIMIT map directly, above that the top SUB_BUCKET_BITS bits below the leading one select the sub-bucket
+    //
+    private static int bucketOf(final long value)
+    {
+        if (value < LINEAR_LIMIT) return (int)value;
+
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return LINEAR_LIMIT + ((exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT) + subBucket;
+    }
+
+    private static long highestValueOf(final int bucket)
+    {
+        if (bucket < LINEAR_LIMIT) return bucket;
+
+        final int exponent = ((bucket - LINEAR_LIMIT) / SUB_BUCKET_COUNT) + SUB_BUCKET_BITS + 1;
+        final long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKET_COUNT;
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return ((SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,286 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+//
+// loads the socketCAN JNI shared library for the running architecture, see SocketCanTransport
+//
+// notes 1, a preinstalled library (e.g. libcan_comms_handler_linux_arm64.so) on java.library.path is used as is
+//       2, otherwise the library bundled in the JAR is extracted into a cache directory, named by its content hash, i.e. a copy that is
+//          already present is reused without being written and a new JAR version never reuses an old library
+//       3, the content hash is read from the <library>.sha256 resource written by the build, so a warm start only reads and hashes the
+//          cached copy, without the resource the bundled library is also read and hashed
+//       4, the library is written to a temporary file and then atomically renamed, so JVMs starting at the same time never load a
+//          partially written copy
+//       5, the cache directory defaults to $XDG_CACHE_HOME/bitparallel-can-comms-handler (or ~/.cache when unset), use the
+//          bitparallel.communication.nativeCache system property to move it
+//       6, the cache directory is created with 0700 permissions and is refused unless it's owned by the current user and isn't group
+//          or world writable, i.e. another local user can't plant a library in it, a cached library is also re-hashed before loading
+//       7, the owner is compared using the numeric uid of a file created in the cache directory, i.e. the user needn't have a name,
+//          e.g. a container running an arbitrary uid
+//       8, if the default cache can't be used (e.g. a daemon user without a writable home directory) then a private directory under
+//          java.io.tmpdir named by the uid is used instead, a configured cache directory is never replaced
+//
+
+final class NativeLibraryLoader
+{
+    static final String CACHE_PROPERTY = "bitparallel.communication.nativeCache";
+
+    private static final String LIBRARY_PREFIX = "can_comms_handler_linux_";
+    private static final String CACHE_NAME = "bitparallel-can-comms-handler";
+    private static final String HASH_SUFFIX = ".sha256";
+    private static final int HASH_NAME_LENGTH = 16;
+    private static final int SHA256_LENGTH = 64;
+
+    private NativeLibraryLoader()
+    {
+    }
+
+    static void load() throws UnsatisfiedLinkError
+    {
+        final String libraryName = System.mapLibraryName(LIBRARY_PREFIX + architecture());
+
+        final File preinstalled = findOnLibraryPath(libraryName);
+        if (preinstalled != null)
+        {
+            System.load(preinstalled.getAbsolutePath());
+            return;
+        }
+
+        try
+        {
+            final Path cacheDir = cacheDirectory();
+            final String bundledHash = readBundledHash(libraryName);
+            if (bundledHash != null)
+            {
+                final Path cached = cacheDir.resolve(cachedName(libraryName, bundledHash));
+                if (isCached(cached, bundledHash))
+                {
+                    System.load(cached.toString());
+                    return;
+                }
+            }
+
+            final byte[] library = readBundledLibrary(libraryName);
+            final String hash = sha256(library);
+            if ((bundledHash != null) && !bundledHash.equals(hash)) throw new IOException("The bundled " + libraryName + " doesn't match its " + libraryName + HASH_SUFFIX + " content hash");
+
+            // note, a cached copy that doesn't match (e.g. truncated) is replaced
+            //
+            final Path cached = cacheDir.resolve(cachedName(libraryName, hash));
+            if (!isCached(cached, hash)) install(library, cacheDir, cached);
+
+            System.load(cached.toString());
+        }
+        catch (final IOException | NoSuchAlgorithmException ex)
+        {
+            final StringBuffer sb = new StringBuffer();
+            sb.append("Failed to install the native library, reason: ");
+            sb.append(ex.getMessage());
+
+            throw new UnsatisfiedLinkError(sb.toString());
+        }
+    }
+
+    // the library name suffix for each supported architecture
+    // note, os.arch reports the JVM's architecture, i.e. a 32 bit JVM on a 64 bit ARM kernel needs the arm32 library
+    //
+    private static String architecture() throws UnsatisfiedLinkError
+    {
+        final String osName = System.getProperty("os.name");
+        final String osArch = System.getProperty("os.arch");
+        if ("Linux".equals(osName))
+        {
+            if ("arm".equals(osArch)) return "arm32";
+            if ("aarch64".equals(osArch)) return "arm64";
+            if ("amd64".equals(osArch) || "x86_64".equals(osArch)) return "x86_64";
+        }
+
+        final StringBuffer sb = new StringBuffer();
+        sb.append("The detected OS and architecture combination is not supported: ");
+        sb.append(osName);
+        sb.append(" (");
+        sb.append(osArch);
+        sb.append(")");
+
+        throw new UnsatisfiedLinkError(sb.toString());
+    }
+
+    private static File findOnLibraryPath(final String libraryName)
+    {
+        final String libraryPath = System.getProperty("java.library.path", "");
+        for (String dir : libraryPath.split(File.pathSeparator))
+        {
+            if (dir.isEmpty()) continue;
+
+            final File library = new File(dir, libraryName);
+            if (library.isFile()) return library;
+        }
+
+        return null;
+    }
+
+    private static Path cacheDirectory() throws IOException
+    {
+        final String configured = System.getProperty(CACHE_PROPERTY);
+        if (configured != null) return privateDirectory(Paths.get(configured));
+
+        final String xdgCache = System.getenv("XDG_CACHE_HOME");
+        final Path userCache;
+        if ((xdgCache != null) && Paths.get(xdgCache).isAbsolute())
+        {
+            userCache = Paths.get(xdgCache, CACHE_NAME);
+        }
+        else
+        {
+            userCache = Paths.get(System.getProperty("user.home"), ".cache", CACHE_NAME);
+        }
+
+        try
+        {
+            return privateDirectory(userCache);
+        }
+        catch (final IOException ex)
+        {
+            final Path tmpDir = Paths.get(System.getProperty("java.io.tmpdir"));
+            return privateDirectory(tmpDir.resolve(CACHE_NAME + "-" + createdFileUid(tmpDir)));
+        }
+    }
+
+    private static Path privateDirectory(final Path cacheDir) throws IOException
+    {
+        if (!Files.exists(cacheDir, LinkOption.NOFOLLOW_LINKS)) Files.createDirectories(cacheDir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        checkPrivate(cacheDir);
+        return cacheDir;
+    }
+
+    // refuses a cache directory that another user could write to, i.e. a symbolic link, owned by another user, or group or world writable
+    //
+    private static void checkPrivate(final Path cacheDir) throws IOException
+    {
+        final PosixFileAttributes attributes;
+        try
+        {
+            attributes = Files.readAttributes(cacheDir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        catch (final UnsupportedOperationException ex)
+        {
+            throw new IOException("The native library cache " + cacheDir + " doesn't support POSIX permissions");
+        }
+
+        if (!attributes.isDirectory()) throw new IOException("The native library cache " + cacheDir + " isn't a directory");
+
+        final int uid = createdFileUid(cacheDir);
+        final Set<PosixFilePermission> permissions = attributes.permissions();
+        if (uid(cacheDir) != uid) throw new IOException("The native library cache " + cacheDir + " isn't owned by the current user (uid " + uid + ")");
+        if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)) throw new IOException("The native library cache " + cacheDir + " is group or world writable");
+    }
+
+    // the current user's uid, i.e. the owner of a file created in the directory, this doesn't need a user name (or a passwd entry)
+    //
+    private static int createdFileUid(final Path dir) throws IOException
+    {
+        final Path probe = Files.createTempFile(dir, CACHE_NAME, ".tmp");
+        try
+        {
+            return uid(probe);
+        }
+        finally
+        {
+            Files.deleteIfExists(probe);
+        }
+    }
+
+    private static int uid(final Path path) throws IOException
+    {
+        try
+        {
+            return (Integer)Files.getAttribute(path, "unix:uid", LinkOption.NOFOLLOW_LINKS);
+        }
+        catch (final UnsupportedOperationException | IllegalArgumentException ex)
+        {
+            throw new IOException("Unable to read the owner of " + path + ", the file system doesn't report the uid");
+        }
+    }
+
+    // true if the cached library is present and its content still matches the hash
+    //
+    private static boolean isCached(final Path cached, final String hash) throws IOException, NoSuchAlgorithmException
+    {
+        if (!Files.isRegularFile(cached, LinkOption.NOFOLLOW_LINKS)) return false;
+        return sha256(Files.readAllBytes(cached)).equals(hash);
+    }
+
+    // e.g. libcan_comms_handler_linux_arm64-0123456789abcdef.so
+    //
+    private static String cachedName(final String libraryName, final String hash)
+    {
+        final int extension = libraryName.lastIndexOf('.');
+        return libraryName.substring(0, extension) + "-" + hash.substring(0, HASH_NAME_LENGTH) + libraryName.substring(extension);
+    }
+
+    private static void install(final byte[] library, final Path cacheDir, final Path cached) throws IOException
+    {
+        final Path temporary = Files.createTempFile(cacheDir, cached.getFileName().toString(), ".tmp");
+        try
+        {
+            Files.write(temporary, library);
+            Files.move(temporary, cached, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // note, returns null if the build didn't write the hash resource, e.g. when running from the class files
+    //
+    private static String readBundledHash(final String libraryName) throws IOException
+    {
+        try (InputStream is = NativeLibraryLoader.class.getClassLoader().getResourceAsStream(libraryName + HASH_SUFFIX))
+        {
+            if (is == null) return null;
+
+            // note, the first token is the hash, anything after it (e.g. the file name written by sha256sum) is ignored
+            //
+            final String hash = new String(is.readAllBytes(), StandardCharsets.US_ASCII).trim().split("\\s+")[0].toLowerCase();
+            return (hash.length() != SHA256_LENGTH) ? null : hash;
+        }
+    }
+
+    private static byte[] readBundledLibrary(final String libraryName) throws IOException
+    {
+        try (InputStream is = NativeLibraryLoader.class.getClassLoader().getResourceAsStream(libraryName))
+        {
+            if (is == null) throw new IOException("The native library " + libraryName + " isn't bundled in the JAR file or on java.library.path");
+            return is.readAllBytes();
+        }
+    }
+
+    private static String sha256(final byte[] bytes) throws NoSuchAlgorithmException
+    {
+        final byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+        final StringBuffer sb = new StringBuffer();
+        for (byte b : digest) sb.append(String.format("%02x", b & 0xff));
+
+        return sb.toString();
+    }
+}
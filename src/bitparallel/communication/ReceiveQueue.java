@@ -0,0 +1,23 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.concurrent.TimeUnit;
+
+// the PER_FRAME receiver queue, the implementation is selected by CanCommsConfig.setOverflowPolicy()
+// note, offer() is invoked by the native receiver task, if its signature is changed update the native handler accordingly
+//
+interface ReceiveQueue<E> extends Waiter.Source
+{
+    // producer only, returns false if the offered element was discarded
+    //
+    boolean offer(final E element);
+
+    // consumer only, waits using the configured strategy if the queue is empty, returns null on timeout
+    //
+    E poll(final long timeout, final TimeUnit unit);
+
+    int size();
+}
@@ -0,0 +1,142 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+//
+// ISO-TP implemented by the kernel (the CAN_ISOTP protocol, Linux 5.10 onwards), i.e. the segmentation, flow control and STmin
+// timing happen in the kernel, a whole message is a single write() or read()
+//
+// notes 1, direct buffers are read and written in place, heap buffers are staged through a direct buffer owned by the channel
+//       2, the channel has its own socket, i.e. it doesn't need the handler to be started
+//       3, the kernel limits the message length (8300 bytes by default, see the can-isotp max_pdu_size module parameter)
+//
+
+final class SocketCanIsoTpChannel implements CanIsoTpChannel
+{
+    // as the kernel
+    //
+    private static final int EINTR = 4;
+    private static final int EAGAIN = 11;
+
+    static
+    {
+        // note, loads the shared native library
+        //
+        try
+        {
+            Class.forName(SocketCanTransport.class.getName());
+        }
+        catch (final ClassNotFoundException ex)
+        {
+            throw new UnsatisfiedLinkError("Unable to load the SocketCanTransport native library, reason: " + ex.getMessage());
+        }
+    }
+
+    private final String device;
+    private final int txId, rxId;
+    private final int socketFd;
+    private final Object sendLock, receiveLock;
+    private ByteBuffer sendStaging, receiveStaging;
+
+    SocketCanIsoTpChannel(final String device, final int txId, final int rxId, final CanIsoTpConfig config) throws IOException
+    {
+        this.device = device;
+        this.txId = txId;
+        this.rxId = rxId;
+
+        socketFd = nativeOpen(device, txId, rxId, config.getBlockSize(), config.getSeparationTimeCode(), config.getPadding(), config.isFdFrames(), config.isBitRateSwitch());
+        sendLock = new Object();
+        receiveLock = new Object();
+        sendStaging = null;
+        receiveStaging = null;
+    }
+
+    private native int nativeOpen(final String device, final int txId, final int rxId, final int blockSize, final int separationTimeCode, final int padding, final boolean fdFrames, final boolean bitRateSwitch) throws IOException;
+    private native void nativeSend(final int socketFd, final ByteBuffer buffer, final int offset, final int length) throws IOException;
+    private native int nativeReceive(final int socketFd, final ByteBuffer buffer, final int offset, final int capacity, final int timeoutMs);
+    private native void nativeClose(final int socketFd) throws IOException;
+
+    @Override
+    public int getTxId()
+    {
+        return txId;
+    }
+
+    @Override
+    public int getRxId()
+    {
+        return rxId;
+    }
+
+    // note, the write returns once the kernel has sent the last frame (CAN_ISOTP_WAIT_TX_DONE)
+    //
+    @Override
+    public void send(final ByteBuffer payload) throws IOException
+    {
+        synchronized (sendLock)
+        {
+            final int length = payload.remaining();
+            if (payload.isDirect())
+            {
+                nativeSend(socketFd, payload, payload.position(), length);
+            }
+            else
+            {
+                if ((sendStaging == null) || (sendStaging.capacity() < length)) sendStaging = ByteBuffer.allocateDirect(length);
+                sendStaging.clear();
+                sendStaging.put(payload.duplicate());
+                nativeSend(socketFd, sendStaging, 0, length);
+            }
+
+            payload.position(payload.limit());
+        }
+    }
+
+    @Override
+    public int receive(final ByteBuffer buffer, final long timeout, final TimeUnit unit) throws IOException
+    {
+        synchronized (receiveLock)
+        {
+            final boolean direct = buffer.isDirect();
+            final int capacity = buffer.remaining();
+            if (!direct && ((receiveStaging == null) || (receiveStaging.capacity() < capacity))) receiveStaging = ByteBuffer.allocateDirect(capacity);
+
+            // note, the poll is restarted after a signal, the remaining time is then only approximate
+            //
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (true)
+            {
+                final int timeoutMs = (int)Math.min(Integer.MAX_VALUE, Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                final int length = direct ? nativeReceive(socketFd, buffer, buffer.position(), capacity, timeoutMs) : nativeReceive(socketFd, receiveStaging, 0, capacity, timeoutMs);
+                if ((length == -EINTR) || (length == -EAGAIN)) continue;
+                if (length < 0) throw new IOException("Unable to receive using the ISO-TP channel 0x" + Integer.toHexString(rxId) + " on " + device + ", native ERRNO: " + -length);
+                if (length == 0) return -1;
+                if (length > capacity) throw new IOException("The received ISO-TP message of " + length + " bytes doesn't fit into the buffer's " + capacity + " bytes");
+
+                if (direct)
+                {
+                    buffer.position(buffer.position() + length);
+                }
+                else
+                {
+                    receiveStaging.clear();
+                    receiveStaging.limit(length);
+                    buffer.put(receiveStaging);
+                }
+                return length;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        nativeClose(socketFd);
+    }
+}
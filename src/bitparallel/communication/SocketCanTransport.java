@@ -0,0 +1,126 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//
+// the Linux socketCAN transport, implemented by the JNI shared library, i.e. the default CanCommsHandler transport
+// note, the native library is loaded when the first instance is created, so the rest of the API can be used on any platform,
+//       see NativeLibraryLoader
+//
+
+public class SocketCanTransport implements CanTransport
+{
+    // must match the native TRANSMIT_SLOT_SIZE, i.e. a canfd_frame
+    //
+    static final int TRANSMIT_SLOT_SIZE = 72;
+
+    static
+    {
+        NativeLibraryLoader.load();
+    }
+
+    private String device;
+    private long deviceHandle;
+    private ByteBuffer transmitBatch;
+
+    public SocketCanTransport()
+    {
+        device = null;
+        deviceHandle = 0;
+        transmitBatch = null;
+    }
+
+    // note, the device handle refers to the native socket state, which includes the file descriptor and the compiled filters
+    //
+    private native long nativeOpen(final String device, final CanFilter[] filters, final boolean kernelFiltering, final boolean fdFrames, final boolean timestamping) throws IOException;
+    private native void nativeSetFilters(final CanFilter[] filters, final long deviceHandle) throws IOException;
+    private native void nativeTransmit(final long deviceHandle, final int rawId, final byte[] payload, final int fdFlags, final boolean fdFrame) throws IOException;
+    private native int nativeTransmitBatch(final long deviceHandle, final ByteBuffer buffer, final int count);
+    private native void nativeReceiveTask(final CanCommsHandler handler, final ReceiveQueue<CanMessage> receiveQueue, final AtomicBoolean running, final long deviceHandle);
+    private native int nativeReceiveBatch(final long deviceHandle, final ByteBuffer buffer, final int offset, final int slotSize, final int maxFrames, final int timeoutMs);
+    private native void nativeClose(final String device, final long deviceHandle) throws IOException;
+
+    @Override
+    public void open(final String device, final CanFilter[] filters, final CanCommsConfig config) throws IOException
+    {
+        deviceHandle = nativeOpen(device, filters, config.isKernelFiltering(), config.isFdFrames(), config.isTimestamping());
+        this.device = device;
+    }
+
+    @Override
+    public void setFilters(final CanFilter[] filters) throws IOException
+    {
+        nativeSetFilters(filters, deviceHandle);
+    }
+
+    // note, CAN FD messages require CanCommsConfig.setFdFrames(true)
+    //
+    @Override
+    public void transmit(final CanMessage message) throws IOException
+    {
+        nativeTransmit(deviceHandle, message.getRawId(), message.getPayload(), message.getFdFlags(), message.isFdFrame());
+    }
+
+    // the frames are packed into canfd_frame sized slots (CANFD_FDF marks a CAN FD frame) and written using a single sendmmsg()
+    // note, the lengths are checked by CanCommsHandler.transmitAsync(), the native batch trusts them
+    //
+    @Override
+    public int transmit(final CanMessage[] messages, final int offset, final int count) throws IOException
+    {
+        if (transmitBatch == null) transmitBatch = ByteBuffer.allocateDirect(CanTransmitQueue.MAX_BATCH_SIZE * TRANSMIT_SLOT_SIZE).order(ByteOrder.nativeOrder());
+
+        final int frames = Math.min(count, CanTransmitQueue.MAX_BATCH_SIZE);
+        for (int i = 0; i < frames; i++)
+        {
+            final CanMessage message = messages[offset + i];
+            final byte[] payload = message.getPayload();
+            final int length = message.isFdFrame() ? CanVirtualNode.paddedFdLength(payload.length) : payload.length;
+            final int slot = i * TRANSMIT_SLOT_SIZE;
+
+            transmitBatch.putInt(slot + CanFrameRing.ID_OFFSET, message.getRawId());
+            transmitBatch.put(slot + CanFrameRing.LENGTH_OFFSET, (byte)length);
+            transmitBatch.put(slot + CanFrameRing.FD_FLAGS_OFFSET, (byte)(message.isFdFrame() ? (message.getFdFlags() | CanMessage.CANFD_FDF) : 0));
+            transmitBatch.putShort(slot + CanFrameRing.BUS_OFFSET, (short)0);
+            for (int j = 0; j < length; j++) transmitBatch.put(slot + CanFrameRing.DATA_OFFSET + j, (j < payload.length) ? payload[j] : (byte)0);
+        }
+
+        final int sent = nativeTransmitBatch(deviceHandle, transmitBatch, frames);
+        if (sent < 0) throw new IOException("Error writing CAN frames to " + device + ", native ERRNO: " + -sent);
+
+        return sent;
+    }
+
+    @Override
+    public int receive(final ByteBuffer buffer, final int offset, final int slotSize, final int maxFrames, final int timeoutMs)
+    {
+        return nativeReceiveBatch(deviceHandle, buffer, offset, slotSize, maxFrames, timeoutMs);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        nativeClose(device, deviceHandle);
+    }
+
+    // the PER_FRAME receiver, the native task creates and queues one CanMessage per frame until running is cleared
+    // note, read errors and dropped frames are reported using the handler's nativeReadErrorHandler() and nativeDroppedFrameHandler()
+    //
+    void receiveTask(final CanCommsHandler handler, final ReceiveQueue<CanMessage> receiveQueue, final AtomicBoolean running)
+    {
+        nativeReceiveTask(handler, receiveQueue, running, deviceHandle);
+    }
+
+    // used by the CanBusReactor to register the socket
+    //
+    long getDeviceHandle()
+    {
+        return deviceHandle;
+    }
+}
@@ -0,0 +1,194 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+//
+// lock-free, bounded, single producer / single consumer queue with a power of two capacity
+// replaces the LinkedBlockingQueue hand-off, i.e. no node allocation per element and no lock on either side
+//
+// notes 1, offer() is invoked by the native receiver task, if its signature is changed update the native handler accordingly
+//       2, when full, offer() applies the DROP_NEWEST, DROP_OLDEST or BLOCK overflow policy, see CanCommsConfig.OverflowPolicy
+//       3, DROP_OLDEST lets the producer advance the head, so both sides then use a CAS to consume an element
+//
+
+final class SpscQueue<E> implements ReceiveQueue<E>
+{
+    static final long BLOCK_PARK_NANOS = 50_000;
+
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+    private static final VarHandle ELEMENTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    static
+    {
+        try
+        {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(SpscQueue.class, "head", long.class);
+            TAIL = lookup.findVarHandle(SpscQueue.class, "tail", long.class);
+        }
+        catch (final ReflectiveOperationException ex)
+        {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private final Object[] elements;
+    private final int capacity, mask;
+    private final Waiter waiter;
+    private final CanCommsConfig.OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final IntConsumer evicted;
+
+    // note, the padding keeps the producer and consumer sequences on separate cache lines
+    //
+    private long p01, p02, p03, p04, p05, p06, p07;
+    private volatile long tail;
+    private long p11, p12, p13, p14, p15, p16, p17;
+    private volatile long head;
+    private long p21, p22, p23, p24, p25, p26, p27;
+
+    SpscQueue(final int capacity, final Waiter waiter)
+    {
+        this(capacity, waiter, CanCommsConfig.OverflowPolicy.DROP_NEWEST, 0, (count) -> {});
+    }
+
+    // note, evicted is called by the producer for every element discarded by the DROP_OLDEST policy
+    //
+    SpscQueue(final int capacity, final Waiter waiter, final CanCommsConfig.OverflowPolicy overflowPolicy, final long blockTimeoutNanos, final IntConsumer evicted)
+    {
+        if ((capacity < 2) || (Integer.bitCount(capacity) != 1)) throw new IllegalArgumentException("The queue capacity must be a power of two, requested: " + capacity);
+
+        this.capacity = capacity;
+        this.waiter = waiter;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = blockTimeoutNanos;
+        this.evicted = evicted;
+        mask = capacity - 1;
+        elements = new Object[capacity];
+    }
+
+    // producer only, returns false if the offered element was discarded
+    //
+    public boolean offer(final E element)
+    {
+        final long currentTail = (long)TAIL.getOpaque(this);
+        if ((currentTail - (long)HEAD.getAcquire(this)) >= capacity)
+        {
+            switch (overflowPolicy)
+            {
+                case DROP_OLDEST:
+                    if (evictOldest(currentTail)) evicted.accept(1);
+                    break;
+
+                case BLOCK:
+                    if (!awaitSpace(currentTail)) return false;
+                    break;
+
+                default:
+                    return false;
+            }
+        }
+
+        ELEMENTS.setRelease(elements, (int)(currentTail & mask), element);
+        TAIL.setRelease(this, currentTail + 1);
+        waiter.signal();
+
+        return true;
+    }
+
+    // consumer only, returns null if the queue is empty
+    //
+    @SuppressWarnings("unchecked")
+    E poll()
+    {
+        if (overflowPolicy == CanCommsConfig.OverflowPolicy.DROP_OLDEST) return pollContended();
+
+        final long currentHead = (long)HEAD.getOpaque(this);
+        if (currentHead >= (long)TAIL.getAcquire(this)) return null;
+
+        final int index = (int)(currentHead & mask);
+        final E element = (E)ELEMENTS.getAcquire(elements, index);
+        ELEMENTS.setOpaque(elements, index, null);
+        HEAD.setRelease(this, currentHead + 1);
+
+        return element;
+    }
+
+    // consumer only, waits using the configured strategy if the queue is empty
+    //
+    public E poll(final long timeout, final TimeUnit unit)
+    {
+        final E element = poll();
+        if (element != null) return element;
+
+        waiter.await(this, timeout, unit);
+        return poll();
+    }
+
+    public boolean hasData()
+    {
+        return (long)TAIL.getVolatile(this) > (long)HEAD.getOpaque(this);
+    }
+
+    public int size()
+    {
+        return (int)((long)TAIL.getVolatile(this) - (long)HEAD.getVolatile(this));
+    }
+
+    int capacity()
+    {
+        return capacity;
+    }
+
+    // the producer discards the oldest element, unless the consumer has made space in the meantime
+    // note, the head is advanced before the freed slot is overwritten, so a concurrent pollContended() will fail its CAS
+    //
+    private boolean evictOldest(final long currentTail)
+    {
+        while (true)
+        {
+            final long currentHead = (long)HEAD.getAcquire(this);
+            if ((currentTail - currentHead) < capacity) return false;
+            if (HEAD.compareAndSet(this, currentHead, currentHead + 1)) return true;
+        }
+    }
+
+    // the producer waits for the consumer to make space, returns false if the timeout expires first
+    //
+    private boolean awaitSpace(final long currentTail)
+    {
+        final long deadline = System.nanoTime() + blockTimeoutNanos;
+        while ((currentTail - (long)HEAD.getAcquire(this)) >= capacity)
+        {
+            if ((deadline - System.nanoTime()) <= 0) return false;
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+
+        return true;
+    }
+
+    // the DROP_OLDEST consumer, the element is only taken if the producer hasn't evicted it
+    // note, the slot isn't cleared as the producer may already be reusing it
+    //
+    @SuppressWarnings("unchecked")
+    private E pollContended()
+    {
+        while (true)
+        {
+            final long currentHead = (long)HEAD.getAcquire(this);
+            if (currentHead >= (long)TAIL.getAcquire(this)) return null;
+
+            final E element = (E)ELEMENTS.getAcquire(elements, (int)(currentHead & mask));
+            if (HEAD.compareAndSet(this, currentHead, currentHead + 1)) return element;
+        }
+    }
+}
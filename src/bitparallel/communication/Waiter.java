@@ -0,0 +1,147 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+//
+// implements the CanCommsConfig.WaitStrategy options, used by the consumer side of the receiver queues and rings
+//
+// notes 1, await() may return early, the consumer must always re-check for data
+//       2, signal() is called by the producer after publishing and must be cheap when nobody is waiting
+//
+
+abstract class Waiter
+{
+    // implemented by the queues and rings, allows a waiter to re-check for data without any allocation
+    //
+    interface Source
+    {
+        boolean hasData();
+    }
+
+    abstract void await(final Source source, final long timeout, final TimeUnit unit);
+    abstract void signal();
+
+    static Waiter create(final CanCommsConfig.WaitStrategy strategy)
+    {
+        switch (strategy)
+        {
+            case BUSY_SPIN:
+                return new BusySpinWaiter();
+
+            case YIELD:
+                return new YieldingWaiter();
+
+            case PARK:
+                return new ParkingWaiter();
+
+            default:
+                return new BlockingWaiter();
+        }
+    }
+
+    // lowest latency, consumes a whole core whilst idle
+    //
+    private static final class BusySpinWaiter extends Waiter
+    {
+        void await(final Source source, final long timeout, final TimeUnit unit)
+        {
+            Thread.onSpinWait();
+        }
+
+        void signal()
+        {
+        }
+    }
+
+    // low latency, gives up the core to any other runnable thread whilst idle
+    //
+    private static final class YieldingWaiter extends Waiter
+    {
+        void await(final Source source, final long timeout, final TimeUnit unit)
+        {
+            Thread.yield();
+        }
+
+        void signal()
+        {
+        }
+    }
+
+    // the consumer parks and is unparked directly by the producer, no locks are taken
+    //
+    private static final class ParkingWaiter extends Waiter
+    {
+        private volatile Thread waiting;
+
+        void await(final Source source, final long timeout, final TimeUnit unit)
+        {
+            waiting = Thread.currentThread();
+
+            // note, the fences pair with the one in signal(), so either the producer sees the waiting thread or the consumer sees the data
+            //
+            VarHandle.fullFence();
+            if (!source.hasData()) LockSupport.parkNanos(this, unit.toNanos(timeout));
+
+            waiting = null;
+        }
+
+        void signal()
+        {
+            VarHandle.fullFence();
+            final Thread consumer = waiting;
+            if (consumer != null) LockSupport.unpark(consumer);
+        }
+    }
+
+    // lock and condition based, behaves like the original LinkedBlockingQueue poll() with a timeout
+    //
+    private static final class BlockingWaiter extends Waiter
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private volatile boolean waiting;
+
+        void await(final Source source, final long timeout, final TimeUnit unit)
+        {
+            lock.lock();
+            try
+            {
+                waiting = true;
+                VarHandle.fullFence();
+                if (!source.hasData()) notEmpty.awaitNanos(unit.toNanos(timeout));
+            }
+            catch (final InterruptedException ignored)
+            {
+            }
+            finally
+            {
+                waiting = false;
+                lock.unlock();
+            }
+        }
+
+        void signal()
+        {
+            VarHandle.fullFence();
+            if (!waiting) return;
+
+            lock.lock();
+            try
+            {
+                notEmpty.signal();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -23,7 +23,8 @@ public class CanCommsHandlerTest implements CanMessageListener, CanNotificationL
     {
         logger.info("Listening on device: " + device);
 
-        // as an example of kernel based filtering you can add and instantiate them as follows
+        // as an example of filtering you can add and instantiate them as follows, they can also be replaced using setFilters()
+        // note, by default the filters are applied by the kernel, see CanCommsConfig.setKernelFiltering()
         //
 //      final CanFilter[] filters = new CanFilter[] {new CanFilter(0xfff, 0x400), new CanFilter(0xfff, 0x410)};
         final CanFilter[] filters = new CanFilter[0];
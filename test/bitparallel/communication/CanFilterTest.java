@@ -0,0 +1,130 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+//
+// CanFilter sets follow the kernel CAN_RAW_FILTER rules, i.e. (received_id & mask) == (filter & mask) using the raw ID
+// note, the virtual transport applies the same rules in user space, so the last tests run the filters end to end
+//
+
+final class CanFilterTest extends CanTestCase
+{
+    private static final int SFF_ONLY = CanMessage.CAN_SFF_MASK | CanMessage.CAN_EFF_FLAG;
+    private static final int EFF_ONLY = CanMessage.CAN_EFF_MASK | CanMessage.CAN_EFF_FLAG;
+
+    public void testEmptySetMatchesEveryFrame()
+    {
+        final CanFilter[] none = new CanFilter[0];
+        assertTrue("Standard ID", CanFilter.matches(none, 0x123));
+        assertTrue("Extended ID", CanFilter.matches(none, 0x18ff0001 | CanMessage.CAN_EFF_FLAG));
+        assertTrue("RTR frame", CanFilter.matches(none, 0x123 | CanMessage.CAN_RTR_FLAG));
+    }
+
+    // the kernel only tests the frame format when the mask includes CAN_EFF_FLAG
+    //
+    public void testMaskWithoutTheEffFlagMatchesBothFormats()
+    {
+        final CanFilter[] filters = {new CanFilter(CanMessage.CAN_SFF_MASK, 0x123)};
+        assertTrue("Standard 0x123", CanFilter.matches(filters, 0x123));
+        assertTrue("Extended 0x123", CanFilter.matches(filters, 0x123 | CanMessage.CAN_EFF_FLAG));
+        assertTrue("Extended 0x1000123, the upper bits aren't tested", CanFilter.matches(filters, 0x1000123 | CanMessage.CAN_EFF_FLAG));
+        assertTrue("RTR 0x123, the RTR flag isn't tested", CanFilter.matches(filters, 0x123 | CanMessage.CAN_RTR_FLAG));
+        assertFalse("Standard 0x124", CanFilter.matches(filters, 0x124));
+    }
+
+    public void testEffFlagInTheMaskSelectsTheFormat()
+    {
+        final CanFilter[] standard = {new CanFilter(SFF_ONLY, 0x123)};
+        assertTrue("Standard 0x123", CanFilter.matches(standard, 0x123));
+        assertFalse("Extended 0x123", CanFilter.matches(standard, 0x123 | CanMessage.CAN_EFF_FLAG));
+
+        final CanFilter[] extended = {new CanFilter(EFF_ONLY, 0x18ff0001 | CanMessage.CAN_EFF_FLAG)};
+        assertTrue("Extended 0x18ff0001", CanFilter.matches(extended, 0x18ff0001 | CanMessage.CAN_EFF_FLAG));
+        assertFalse("Extended 0x18ff0002", CanFilter.matches(extended, 0x18ff0002 | CanMessage.CAN_EFF_FLAG));
+        assertFalse("Standard 0x001", CanFilter.matches(extended, 0x001));
+    }
+
+    public void testRtrFlagInTheMask()
+    {
+        final CanFilter[] dataOnly = {new CanFilter(SFF_ONLY | CanMessage.CAN_RTR_FLAG, 0x123)};
+        assertTrue("Data frame", CanFilter.matches(dataOnly, 0x123));
+        assertFalse("RTR frame", CanFilter.matches(dataOnly, 0x123 | CanMessage.CAN_RTR_FLAG));
+
+        final CanFilter[] rtrOnly = {new CanFilter(SFF_ONLY | CanMessage.CAN_RTR_FLAG, 0x123 | CanMessage.CAN_RTR_FLAG)};
+        assertFalse("Data frame", CanFilter.matches(rtrOnly, 0x123));
+        assertTrue("RTR frame", CanFilter.matches(rtrOnly, 0x123 | CanMessage.CAN_RTR_FLAG));
+    }
+
+    // CAN_INV_FILTER is removed from the filter before comparing, and then inverts the result
+    //
+    public void testInvertedFilter()
+    {
+        final CanFilter[] filters = {new CanFilter(SFF_ONLY, 0x123 | CanFilter.CAN_INV_FILTER)};
+        assertFalse("Standard 0x123", CanFilter.matches(filters, 0x123));
+        assertTrue("Standard 0x124", CanFilter.matches(filters, 0x124));
+        assertTrue("Extended 0x123, the format differs", CanFilter.matches(filters, 0x123 | CanMessage.CAN_EFF_FLAG));
+    }
+
+    public void testAnyFilterOfTheSetMatches()
+    {
+        final CanFilter[] filters = {new CanFilter(SFF_ONLY, 0x100), new CanFilter(0x7f0 | CanMessage.CAN_EFF_FLAG, 0x200)};
+        assertTrue("0x100", CanFilter.matches(filters, 0x100));
+        assertTrue("0x20f", CanFilter.matches(filters, 0x20f));
+        assertFalse("0x101", CanFilter.matches(filters, 0x101));
+        assertFalse("0x210", CanFilter.matches(filters, 0x210));
+    }
+
+    // error frames are selected using CAN_RAW_ERR_FILTER, not CAN_RAW_FILTER
+    //
+    public void testErrorFramesAlwaysPass()
+    {
+        final CanFilter[] filters = {new CanFilter(SFF_ONLY, 0x100)};
+        assertTrue("Bus-off error frame", CanFilter.matches(filters, CanMessage.CAN_ERR_FLAG | CanMessage.CAN_ERR_BUSOFF));
+    }
+
+    public void testFiltersAppliedByTheVirtualTransport() throws Exception
+    {
+        final CanVirtualBus bus = new CanVirtualBus("vcan-filter");
+        final CanCommsHandler sender = startNode(bus);
+        final CanCommsHandler receiver = startNode(bus, new CanFilter(SFF_ONLY, 0x123), new CanFilter(EFF_ONLY, 0x456 | CanMessage.CAN_EFF_FLAG));
+        final BlockingQueue<CanMessage> received = new LinkedBlockingQueue<CanMessage>();
+        receiver.addMessageListener(received::add);
+
+        sender.transmit(new CanMessage(0x124, new byte[] {1}));
+        sender.transmit(new CanMessage(true, false, 0x123, new byte[] {2}));
+        sender.transmit(new CanMessage(0x123, new byte[] {3}));
+        sender.transmit(new CanMessage(true, false, 0x456, new byte[] {4}));
+
+        assertReceived(received, 0x123, new byte[] {3});
+        assertReceived(received, 0x456 | CanMessage.CAN_EFF_FLAG, new byte[] {4});
+        assertNothingReceived(received);
+    }
+
+    public void testFiltersReplacedWhilstRunning() throws Exception
+    {
+        final CanVirtualBus bus = new CanVirtualBus("vcan-refilter");
+        final CanCommsHandler sender = startNode(bus);
+        final CanCommsHandler receiver = startNode(bus, new CanFilter(SFF_ONLY, 0x100));
+        final BlockingQueue<CanMessage> received = new LinkedBlockingQueue<CanMessage>();
+        receiver.addMessageListener(received::add);
+
+        sender.transmit(new CanMessage(0x200, new byte[] {1}));
+        sender.transmit(new CanMessage(0x100, new byte[] {2}));
+        assertReceived(received, 0x100, new byte[] {2});
+
+        receiver.setFilters(new CanFilter[] {new CanFilter(SFF_ONLY, 0x200)});
+        sender.transmit(new CanMessage(0x100, new byte[] {3}));
+        sender.transmit(new CanMessage(0x200, new byte[] {4}));
+        assertReceived(received, 0x200, new byte[] {4});
+
+        receiver.setFilters(new CanFilter[0]);
+        sender.transmit(new CanMessage(0x300, new byte[] {5}));
+        assertReceived(received, 0x300, new byte[] {5});
+        assertNothingReceived(received);
+    }
+}
@@ -0,0 +1,177 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+//
+// the listener table must select the same listeners as matching every subscription individually, i.e. as the kernel rules for masks
+// note, the table is searched as CanCommsHandler dispatches a data frame, catch-all then indexed then residual subscriptions
+//
+
+final class CanListenerTableTest extends CanTestCase
+{
+    private static final CanFrameListener LISTENER = (frame) -> {};
+    private static final int EFF = CanMessage.CAN_EFF_FLAG;
+    private static final int RTR = CanMessage.CAN_RTR_FLAG;
+
+    // standard, extended, extended with the upper bits set, RTR and boundary IDs
+    //
+    private static final int[] RAW_IDS = {
+        0x000, 0x001, 0x0ff, 0x100, 0x10f, 0x110, 0x123, 0x124, 0x1ff, 0x200, 0x7ff,
+        0x123 | RTR, 0x7ff | RTR,
+        EFF | 0x000, EFF | 0x123, EFF | 0x1000123, EFF | 0x7ff, EFF | 0x800, EFF | 0x18ff0001, EFF | 0x18ff0002, EFF | 0x1fffffff,
+        EFF | 0x18ff0001 | RTR
+    };
+
+    public void testRangeSubscription()
+    {
+        final CanListenerTable table = table(CanListenerTable.Subscription.range(LISTENER, 0x100, 0x10f));
+        assertTrue("0x100", isDelivered(table, 0x100));
+        assertTrue("0x10f", isDelivered(table, 0x10f));
+        assertTrue("0x105 RTR", isDelivered(table, 0x105 | RTR));
+        assertFalse("0x110", isDelivered(table, 0x110));
+        assertFalse("Extended 0x100", isDelivered(table, EFF | 0x100));
+    }
+
+    // an ID with the EFF flag set, or one that doesn't fit into 11 bits, is an extended ID
+    //
+    public void testExtendedIdSubscription()
+    {
+        final CanListenerTable implicit = table(CanListenerTable.Subscription.range(LISTENER, 0x18ff0001, 0x18ff0001));
+        assertTrue("Extended 0x18ff0001", isDelivered(implicit, EFF | 0x18ff0001));
+        assertFalse("Extended 0x18ff0002", isDelivered(implicit, EFF | 0x18ff0002));
+
+        final CanListenerTable flagged = table(CanListenerTable.Subscription.range(LISTENER, EFF | 0x123, EFF | 0x123));
+        assertTrue("Extended 0x123", isDelivered(flagged, EFF | 0x123));
+        assertFalse("Standard 0x123", isDelivered(flagged, 0x123));
+
+        final CanListenerTable range = table(CanListenerTable.Subscription.range(LISTENER, EFF | 0x18ff0000, EFF | 0x18ff00ff));
+        assertTrue("Extended 0x18ff0001", isDelivered(range, EFF | 0x18ff0001));
+        assertFalse("Extended 0x18ff0100", isDelivered(range, EFF | 0x18ff0100));
+        assertFalse("Standard 0x001", isDelivered(range, 0x001));
+    }
+
+    public void testInvalidRangeIsRejected()
+    {
+        try
+        {
+            CanListenerTable.Subscription.range(LISTENER, 0x200, 0x100);
+            fail("A reversed range was accepted");
+        }
+        catch (final IllegalArgumentException expected)
+        {
+        }
+    }
+
+    public void testMaskSubscriptionsFollowTheKernelRule()
+    {
+        final CanFilter[] filters = {
+            new CanFilter(CanMessage.CAN_SFF_MASK, 0x123),
+            new CanFilter(CanMessage.CAN_SFF_MASK | EFF, 0x123),
+            new CanFilter(0x7f0, 0x100),
+            new CanFilter(CanMessage.CAN_EFF_MASK | EFF, EFF | 0x18ff0001),
+            new CanFilter(0x1fffff00 | EFF, EFF | 0x18ff0000),
+            new CanFilter(CanMessage.CAN_SFF_MASK | RTR, 0x123 | RTR),
+            new CanFilter(0, 0)
+        };
+
+        for (CanFilter filter : filters) assertAgreesWithTheKernelRule(filter);
+    }
+
+    // CAN_INV_FILTER must be removed from the filter before comparing and then invert the result, as CanFilter.matches()
+    //
+    public void testInvertedMaskSubscriptionsFollowTheKernelRule()
+    {
+        final CanFilter[] filters = {
+            new CanFilter(CanMessage.CAN_SFF_MASK, 0x123 | CanFilter.CAN_INV_FILTER),
+            new CanFilter(CanMessage.CAN_SFF_MASK | EFF, 0x123 | CanFilter.CAN_INV_FILTER),
+            new CanFilter(CanMessage.CAN_EFF_MASK | EFF, EFF | 0x18ff0001 | CanFilter.CAN_INV_FILTER),
+            new CanFilter(0x700, 0x100 | CanFilter.CAN_INV_FILTER)
+        };
+
+        for (CanFilter filter : filters) assertAgreesWithTheKernelRule(filter);
+
+        final CanListenerTable table = table(CanListenerTable.Subscription.filter(LISTENER, filters[1]));
+        assertFalse("Standard 0x123", isDelivered(table, 0x123));
+        assertTrue("Standard 0x124", isDelivered(table, 0x124));
+        assertTrue("Extended 0x123", isDelivered(table, EFF | 0x123));
+    }
+
+    public void testEachListenerIsSelectedIndependently()
+    {
+        final CanFrameListener first = (frame) -> {};
+        final CanFrameListener second = (frame) -> {};
+        final CanListenerTable table = table(CanListenerTable.Subscription.range(first, 0x100, 0x100), CanListenerTable.Subscription.filter(second, new CanFilter(0x700, 0x100)));
+
+        assertEquals("Listeners of 0x100", Arrays.asList(first, second), listenersOf(table, 0x100));
+        assertEquals("Listeners of 0x101", Arrays.asList(second), listenersOf(table, 0x101));
+        assertEquals("Listeners of 0x200", new ArrayList<CanFrameListener>(), listenersOf(table, 0x200));
+    }
+
+    public void testInvertedFilterSubscriptionOnTheVirtualBus() throws Exception
+    {
+        final CanVirtualBus bus = new CanVirtualBus("vcan-subscriptions");
+        final CanCommsHandler sender = startNode(bus);
+        final CanCommsHandler receiver = startNode(bus);
+        final BlockingQueue<CanMessage> everythingBut123 = new LinkedBlockingQueue<CanMessage>();
+        final BlockingQueue<CanMessage> only123 = new LinkedBlockingQueue<CanMessage>();
+        receiver.addFrameListener(new CanFilter(CanMessage.CAN_SFF_MASK | EFF, 0x123 | CanFilter.CAN_INV_FILTER), (frame) -> everythingBut123.add(frame.toMessage()));
+        receiver.addFrameListener(0x123, (frame) -> only123.add(frame.toMessage()));
+
+        sender.transmit(new CanMessage(0x123, new byte[] {1}));
+        sender.transmit(new CanMessage(0x124, new byte[] {2}));
+        sender.transmit(new CanMessage(true, false, 0x123, new byte[] {3}));
+
+        assertReceived(only123, 0x123, new byte[] {1});
+        assertReceived(everythingBut123, 0x124, new byte[] {2});
+        assertReceived(everythingBut123, EFF | 0x123, new byte[] {3});
+        assertNothingReceived(everythingBut123);
+        assertNothingReceived(only123);
+    }
+
+    private static void assertAgreesWithTheKernelRule(final CanFilter filter)
+    {
+        final CanListenerTable table = table(CanListenerTable.Subscription.filter(LISTENER, filter));
+        for (int rawId : RAW_IDS)
+        {
+            final String description = "Mask 0x" + Integer.toHexString(filter.getMask()) + ", filter 0x" + Integer.toHexString(filter.getFilter()) + ", raw ID 0x" + Integer.toHexString(rawId);
+            assertEquals(description, filter.matches(rawId), isDelivered(table, rawId));
+        }
+    }
+
+    private static CanListenerTable table(final CanListenerTable.Subscription... subscriptions)
+    {
+        return new CanListenerTable(Arrays.asList(subscriptions));
+    }
+
+    private static boolean isDelivered(final CanListenerTable table, final int rawId)
+    {
+        return listenersOf(table, rawId).contains(LISTENER);
+    }
+
+    private static List<CanFrameListener> listenersOf(final CanListenerTable table, final int rawId)
+    {
+        final List<CanFrameListener> listeners = new ArrayList<CanFrameListener>();
+        for (CanListenerTable.Subscription subscription : table.catchAll()) listeners.add(subscription.getListener());
+
+        final CanListenerTable.Subscription[] indexed = table.indexed(rawId);
+        if (indexed != null)
+        {
+            for (CanListenerTable.Subscription subscription : indexed) listeners.add(subscription.getListener());
+        }
+
+        for (CanListenerTable.Subscription subscription : table.residual())
+        {
+            if (subscription.matches(rawId)) listeners.add(subscription.getListener());
+        }
+
+        return listeners;
+    }
+}
@@ -0,0 +1,105 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+//
+// CanCommsHandler.request(), i.e. matching the responses to the outstanding requests by ID and expiring those without a response
+// note, the responder node answers a request to 0x601 with the same payload on 0x581 (e.g. a CANopen SDO server)
+//
+
+final class CanRequestTrackerTest extends CanTestCase
+{
+    private static final int REQUEST_ID = 0x601;
+    private static final int RESPONSE_ID = 0x581;
+    private static final Duration TIMEOUT = Duration.ofMillis(RECEIVE_TIMEOUT_MS);
+
+    public void testResponseCompletesTheRequest() throws Exception
+    {
+        final CanVirtualBus bus = new CanVirtualBus("vcan-request");
+        startResponder(bus);
+        final CanCommsHandler client = startNode(bus);
+
+        final CompletableFuture<CanMessage> response = client.request(new CanMessage(REQUEST_ID, new byte[] {0x40, 0x18, 0x10, 0x01}), RESPONSE_ID, TIMEOUT);
+        final CanMessage message = response.get(RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals("Response ID", RESPONSE_ID, message.getRawId());
+        assertArrayEquals("Response payload", new byte[] {0x40, 0x18, 0x10, 0x01}, message.getPayload());
+        assertEquals("Pending requests", 0, client.getPendingRequests());
+    }
+
+    public void testRequestWithoutAResponseTimesOut() throws Exception
+    {
+        final CanVirtualBus bus = new CanVirtualBus("vcan-request");
+        startResponder(bus);
+        final CanCommsHandler client = startNode(bus);
+
+        // note, the responder answers on 0x581, so a request awaiting 0x582 is never completed
+        //
+        final CompletableFuture<CanMessage> response = client.request(new CanMessage(REQUEST_ID, new byte[] {1}), RESPONSE_ID + 1, Duration.ofMillis(QUIET_PERIOD_MS));
+        assertEquals("Pending requests", 1, client.getPendingRequests());
+        try
+        {
+            response.get(RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("The request completed without a response");
+        }
+        catch (final ExecutionException ex)
+        {
+            assertTrue("Expected a TimeoutException, actual: " + ex.getCause(), ex.getCause() instanceof TimeoutException);
+        }
+
+        assertEquals("Pending requests", 0, client.getPendingRequests());
+    }
+
+    public void testRequestsSharingAResponseIdCompleteInOrder() throws Exception
+    {
+        final CanVirtualBus bus = new CanVirtualBus("vcan-request");
+        startResponder(bus);
+        final CanCommsHandler client = startNode(bus);
+
+        final List<CanMessage> requests = Arrays.asList(new CanMessage(REQUEST_ID, new byte[] {1}), new CanMessage(REQUEST_ID, new byte[] {2}), new CanMessage(REQUEST_ID, new byte[] {3}));
+        final List<CompletableFuture<CanMessage>> responses = client.request(requests, new int[] {RESPONSE_ID, RESPONSE_ID, RESPONSE_ID}, TIMEOUT);
+        for (int i = 0; i < responses.size(); i++)
+        {
+            final CanMessage message = responses.get(i).get(RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertArrayEquals("Response " + i, requests.get(i).getPayload(), message.getPayload());
+        }
+
+        assertEquals("Pending requests", 0, client.getPendingRequests());
+    }
+
+    // an extended response ID isn't completed by a standard frame with the same base ID, nor by a remote request
+    //
+    public void testExtendedResponseIdMatchesTheFrameFormat() throws Exception
+    {
+        final CanVirtualBus bus = new CanVirtualBus("vcan-request");
+        final CanCommsHandler server = startNode(bus);
+        server.addFrameListener(REQUEST_ID, (frame) -> {
+            server.transmit(new CanMessage(0x100, new byte[] {1}));
+            server.transmit(new CanMessage(true, true, 0x100, new byte[0]));
+            server.transmit(new CanMessage(true, false, 0x100, new byte[] {3}));
+        });
+
+        final CanCommsHandler client = startNode(bus);
+        final CompletableFuture<CanMessage> response = client.request(new CanMessage(REQUEST_ID, new byte[0]), 0x100 | CanMessage.CAN_EFF_FLAG, TIMEOUT);
+        final CanMessage message = response.get(RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue("Expected an extended response", message.isExtendedId());
+        assertArrayEquals("Response payload", new byte[] {3}, message.getPayload());
+    }
+
+    private CanCommsHandler startResponder(final CanVirtualBus bus) throws Exception
+    {
+        final CanCommsHandler server = startNode(bus);
+        server.addFrameListener(REQUEST_ID, (frame) -> server.transmit(new CanMessage(RESPONSE_ID, frame.toMessage().getPayload())));
+
+        return server;
+    }
+}
@@ -0,0 +1,142 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+//
+// DBC signal decoding, i.e. Intel (little endian) and Motorola (big endian) bit numbering, signed values, scaling and multiplexing
+// note, the expected values are worked by hand from the DBC bit numbering, not by the decoder
+//
+
+final class CanSignalTest extends CanTestCase
+{
+    private static final String DBC =
+        "VERSION \"\"\n" +
+        "\n" +
+        "BO_ 256 Engine: 8 ECU\n" +
+        " SG_ Rpm : 0|16@1+ (0.25,0) [0|16383] \"rpm\" Dash\n" +
+        " SG_ Temp : 16|8@1- (1,-40) [-40|215] \"C\" Dash\n" +
+        " SG_ Pressure : 39|12@0+ (1,0) [0|4095] \"kPa\" Dash\n" +
+        " SG_ Trim : 47|8@0- (0.5,0) [-64|63.5] \"%\" Dash\n" +
+        "\n" +
+        "BO_ 2147484160 Mux: 8 ECU\n" +
+        " SG_ Sel M : 0|8@1+ (1,0) [0|255] \"\" Dash\n" +
+        " SG_ A m1 : 8|8@1+ (1,0) [0|255] \"\" Dash\n" +
+        " SG_ B m2 : 8|8@1- (1,0) [-128|127] \"\" Dash\n";
+
+    // Rpm 0x2710, Temp 0xf6, Pressure 0xabc (bytes 4 and 5, most significant first) and Trim 0xc0
+    //
+    private static final byte[] ENGINE = {(byte)0x10, (byte)0x27, (byte)0xf6, 0, (byte)0xab, (byte)0xc0, 0, 0};
+
+    private final CanSignalDatabase database;
+
+    CanSignalTest() throws Exception
+    {
+        database = CanSignalDatabase.parse(new StringReader(DBC));
+    }
+
+    public void testIntelUnsignedIsScaled()
+    {
+        final CanSignal rpm = database.getSignal("Engine", "Rpm");
+        assertEquals("Rpm raw", 10000, rpm.getRaw(ENGINE));
+        assertEquals("Rpm", 2500.0, rpm.getValue(ENGINE), 1e-9);
+    }
+
+    public void testIntelSignedIsSignExtendedBeforeTheOffset()
+    {
+        final CanSignal temp = database.getSignal("Engine", "Temp");
+        assertEquals("Temp raw", -10, temp.getRaw(ENGINE));
+        assertEquals("Temp", -50.0, temp.getValue(ENGINE), 1e-9);
+    }
+
+    public void testMotorolaUnsignedSpansBytes()
+    {
+        final CanSignal pressure = database.getSignal("Engine", "Pressure");
+        assertEquals("Pressure raw", 0xabc, pressure.getRaw(ENGINE));
+        assertEquals("Pressure", 2748.0, pressure.getValue(ENGINE), 1e-9);
+    }
+
+    public void testMotorolaSigned()
+    {
+        final CanSignal trim = database.getSignal("Engine", "Trim");
+        assertEquals("Trim raw", -64, trim.getRaw(ENGINE));
+        assertEquals("Trim", -32.0, trim.getValue(ENGINE), 1e-9);
+    }
+
+    public void testFrameAndMessageDecodeLikeThePayload()
+    {
+        final CanMessage message = new CanMessage(0x100, ENGINE);
+        final CanSignal pressure = database.getSignal("Engine", "Pressure");
+        assertEquals("Message", 2748.0, pressure.getValue(message), 1e-9);
+        assertEquals("Frame", 0xabc, pressure.getRaw(frameOf(message)));
+    }
+
+    public void testMultiplexedSignalsAreSelectedByTheMultiplexor()
+    {
+        final CanSignalDecoder mux = database.getDecoder(0x200 | CanMessage.CAN_EFF_FLAG);
+        assertTrue("Mux decoder", mux != null);
+
+        final CanSignal a = mux.getSignal("A");
+        final CanSignal b = mux.getSignal("B");
+        final byte[] selectA = {1, (byte)0xfb};
+        final byte[] selectB = {2, (byte)0xfb};
+
+        assertTrue("A selected", mux.isPresent(a, selectA));
+        assertFalse("B not selected", mux.isPresent(b, selectA));
+        assertEquals("A", 251, a.getRaw(selectA));
+
+        assertFalse("A not selected", mux.isPresent(a, selectB));
+        assertTrue("B selected", mux.isPresent(b, selectB));
+        assertEquals("B", -5, b.getRaw(selectB));
+
+        assertFalse("Neither selected", mux.isPresent(a, new byte[] {3, 0}) || mux.isPresent(b, new byte[] {3, 0}));
+    }
+
+    public void testSignalsAreAbsentFromShortAndRemoteFrames()
+    {
+        final CanSignalDecoder engine = database.getDecoder("Engine");
+        final CanSignal temp = engine.getSignal("Temp");
+        assertFalse("Short payload", engine.isPresent(temp, new byte[] {0x10, 0x27}));
+        assertTrue("Covering payload", engine.isPresent(temp, new byte[] {0x10, 0x27, 0}));
+        assertFalse("Remote request", engine.isPresent(temp, frameOf(new CanMessage(false, true, 0x100, new byte[8]))));
+    }
+
+    // the listener sees the first value and then only the changes, and never sees a remote request or another multiplexor value
+    //
+    public void testSignalListenerOnTheVirtualBus() throws Exception
+    {
+        final CanVirtualBus bus = new CanVirtualBus("vcan-signal");
+        final CanCommsHandler sender = startNode(bus);
+        final CanCommsHandler receiver = startNode(bus);
+
+        final BlockingQueue<Long> values = new LinkedBlockingQueue<Long>();
+        receiver.addSignalListener(database, "Mux", "B", (signal, value, rawValue) -> values.add(rawValue));
+
+        final int muxId = 0x200;
+        sender.transmit(new CanMessage(true, false, muxId, new byte[] {2, 7}));
+        sender.transmit(new CanMessage(true, false, muxId, new byte[] {2, 7}));
+        sender.transmit(new CanMessage(true, false, muxId, new byte[] {1, 9}));
+        sender.transmit(new CanMessage(true, true, muxId, new byte[] {2, 8}));
+        sender.transmit(new CanMessage(true, false, muxId, new byte[] {2, (byte)0xff}));
+
+        assertEquals("First value", Long.valueOf(7), take(values));
+        assertEquals("Changed value", Long.valueOf(-1), take(values));
+        assertNothingReceived(values);
+    }
+
+    private static CanFrame frameOf(final CanMessage message)
+    {
+        final int slotSize = CanFrameRing.slotSizeFor(new CanCommsConfig());
+        final CanFrame frame = new CanFrame(ByteBuffer.allocateDirect(slotSize).order(ByteOrder.nativeOrder()), slotSize);
+        frame.wrap(message);
+
+        return frame;
+    }
+}
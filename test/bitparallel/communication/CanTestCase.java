@@ -0,0 +1,133 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+//
+// the base class of the behaviour tests, see CanTestRunner
+//
+// notes 1, every public void test*() method is a test, each one is run using a new instance
+//       2, the handlers created using createNode() or startNode() are stopped after each test, whether it passed or failed
+//       3, the tests only use CanVirtualBus, i.e. they need neither CAN hardware nor the native library
+//
+
+abstract class CanTestCase
+{
+    static final long RECEIVE_TIMEOUT_MS = 2000;
+    static final long QUIET_PERIOD_MS = 100;
+
+    private final List<CanCommsHandler> nodes = new ArrayList<CanCommsHandler>();
+
+    // the handler is attached to the bus as a new node, but isn't started
+    //
+    CanCommsHandler createNode(final CanVirtualBus bus, final CanCommsConfig config, final CanFilter... filters) throws IOException
+    {
+        final CanCommsHandler handler = new CanCommsHandler(bus.getName(), filters, config.setTransport(bus));
+        nodes.add(handler);
+
+        return handler;
+    }
+
+    CanCommsHandler startNode(final CanVirtualBus bus, final CanCommsConfig config, final CanFilter... filters) throws IOException
+    {
+        final CanCommsHandler handler = createNode(bus, config, filters);
+        assertTrue("The " + bus.getName() + " node didn't start", handler.start());
+
+        return handler;
+    }
+
+    CanCommsHandler startNode(final CanVirtualBus bus, final CanFilter... filters) throws IOException
+    {
+        return startNode(bus, new CanCommsConfig(), filters);
+    }
+
+    void stopNodes()
+    {
+        for (CanCommsHandler handler : nodes) handler.stop();
+        nodes.clear();
+    }
+
+    //
+    // received frames (or values)
+    //
+
+    static <T> T take(final BlockingQueue<T> received) throws InterruptedException
+    {
+        final T message = received.poll(RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (message == null) fail("Nothing was received within " + RECEIVE_TIMEOUT_MS + "ms");
+
+        return message;
+    }
+
+    static <T> void assertNothingReceived(final BlockingQueue<T> received) throws InterruptedException
+    {
+        final T message = received.poll(QUIET_PERIOD_MS, TimeUnit.MILLISECONDS);
+        if (message != null) fail("Unexpected receipt: " + message);
+    }
+
+    static void assertReceived(final BlockingQueue<CanMessage> received, final int rawId, final byte[] payload) throws InterruptedException
+    {
+        final CanMessage message = take(received);
+        assertEquals("Received ID", rawId, message.getRawId());
+        assertArrayEquals("Received payload", payload, message.getPayload());
+    }
+
+    static void awaitTrue(final String description, final BooleanSupplier condition) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECEIVE_TIMEOUT_MS);
+        while (!condition.getAsBoolean())
+        {
+            if ((deadline - System.nanoTime()) <= 0) fail("Timed out waiting until " + description);
+            Thread.sleep(1);
+        }
+    }
+
+    //
+    // assertions, a failure throws an AssertionError
+    //
+
+    static void fail(final String message)
+    {
+        throw new AssertionError(message);
+    }
+
+    static void assertTrue(final String message, final boolean condition)
+    {
+        if (!condition) fail(message);
+    }
+
+    static void assertFalse(final String message, final boolean condition)
+    {
+        if (condition) fail(message);
+    }
+
+    static void assertEquals(final String message, final long expected, final long actual)
+    {
+        if (expected != actual) fail(message + ", expected: " + expected + " (0x" + Long.toHexString(expected) + "), actual: " + actual + " (0x" + Long.toHexString(actual) + ")");
+    }
+
+    static void assertEquals(final String message, final double expected, final double actual, final double tolerance)
+    {
+        if (Math.abs(expected - actual) > tolerance) fail(message + ", expected: " + expected + ", actual: " + actual);
+    }
+
+    static void assertEquals(final String message, final Object expected, final Object actual)
+    {
+        if (!Objects.equals(expected, actual)) fail(message + ", expected: " + expected + ", actual: " + actual);
+    }
+
+    static void assertArrayEquals(final String message, final byte[] expected, final byte[] actual)
+    {
+        if (!Arrays.equals(expected, actual)) fail(message + ", expected: " + Arrays.toString(expected) + ", actual: " + Arrays.toString(actual));
+    }
+}
@@ -0,0 +1,96 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+//
+// runs the behaviour tests, i.e. ant unit-test, exits with status 1 if any test fails
+// note, test class names can be supplied to run a subset, e.g. CanFilterTest
+//
+
+public final class CanTestRunner
+{
+    private static final Class<?>[] TEST_CLASSES = {
+        CanFilterTest.class,
+        CanListenerTableTest.class,
+        CoalesceByIdTest.class,
+        CanSignalTest.class,
+        CanRequestTrackerTest.class,
+        CanTransmitQueueTest.class
+    };
+
+    private CanTestRunner()
+    {
+    }
+
+    public static void main(final String[] args) throws ReflectiveOperationException
+    {
+        final List<String> selected = Arrays.asList(args);
+        int passed = 0;
+        final List<String> failures = new ArrayList<String>();
+        for (Class<?> testClass : TEST_CLASSES)
+        {
+            if (!selected.isEmpty() && !selected.contains(testClass.getSimpleName())) continue;
+
+            for (Method method : testMethods(testClass))
+            {
+                final String name = testClass.getSimpleName() + "." + method.getName();
+                final CanTestCase test = (CanTestCase)testClass.getDeclaredConstructor().newInstance();
+                final long start = System.nanoTime();
+                try
+                {
+                    method.invoke(test);
+
+                    passed++;
+                    System.out.println("PASS " + name + " (" + ((System.nanoTime() - start) / 1000000) + "ms)");
+                }
+                catch (final InvocationTargetException ex)
+                {
+                    failures.add(name);
+                    System.out.println("FAIL " + name + ", reason: " + ex.getCause());
+                    ex.getCause().printStackTrace(System.out);
+                }
+                finally
+                {
+                    test.stopNodes();
+                }
+            }
+        }
+
+        final StringBuffer sb = new StringBuffer();
+        sb.append(passed + failures.size());
+        sb.append(" tests, ");
+        sb.append(failures.size());
+        sb.append(" failed");
+        if (!failures.isEmpty()) sb.append(": ").append(failures);
+
+        System.out.println(sb.toString());
+        if (!failures.isEmpty()) System.exit(1);
+    }
+
+    // the public void test*() methods, in name order so that the runs are repeatable
+    //
+    private static List<Method> testMethods(final Class<?> testClass)
+    {
+        final List<Method> methods = new ArrayList<Method>();
+        for (Method method : testClass.getDeclaredMethods())
+        {
+            if (!method.getName().startsWith("test") || !Modifier.isPublic(method.getModifiers()) || Modifier.isStatic(method.getModifiers())) continue;
+            if ((method.getParameterCount() != 0) || (method.getReturnType() != void.class)) continue;
+
+            methods.add(method);
+        }
+
+        methods.sort(Comparator.comparing(Method::getName));
+        return methods;
+    }
+}
@@ -0,0 +1,164 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+//
+// the transmitAsync() queue, i.e. the frames are sent in bus arbitration order, same ID frames in order and replacing keeps the position
+// note, the frames are queued before the writer is started, so the order sent is decided by the queue alone
+//
+
+final class CanTransmitQueueTest extends CanTestCase
+{
+    // records the frames sent by the writer
+    //
+    private static final class RecordingTransport implements CanTransport
+    {
+        private final BlockingQueue<CanMessage> sent = new LinkedBlockingQueue<CanMessage>();
+
+        public void open(final String device, final CanFilter[] filters, final CanCommsConfig config)
+        {
+        }
+
+        public void setFilters(final CanFilter[] filters)
+        {
+        }
+
+        public void transmit(final CanMessage message)
+        {
+            sent.add(message);
+        }
+
+        public int receive(final ByteBuffer buffer, final int offset, final int slotSize, final int maxFrames, final int timeoutMs)
+        {
+            return 0;
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    // the extended ID with the same 11 bit base ID as 0x100
+    //
+    private static final int EXTENDED_0X100 = 0x100 << 18;
+
+    private final RecordingTransport transport = new RecordingTransport();
+    private CanTransmitQueue queue;
+
+    public void testFramesAreSentInArbitrationOrder() throws Exception
+    {
+        queue = createQueue(16);
+        queue.offer(new CanMessage(0x101, new byte[] {0}), false);
+        queue.offer(new CanMessage(true, true, EXTENDED_0X100, new byte[0]), false);
+        queue.offer(new CanMessage(false, true, 0x100, new byte[0]), false);
+        queue.offer(new CanMessage(true, false, EXTENDED_0X100, new byte[] {0}), false);
+        queue.offer(new CanMessage(0x100, new byte[] {1}), false);
+        queue.offer(new CanMessage(0x7ff, new byte[] {0}), false);
+        final CompletableFuture<Void> last = queue.offer(new CanMessage(0x100, new byte[] {2}), false);
+        queue.start();
+
+        last.get(RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertReceived(transport.sent, 0x100, new byte[] {1});
+        assertReceived(transport.sent, 0x100, new byte[] {2});
+        assertReceived(transport.sent, 0x100 | CanMessage.CAN_RTR_FLAG, new byte[0]);
+        assertReceived(transport.sent, EXTENDED_0X100 | CanMessage.CAN_EFF_FLAG, new byte[] {0});
+        assertReceived(transport.sent, EXTENDED_0X100 | CanMessage.CAN_EFF_FLAG | CanMessage.CAN_RTR_FLAG, new byte[0]);
+        assertReceived(transport.sent, 0x101, new byte[] {0});
+        assertReceived(transport.sent, 0x7ff, new byte[] {0});
+        assertNothingReceived(transport.sent);
+    }
+
+    // the latest queued frame with the ID is replaced, an earlier one that wasn't replaceable is still sent first
+    //
+    public void testReplacePendingKeepsThePosition() throws Exception
+    {
+        queue = createQueue(16);
+        queue.offer(new CanMessage(0x300, new byte[] {1}), false);
+        final CompletableFuture<Void> replaced = queue.offer(new CanMessage(0x300, new byte[] {2}), false);
+        queue.offer(new CanMessage(0x301, new byte[] {1}), false);
+        final CompletableFuture<Void> replacement = queue.offer(new CanMessage(0x300, new byte[] {3}), true);
+        queue.offer(new CanMessage(0x200, new byte[] {1}), true);
+
+        assertTrue("The replaced frame's future wasn't cancelled", replaced.isCancelled());
+        assertEquals("Queued frames", 4, queue.size());
+        queue.start();
+
+        replacement.get(RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertReceived(transport.sent, 0x200, new byte[] {1});
+        assertReceived(transport.sent, 0x300, new byte[] {1});
+        assertReceived(transport.sent, 0x300, new byte[] {3});
+        assertReceived(transport.sent, 0x301, new byte[] {1});
+        assertNothingReceived(transport.sent);
+    }
+
+    public void testFullQueueFailsTheFrame()
+    {
+        queue = createQueue(2);
+        assertFalse("First frame", queue.offer(new CanMessage(0x100, new byte[] {1}), false).isDone());
+        assertFalse("Second frame", queue.offer(new CanMessage(0x101, new byte[] {1}), false).isDone());
+        assertTrue("The full queue accepted a frame", queue.offer(new CanMessage(0x102, new byte[] {1}), false).isCompletedExceptionally());
+
+        // note, replacing needs no space
+        //
+        assertFalse("Replacement", queue.offer(new CanMessage(0x101, new byte[] {2}), true).isDone());
+    }
+
+    public void testStoppingFailsTheQueuedAndLaterFrames()
+    {
+        queue = createQueue(16);
+        final CompletableFuture<Void> queued = queue.offer(new CanMessage(0x100, new byte[] {1}), false);
+        queue.stop();
+
+        assertTrue("The queued frame wasn't failed", queued.isCompletedExceptionally());
+        assertTrue("The stopped queue accepted a frame", queue.offer(new CanMessage(0x100, new byte[] {2}), false).isCompletedExceptionally());
+        assertNothingSent();
+    }
+
+    // the frames queued before the handler is started reach the other node in priority order
+    //
+    public void testTransmitAsyncOnTheVirtualBus() throws Exception
+    {
+        final CanVirtualBus bus = new CanVirtualBus("vcan-transmit");
+        final CanCommsHandler receiver = startNode(bus);
+        final BlockingQueue<CanMessage> received = new LinkedBlockingQueue<CanMessage>();
+        receiver.addFrameListener((frame) -> received.add(frame.toMessage()));
+
+        final CanCommsHandler sender = createNode(bus, new CanCommsConfig().setTransmitQueueCapacity(16));
+        sender.transmitAsync(new CanMessage(0x400, new byte[] {1}));
+        sender.transmitAsync(new CanMessage(0x080, new byte[] {1}));
+        sender.transmitAsync(new CanMessage(0x400, new byte[] {2}));
+        sender.transmitAsync(new CanMessage(0x080, new byte[] {2}), true);
+        assertTrue("The sender didn't start", sender.start());
+
+        assertReceived(received, 0x080, new byte[] {2});
+        assertReceived(received, 0x400, new byte[] {1});
+        assertReceived(received, 0x400, new byte[] {2});
+        assertNothingReceived(received);
+    }
+
+    @Override
+    void stopNodes()
+    {
+        if (queue != null) queue.stop();
+        super.stopNodes();
+    }
+
+    private CanTransmitQueue createQueue(final int capacity)
+    {
+        return new CanTransmitQueue("can-test", capacity, transport, new CanCommsMetrics("can-test", () -> 0, Collections::emptyMap), null);
+    }
+
+    private void assertNothingSent()
+    {
+        assertTrue("Unexpected frame sent: " + transport.sent.peek(), transport.sent.isEmpty());
+    }
+}
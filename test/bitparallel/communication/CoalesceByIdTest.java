@@ -0,0 +1,130 @@
+package bitparallel.communication;
+
+//
+// (c) Bit Parallel Ltd, November 2021
+//
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//
+// the COALESCE_BY_ID overflow policy, a newer frame replaces an undelivered frame with the same ID, whilst the IDs keep their arrival order
+// note, CoalescingQueue is the PER_FRAME receiver queue and CoalescingFrameRing the BATCHED receiver ring
+//
+
+final class CoalesceByIdTest extends CanTestCase
+{
+    public void testQueueKeepsTheLatestFramePerId()
+    {
+        final AtomicInteger coalesced = new AtomicInteger();
+        final CoalescingQueue<CanMessage> queue = new CoalescingQueue<CanMessage>(16, Waiter.create(CanCommsConfig.WaitStrategy.BLOCKING), CanMessage::getRawId, coalesced::incrementAndGet);
+
+        assertTrue("0x100 #1", queue.offer(new CanMessage(0x100, new byte[] {1})));
+        assertTrue("0x200 #1", queue.offer(new CanMessage(0x200, new byte[] {1})));
+        assertTrue("0x100 #2", queue.offer(new CanMessage(0x100, new byte[] {2})));
+        assertTrue("0x100 #3", queue.offer(new CanMessage(0x100, new byte[] {3})));
+        assertEquals("Coalesced frames", 2, coalesced.get());
+        assertEquals("Queued IDs", 2, queue.size());
+
+        assertPolled(queue, 0x100, 3);
+        assertPolled(queue, 0x200, 1);
+        assertEquals("Drained queue", null, queue.poll(0, TimeUnit.MILLISECONDS));
+
+        // once delivered, a frame is queued again rather than coalesced
+        //
+        assertTrue("0x100 #4", queue.offer(new CanMessage(0x100, new byte[] {4})));
+        assertPolled(queue, 0x100, 4);
+        assertEquals("Coalesced frames", 2, coalesced.get());
+    }
+
+    // the capacity limits the number of distinct IDs, the slots aren't reclaimed
+    //
+    public void testQueueDiscardsNewIdsOnceTheSlotsAreAssigned()
+    {
+        final CoalescingQueue<CanMessage> queue = new CoalescingQueue<CanMessage>(2, Waiter.create(CanCommsConfig.WaitStrategy.BLOCKING), CanMessage::getRawId, () -> {});
+        assertTrue("0x100", queue.offer(new CanMessage(0x100, new byte[] {1})));
+        assertTrue("0x200", queue.offer(new CanMessage(0x200, new byte[] {1})));
+        assertFalse("0x300", queue.offer(new CanMessage(0x300, new byte[] {1})));
+        assertTrue("0x100 again", queue.offer(new CanMessage(0x100, new byte[] {2})));
+    }
+
+    public void testFrameRingKeepsTheLatestFramePerId()
+    {
+        final int slotSize = CanFrameRing.slotSizeFor(new CanCommsConfig());
+        final CoalescingFrameRing ring = new CoalescingFrameRing(16, slotSize, Waiter.create(CanCommsConfig.WaitStrategy.BLOCKING));
+        final CanFrame received = new CanFrame(ByteBuffer.allocateDirect(slotSize).order(ByteOrder.nativeOrder()), slotSize);
+        final CanFrame delivered = new CanFrame(ByteBuffer.allocateDirect(slotSize).order(ByteOrder.nativeOrder()), slotSize);
+
+        received.wrap(new CanMessage(0x100, new byte[] {1}));
+        assertEquals("0x100 #1", CoalescingFrameRing.QUEUED, ring.offer(received));
+        received.wrap(new CanMessage(true, false, 0x18ff0001, new byte[] {1}));
+        assertEquals("0x18ff0001 #1", CoalescingFrameRing.QUEUED, ring.offer(received));
+        received.wrap(new CanMessage(0x100, new byte[] {2, 2}));
+        assertEquals("0x100 #2", CoalescingFrameRing.COALESCED, ring.offer(received));
+
+        assertTrue("First frame", ring.poll(delivered.buffer()));
+        delivered.moveTo(0);
+        assertEquals("First ID", 0x100, delivered.getRawId());
+        assertArrayEquals("First payload", new byte[] {2, 2}, delivered.toMessage().getPayload());
+
+        assertTrue("Second frame", ring.poll(delivered.buffer()));
+        delivered.moveTo(0);
+        assertEquals("Second ID", 0x18ff0001 | CanMessage.CAN_EFF_FLAG, delivered.getRawId());
+        assertFalse("Drained ring", ring.poll(delivered.buffer()));
+    }
+
+    public void testPerFrameCoalescingOnTheVirtualBus() throws Exception
+    {
+        assertCoalescedWhilstTheListenerIsBlocked(CanCommsConfig.ReceiveMode.PER_FRAME);
+    }
+
+    public void testBatchedCoalescingOnTheVirtualBus() throws Exception
+    {
+        assertCoalescedWhilstTheListenerIsBlocked(CanCommsConfig.ReceiveMode.BATCHED);
+    }
+
+    // the listener is held by the first frame, so the burst that follows collapses to a single frame per ID
+    //
+    private void assertCoalescedWhilstTheListenerIsBlocked(final CanCommsConfig.ReceiveMode receiveMode) throws Exception
+    {
+        final int burst = 20;
+        final CanVirtualBus bus = new CanVirtualBus("vcan-coalesce");
+        final CanCommsHandler sender = startNode(bus);
+        final CanCommsHandler receiver = startNode(bus, new CanCommsConfig().setReceiveMode(receiveMode).setOverflowPolicy(CanCommsConfig.OverflowPolicy.COALESCE_BY_ID));
+
+        final CountDownLatch firstFrame = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final BlockingQueue<CanMessage> received = new LinkedBlockingQueue<CanMessage>();
+        receiver.addFrameListener((frame) -> {
+            received.add(frame.toMessage());
+            firstFrame.countDown();
+            release.await(RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        });
+
+        sender.transmit(new CanMessage(0x100, new byte[] {0}));
+        assertTrue("The first frame wasn't delivered", firstFrame.await(RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        sender.transmit(new CanMessage(0x200, new byte[] {0}));
+        for (int i = 1; i <= burst; i++) sender.transmit(new CanMessage(0x100, new byte[] {(byte)i}));
+        awaitTrue("the burst has been coalesced", () -> receiver.getMetrics().getCoalescedFrames() == (burst - 1));
+        release.countDown();
+
+        assertReceived(received, 0x100, new byte[] {0});
+        assertReceived(received, 0x200, new byte[] {0});
+        assertReceived(received, 0x100, new byte[] {(byte)burst});
+        assertNothingReceived(received);
+    }
+
+    private static void assertPolled(final CoalescingQueue<CanMessage> queue, final int rawId, final int value)
+    {
+        final CanMessage message = queue.poll(0, TimeUnit.MILLISECONDS);
+        assertTrue("Expected 0x" + Integer.toHexString(rawId) + ", the queue is empty", message != null);
+        assertEquals("ID", rawId, message.getRawId());
+        assertEquals("Value", value, message.getPayload()[0]);
+    }
+}